@@ -0,0 +1,125 @@
+package com.kylekewley.piclient.benchmarks;
+
+import com.kylekewley.piclient.PiCompressor;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * Measures the CPU cost of compressing and decompressing JSON-like payloads with PiCompressor
+ * against the bandwidth it saves. Each benchmark reports rawBytes and wireBytes counters next to
+ * its throughput, so the bytes per second of payload can be read against the bytes per second
+ * that actually go over the socket. The compression ratio is also printed during setup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CompressionBenchmark {
+
+    /**
+     * The bytes handled by each benchmark, reported as rates alongside its throughput.
+     */
+    @AuxCounters
+    @State(Scope.Thread)
+    public static class Bytes {
+        ///The uncompressed payload bytes
+        public long rawBytes;
+
+        ///The payload bytes that would go over the socket
+        public long wireBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rawBytes = 0;
+            wireBytes = 0;
+        }
+    }
+
+    @Param({"256", "4096", "65536"})
+    public int payloadSize;
+
+    ///The deflate level, 1 is the client default
+    @Param({"1", "6"})
+    public int level;
+
+    private byte[] payload;
+    private byte[] compressed;
+    private byte[] output;
+
+    @Setup
+    public void setup() {
+        payload = jsonPayload(payloadSize);
+        compressed = PiCompressor.compress(payload, level);
+        if (compressed == null)
+            throw new IllegalStateException("The payload doesn't compress");
+        output = new byte[payload.length];
+
+        System.out.println();
+        System.out.println("payloadSize " + payloadSize + " level " + level + ": " + compressed.length +
+                " bytes on the wire, ratio " + String.format("%.2f", (double) payload.length / compressed.length));
+    }
+
+    /**
+     * Copying the payload, what sending it uncompressed costs before the socket.
+     */
+    @Benchmark
+    public byte[] uncompressed(Bytes bytes) {
+        byte[] copy = payload.clone();
+        bytes.rawBytes += payload.length;
+        bytes.wireBytes += payload.length;
+        return copy;
+    }
+
+    @Benchmark
+    public byte[] compress(Bytes bytes) {
+        byte[] result = PiCompressor.compress(payload, level);
+        bytes.rawBytes += payload.length;
+        bytes.wireBytes += result.length;
+        return result;
+    }
+
+    @Benchmark
+    public byte[] decompress(Bytes bytes) throws DataFormatException {
+        PiCompressor.decompress(compressed, 0, compressed.length, output);
+        bytes.rawBytes += output.length;
+        bytes.wireBytes += compressed.length;
+        return output;
+    }
+
+
+    /**
+     * @return  Sensor readings as JSON, about size bytes long.
+     */
+    private static byte[] jsonPayload(int size) {
+        Random random = new Random(size);
+        StringBuilder builder = new StringBuilder("[");
+        while (builder.length() < size - 80) {
+            builder.append("{\"sensor\":\"temperature\",\"value\":").append(random.nextInt(1000))
+                    .append(",\"time\":").append(1400000000 + random.nextInt(100000)).append("},");
+        }
+        while (builder.length() < size - 1)
+            builder.append(' ');
+        builder.append(']');
+        return builder.toString().getBytes();
+    }
+}
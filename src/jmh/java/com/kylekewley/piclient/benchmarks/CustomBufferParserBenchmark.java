@@ -0,0 +1,86 @@
+package com.kylekewley.piclient.benchmarks;
+
+import com.kylekewley.piclient.CustomBufferParser;
+import com.kylekewley.piclient.protocolbuffers.Ping;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * Measures decoding a protocol buffer in a CustomBufferParser from a byte array and from
+ * a direct ByteBuffer view like the ones PiServerManager hands out.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CustomBufferParserBenchmark {
+
+    /**
+     * Keeps the last message so the decoding can't be optimized away.
+     */
+    private static class PingParser extends CustomBufferParser<Ping> {
+        Ping lastMessage;
+
+        PingParser() {
+            super(Ping.class);
+        }
+
+        @Override
+        public void parse(Ping message) {
+            lastMessage = message;
+        }
+    }
+
+    ///The number of characters in the Ping's message
+    @Param({"0", "64", "1024"})
+    public int messageLength;
+
+    private final PingParser parser = new PingParser();
+
+    private byte[] data;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        StringBuilder message = new StringBuilder(messageLength);
+        for (int i = 0; i < messageLength; i++)
+            message.append((char) ('a' + i % 26));
+
+        data = new Ping(1413504000, message.toString()).toByteArray();
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data);
+        direct.flip();
+        buffer = direct.asReadOnlyBuffer();
+    }
+
+    @Benchmark
+    public Ping parseByteArray() {
+        parser.parse(data);
+        return parser.lastMessage;
+    }
+
+    @Benchmark
+    public Ping parseByteBuffer() {
+        buffer.rewind();
+        parser.parse(buffer);
+        return parser.lastMessage;
+    }
+}
@@ -0,0 +1,162 @@
+package com.kylekewley.piclient.benchmarks;
+
+import com.kylekewley.piclient.PiClient;
+import com.kylekewley.piclient.PiMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * Measures uploading a file over loopback by reading it into a byte array, the old way, against
+ * sending a PiMessage backed by the file, which the client hands to the socket with transferTo().
+ * Each invocation sends the whole file and waits for a sink that reads and discards everything.
+ * The heap path needs the file twice on the heap, hence the large -Xmx.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g"})
+@State(Scope.Benchmark)
+public class FileUploadBenchmark {
+
+    ///A parser ID the sink doesn't care about
+    private static final int PARSER_ID = 16;
+
+    /**
+     * Reads and discards everything sent to it, counting the bytes.
+     */
+    private static class Sink implements Runnable {
+        final ServerSocketChannel serverChannel;
+        final AtomicLong bytesReceived = new AtomicLong();
+        final Thread thread;
+
+        Sink() throws IOException {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress("localhost", 0));
+            thread = new Thread(this, "FileUploadBenchmark sink");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            try {
+                while (true) {
+                    SocketChannel channel = serverChannel.accept();
+                    try {
+                        int read;
+                        while ((read = channel.read(buffer)) >= 0) {
+                            bytesReceived.addAndGet(read);
+                            buffer.clear();
+                        }
+                    } catch (IOException e) {
+                        //The client closed, wait for the next one
+                    } finally {
+                        channel.close();
+                    }
+                }
+            } catch (IOException e) {
+                //Closed
+            }
+        }
+
+        /**
+         * Wait until the sink has received the total number of bytes.
+         */
+        void await(long total) throws InterruptedException {
+            while (bytesReceived.get() < total)
+                Thread.sleep(1);
+        }
+    }
+
+    @Param({"1073741824"})
+    public int fileSize;
+
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private Sink sink;
+    private PiClient piClient;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        file = File.createTempFile("FileUploadBenchmark", ".bin");
+        randomAccessFile = new RandomAccessFile(file, "rw");
+
+        byte[] block = new byte[1024 * 1024];
+        for (int i = 0; i < block.length; i++)
+            block[i] = (byte) (i * 31);
+        for (long written = 0; written < fileSize; written += block.length)
+            randomAccessFile.write(block, 0, (int) Math.min(block.length, fileSize - written));
+
+        sink = new Sink();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        sink.serverChannel.close();
+        randomAccessFile.close();
+        file.delete();
+    }
+
+    /**
+     * A new client for each iteration, since the sink never replies and the sent messages are kept waiting.
+     */
+    @Setup(Level.Iteration)
+    public void connect() {
+        piClient = new PiClient();
+        piClient.connectToPiServer("localhost", sink.serverChannel.socket().getLocalPort());
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() {
+        piClient.close();
+    }
+
+    @Benchmark
+    public long heapCopy() throws Exception {
+        byte[] data = new byte[fileSize];
+        randomAccessFile.seek(0);
+        randomAccessFile.readFully(data);
+
+        return send(new PiMessage(PARSER_ID, data));
+    }
+
+    @Benchmark
+    public long transferTo() throws Exception {
+        FileChannel channel = randomAccessFile.getChannel();
+        return send(new PiMessage(PARSER_ID, channel, 0, fileSize));
+    }
+
+    private long send(PiMessage message) throws InterruptedException {
+        long total = sink.bytesReceived.get() + message.serializedSize();
+        piClient.sendMessage(message);
+        sink.await(total);
+        return total;
+    }
+}
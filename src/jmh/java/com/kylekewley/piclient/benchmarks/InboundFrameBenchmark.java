@@ -0,0 +1,205 @@
+package com.kylekewley.piclient.benchmarks;
+
+import com.kylekewley.piclient.CustomByteBufferParser;
+import com.kylekewley.piclient.IntObjectHashMap;
+import com.kylekewley.piclient.MutablePiHeader;
+import com.kylekewley.piclient.PiClientMetrics;
+import com.kylekewley.piclient.PiMessage;
+import com.kylekewley.piclient.PiParser;
+import com.kylekewley.piclient.PiServerManager;
+
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * Measures the inbound path: PiServerManager pulling frames out of the receive buffer and
+ * PiParser finding the registered parser for each one.
+ *
+ * The split benchmarks feed one frame in two reads for every possible split point, so each
+ * invocation covers a split inside the prefix, the header and the payload. "copied" puts the
+ * frame back together in PiServerManager's buffers, "retained" leaves it in the receive buffer
+ * and parses it again once the rest arrives, the same as PiClient does. Their scores are the
+ * time for a whole sweep, not for a single frame.
+ *
+ * Compare the metrics=false and metrics=true scores to see what PiClientMetrics costs on this path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InboundFrameBenchmark {
+
+    ///The number of frames in the receive buffer for each invocation of the whole frame benchmarks
+    private static final int FRAMES = 256;
+
+    ///The first registered parser ID
+    private static final int FIRST_PARSER_ID = 16;
+
+    ///The gap between registered parser IDs, so large parser counts reach past PiParser's dense lookup array
+    private static final int PARSER_ID_STRIDE = 8;
+
+    ///Large enough to retain any frame in the benchmark
+    private static final int MAX_RETAINED_FRAME_SIZE = 1024 * 1024;
+
+    /**
+     * Counts the bytes it is given so the parsing can't be optimized away.
+     */
+    private static class CountingParser implements CustomByteBufferParser {
+        long bytesParsed;
+
+        @Override
+        public void parse(@NotNull ByteBuffer data) {
+            bytesParsed += data.remaining();
+        }
+
+        @Override
+        public void parse(byte[] data) {
+            bytesParsed += data.length;
+        }
+    }
+
+    @Param({"16", "1024", "16384"})
+    public int payloadSize;
+
+    @Param({"1", "16", "256"})
+    public int parserCount;
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private final CountingParser parser = new CountingParser();
+    private final IntObjectHashMap<PiMessage> sentMessages = new IntObjectHashMap<PiMessage>();
+    private PiParser piParser;
+    private PiServerManager serverManager;
+
+    ///FRAMES frames for the registered parsers in turn, the way they arrive from the socket
+    private ByteBuffer frames;
+
+    ///A single frame for the split benchmarks
+    private ByteBuffer frame;
+
+    ///The header and payload of each frame for the parseData benchmark
+    private MutablePiHeader[] headers;
+    private ByteBuffer[] payloads;
+
+    @Setup
+    public void setup() {
+        piParser = new PiParser();
+        for (int i = 0; i < parserCount; i++)
+            piParser.registerParserForId(parser, parserId(i));
+
+        serverManager = new PiServerManager(piParser);
+
+        if (metrics) {
+            PiClientMetrics clientMetrics = new PiClientMetrics();
+            piParser.setMetrics(clientMetrics);
+            serverManager.setMetrics(clientMetrics);
+        }
+
+        byte[] payload = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++)
+            payload[i] = (byte) i;
+
+        PiMessage[] messages = new PiMessage[FRAMES];
+        int totalSize = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            messages[i] = new PiMessage(parserId(i % parserCount), payload);
+            totalSize += messages[i].serializedSize();
+        }
+
+        //Direct like the receive buffer
+        frames = ByteBuffer.allocateDirect(totalSize);
+        headers = new MutablePiHeader[FRAMES];
+        payloads = new ByteBuffer[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            int start = frames.position();
+            messages[i].writeToByteBuffer(frames);
+
+            ByteBuffer view = frames.duplicate();
+            view.position(start);
+            int headerLength = view.getShort();
+            headers[i] = new MutablePiHeader();
+            headers[i].decodeFrom(view, headerLength);
+            view.limit(view.position() + payloadSize);
+            payloads[i] = view.slice().asReadOnlyBuffer();
+        }
+
+        frame = ByteBuffer.allocateDirect(messages[0].serializedSize());
+        messages[0].writeToByteBuffer(frame);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long wholeFrames() {
+        frames.clear();
+        while (frames.hasRemaining())
+            serverManager.serverSentMessage(frames, sentMessages, MAX_RETAINED_FRAME_SIZE);
+        return parser.bytesParsed;
+    }
+
+    @Benchmark
+    public long splitFramesCopied() {
+        return splitAtEveryByte(0);
+    }
+
+    @Benchmark
+    public long splitFramesRetained() {
+        return splitAtEveryByte(MAX_RETAINED_FRAME_SIZE);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long parseData() {
+        for (int i = 0; i < FRAMES; i++) {
+            payloads[i].rewind();
+            piParser.parseData(payloads[i], headers[i]);
+        }
+        return parser.bytesParsed;
+    }
+
+
+    /*
+    Helpers
+     */
+
+
+    private static int parserId(int index) {
+        return FIRST_PARSER_ID + index * PARSER_ID_STRIDE;
+    }
+
+    /**
+     * Feed the frame in two reads for every split point from one byte to one byte short of the frame.
+     */
+    private long splitAtEveryByte(int maxRetainedFrameSize) {
+        int frameSize = frame.capacity();
+        for (int split = 1; split < frameSize; split++) {
+            frame.clear();
+            frame.limit(split);
+            serverManager.serverSentMessage(frame, sentMessages, maxRetainedFrameSize);
+
+            //A retained frame is left at the start of the buffer, a copied one continues after the split
+            frame.limit(frameSize);
+            while (frame.hasRemaining())
+                serverManager.serverSentMessage(frame, sentMessages, maxRetainedFrameSize);
+        }
+        return parser.bytesParsed;
+    }
+}
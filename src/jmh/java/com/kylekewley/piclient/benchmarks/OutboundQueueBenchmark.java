@@ -0,0 +1,185 @@
+package com.kylekewley.piclient.benchmarks;
+
+import com.kylekewley.piclient.MpscLinkedArrayQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * Compares the MpscLinkedArrayQueue used between sendMessage() callers and the event loop with
+ * the ConcurrentLinkedQueue it replaced. Each group has 1, 4 or 16 producers and one consumer that
+ * drains in batches the same way the event loop fills its write batch.
+ *
+ * Producers back off while MAX_BACKLOG messages are waiting, the way the high watermark holds back
+ * PiClient's callers, so the queue stays at a steady depth instead of growing for the whole
+ * iteration. Compare the offerN scores, which count messages handed off. The group total also
+ * counts drain calls, including the ones that found the queue empty.
+ * Run with -prof gc to see the allocation rate of each.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class OutboundQueueBenchmark {
+
+    ///The most messages the event loop takes in one write
+    private static final int BATCH_SIZE = 64;
+
+    ///The most messages waiting in the queue before producers back off
+    private static final int MAX_BACKLOG = 4096;
+
+    /**
+     * The operations the benchmark needs from each queue.
+     */
+    private interface OutboundQueue {
+        void offer(Object element);
+
+        int drain(Object[] batch);
+    }
+
+    @Param({"mpsc", "concurrentLinkedQueue"})
+    public String queueType;
+
+    ///The element every producer offers, so the benchmark only measures the queue
+    private final Object message = new Object();
+
+    private OutboundQueue queue;
+
+    ///The number of messages offered but not drained, like PiClient's count of pending write bytes
+    private final AtomicLong backlog = new AtomicLong();
+
+    @Setup
+    public void setup() {
+        if ("mpsc".equals(queueType)) {
+            final MpscLinkedArrayQueue<Object> mpscQueue = new MpscLinkedArrayQueue<Object>();
+            queue = new OutboundQueue() {
+                @Override
+                public void offer(Object element) {
+                    mpscQueue.offer(element);
+                }
+
+                @Override
+                public int drain(Object[] batch) {
+                    return mpscQueue.drainTo(batch, 0, batch.length);
+                }
+            };
+        }else {
+            final ConcurrentLinkedQueue<Object> linkedQueue = new ConcurrentLinkedQueue<Object>();
+            queue = new OutboundQueue() {
+                @Override
+                public void offer(Object element) {
+                    linkedQueue.add(element);
+                }
+
+                @Override
+                public int drain(Object[] batch) {
+                    int count = 0;
+                    Object element;
+                    while (count < batch.length && (element = linkedQueue.poll()) != null) {
+                        batch[count++] = element;
+                    }
+                    return count;
+                }
+            };
+        }
+    }
+
+    /**
+     * The consumer's batch array.
+     */
+    @State(Scope.Thread)
+    public static class ConsumerState {
+        final Object[] batch = new Object[BATCH_SIZE];
+    }
+
+
+    @Benchmark
+    @Group("producers1")
+    @GroupThreads(1)
+    public void offer1(Control control) {
+        offer(control);
+    }
+
+    @Benchmark
+    @Group("producers1")
+    @GroupThreads(1)
+    public int drain1(ConsumerState state) {
+        return drain(state.batch);
+    }
+
+    @Benchmark
+    @Group("producers4")
+    @GroupThreads(4)
+    public void offer4(Control control) {
+        offer(control);
+    }
+
+    @Benchmark
+    @Group("producers4")
+    @GroupThreads(1)
+    public int drain4(ConsumerState state) {
+        return drain(state.batch);
+    }
+
+    @Benchmark
+    @Group("producers16")
+    @GroupThreads(16)
+    public void offer16(Control control) {
+        offer(control);
+    }
+
+    @Benchmark
+    @Group("producers16")
+    @GroupThreads(1)
+    public int drain16(ConsumerState state) {
+        return drain(state.batch);
+    }
+
+
+    /*
+    Helpers
+     */
+
+
+    /**
+     * Wait for the backlog to fall under MAX_BACKLOG, then offer the message.
+     * Gives up once the iteration is over, since the consumer may already have stopped.
+     */
+    private void offer(Control control) {
+        while (backlog.get() >= MAX_BACKLOG) {
+            if (control.stopMeasurement)
+                return;
+            Thread.yield();
+        }
+
+        backlog.incrementAndGet();
+        queue.offer(message);
+    }
+
+    private int drain(Object[] batch) {
+        int drained = queue.drain(batch);
+        if (drained > 0)
+            backlog.addAndGet(-drained);
+        return drained;
+    }
+}
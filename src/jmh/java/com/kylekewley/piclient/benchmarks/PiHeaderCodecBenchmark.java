@@ -0,0 +1,91 @@
+package com.kylekewley.piclient.benchmarks;
+
+import com.kylekewley.piclient.MessageWire;
+import com.kylekewley.piclient.MutablePiHeader;
+import com.kylekewley.piclient.protocolbuffers.PiHeader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * Compares the Wire PiHeader path with the hand written MutablePiHeader codec.
+ * Run with -prof gc to see the allocation rate of each.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PiHeaderCodecBenchmark {
+
+    ///A typical reply header
+    private final PiHeader wireHeader = new PiHeader(1024, 5, 123456, 0, true);
+
+    private byte[] encodedHeader;
+    private ByteBuffer encodedBuffer;
+
+    private final MutablePiHeader piHeader = new MutablePiHeader();
+    private ByteBuffer sendBuffer;
+
+    @Setup
+    public void setup() {
+        encodedHeader = wireHeader.toByteArray();
+        encodedBuffer = ByteBuffer.allocateDirect(encodedHeader.length);
+        encodedBuffer.put(encodedHeader);
+        encodedBuffer.flip();
+
+        piHeader.set(wireHeader);
+        sendBuffer = ByteBuffer.allocateDirect(64);
+    }
+
+    @Benchmark
+    public PiHeader wireDecode() throws IOException {
+        return MessageWire.getInstance().parseFrom(encodedHeader, PiHeader.class);
+    }
+
+    @Benchmark
+    public byte[] wireEncode() {
+        return new PiHeader.Builder()
+                .messageLength(1024)
+                .parserID(5)
+                .messageID(123456)
+                .flags(0)
+                .successResponse(true)
+                .build()
+                .toByteArray();
+    }
+
+    @Benchmark
+    public int mutableDecode() {
+        encodedBuffer.rewind();
+        piHeader.decodeFrom(encodedBuffer, encodedBuffer.remaining());
+        return piHeader.getMessageId();
+    }
+
+    @Benchmark
+    public int mutableEncode() {
+        sendBuffer.clear();
+        piHeader.setMessageLength(1024);
+        piHeader.setParserId(5);
+        piHeader.setMessageId(123456);
+        piHeader.setFlags(0);
+        piHeader.setSuccessResponse(true);
+        piHeader.encodeTo(sendBuffer);
+        return sendBuffer.position();
+    }
+}
@@ -0,0 +1,64 @@
+package com.kylekewley.piclient.benchmarks;
+
+import com.kylekewley.piclient.PiMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * Measures encoding an outgoing PiMessage into a frame, both into its own ByteBuffer
+ * and into a reused send buffer the way the event loop writes batches.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PiMessageEncodeBenchmark {
+
+    private static final int PARSER_ID = 16;
+
+    @Param({"0", "64", "1024", "16384"})
+    public int payloadSize;
+
+    private byte[] payload;
+    private PiMessage message;
+    private ByteBuffer sendBuffer;
+
+    @Setup
+    public void setup() {
+        payload = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++)
+            payload[i] = (byte) i;
+
+        message = new PiMessage(PARSER_ID, payload);
+        sendBuffer = ByteBuffer.allocateDirect(message.serializedSize());
+    }
+
+    @Benchmark
+    public ByteBuffer getByteBuffer() {
+        return new PiMessage(PARSER_ID, payload).getByteBuffer();
+    }
+
+    @Benchmark
+    public int writeToByteBuffer() {
+        sendBuffer.clear();
+        message.writeToByteBuffer(sendBuffer);
+        return sendBuffer.position();
+    }
+}
@@ -0,0 +1,58 @@
+package com.kylekewley.piclient.benchmarks;
+
+import com.kylekewley.piclient.PiLatencyHistogram;
+import com.kylekewley.piclient.PiStripedCounter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * Measures the cost of updating the metrics PiClient keeps, with 4 threads updating the same
+ * counter the way many sendMessage() callers do. AtomicLong is the baseline the striped counter replaces.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class PiMetricsBenchmark {
+
+    private final PiStripedCounter stripedCounter = new PiStripedCounter();
+    private final AtomicLong atomicCounter = new AtomicLong();
+    private final PiLatencyHistogram histogram = new PiLatencyHistogram();
+
+    ///Changes the recorded value so every bucket lookup isn't the same
+    private long value = 1;
+
+    @Benchmark
+    public void stripedCounter() {
+        stripedCounter.increment();
+    }
+
+    @Benchmark
+    public long atomicCounter() {
+        return atomicCounter.incrementAndGet();
+    }
+
+    @Benchmark
+    public void histogramRecord() {
+        long nanos = value;
+        value = nanos * 31 + 17 & 0xFFFFFFFL;
+        histogram.record(nanos);
+    }
+}
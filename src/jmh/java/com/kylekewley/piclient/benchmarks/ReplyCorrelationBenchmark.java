@@ -0,0 +1,126 @@
+package com.kylekewley.piclient.benchmarks;
+
+import com.kylekewley.piclient.IntObjectHashMap;
+import com.kylekewley.piclient.PiMessage;
+import com.kylekewley.piclient.PiMessageCallbacks;
+import com.kylekewley.piclient.PiParser;
+import com.kylekewley.piclient.PiServerManager;
+import com.kylekewley.piclient.protocolbuffers.ParseError;
+import com.squareup.wire.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * Measures matching a reply to the message waiting for it. sentMessages always holds inFlight
+ * messages, and each reply goes through PiServerManager.serverSentMessage(), which removes the
+ * answered message, before another message is put in its place. The replies come back in a
+ * different order than the messages were sent, so removals land in the middle of probe sequences.
+ *
+ * Every iteration runs millions of replies, so the per-iteration scores in the JSON results show
+ * whether the time per reply stays flat as messages come and go.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 20, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplyCorrelationBenchmark {
+
+    /**
+     * Counts the replies so the parsing can't be optimized away.
+     */
+    private static class CountingCallbacks extends PiMessageCallbacks {
+        long replies;
+
+        @Override
+        public void serverReturnedData(byte[] data, PiMessage message) {
+            replies++;
+        }
+
+        @Override
+        public void serverRepliedWithMessage(Message response, PiMessage sentMessage) {
+            replies++;
+        }
+
+        @Override
+        public void serverSuccessfullyParsedMessage(PiMessage message) {
+            replies++;
+        }
+
+        @Override
+        public void serverReturnedErrorForMessage(ParseError parseError, PiMessage message) {
+            replies++;
+        }
+    }
+
+    @Param({"1", "64", "1024", "16384"})
+    public int inFlight;
+
+    private final CountingCallbacks callbacks = new CountingCallbacks();
+    private final IntObjectHashMap<PiMessage> sentMessages = new IntObjectHashMap<PiMessage>();
+    private PiServerManager serverManager;
+
+    ///Twice inFlight messages. Of each message i and i + inFlight, one is waiting for a reply.
+    private PiMessage[] messages;
+
+    ///The encoded reply frame for each message
+    private ByteBuffer[] replies;
+
+    ///true where message i + inFlight is the one waiting instead of message i
+    private boolean[] secondWaiting;
+
+    ///The number of replies so far
+    private int replyCount;
+
+    @Setup
+    public void setup() {
+        serverManager = new PiServerManager(new PiParser());
+
+        int messageCount = inFlight * 2;
+        messages = new PiMessage[messageCount];
+        replies = new ByteBuffer[messageCount];
+        secondWaiting = new boolean[inFlight];
+        for (int i = 0; i < messageCount; i++) {
+            messages[i] = new PiMessage(1);
+            messages[i].setMessageCallbacks(callbacks);
+
+            //Direct like the receive buffer
+            replies[i] = ByteBuffer.allocateDirect(messages[i].serializedSize());
+            messages[i].writeToByteBuffer(replies[i]);
+        }
+
+        for (int i = 0; i < inFlight; i++)
+            sentMessages.put(messages[i].getMessageId(), messages[i]);
+    }
+
+    @Benchmark
+    public long reply() {
+        //Answer a waiting message picked out of order, then send its partner in its place
+        int pair = ((replyCount++ * 0x9E3779B9) >>> 1) % inFlight;
+        int answered = secondWaiting[pair] ? pair + inFlight : pair;
+        int sent = secondWaiting[pair] ? pair : pair + inFlight;
+        secondWaiting[pair] = !secondWaiting[pair];
+
+        replies[answered].clear();
+        serverManager.serverSentMessage(replies[answered], sentMessages);
+
+        sentMessages.put(messages[sent].getMessageId(), messages[sent]);
+        return callbacks.replies;
+    }
+}
@@ -0,0 +1,121 @@
+package com.kylekewley.piclient;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * A pool of direct ByteBuffers split into power of two size classes.
+ * Outgoing messages are encoded straight into a pooled buffer, written to the socket
+ * and then released back to the pool, so sending doesn't allocate once the pool is warm.
+ *
+ * Requests bigger than the largest size class get a plain heap buffer that isn't pooled.
+ * This class is not thread safe. Each PiClientEventLoop has its own pool.
+ */
+public class ByteBufferPool {
+
+    ///The smallest size class is 1 << MIN_SIZE_SHIFT bytes
+    private static final int MIN_SIZE_SHIFT = 8; //256b
+
+    ///The largest size class is 1 << MAX_SIZE_SHIFT bytes
+    private static final int MAX_SIZE_SHIFT = 16; //64kb
+
+    ///The default number of bytes each size class may keep
+    public static final int DEFAULT_BYTES_PER_CLASS = 256 * 1024; //256kb
+
+    ///The free buffers for each size class
+    private final ByteBuffer[][] freeBuffers;
+
+    ///The number of free buffers in each size class
+    private final int[] freeCounts;
+
+
+    /**
+     * Create a pool where each size class keeps up to DEFAULT_BYTES_PER_CLASS bytes.
+     */
+    public ByteBufferPool() {
+        this(DEFAULT_BYTES_PER_CLASS);
+    }
+
+    /**
+     * @param bytesPerClass The number of bytes each size class may keep. Every class keeps at least one buffer.
+     */
+    public ByteBufferPool(int bytesPerClass) {
+        int classCount = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+
+        freeBuffers = new ByteBuffer[classCount][];
+        freeCounts = new int[classCount];
+
+        for (int i = 0; i < classCount; i++) {
+            freeBuffers[i] = new ByteBuffer[Math.max(1, bytesPerClass >> (MIN_SIZE_SHIFT + i))];
+        }
+    }
+
+
+    /**
+     * @return  The largest buffer size the pool will keep.
+     */
+    public int getMaxPooledSize() {
+        return 1 << MAX_SIZE_SHIFT;
+    }
+
+    /**
+     * Get a cleared buffer with its limit set to the requested size.
+     *
+     * @param size  The number of bytes needed.
+     *
+     * @return  A direct buffer from the pool, or a heap buffer if the size is bigger than the largest size class.
+     */
+    @NotNull
+    public ByteBuffer acquire(int size) {
+        if (size > getMaxPooledSize())
+            return ByteBuffer.allocate(size);
+
+        int sizeClass = sizeClass(size);
+
+        ByteBuffer buffer;
+        if (freeCounts[sizeClass] > 0) {
+            int index = --freeCounts[sizeClass];
+            buffer = freeBuffers[sizeClass][index];
+            freeBuffers[sizeClass][index] = null;
+        }else {
+            buffer = ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SIZE_SHIFT));
+        }
+
+        buffer.clear();
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. Buffers that didn't come from acquire() are ignored.
+     * The buffer must not be used after it is released.
+     *
+     * @param buffer    The buffer to release.
+     */
+    public void release(@NotNull ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || capacity > getMaxPooledSize() || Integer.bitCount(capacity) != 1)
+            return;
+
+        int sizeClass = sizeClass(capacity);
+        if (capacity != 1 << (sizeClass + MIN_SIZE_SHIFT))
+            return;
+
+        if (freeCounts[sizeClass] < freeBuffers[sizeClass].length)
+            freeBuffers[sizeClass][freeCounts[sizeClass]++] = buffer;
+    }
+
+
+    /**
+     * @return  The index of the smallest size class that can hold size bytes.
+     */
+    private static int sizeClass(int size) {
+        if (size <= 1 << MIN_SIZE_SHIFT)
+            return 0;
+
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+    }
+}
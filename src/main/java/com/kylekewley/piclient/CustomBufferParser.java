@@ -3,12 +3,15 @@ package com.kylekewley.piclient;
 import com.squareup.wire.Message;
 import com.squareup.wire.Wire;
 
+import org.jetbrains.annotations.NotNull;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Created by Kyle Kewley on 6/24/14.
  */
-public abstract class CustomBufferParser<T extends Message> implements CustomParser {
+public abstract class CustomBufferParser<T extends Message> implements CustomByteBufferParser {
     private Class<T> messageClass;
 
     public CustomBufferParser(Class<T> messageClass) {
@@ -28,4 +31,13 @@ public abstract class CustomBufferParser<T extends Message> implements CustomPar
         }
 
     }
+
+    @Override
+    public void parse(@NotNull ByteBuffer data) {
+        try {
+            parse(MessageWire.parseFrom(data, messageClass));
+        }catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,23 @@
+package com.kylekewley.piclient;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * A CustomParser that takes the message data as a ByteBuffer instead of a byte array.
+ * When the whole message arrives in one read, the buffer is a read-only view of the
+ * socket's receive buffer, so no copy of the data is made.
+ */
+public interface CustomByteBufferParser extends CustomParser {
+
+    /**
+     * Parse the given input data. The buffer is only valid until this method returns,
+     * so any data that needs to be kept must be copied out of it.
+     *
+     * @param data  A buffer positioned at the start of the data. It must not be written to.
+     */
+    public void parse(@NotNull ByteBuffer data);
+}
@@ -0,0 +1,26 @@
+package com.kylekewley.piclient;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * A CustomParser for streams the server sends in chunks. Each chunk is handed over as it
+ * arrives, so a stream of any size can be handled without holding all of it in memory.
+ * Messages that aren't chunks still go to parse(byte[]).
+ */
+public interface CustomChunkParser extends CustomParser {
+    /**
+     * Parse one chunk of a stream. Chunks of a stream arrive in order on the same thread.
+     * The buffer is only valid until this method returns, so any data that needs to be kept
+     * must be copied out of it.
+     *
+     * @param chunk     A buffer positioned at the start of the chunk's data. It must not be written to.
+     * @param streamId  The message ID shared by every chunk of the stream.
+     * @param sequence  The number of the chunk in the stream, starting at zero.
+     * @param last      true for the last chunk of the stream.
+     */
+    public void parseChunk(@NotNull ByteBuffer chunk, int streamId, int sequence, boolean last);
+}
@@ -0,0 +1,245 @@
+package com.kylekewley.piclient;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * A map from primitive int keys to objects using open addressing with linear probing.
+ * It is used to match server replies to sent messages by message ID without boxing the key
+ * or walking a list.
+ *
+ * Removed entries are filled by shifting the rest of the probe sequence back, so there are no
+ * tombstones and lookups stay fast no matter how many entries have come and gone.
+ * Null values are not allowed. This class is not thread safe.
+ */
+public class IntObjectHashMap<V> {
+
+    ///The capacity used by the default constructor. Must be a power of two.
+    private static final int DEFAULT_CAPACITY = 16;
+
+    ///The map grows once it is this full
+    private static final float LOAD_FACTOR = 0.5f;
+
+    ///The keys for each slot
+    private int[] keys;
+
+    ///The values for each slot, null means the slot is empty
+    private V[] values;
+
+    ///The number of entries in the map
+    private int size;
+
+    ///The size the map can reach before it grows
+    private int maxSize;
+
+    ///capacity - 1, used to wrap slot indexes
+    private int mask;
+
+
+    /**
+     * Create an empty map with the default capacity.
+     */
+    public IntObjectHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an empty map that can hold the expected number of entries without growing.
+     *
+     * @param expectedSize  The expected number of entries.
+     */
+    public IntObjectHashMap(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity * LOAD_FACTOR < expectedSize)
+            capacity <<= 1;
+
+        allocate(capacity);
+    }
+
+
+    /*
+    Public Methods
+     */
+
+
+    /**
+     * @param key   The key to look up.
+     *
+     * @return  The value for the key, or null if there isn't one.
+     */
+    @Nullable
+    public V get(int key) {
+        int index = hashIndex(key);
+        V value;
+        while ((value = values[index]) != null) {
+            if (keys[index] == key)
+                return value;
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @param key   The key to look up.
+     *
+     * @return  true if the map has a value for the key.
+     */
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Add or replace the value for the key.
+     *
+     * @param key   The key.
+     * @param value The non-null value.
+     *
+     * @return  The previous value for the key, or null if there wasn't one.
+     */
+    @Nullable
+    public V put(int key, @NotNull V value) {
+        if (value == null)
+            throw new NullPointerException("IntObjectHashMap doesn't allow null values.");
+
+        int index = hashIndex(key);
+        V oldValue;
+        while ((oldValue = values[index]) != null) {
+            if (keys[index] == key) {
+                values[index] = value;
+                return oldValue;
+            }
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        values[index] = value;
+
+        if (++size > maxSize)
+            rehash(values.length << 1);
+
+        return null;
+    }
+
+    /**
+     * Remove the value for the key.
+     *
+     * @param key   The key to remove.
+     *
+     * @return  The removed value, or null if there wasn't one.
+     */
+    @Nullable
+    public V remove(int key) {
+        int index = hashIndex(key);
+        V value;
+        while ((value = values[index]) != null) {
+            if (keys[index] == key) {
+                removeAt(index);
+                return value;
+            }
+            index = (index + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @return  The number of entries in the map.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return  true if the map has no entries.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Remove every entry from the map.
+     */
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * @return  A new list with every value in the map, in no particular order.
+     */
+    @NotNull
+    public List<V> values() {
+        List<V> list = new ArrayList<V>(size);
+        for (V value : values) {
+            if (value != null)
+                list.add(value);
+        }
+        return list;
+    }
+
+
+    /*
+    Private Methods
+     */
+
+
+    @SuppressWarnings("unchecked")
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = (V[]) new Object[capacity];
+        mask = capacity - 1;
+        maxSize = (int) (capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Spread the key bits so sequential message IDs don't all land next to each other.
+     */
+    private int hashIndex(int key) {
+        int hash = key * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * Empty the slot and shift back any entries later in the probe sequence
+     * that would no longer be reachable.
+     */
+    private void removeAt(int index) {
+        values[index] = null;
+        size--;
+
+        int emptyIndex = index;
+        int nextIndex = (index + 1) & mask;
+        V value;
+        while ((value = values[nextIndex]) != null) {
+            int idealIndex = hashIndex(keys[nextIndex]);
+
+            //Move the entry if its ideal slot is not between the empty slot and its current slot
+            if (((nextIndex - idealIndex) & mask) >= ((nextIndex - emptyIndex) & mask)) {
+                keys[emptyIndex] = keys[nextIndex];
+                values[emptyIndex] = value;
+                values[nextIndex] = null;
+                emptyIndex = nextIndex;
+            }
+
+            nextIndex = (nextIndex + 1) & mask;
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        int[] oldKeys = keys;
+        V[] oldValues = values;
+
+        allocate(newCapacity);
+        size = 0;
+
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null)
+                put(oldKeys[i], oldValues[i]);
+        }
+    }
+}
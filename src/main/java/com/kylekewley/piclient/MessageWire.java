@@ -1,20 +1,63 @@
 package com.kylekewley.piclient;
 
+import com.squareup.wire.Message;
 import com.squareup.wire.Wire;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 /**
  * Created by kylekewley on 7/5/14.
  */
 public class MessageWire {
     private static final Wire ourInstance = new Wire();
 
+    ///Used to copy read-only and direct buffers so Wire can parse them. Grows up to PiServerManager's
+    ///MAX_KEPT_MESSAGE_BUFFER_SIZE, larger messages are copied into a temporary array instead.
+    private static final ThreadLocal<byte[]> scratchArray = new ThreadLocal<byte[]>();
+
     @NotNull
     public static Wire getInstance() {
         return ourInstance;
     }
 
+    /**
+     * Parse a message from the remaining bytes in the buffer without moving its position.
+     * Buffers without an accessible array are copied into a reused per-thread array first,
+     * or a temporary one if the message is too big to keep an array for.
+     *
+     * @param data          The encoded message.
+     * @param messageClass  The class of the message to parse.
+     *
+     * @return  The parsed message.
+     *
+     * @throws IOException  If the data can't be parsed.
+     */
+    @NotNull
+    public static <M extends Message> M parseFrom(@NotNull ByteBuffer data, @NotNull Class<M> messageClass) throws IOException {
+        if (data.hasArray())
+            return ourInstance.parseFrom(data.array(), data.arrayOffset() + data.position(), data.remaining(), messageClass);
+
+        int length = data.remaining();
+        byte[] scratch;
+        if (length > PiServerManager.MAX_KEPT_MESSAGE_BUFFER_SIZE) {
+            //Don't hold on to the memory from a large message
+            scratch = new byte[length];
+        }else {
+            scratch = scratchArray.get();
+            if (scratch == null || scratch.length < length) {
+                scratch = new byte[Math.max(length, 256)];
+                scratchArray.set(scratch);
+            }
+        }
+
+        data.duplicate().get(scratch, 0, length);
+
+        return ourInstance.parseFrom(scratch, 0, length, messageClass);
+    }
+
     private MessageWire() {
     }
 }
@@ -0,0 +1,246 @@
+package com.kylekewley.piclient;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * An unbounded multi-producer, single-consumer queue made of fixed size array chunks.
+ * It is the handoff between the threads calling PiClient.sendMessage() and the event loop.
+ *
+ * Producers claim a slot with a single getAndIncrement() on the producer index and write
+ * their element into it, so offering never takes a lock and only allocates when it is
+ * the first to need a new chunk. The consumer reads slots in order and can take every
+ * available element in one call with drainTo().
+ *
+ * Any number of threads may call offer(). Only one thread at a time may call poll() or drainTo().
+ * Null elements are not allowed.
+ */
+public class MpscLinkedArrayQueue<E> {
+
+    ///The default number of slots in each chunk. Must be a power of two.
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    /**
+     * A piece of the queue holding the elements for one range of indexes.
+     */
+    private static final class Chunk<E> {
+        ///Links the next chunk without a lock
+        @SuppressWarnings("rawtypes")
+        static final AtomicReferenceFieldUpdater<Chunk, Chunk> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Chunk.class, Chunk.class, "next");
+
+        ///The chunk number, the first index in the chunk is id * chunkSize
+        final long id;
+
+        ///The elements, null means the slot hasn't been written yet or was already consumed
+        final AtomicReferenceArray<E> slots;
+
+        ///The chunk before this one. Cleared by the consumer once nobody can need it.
+        volatile Chunk<E> previous;
+
+        ///The chunk after this one, linked by the first producer that needs it
+        volatile Chunk<E> next;
+
+        Chunk(long id, int size, @Nullable Chunk<E> previous) {
+            this.id = id;
+            this.slots = new AtomicReferenceArray<E>(size);
+            this.previous = previous;
+        }
+    }
+
+
+    /*
+    Instance Variables
+     */
+
+    ///log2 of the chunk size
+    private final int chunkShift;
+
+    ///chunkSize - 1, used to find the slot in a chunk
+    private final int chunkMask;
+
+    ///The next index a producer will claim
+    private final AtomicLong producerIndex = new AtomicLong();
+
+    ///A recently used chunk for producers to start looking from
+    private volatile Chunk<E> producerChunk;
+
+    ///The next index the consumer will read
+    private final AtomicLong consumerIndex = new AtomicLong();
+
+    ///The chunk the consumer is reading from. Only touched by the consumer.
+    private Chunk<E> consumerChunk;
+
+
+    /**
+     * Create a queue with the default chunk size.
+     */
+    public MpscLinkedArrayQueue() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Create a queue with the given chunk size.
+     *
+     * @param chunkSize The number of slots in each chunk. It will be rounded up to a power of two.
+     */
+    public MpscLinkedArrayQueue(int chunkSize) {
+        if (chunkSize <= 0)
+            throw new IllegalArgumentException("The chunk size must be positive.");
+
+        int size = 1;
+        while (size < chunkSize)
+            size <<= 1;
+
+        chunkShift = Integer.numberOfTrailingZeros(size);
+        chunkMask = size - 1;
+
+        Chunk<E> first = new Chunk<E>(0, size, null);
+        producerChunk = first;
+        consumerChunk = first;
+    }
+
+
+    /*
+    Public Methods
+     */
+
+
+    /**
+     * Add an element to the end of the queue. Safe to call from any thread.
+     *
+     * @param element   The non-null element to add.
+     */
+    public void offer(@NotNull E element) {
+        if (element == null)
+            throw new NullPointerException("MpscLinkedArrayQueue doesn't allow null elements.");
+
+        long index = producerIndex.getAndIncrement();
+        Chunk<E> chunk = producerChunkFor(index >>> chunkShift);
+        chunk.slots.lazySet((int) (index & chunkMask), element);
+    }
+
+    /**
+     * Remove the element at the front of the queue. Must only be called by the consumer.
+     *
+     * @return  The element, or null if the queue is empty.
+     */
+    @Nullable
+    public E poll() {
+        long index = consumerIndex.get();
+        if (index >= producerIndex.get())
+            return null;
+
+        E element = take(index);
+        consumerIndex.lazySet(index + 1);
+        return element;
+    }
+
+    /**
+     * Remove up to limit elements from the front of the queue. Must only be called by the consumer.
+     *
+     * @param array     The array to put the elements in.
+     * @param offset    The first array index to use.
+     * @param limit     The most elements to remove.
+     *
+     * @return  The number of elements removed.
+     */
+    public int drainTo(@NotNull E[] array, int offset, int limit) {
+        long index = consumerIndex.get();
+        int count = (int) Math.min(limit, producerIndex.get() - index);
+        if (count <= 0)
+            return 0;
+
+        for (int i = 0; i < count; i++) {
+            array[offset + i] = take(index + i);
+        }
+
+        consumerIndex.lazySet(index + count);
+        return count;
+    }
+
+    /**
+     * @return  true if the queue has no elements. Elements that are still being offered count as being in the queue.
+     */
+    public boolean isEmpty() {
+        return consumerIndex.get() >= producerIndex.get();
+    }
+
+    /**
+     * @return  The number of elements in the queue. It is only an estimate while other threads are using the queue.
+     */
+    public int size() {
+        long size = producerIndex.get() - consumerIndex.get();
+        return (int) Math.max(0, Math.min(size, Integer.MAX_VALUE));
+    }
+
+
+    /*
+    Private Methods
+     */
+
+
+    /**
+     * Find the chunk with the id, linking new chunks onto the end of the queue if they don't exist yet.
+     */
+    @NotNull
+    @SuppressWarnings("unchecked")
+    private Chunk<E> producerChunkFor(long chunkId) {
+        Chunk<E> chunk = producerChunk;
+
+        //A producer with a later index may have moved producerChunk past this one's chunk.
+        //The consumer can't have passed it yet, since this producer hasn't written its slot.
+        while (chunk.id > chunkId) {
+            chunk = chunk.previous;
+        }
+
+        while (chunk.id < chunkId) {
+            Chunk<E> next = chunk.next;
+            if (next == null) {
+                //Only one producer wins, the others use its chunk
+                Chunk.NEXT.compareAndSet(chunk, null, new Chunk<E>(chunk.id + 1, chunkMask + 1, chunk));
+                next = chunk.next;
+            }
+            chunk = next;
+        }
+
+        if (chunk.id > producerChunk.id)
+            producerChunk = chunk;
+
+        return chunk;
+    }
+
+    /**
+     * Take the element at a claimed index, waiting for its producer to finish writing it.
+     */
+    @NotNull
+    private E take(long index) {
+        Chunk<E> chunk = consumerChunk;
+        if (chunk.id != index >>> chunkShift) {
+            Chunk<E> next;
+            while ((next = chunk.next) == null) {
+                Thread.yield();
+            }
+
+            //Every index before this chunk has been consumed, so no producer can need the old chunks
+            next.previous = null;
+            consumerChunk = chunk = next;
+        }
+
+        int slot = (int) (index & chunkMask);
+        E element;
+        while ((element = chunk.slots.get(slot)) == null) {
+            //The index was claimed but the producer hasn't written it yet
+            Thread.yield();
+        }
+
+        chunk.slots.lazySet(slot, null);
+        return element;
+    }
+}
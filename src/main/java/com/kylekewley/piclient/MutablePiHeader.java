@@ -0,0 +1,437 @@
+package com.kylekewley.piclient;
+
+import com.kylekewley.piclient.protocolbuffers.PiHeader;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * A reusable, mutable version of the PiHeader protocol buffer with a hand written codec.
+ *
+ * PiHeader is a fixed schema of four uint32 fields and one bool, so it can be read straight
+ * out of the receive buffer and written straight into the send buffer without going through
+ * Wire's reflection or boxing the fields. The encoding is byte for byte the same as Wire's:
+ * fields are written in tag order and fields that aren't set are left out.
+ */
+public class MutablePiHeader {
+
+    /*
+    Wire Format Constants
+     */
+
+    ///The wire types used by the protocol buffer encoding
+    private static final int WIRE_TYPE_VARINT = 0;
+    private static final int WIRE_TYPE_FIXED64 = 1;
+    private static final int WIRE_TYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRE_TYPE_FIXED32 = 5;
+
+    ///The tag bytes for each field (field number << 3 | wire type)
+    private static final int TAG_MESSAGE_LENGTH = 1 << 3;
+    private static final int TAG_PARSER_ID = 2 << 3;
+    private static final int TAG_MESSAGE_ID = 3 << 3;
+    private static final int TAG_FLAGS = 4 << 3;
+    private static final int TAG_SUCCESS_RESPONSE = 5 << 3;
+
+    /*
+    Fields
+     */
+
+    private int messageLength;
+    private int parserId;
+    private int messageId;
+    private int flags;
+    private boolean successResponse;
+
+    ///Which of the fields have been set
+    private boolean hasMessageLength;
+    private boolean hasParserId;
+    private boolean hasMessageId;
+    private boolean hasFlags;
+    private boolean hasSuccessResponse;
+
+
+    /**
+     * Create a header with no fields set.
+     */
+    public MutablePiHeader() {
+
+    }
+
+    /**
+     * Create a header with the same fields as the PiHeader.
+     *
+     * @param piHeader  The header to copy.
+     */
+    public MutablePiHeader(@NotNull PiHeader piHeader) {
+        set(piHeader);
+    }
+
+
+    /*
+    Getters and Setters
+     */
+
+
+    public int getMessageLength() {
+        return messageLength;
+    }
+
+    public void setMessageLength(int messageLength) {
+        this.messageLength = messageLength;
+        hasMessageLength = true;
+    }
+
+    public int getParserId() {
+        return parserId;
+    }
+
+    public void setParserId(int parserId) {
+        this.parserId = parserId;
+        hasParserId = true;
+    }
+
+    /**
+     * @return  The message ID, or zero if it isn't set.
+     */
+    public int getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(int messageId) {
+        this.messageId = messageId;
+        hasMessageId = true;
+    }
+
+    /**
+     * @return  true if the header has a message ID, which means it may be a reply to a sent message.
+     */
+    public boolean hasMessageId() {
+        return hasMessageId;
+    }
+
+    /**
+     * @return  The flags, or zero if they aren't set.
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    public void setFlags(int flags) {
+        this.flags = flags;
+        hasFlags = true;
+    }
+
+    /**
+     * @param flag  The flag bits to check.
+     *
+     * @return  true if any of the flag bits are set.
+     */
+    public boolean hasFlag(long flag) {
+        return (flags & flag) != 0;
+    }
+
+    public boolean getSuccessResponse() {
+        return successResponse;
+    }
+
+    public void setSuccessResponse(boolean successResponse) {
+        this.successResponse = successResponse;
+        hasSuccessResponse = true;
+    }
+
+
+    /*
+    Public Methods
+     */
+
+
+    /**
+     * Unset every field so the header can be reused.
+     */
+    public void clear() {
+        messageLength = 0;
+        parserId = 0;
+        messageId = 0;
+        flags = 0;
+        successResponse = false;
+
+        hasMessageLength = false;
+        hasParserId = false;
+        hasMessageId = false;
+        hasFlags = false;
+        hasSuccessResponse = false;
+    }
+
+    /**
+     * Copy the fields that are set in the PiHeader.
+     *
+     * @param piHeader  The header to copy.
+     */
+    public void set(@NotNull PiHeader piHeader) {
+        clear();
+        if (piHeader.messageLength != null)
+            setMessageLength(piHeader.messageLength);
+        if (piHeader.parserID != null)
+            setParserId(piHeader.parserID);
+        if (piHeader.messageID != null)
+            setMessageId(piHeader.messageID);
+        if (piHeader.flags != null)
+            setFlags(piHeader.flags);
+        if (piHeader.successResponse != null)
+            setSuccessResponse(piHeader.successResponse);
+    }
+
+    /**
+     * Copy every field from the other header.
+     *
+     * @param piHeader  The header to copy.
+     */
+    public void set(@NotNull MutablePiHeader piHeader) {
+        messageLength = piHeader.messageLength;
+        parserId = piHeader.parserId;
+        messageId = piHeader.messageId;
+        flags = piHeader.flags;
+        successResponse = piHeader.successResponse;
+
+        hasMessageLength = piHeader.hasMessageLength;
+        hasParserId = piHeader.hasParserId;
+        hasMessageId = piHeader.hasMessageId;
+        hasFlags = piHeader.hasFlags;
+        hasSuccessResponse = piHeader.hasSuccessResponse;
+    }
+
+    /**
+     * @return  A new PiHeader with the same fields.
+     */
+    @NotNull
+    public PiHeader toPiHeader() {
+        return new PiHeader(
+                hasMessageLength ? messageLength : null,
+                hasParserId ? parserId : null,
+                hasMessageId ? messageId : null,
+                hasFlags ? flags : null,
+                hasSuccessResponse ? successResponse : null);
+    }
+
+    /**
+     * @return  The number of bytes encodeTo() will write.
+     */
+    public int getSerializedSize() {
+        int size = 0;
+        if (hasMessageLength)
+            size += 1 + varintSize(messageLength);
+        if (hasParserId)
+            size += 1 + varintSize(parserId);
+        if (hasMessageId)
+            size += 1 + varintSize(messageId);
+        if (hasFlags)
+            size += 1 + varintSize(flags);
+        if (hasSuccessResponse)
+            size += 2;
+        return size;
+    }
+
+    /**
+     * Write the header into the buffer in the protocol buffer format.
+     *
+     * @param buffer    The buffer to write to. It must have getSerializedSize() bytes remaining.
+     */
+    public void encodeTo(@NotNull ByteBuffer buffer) {
+        if (hasMessageLength) {
+            buffer.put((byte) TAG_MESSAGE_LENGTH);
+            writeVarint(buffer, messageLength);
+        }
+        if (hasParserId) {
+            buffer.put((byte) TAG_PARSER_ID);
+            writeVarint(buffer, parserId);
+        }
+        if (hasMessageId) {
+            buffer.put((byte) TAG_MESSAGE_ID);
+            writeVarint(buffer, messageId);
+        }
+        if (hasFlags) {
+            buffer.put((byte) TAG_FLAGS);
+            writeVarint(buffer, flags);
+        }
+        if (hasSuccessResponse) {
+            buffer.put((byte) TAG_SUCCESS_RESPONSE);
+            buffer.put((byte) (successResponse ? 1 : 0));
+        }
+    }
+
+    /**
+     * Replace the fields with a header read from the buffer. Unknown fields are skipped.
+     * The buffer position is moved past the header even if it is malformed.
+     *
+     * @param buffer    The buffer to read from, positioned at the start of the header.
+     * @param length    The number of bytes in the header.
+     *
+     * @return  true if the header was read, false if it is malformed or is missing a required field.
+     */
+    public boolean decodeFrom(@NotNull ByteBuffer buffer, int length) {
+        clear();
+
+        if (length < 0 || length > buffer.remaining())
+            return false;
+
+        int end = buffer.position() + length;
+        boolean valid = decodeFields(buffer, end);
+        buffer.position(end);
+
+        return valid && hasMessageLength && hasParserId;
+    }
+
+
+    /*
+    Private Methods
+     */
+
+
+    private boolean decodeFields(@NotNull ByteBuffer buffer, int end) {
+        while (buffer.position() < end) {
+            long tag = readVarint(buffer, end);
+            if (tag < 0)
+                return false;
+
+            int wireType = (int) (tag & 0x7);
+            int fieldNumber = (int) (tag >>> 3);
+
+            if (wireType == WIRE_TYPE_VARINT) {
+                long value = readVarint(buffer, end);
+                if (value < 0)
+                    return false;
+
+                switch (fieldNumber) {
+                    case 1:
+                        setMessageLength((int) value);
+                        break;
+                    case 2:
+                        setParserId((int) value);
+                        break;
+                    case 3:
+                        setMessageId((int) value);
+                        break;
+                    case 4:
+                        setFlags((int) value);
+                        break;
+                    case 5:
+                        setSuccessResponse(value != 0);
+                        break;
+                    default:
+                        //Unknown field
+                        break;
+                }
+            }else if (!skipField(buffer, end, wireType)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Skip an unknown field that isn't a varint.
+     */
+    private static boolean skipField(@NotNull ByteBuffer buffer, int end, int wireType) {
+        int skip;
+        switch (wireType) {
+            case WIRE_TYPE_FIXED64:
+                skip = 8;
+                break;
+            case WIRE_TYPE_FIXED32:
+                skip = 4;
+                break;
+            case WIRE_TYPE_LENGTH_DELIMITED:
+                long length = readVarint(buffer, end);
+                if (length < 0 || length > Integer.MAX_VALUE)
+                    return false;
+                skip = (int) length;
+                break;
+            default:
+                //Groups are not used by PiHeader
+                return false;
+        }
+
+        if (skip > end - buffer.position())
+            return false;
+
+        buffer.position(buffer.position() + skip);
+        return true;
+    }
+
+    /**
+     * @return  The unsigned varint value, or -1 if it runs past the end or is longer than 10 bytes.
+     */
+    private static long readVarint(@NotNull ByteBuffer buffer, int end) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (buffer.position() >= end)
+                return -1;
+
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value & Long.MAX_VALUE;
+        }
+        return -1;
+    }
+
+    /**
+     * Write a uint32 value. Negative ints are written as large unsigned values, the same as Wire.
+     */
+    private static void writeVarint(@NotNull ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int varintSize(int value) {
+        if ((value & (~0 << 7)) == 0) return 1;
+        if ((value & (~0 << 14)) == 0) return 2;
+        if ((value & (~0 << 21)) == 0) return 3;
+        if ((value & (~0 << 28)) == 0) return 4;
+        return 5;
+    }
+
+
+    /*
+    Object Methods
+     */
+
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this)
+            return true;
+        if (!(obj instanceof MutablePiHeader))
+            return false;
+
+        MutablePiHeader o = (MutablePiHeader) obj;
+        return hasMessageLength == o.hasMessageLength && messageLength == o.messageLength
+                && hasParserId == o.hasParserId && parserId == o.parserId
+                && hasMessageId == o.hasMessageId && messageId == o.messageId
+                && hasFlags == o.hasFlags && flags == o.flags
+                && hasSuccessResponse == o.hasSuccessResponse && successResponse == o.successResponse;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = messageLength;
+        result = result * 37 + parserId;
+        result = result * 37 + messageId;
+        result = result * 37 + flags;
+        result = result * 37 + (successResponse ? 1 : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "MutablePiHeader{messageLength=" + messageLength + ", parserId=" + parserId +
+                ", messageId=" + messageId + ", flags=" + flags + ", successResponse=" + successResponse + "}";
+    }
+}
@@ -0,0 +1,172 @@
+package com.kylekewley.piclient;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * Hands parser and message callbacks to an Executor so slow callbacks don't hold up the event loop.
+ *
+ * Callbacks with the same key, which is the parser ID, run one at a time in the order they were
+ * dispatched. Callbacks with different keys may run at the same time on different executor threads.
+ *
+ * The number of queued callbacks is bounded. Once isFull() returns true the connection stops reading
+ * from the socket, and the drained listener is called when the queue falls back to half the bound.
+ */
+public class PiCallbackDispatcher {
+
+    ///The default bound on the number of queued callbacks
+    public static final int DEFAULT_MAX_QUEUED_CALLBACKS = 1024;
+
+    /**
+     * The callbacks for one key. Guarded by the dispatcher.
+     */
+    private final class SerialQueue implements Runnable {
+        private final int key;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+        SerialQueue(int key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                synchronized (PiCallbackDispatcher.this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        //Finished, the next callback for the key starts a new queue
+                        serialQueues.remove(key);
+                        return;
+                    }
+                }
+
+                try {
+                    task.run();
+                }catch (Exception e) {
+                    System.err.println("Error running callback: " + e.getMessage());
+                }
+
+                callbackFinished();
+            }
+        }
+    }
+
+    /*
+    Instance Variables
+     */
+
+    ///The executor that runs the callbacks
+    @NotNull
+    private final Executor executor;
+
+    ///The most callbacks that can be queued before isFull() returns true
+    private final int maxQueuedCallbacks;
+
+    ///The queue for each key that has callbacks waiting or running. Guarded by this.
+    private final IntObjectHashMap<SerialQueue> serialQueues = new IntObjectHashMap<SerialQueue>();
+
+    ///The number of callbacks that haven't finished
+    private final AtomicInteger queuedCallbacks = new AtomicInteger();
+
+    ///Called when the number of queued callbacks falls to half the bound
+    @Nullable
+    private volatile Runnable drainedListener;
+
+
+    /**
+     * @param executor              The executor that runs the callbacks.
+     * @param maxQueuedCallbacks    The most callbacks that can be queued before isFull() returns true.
+     */
+    public PiCallbackDispatcher(@NotNull Executor executor, int maxQueuedCallbacks) {
+        this.executor = executor;
+        this.maxQueuedCallbacks = Math.max(1, maxQueuedCallbacks);
+    }
+
+
+    /*
+    Getters and Setters
+     */
+
+
+    public int getMaxQueuedCallbacks() {
+        return maxQueuedCallbacks;
+    }
+
+    /**
+     * @return  The number of callbacks that are queued or running.
+     */
+    public int getQueuedCallbacks() {
+        return queuedCallbacks.get();
+    }
+
+    /**
+     * @return  true if the bound has been reached and no more data should be read for now.
+     */
+    public boolean isFull() {
+        return queuedCallbacks.get() >= maxQueuedCallbacks;
+    }
+
+    /**
+     * @param drainedListener   Called on an executor thread each time the number of queued callbacks
+     *                          falls to half the bound.
+     */
+    public void setDrainedListener(@Nullable Runnable drainedListener) {
+        this.drainedListener = drainedListener;
+    }
+
+
+    /*
+    Public Methods
+     */
+
+
+    /**
+     * Queue the callback to run after every callback already dispatched with the same key.
+     *
+     * @param key       The key to order the callback by.
+     * @param callback  The callback to run.
+     */
+    public void dispatch(int key, @NotNull Runnable callback) {
+        queuedCallbacks.incrementAndGet();
+
+        SerialQueue newQueue = null;
+        synchronized (this) {
+            SerialQueue serialQueue = serialQueues.get(key);
+            if (serialQueue == null) {
+                serialQueue = newQueue = new SerialQueue(key);
+                serialQueues.put(key, serialQueue);
+            }
+            serialQueue.tasks.add(callback);
+        }
+
+        if (newQueue != null) {
+            try {
+                executor.execute(newQueue);
+            }catch (Exception e) {
+                //The executor rejected it, run it here so the callbacks aren't lost
+                newQueue.run();
+            }
+        }
+    }
+
+
+    /*
+    Private Methods
+     */
+
+
+    private void callbackFinished() {
+        if (queuedCallbacks.decrementAndGet() == maxQueuedCallbacks / 2) {
+            Runnable listener = drainedListener;
+            if (listener != null)
+                listener.run();
+        }
+    }
+}
@@ -2,20 +2,38 @@ package com.kylekewley.piclient;
 
 import com.kylekewley.piclient.protocolbuffers.GroupRegistration;
 import com.kylekewley.piclient.protocolbuffers.ParseError;
+import com.kylekewley.piclient.protocolbuffers.Ping;
 import com.squareup.wire.Message;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 /**
  * Created by Kyle Kewley on 6/11/14.
@@ -42,11 +60,36 @@ public class PiClient implements PiClientCallbacks {
     ///The highest number a port can connect to
     private static final long MAX_PORT = 65535;
 
-    ///The default timeout for joining a thread in milliseconds
+    ///The default timeout for waiting on the event loop to close the connection in milliseconds
     private static final int DEFAULT_THREAD_TIMEOUT = 1000;
 
-    ///The number of bytes to allocate for incoming messages
-    private static final int BUFFER_SIZE = 16 * 1024; //16kb
+    ///The number of milliseconds without a read before a grown receive buffer shrinks back to its minimum size
+    private static final int RECEIVE_BUFFER_IDLE_TIMEOUT = 2000;
+
+    ///The most messages that can be sent with a single write
+    public static final int MAX_MESSAGES_PER_WRITE = 64;
+
+    ///The default number of queued bytes that makes the client unwritable
+    public static final int DEFAULT_WRITE_BUFFER_HIGH_WATERMARK = 1024 * 1024; //1mb
+
+    ///The default number of queued bytes that makes the client writable again
+    public static final int DEFAULT_WRITE_BUFFER_LOW_WATERMARK = 512 * 1024; //512kb
+
+    ///The default number of unanswered heartbeats in a row that closes the connection
+    public static final int DEFAULT_MAX_MISSED_HEARTBEATS = 3;
+
+    ///The default size of the data in each chunk sent by sendStream()
+    public static final int DEFAULT_STREAM_CHUNK_SIZE = 64 * 1024; //64kb
+
+    ///Orders messages by ID, which is the order each thread created them in
+    private static final Comparator<PiMessage> MESSAGE_ID_ORDER = new Comparator<PiMessage>() {
+        @Override
+        public int compare(PiMessage message1, PiMessage message2) {
+            int id1 = message1.getMessageId();
+            int id2 = message2.getMessageId();
+            return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+        }
+    };
 
     /*
     Class Data Members
@@ -59,14 +102,50 @@ public class PiClient implements PiClientCallbacks {
     ///A value of zero is equal to no timeout.
     private int connectionTimeout = DEFAULT_TIMEOUT;
 
+    ///The number of queued messages gathered into each socket write.
+    private int maxMessagesPerWrite = MAX_MESSAGES_PER_WRITE;
+
+    ///The smallest and largest sizes of the buffer incoming data is read into.
+    private int minReceiveBufferSize = PiReceiveBuffer.DEFAULT_MIN_SIZE;
+    private int maxReceiveBufferSize = PiReceiveBuffer.DEFAULT_MAX_SIZE;
+
+    ///The timeout (in milliseconds) to wait for a reply to messages that don't set their own.
+    ///A value of zero is equal to no timeout.
+    private int defaultReplyTimeout = PiMessage.NO_REPLY_TIMEOUT;
+
+    ///The executor that runs parser and message callbacks, or null to run them on the event loop thread.
+    @Nullable
+    private Executor callbackExecutor;
+
+    ///The most callbacks that can wait for the callbackExecutor before the connection stops reading.
+    private int maxQueuedCallbacks = PiCallbackDispatcher.DEFAULT_MAX_QUEUED_CALLBACKS;
+
+    ///The milliseconds without a read before a heartbeat Ping is sent. A value of zero turns heartbeats off.
+    private volatile int heartbeatInterval;
+
+    ///The number of heartbeat intervals in a row without an answer that closes the connection.
+    private volatile int maxMissedHeartbeats = DEFAULT_MAX_MISSED_HEARTBEATS;
 
-    ///The PiClientHelper running on a secondary thread.
+    ///The round trip times measured by the heartbeat Pings.
+    private final PiRttEstimator rttEstimator = new PiRttEstimator();
+
+    ///The smallest message data that is compressed before sending. A value of zero turns compression off.
+    private volatile int compressionThreshold;
+
+    ///The deflate level used to compress messages.
+    private volatile int compressionLevel = PiCompressor.DEFAULT_LEVEL;
+
+    ///The size of the data in each chunk sent by sendStream().
+    private volatile int streamChunkSize = DEFAULT_STREAM_CHUNK_SIZE;
+
+
+    ///The PiClientHelper for the current connection. It runs on one of the eventLoopGroup threads.
     @Nullable
     private PiClientHelper clientHelper;
 
-    ///The Thread object that is running the PiClientHelper.
+    ///The group of I/O threads that connections are handed to, or null to use the default group.
     @Nullable
-    private Thread clientHelperThread;
+    private PiClientEventLoopGroup eventLoopGroup;
 
 
     ///The name of the host or IP address to connect to.
@@ -78,12 +157,66 @@ public class PiClient implements PiClientCallbacks {
     ///The PiParser for the client instance.
     private final PiParser piParser = new PiParser();
 
-    ///The PiServerManager for this client instance
-    @NotNull
-    private PiServerManager serverManager = new PiServerManager(piParser);
+    ///The counters, gauges and latencies for every connection the client makes.
+    private final PiClientMetrics metrics = new PiClientMetrics(new PiClientMetrics.Gauges() {
+        //The helper's queues are read without a lock, so the gauges are only approximate while it runs
+        @Override
+        public int getMessageQueueSize() {
+            PiClientHelper helper = clientHelper;
+            return helper == null ? 0 : helper.messageQueue.size();
+        }
+
+        @Override
+        public int getAwaitingReplyCount() {
+            PiClientHelper helper = clientHelper;
+            return helper == null ? 0 : helper.sentMessages.size();
+        }
+
+        @Override
+        public int getBackupQueueSize() {
+            synchronized (backupMessageList) {
+                return backupMessageList.size();
+            }
+        }
+
+        @Override
+        public long getPendingWriteBytes() {
+            return pendingWriteBytes.get();
+        }
+    });
 
-    ///The queue to keep messages even if the PiClient isn't connected
+    ///The queue to keep messages even if the PiClient isn't connected. Guarded by itself.
     private final ArrayList<PiMessage> backupMessageList = new ArrayList<PiMessage>();
+
+    ///Keeps the messages sent while disconnected on disk, or null to only keep them in memory.
+    @Nullable
+    private volatile PiOutbox outbox;
+
+    ///Decides when to reconnect after the connection is lost, or null to stay disconnected.
+    @Nullable
+    private volatile PiReconnectPolicy reconnectPolicy;
+
+    ///The number of reconnect attempts that failed since the connection was lost.
+    private final AtomicInteger reconnectAttempts = new AtomicInteger();
+
+    ///The groups joined with addToGroup(), rejoined after an automatic reconnect. Guarded by itself.
+    private final Set<String> groups = new LinkedHashSet<String>();
+
+    ///Held while the clientHelper is replaced, so a reconnect can't race close() or connectToPiServer().
+    private final Object connectionLock = new Object();
+
+    ///The number of bytes in messages that are queued but not written yet, including the backupMessageList.
+    private final AtomicLong pendingWriteBytes = new AtomicLong();
+
+    ///Cleared when pendingWriteBytes goes over the high watermark and set again when it falls to the low watermark.
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+
+    ///Blocking senders wait on this until the client is writable.
+    private final Object writabilityLock = new Object();
+
+    ///The queued byte counts that change the writability.
+    private volatile int writeBufferHighWatermark = DEFAULT_WRITE_BUFFER_HIGH_WATERMARK;
+    private volatile int writeBufferLowWatermark = DEFAULT_WRITE_BUFFER_LOW_WATERMARK;
     /*
     Class Constructors
      */
@@ -122,6 +255,23 @@ public class PiClient implements PiClientCallbacks {
         connectToPiServer(hostName, port);
     }
 
+    /**
+     * Creates a PiClient that runs on the given event loop group and connects it to the host on the given port.
+     *
+     * @param hostName          The name of the host.
+     * @param port              The port number.
+     * @param clientCallbacks   The object that will handle error messages and status updates.
+     * @param eventLoopGroup    The group of I/O threads the connection will run on.
+     */
+    public PiClient(String hostName, int port, PiClientCallbacks clientCallbacks, @NotNull PiClientEventLoopGroup eventLoopGroup) {
+        this.hostName = hostName;
+        this.port = port;
+        this.clientCallbacks = clientCallbacks;
+        this.eventLoopGroup = eventLoopGroup;
+
+        connectToPiServer(hostName, port);
+    }
+
 
     /*
     Getter and Setter Methods
@@ -159,6 +309,327 @@ public class PiClient implements PiClientCallbacks {
     }
 
 
+    /**
+     * @return  The number of queued messages gathered into each socket write.
+     */
+    public int getMaxMessagesPerWrite() {
+        return maxMessagesPerWrite;
+    }
+
+    /**
+     * Queued messages are written to the socket together with a single gathering write.
+     * Setting this to one writes each message on its own.
+     *
+     * @param maxMessagesPerWrite   The number of messages to gather into each write,
+     *                              between 1 and MAX_MESSAGES_PER_WRITE.
+     */
+    public void setMaxMessagesPerWrite(int maxMessagesPerWrite) {
+        this.maxMessagesPerWrite = Math.max(1, Math.min(maxMessagesPerWrite, MAX_MESSAGES_PER_WRITE));
+    }
+
+
+    /**
+     * @return  The smallest size of the buffer incoming data is read into.
+     */
+    public int getMinReceiveBufferSize() {
+        return minReceiveBufferSize;
+    }
+
+    /**
+     * @return  The largest size of the buffer incoming data is read into.
+     */
+    public int getMaxReceiveBufferSize() {
+        return maxReceiveBufferSize;
+    }
+
+    /**
+     * Incoming data is read into a buffer that grows for bulk transfers and shrinks back when the
+     * connection goes quiet. Messages up to the maximum size are handed to parsers without being copied.
+     * The sizes are used for the next connection.
+     *
+     * @param minSize   The starting and smallest size of the buffer, at least PiReceiveBuffer.MIN_SIZE.
+     * @param maxSize   The largest size of the buffer. It is raised to minSize if it is smaller.
+     */
+    public void setReceiveBufferSize(int minSize, int maxSize) {
+        this.minReceiveBufferSize = Math.max(minSize, PiReceiveBuffer.MIN_SIZE);
+        this.maxReceiveBufferSize = Math.max(maxSize, this.minReceiveBufferSize);
+    }
+
+
+    /**
+     * @return  The number of milliseconds to wait for a reply to messages that don't set their own timeout.
+     */
+    public int getDefaultReplyTimeout() {
+        return defaultReplyTimeout;
+    }
+
+    /**
+     * Messages that time out are removed from the sent messages and
+     * PiMessageCallbacks.serverReplyTimedOut() is called.
+     *
+     * @param defaultReplyTimeout   The number of milliseconds to wait for a reply to messages that don't
+     *                              set their own timeout. A value of zero is equal to no timeout.
+     */
+    public void setDefaultReplyTimeout(int defaultReplyTimeout) {
+        this.defaultReplyTimeout = defaultReplyTimeout;
+    }
+
+
+    /**
+     * @return  The executor that runs parser and message callbacks, or null if they run on the event loop thread.
+     */
+    @Nullable
+    public Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    /**
+     * Run CustomParser and PiMessageCallbacks methods on the executor instead of the event loop thread,
+     * so a slow callback doesn't stop the connection from reading and writing.
+     * Callbacks for the same parser ID still run one at a time, in the order the messages arrived.
+     * Message data is copied for each callback, since the receive buffer can't be held on to.
+     * Used for the next connection.
+     *
+     * @param callbackExecutor  The executor to use, or null to run callbacks on the event loop thread.
+     */
+    public void setCallbackExecutor(@Nullable Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * @return  The most callbacks that can wait for the callback executor before the connection stops reading.
+     */
+    public int getMaxQueuedCallbacks() {
+        return maxQueuedCallbacks;
+    }
+
+    /**
+     * Once this many callbacks are waiting for the callback executor, the connection stops reading
+     * from the socket until half of them have finished. Used for the next connection.
+     *
+     * @param maxQueuedCallbacks    The most callbacks that can be queued, at least one.
+     */
+    public void setMaxQueuedCallbacks(int maxQueuedCallbacks) {
+        this.maxQueuedCallbacks = Math.max(1, maxQueuedCallbacks);
+    }
+
+
+    /**
+     * @return  The number of queued bytes that makes the client unwritable.
+     */
+    public int getWriteBufferHighWatermark() {
+        return writeBufferHighWatermark;
+    }
+
+    /**
+     * @return  The number of queued bytes that makes the client writable again.
+     */
+    public int getWriteBufferLowWatermark() {
+        return writeBufferLowWatermark;
+    }
+
+    /**
+     * The client becomes unwritable once more than highWatermark bytes are waiting to be sent,
+     * and writable again once they fall to lowWatermark.
+     * PiClientCallbacks.clientWritabilityChanged() is called for each change.
+     *
+     * @param lowWatermark  The queued bytes that make the client writable again.
+     * @param highWatermark The queued bytes that make the client unwritable. It is raised to lowWatermark if it is smaller.
+     */
+    public void setWriteBufferWatermarks(int lowWatermark, int highWatermark) {
+        writeBufferLowWatermark = Math.max(0, lowWatermark);
+        writeBufferHighWatermark = Math.max(writeBufferLowWatermark, highWatermark);
+        updateWritability();
+    }
+
+    /**
+     * @return  The milliseconds without a read before a heartbeat Ping is sent, or zero if heartbeats are off.
+     */
+    public int getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * @return  The number of heartbeat intervals in a row without an answer that closes the connection.
+     */
+    public int getMaxMissedHeartbeats() {
+        return maxMissedHeartbeats;
+    }
+
+    /**
+     * Send a Ping to the PiServer's ping parser whenever nothing has been read for the interval.
+     * If the server doesn't answer for maxMissedHeartbeats intervals in a row, the connection is
+     * closed with HEARTBEAT_TIMEOUT, so a dead link is found even when nothing is being sent.
+     * The answers are used to measure the round trip time, see getRttEstimator().
+     * Used for the next connection.
+     *
+     * @param interval              The milliseconds without a read before a Ping is sent, or zero to turn heartbeats off.
+     * @param maxMissedHeartbeats   The number of unanswered intervals in a row that closes the connection, at least one.
+     */
+    public void setHeartbeat(int interval, int maxMissedHeartbeats) {
+        this.heartbeatInterval = Math.max(0, interval);
+        this.maxMissedHeartbeats = Math.max(1, maxMissedHeartbeats);
+    }
+
+    /**
+     * @return  The round trip times measured by the heartbeat Pings. It keeps its samples across reconnects.
+     */
+    @NotNull
+    public PiRttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    /**
+     * @return  The smallest message data that is compressed before sending, or zero if compression is off.
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * @return  The deflate level used to compress messages.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Compress the data of sent messages at least threshold bytes long with the default level.
+     *
+     * @param threshold The smallest message data to compress, or zero to turn compression off.
+     */
+    public void setCompression(int threshold) {
+        setCompression(threshold, PiCompressor.DEFAULT_LEVEL);
+    }
+
+    /**
+     * Compress the data of sent messages at least threshold bytes long, on the sending thread.
+     * Compressed messages carry the compressed flag in their PiHeader, so only turn this on for
+     * servers that understand it. Data that doesn't get smaller is sent as it is.
+     * Replies with the compressed flag are always decompressed, whether or not this is on.
+     *
+     * @param threshold The smallest message data to compress, or zero to turn compression off.
+     * @param level     The deflate level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION.
+     */
+    public void setCompression(int threshold, int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("The compression level must be between 1 and 9.");
+
+        this.compressionLevel = level;
+        this.compressionThreshold = Math.max(0, threshold);
+    }
+
+    /**
+     * @return  The size of the data in each chunk sent by sendStream().
+     */
+    public int getStreamChunkSize() {
+        return streamChunkSize;
+    }
+
+    /**
+     * @param streamChunkSize   The size of the data in each chunk sent by sendStream(), at least one byte.
+     */
+    public void setStreamChunkSize(int streamChunkSize) {
+        if (streamChunkSize <= 0)
+            throw new IllegalArgumentException("The chunk size must be positive.");
+
+        this.streamChunkSize = streamChunkSize;
+    }
+
+    /**
+     * @return  The policy used to reconnect after the connection is lost, or null if the client stays disconnected.
+     */
+    @Nullable
+    public PiReconnectPolicy getReconnectPolicy() {
+        return reconnectPolicy;
+    }
+
+    /**
+     * Reconnect automatically when the connection is lost or a connection attempt fails, waiting
+     * between attempts as the policy says. While reconnecting, sent messages are kept until the
+     * next connection. Messages that were sent but not answered are sent again on the new
+     * connection, and the groups joined with addToGroup() are joined again.
+     * close() stops reconnecting.
+     *
+     * @param reconnectPolicy   The policy to use, or null to stay disconnected.
+     */
+    public void setReconnectPolicy(@Nullable PiReconnectPolicy reconnectPolicy) {
+        this.reconnectPolicy = reconnectPolicy;
+    }
+
+    /**
+     * @return  The outbox that keeps messages until they are written, or null if they are only kept in memory.
+     */
+    @Nullable
+    public PiOutbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * Keep every message in the outbox until it is written to the socket, so messages sent while
+     * disconnected or still queued survive the process being killed. Messages that were still in
+     * the outbox when it was opened are queued ahead of anything sent after this call. Messages
+     * that were queued but not written when the connection closed are kept for the next connection
+     * instead of failing. Messages sent before this call and file regions aren't in the outbox.
+     *
+     * @param outbox    The outbox to use, or null to only keep messages in memory.
+     */
+    public void setOutbox(@Nullable PiOutbox outbox) {
+        this.outbox = outbox;
+        if (outbox == null)
+            return;
+
+        List<PiMessage> recovered = outbox.takeRecoveredMessages();
+        for (PiMessage message : recovered) {
+            countQueuedMessage(message);
+        }
+        requeueMessages(recovered);
+    }
+
+    /**
+     * @return  true if the bytes waiting to be sent are under the high watermark.
+     */
+    public boolean isWritable() {
+        return writable.get();
+    }
+
+    /**
+     * @return  The number of bytes in messages that are queued but haven't been written to the socket.
+     */
+    public long getPendingWriteBytes() {
+        return pendingWriteBytes.get();
+    }
+
+
+    /**
+     * @return  The group of I/O threads that connections are handed to.
+     */
+    @NotNull
+    public PiClientEventLoopGroup getEventLoopGroup() {
+        if (eventLoopGroup == null)
+            return PiClientEventLoopGroup.getDefault();
+        return eventLoopGroup;
+    }
+
+    /**
+     * The group is used by the next call to connectToPiServer(). A current connection stays
+     * on the loop it was started on.
+     *
+     * @param eventLoopGroup    The group of I/O threads that connections are handed to.
+     */
+    public void setEventLoopGroup(@NotNull PiClientEventLoopGroup eventLoopGroup) {
+        this.eventLoopGroup = eventLoopGroup;
+    }
+
+
+    /**
+     * @return  The counters, gauges and request latencies for the client. Take a snapshot() to read them.
+     */
+    @NotNull
+    public PiClientMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * @return  A not-null piParser object used for parsing incoming data.
      */
@@ -221,16 +692,11 @@ public class PiClient implements PiClientCallbacks {
             return;
         }
 
-        //Data is fine as far as we can tell. Create and run the new thread.
-        clientHelper = new PiClientHelper(hostName, port);
-        for (PiMessage message : backupMessageList) {
-            clientHelper.sendMessage(message);
+        //Data is fine as far as we can tell. Create the helper and hand it to an event loop.
+        synchronized (connectionLock) {
+            reconnectAttempts.set(0);
+            startConnection(hostName, port, getEventLoopGroup().next(), false);
         }
-        backupMessageList.clear();
-
-        clientHelperThread = new Thread(clientHelper);
-        clientHelperThread.start();
-
     }
 
 
@@ -248,19 +714,21 @@ public class PiClient implements PiClientCallbacks {
      * by calling any of the connectToPiServer methods.
      */
     public void close() {
-        //TODO: Add clientHelper messages to the backupMessageList
-        if (clientHelper != null && clientHelper.isConnected() && clientHelperThread != null) {
-            clientHelper.close();
+        PiClientHelper helper;
+        synchronized (connectionLock) {
+            helper = clientHelper;
+            clientHelper = null;
+            if (helper != null)
+                helper.closedByUser = true; //Stops any reconnect
+        }
 
+        //Messages that weren't written are kept for the next connection if there is an outbox
+        if (helper != null) {
             try {
-                clientHelperThread.join(DEFAULT_THREAD_TIMEOUT);
+                helper.close(DEFAULT_THREAD_TIMEOUT);
             }catch (Exception e) {
-                System.out.println("Exception while joining client helper thread: " + e.getMessage());
-            }finally {
-                clientHelper = null;
-                clientHelperThread = null;
+                System.out.println("Exception while waiting for the client helper to close: " + e.getMessage());
             }
-
         }
     }
 
@@ -275,52 +743,261 @@ public class PiClient implements PiClientCallbacks {
      * If the PiClient is not connected, the DISCONNECTED_CLIENT error
      * will be sent to the clientCallbacks object.
      *
+     * The message is always queued, even if the client is over its high watermark.
+     * Use trySendMessage(), a blocking sendMessage() or sendMessageDroppingOldest() to bound the queue.
+     *
      * @param message   The message to send to the server.
      */
     public void sendMessage(@Nullable PiMessage message) {
         if (message == null) return;
-        if (clientHelper != null)
-            clientHelper.sendMessage(message);
-        else
-            backupMessageList.add(message); //Will be send as soon as the clientHelper is created.
+        queueMessage(message);
     }
 
-
     /**
-     * Adds the PiClient to the group on the PiServer.
-     * If the PiClient is not connected, the DISCONNECTED_CLIENT error
-     * will be sent to the clientCallbacks object.
+     * Sends the PiMessage object to the PiServer if the client is writable.
      *
-     * @param groupName The group name to add the client to.
+     * @param message   The message to send to the server.
+     *
+     * @return  true if the message was queued, false if the client is over its high watermark.
      */
-    public void addToGroup(String groupName) {
-        //TODO: Do something with the result.
-        GroupRegistration groupRegistration = new GroupRegistration(groupName, true, 0, null);
-        PiMessage message = new PiMessage(Constants.ServerDefaultParserId.GROUP_REGISTRATION_ID.getId(), groupRegistration);
+    public boolean trySendMessage(@Nullable PiMessage message) {
+        if (message == null || !writable.get())
+            return false;
 
-        message.setMessageCallbacks(new PiMessageCallbacks() {
-            @Override
-            public void serverReturnedData(byte[] data, PiMessage message) {
+        queueMessage(message);
+        return true;
+    }
 
-            }
+    /**
+     * Sends the PiMessage object to the PiServer, waiting until the client is writable.
+     * When called from the event loop thread the message is queued without waiting.
+     *
+     * @param message   The message to send to the server.
+     * @param timeout   The longest time to wait.
+     * @param unit      The unit of the timeout.
+     *
+     * @return  true if the message was queued, false if the client was still unwritable after the timeout.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public boolean sendMessage(@Nullable PiMessage message, long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+        if (message == null)
+            return false;
 
-            @Override
-            public void serverRepliedWithMessage(Message response, PiMessage sentMessage) {
+        if (!awaitWritable(unit.toNanos(timeout)))
+            return false;
 
-            }
+        queueMessage(message);
+        return true;
+    }
 
-            @Override
-            public void serverSuccessfullyParsedMessage(PiMessage message) {
+    /**
+     * Sends the PiMessage object to the PiServer, waiting as long as it takes for the client to be writable.
+     * When called from the event loop thread the message is queued without waiting.
+     *
+     * @param message   The message to send to the server.
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public void sendMessageBlocking(@Nullable PiMessage message) throws InterruptedException {
+        if (message == null)
+            return;
+
+        awaitWritable(Long.MAX_VALUE);
+        queueMessage(message);
+    }
 
+    /**
+     * Sends the PiMessage object to the PiServer, dropping the oldest queued messages that haven't
+     * started sending until the new message fits under the high watermark.
+     * PiMessageCallbacks.messageDropped() is called for each dropped message.
+     * Meant for telemetry, where only the newest data matters.
+     *
+     * Messages waiting for a connection are dropped before this returns. Messages queued on a
+     * connection are dropped by the event loop, which is the only thread that takes messages out
+     * of the queue, so the queued bytes can be over the high watermark until it gets to them.
+     *
+     * @param message   The message to send to the server.
+     */
+    public void sendMessageDroppingOldest(@Nullable PiMessage message) {
+        if (message == null)
+            return;
+
+        compressMessage(message);
+        int size = message.serializedSize();
+        while (pendingWriteBytes.get() + size > writeBufferHighWatermark) {
+            PiMessage oldest;
+            synchronized (backupMessageList) {
+                oldest = backupMessageList.isEmpty() ? null : backupMessageList.remove(0);
             }
+            if (oldest == null)
+                break;
 
-            @Override
-            public void serverReturnedErrorForMessage(ParseError parseError, PiMessage message) {
+            dropMessage(oldest);
+        }
+
+        queueMessage(message);
+
+        PiClientHelper helper = clientHelper;
+        if (helper != null && pendingWriteBytes.get() > writeBufferHighWatermark)
+            helper.scheduleDropOldest();
+    }
+
+    /**
+     * Sends everything read from the stream to the parser on the PiServer, see sendStream(int, ReadableByteChannel, PiMessageCallbacks).
+     *
+     * @param parserId  The ID of the parser on the server.
+     * @param source    The data to send. It is read to the end but not closed.
+     * @param callbacks Gets the server's reply to the whole stream, or null.
+     *
+     * @return  The number of bytes sent.
+     *
+     * @throws IOException          If the source can't be read or the connection is lost during the stream.
+     * @throws InterruptedException If the thread is interrupted while waiting for the client to be writable.
+     */
+    public long sendStream(int parserId, @NotNull InputStream source, @Nullable PiMessageCallbacks callbacks)
+            throws IOException, InterruptedException {
+        return sendStream(parserId, Channels.newChannel(source), callbacks);
+    }
 
+    /**
+     * Sends everything read from the channel to the parser on the PiServer as a stream of chunks, so
+     * data of any size can be sent without holding it all in memory. Each chunk is read only once
+     * the client is writable, so at most the high watermark plus two chunks are held at a time.
+     * Blocks until the last chunk is queued. Must not be called from the event loop thread.
+     *
+     * Every chunk has the stream's message ID, the chunk flag and a sequence number starting at zero.
+     * The last one also has the last chunk flag, and only it is answered by the server. Streams can't
+     * continue on another connection: if the connection is lost, the rest of the stream isn't sent,
+     * the callbacks get connectionClosedBeforeReply() and an IOException is thrown.
+     * Don't use sendMessageDroppingOldest() on the same client while streaming, it could drop chunks.
+     *
+     * @param parserId  The ID of the parser on the server.
+     * @param source    A blocking channel with the data to send. It is read to the end but not closed.
+     * @param callbacks Gets the server's reply to the whole stream, or null.
+     *
+     * @return  The number of bytes sent.
+     *
+     * @throws IOException          If the source can't be read, the client isn't connected or the connection
+     *                              is lost during the stream.
+     * @throws InterruptedException If the thread is interrupted while waiting for the client to be writable.
+     */
+    public long sendStream(int parserId, @NotNull ReadableByteChannel source, @Nullable PiMessageCallbacks callbacks)
+            throws IOException, InterruptedException {
+        PiClientHelper helper = clientHelper;
+        if (helper == null || helper.closed)
+            throw new IOException("The client isn't connected.");
+
+        int chunkSize = streamChunkSize;
+        int streamId = PiMessage.getUniqueMessageId();
+        int sequence = 0;
+        long bytesSent = 0;
+
+        //Read one chunk ahead, since the last chunk is only known once the source runs out
+        ByteBuffer chunk = readChunk(source, chunkSize);
+        while (true) {
+            ByteBuffer next = chunk.hasRemaining() ? null : readChunk(source, chunkSize);
+            boolean last = next == null || next.position() == PiMessage.CHUNK_SEQUENCE_SIZE;
+
+            awaitWritable(Long.MAX_VALUE);
+            if (clientHelper != helper || helper.closed) {
+                //The rest of the stream would start in the middle on the next connection
+                if (callbacks != null) {
+                    PiMessage lastChunk = PiMessage.newChunk(parserId, streamId, new byte[PiMessage.CHUNK_SEQUENCE_SIZE], true);
+                    lastChunk.setMessageCallbacks(callbacks);
+                    callbacks.connectionClosedBeforeReply(lastChunk);
+                }
+                throw new IOException("The connection was lost during the stream.");
             }
-        });
 
+            chunk.putInt(0, sequence++);
+            bytesSent += chunk.position() - PiMessage.CHUNK_SEQUENCE_SIZE;
+
+            byte[] data = chunk.hasRemaining() ? Arrays.copyOf(chunk.array(), chunk.position()) : chunk.array();
+            PiMessage message = PiMessage.newChunk(parserId, streamId, data, last);
+            if (last)
+                message.setMessageCallbacks(callbacks);
+
+            compressMessage(message);
+            countQueuedMessage(message);
+            helper.sendMessage(message);
+
+            if (last)
+                return bytesSent;
+            chunk = next;
+        }
+    }
+
+
+    /**
+     * Sends the PiMessage to the PiServer and returns a future for the reply.
+     * The future replaces any PiMessageCallbacks already set on the message.
+     * It completes with the reply data, or null if the server sends an empty reply.
+     *
+     * @param message   The message to send to the server.
+     *
+     * @return  The future for the reply.
+     */
+    @NotNull
+    public PiFuture<byte[]> request(@NotNull PiMessage message) {
+        PiFuture<byte[]> future = new PiFuture<byte[]>();
+        message.setMessageCallbacks(future);
+        sendMessage(message);
+        return future;
+    }
+
+    /**
+     * Sends the message to the parser on the PiServer and returns a future for the reply.
+     * The future completes with the reply parsed as the replyClass, or null if the server sends an empty reply.
+     *
+     * @param parserId      The ID of the parser on the server.
+     * @param message       The message to send.
+     * @param replyClass    The class used to parse the reply.
+     *
+     * @return  The future for the reply.
+     */
+    @NotNull
+    public <R extends Message> PiFuture<R> request(int parserId, @NotNull Message message, @NotNull Class<R> replyClass) {
+        PiMessage piMessage = new PiMessage(parserId, message);
+        PiFuture<R> future = new PiFuture<R>(replyClass);
+        piMessage.setMessageCallbacks(future);
+        sendMessage(piMessage);
+        return future;
+    }
+
+    /**
+     * Sends the PiMessage to the PiServer and writes the reply data straight to the file as it
+     * arrives, see PiMessage.setReplyFile(). The future replaces any PiMessageCallbacks already
+     * set on the message. It completes with the number of bytes written.
+     *
+     * @param message   The message to send to the server.
+     * @param replyFile The file to write the reply data to. It isn't closed.
+     * @param position  The position in the file to start writing at.
+     *
+     * @return  The future for the number of reply bytes written.
+     */
+    @NotNull
+    public PiFuture<Long> requestToFile(@NotNull PiMessage message, @NotNull FileChannel replyFile, long position) {
+        PiFuture<Long> future = new PiFuture<Long>();
+        message.setReplyFile(replyFile, position);
+        message.setMessageCallbacks(future);
         sendMessage(message);
+        return future;
+    }
+
+
+    /**
+     * Adds the PiClient to the group on the PiServer.
+     * If the PiClient is not connected, the DISCONNECTED_CLIENT error
+     * will be sent to the clientCallbacks object.
+     *
+     * @param groupName The group name to add the client to.
+     */
+    public void addToGroup(String groupName) {
+        synchronized (groups) {
+            groups.add(groupName);
+        }
+        sendMessage(groupRegistrationMessage(groupName, true));
     }
 
     /**
@@ -331,8 +1008,28 @@ public class PiClient implements PiClientCallbacks {
      * @param groupName The group name to remove the client from.
      */
     public void removeFromGroup(String groupName) {
+        synchronized (groups) {
+            groups.remove(groupName);
+        }
+        sendMessage(groupRegistrationMessage(groupName, false));
+    }
+
+
+    /*
+    Private Methods
+     */
+
+
+    /**
+     * @param groupName The group to join or leave.
+     * @param add       true to join the group, false to leave it.
+     *
+     * @return  The message that registers the client with the group.
+     */
+    @NotNull
+    private PiMessage groupRegistrationMessage(String groupName, boolean add) {
         //TODO: Do something with the result.
-        GroupRegistration groupRegistration = new GroupRegistration(groupName, true, 0, null);
+        GroupRegistration groupRegistration = new GroupRegistration(groupName, add, 0, null);
         PiMessage message = new PiMessage(Constants.ServerDefaultParserId.GROUP_REGISTRATION_ID.getId(), groupRegistration);
 
         message.setMessageCallbacks(new PiMessageCallbacks() {
@@ -357,15 +1054,239 @@ public class PiClient implements PiClientCallbacks {
             }
         });
 
-        sendMessage(message);
+        return message;
+    }
+
+    /**
+     * Create a new clientHelper on the event loop, queue the messages that were waiting for a
+     * connection and start connecting. Must be called while holding the connectionLock.
+     *
+     * @param rejoinGroups  true to join the groups from addToGroup() again before anything else is sent.
+     */
+    private void startConnection(String hostName, int port, @NotNull PiClientEventLoop eventLoop, boolean rejoinGroups) {
+        PiClientHelper helper = new PiClientHelper(hostName, port, eventLoop);
+        clientHelper = helper;
+
+        if (rejoinGroups) {
+            List<String> groupNames;
+            synchronized (groups) {
+                groupNames = new ArrayList<String>(groups);
+            }
+            for (String groupName : groupNames) {
+                PiMessage message = groupRegistrationMessage(groupName, true);
+                countQueuedMessage(message);
+                helper.rejoinMessages.add(message);
+                helper.sendMessage(message);
+            }
+        }
 
+        synchronized (backupMessageList) {
+            for (PiMessage message : backupMessageList) {
+                helper.sendMessage(message);
+            }
+            backupMessageList.clear();
+        }
 
+        helper.start();
     }
 
+    /**
+     * Replace a helper that lost its connection, unless the client was closed or connected somewhere else since.
+     */
+    private void reconnect(@NotNull PiClientHelper failedHelper) {
+        synchronized (connectionLock) {
+            if (clientHelper != failedHelper || failedHelper.closedByUser)
+                return;
+
+            startConnection(hostName, port, failedHelper.eventLoop, true);
+        }
+    }
 
-    /*
-    Private Methods
+    /**
+     * Count the message against the send queue and hand it to the clientHelper,
+     * or keep it until the client connects.
+     */
+    private void queueMessage(@NotNull PiMessage message) {
+        compressMessage(message);
+        countQueuedMessage(message);
+
+        //Everything stays in the outbox until it is written, so it survives the process being killed.
+        //A file region isn't copied into the outbox.
+        PiOutbox outbox = this.outbox;
+        if (outbox != null && message.getFileChannel() == null) {
+            try {
+                outbox.append(message);
+            } catch (IOException e) {
+                //Still send it if this process lives long enough
+                clientCallbacks.clientRaisedError(this, e);
+            }
+        }
+
+        PiClientHelper helper = clientHelper;
+        boolean keepForNextConnection = helper != null && helper.closed && (outbox != null || reconnectPolicy != null);
+        if (helper != null && !keepForNextConnection) {
+            helper.sendMessage(message);
+            return;
+        }
+
+        synchronized (backupMessageList) {
+            backupMessageList.add(message); //Will be send as soon as the clientHelper is created.
+        }
+    }
+
+    /**
+     * Read up to chunkSize bytes from the source, stopping early only at the end of the source.
+     *
+     * @return  A buffer with room for the sequence number, positioned after the data read.
+     */
+    @NotNull
+    private static ByteBuffer readChunk(@NotNull ReadableByteChannel source, int chunkSize) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(PiMessage.CHUNK_SEQUENCE_SIZE + chunkSize);
+        chunk.position(PiMessage.CHUNK_SEQUENCE_SIZE);
+
+        while (chunk.hasRemaining()) {
+            if (source.read(chunk) < 0)
+                break;
+        }
+        return chunk;
+    }
+
+    /**
+     * @return  true if the host is localhost or an IP address literal, which resolve without a DNS lookup.
+     */
+    private static boolean resolvesWithoutLookup(@NotNull String hostName) {
+        if (hostName.equalsIgnoreCase("localhost") || hostName.indexOf(':') >= 0)
+            return true; //IPv6 literals always contain a colon
+
+        if (hostName.length() == 0)
+            return false;
+        for (int i = 0; i < hostName.length(); i++) {
+            char c = hostName.charAt(i);
+            if (c != '.' && (c < '0' || c > '9'))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compress the message data if compression is on and the data is big enough.
+     */
+    private void compressMessage(@NotNull PiMessage message) {
+        int threshold = compressionThreshold;
+        if (threshold <= 0)
+            return;
+
+        int length = message.serializedSize();
+        if (message.compress(threshold, compressionLevel)) {
+            metrics.compressedMessages.increment();
+            metrics.compressionSavedBytes.add(length - message.serializedSize());
+        }
+    }
+
+    /**
+     * Count the message against the send queue.
+     */
+    private void countQueuedMessage(@NotNull PiMessage message) {
+        int size = message.serializedSize();
+        message.setQueuedSize(size);
+        pendingWriteBytes.addAndGet(size);
+        updateWritability();
+    }
+
+    /**
+     * Put messages that are already counted against the send queue back in front of the
+     * messages waiting for a connection, or hand them to the clientHelper if it is open.
+     */
+    private void requeueMessages(@NotNull List<PiMessage> messages) {
+        if (messages.isEmpty())
+            return;
+
+        PiClientHelper helper = clientHelper;
+        if (helper != null && !helper.closed) {
+            for (PiMessage message : messages) {
+                helper.sendMessage(message);
+            }
+            return;
+        }
+
+        synchronized (backupMessageList) {
+            backupMessageList.addAll(0, messages);
+        }
+    }
+
+    /**
+     * Stop counting a message against the send queue once it is written or will never be written.
+     */
+    private void messageDequeued(@NotNull PiMessage message) {
+        pendingWriteBytes.addAndGet(-message.getQueuedSize());
+        message.setQueuedSize(0);
+        updateWritability();
+
+        PiOutbox outbox = this.outbox;
+        if (outbox != null)
+            outbox.acknowledge(message);
+    }
+
+    /**
+     * Stop counting a message that was dropped to stay under the high watermark, and tell its callbacks.
+     */
+    private void dropMessage(@NotNull PiMessage message) {
+        messageDequeued(message);
+        metrics.messagesDropped.increment();
+        if (message.getMessageCallbacks() != null)
+            message.getMessageCallbacks().messageDropped(message);
+    }
+
+    /**
+     * Flip the writability if pendingWriteBytes crossed a watermark. Loops in case another
+     * thread moved pendingWriteBytes back across while this one was flipping it.
+     */
+    private void updateWritability() {
+        while (true) {
+            long pending = pendingWriteBytes.get();
+
+            if (writable.get()) {
+                if (pending <= writeBufferHighWatermark || !writable.compareAndSet(true, false))
+                    return;
+
+                clientCallbacks.clientWritabilityChanged(this, false);
+            }else {
+                if (pending > writeBufferLowWatermark || !writable.compareAndSet(false, true))
+                    return;
+
+                synchronized (writabilityLock) {
+                    writabilityLock.notifyAll();
+                }
+                clientCallbacks.clientWritabilityChanged(this, true);
+            }
+        }
+    }
+
+    /**
+     * Wait for the client to be writable. Doesn't wait on the event loop thread, since that is
+     * the thread that makes the client writable again.
+     *
+     * @param timeoutNanos  The longest time to wait.
+     *
+     * @return  true if the client is writable.
      */
+    private boolean awaitWritable(long timeoutNanos) throws InterruptedException {
+        PiClientHelper helper = clientHelper;
+        if (helper != null && helper.eventLoop.inEventLoop())
+            return true;
+
+        long deadline = System.nanoTime() + timeoutNanos;
+        synchronized (writabilityLock) {
+            while (!writable.get()) {
+                long remaining = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+
+                TimeUnit.NANOSECONDS.timedWait(writabilityLock, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(DEFAULT_THREAD_TIMEOUT)));
+            }
+        }
+        return true;
+    }
 
 
     /*
@@ -405,23 +1326,157 @@ public class PiClient implements PiClientCallbacks {
         System.out.print(error.getMessage());
     }
 
+    @Override
+    public void clientWritabilityChanged(PiClient piClient, boolean writable) {
+        System.out.println(writable ? "Send queue drained." : "Send queue is full.");
+    }
+
+
     /*
     Inner Class Helper
      */
 
-    private class PiClientHelper implements Runnable {
+    /**
+     * Handles a single connection to a PiServer. Every method except sendMessage(), close() and
+     * the getters runs on the eventLoop thread, which can be shared with many other connections.
+     */
+    private class PiClientHelper implements PiClientEventLoop.ChannelHandler {
 
         ///The socket that will be used to connect to the PiServer.
         private SocketChannel socket;
 
+        ///The event loop that runs this connection.
+        @NotNull
+        private final PiClientEventLoop eventLoop;
+
+        ///The key for the socket registered with the event loop selector.
+        @Nullable
+        private SelectionKey selectionKey;
+
+        ///Fails the connection if it isn't established within connectionTimeout.
+        @Nullable
+        private PiTimerWheel.Timeout connectionTimeoutTask;
+
+        ///Set once close() is called.
+        private volatile boolean closed;
+
+        ///Set when the connection is closed with PiClient.close(), so it isn't reconnected.
+        private volatile boolean closedByUser;
+
+        ///Set once the connection was lost and a reconnect is scheduled or given up on.
+        private boolean reconnectHandled;
+
+        ///The group registrations sent ahead of everything else after a reconnect.
+        ///They aren't carried over if this connection fails too, the next one makes its own.
+        private final List<PiMessage> rejoinMessages = new ArrayList<PiMessage>();
+
+        ///Set while a flush task is waiting to run on the event loop.
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+        ///Set while a dropOldestTask is waiting to run on the event loop.
+        private final AtomicBoolean dropOldestScheduled = new AtomicBoolean();
+
         ///The buffer to use for incoming data
-        private final ByteBuffer inBuffer;
+        private final PiReceiveBuffer receiveBuffer;
+
+        ///Shrinks the receiveBuffer after the connection goes quiet. Only scheduled while the buffer is bigger than its minimum.
+        @Nullable
+        private PiTimerWheel.Timeout receiveIdleTimeout;
+
+        ///Sends a heartbeat Ping once the connection has been quiet for the heartbeat interval.
+        @Nullable
+        private PiTimerWheel.Timeout heartbeatTimeout;
+
+        ///The last heartbeat Ping, until it is answered.
+        @Nullable
+        private PiMessage pendingHeartbeat;
+
+        ///The number of heartbeat intervals in a row without an answer or any other read.
+        private int missedHeartbeats;
+
+        ///The framing state for this connection.
+        private final PiServerManager serverManager = new PiServerManager(piParser);
+
+        ///Runs callbacks on the callbackExecutor, or null to run them on the event loop.
+        @Nullable
+        private final PiCallbackDispatcher callbackDispatcher;
+
+        ///Set while reading is stopped because the callbackDispatcher is full.
+        private boolean readPaused;
 
         ///The queue of messages for the PiClient to send to the server
-        private final ConcurrentLinkedQueue<PiMessage> messageQueue = new ConcurrentLinkedQueue<PiMessage>();
+        private final MpscLinkedArrayQueue<PiMessage> messageQueue = new MpscLinkedArrayQueue<PiMessage>();
+
+        ///Messages taken from the messageQueue that haven't been fully written yet. The first one may be partially written.
+        private final PiMessage[] writeBatch = new PiMessage[MAX_MESSAGES_PER_WRITE];
+
+        ///The buffers for the writeBatch messages
+        private final ByteBuffer[] writeBuffers = new ByteBuffer[MAX_MESSAGES_PER_WRITE];
+
+        ///The number of messages in the writeBatch
+        private int writeBatchSize;
+
+        ///The bytes of the first writeBatch message's file region already handed to the socket
+        private long fileBytesSent;
+
+        ///The sent messages waiting for a reply, keyed by message ID
+        private final IntObjectHashMap<PiMessage> sentMessages = new IntObjectHashMap<PiMessage>();
+
+        ///Expires sent messages that didn't get a reply in time. Shared by every message on the connection.
+        private final PiTimerWheel.TimerTask replyTimeoutTask = new PiTimerWheel.TimerTask() {
+            @Override
+            public void run(@NotNull PiTimerWheel.Timeout timeout) {
+                PiMessage message = (PiMessage)timeout.getAttachment();
+                message.setReplyTimeoutHandle(null);
+
+                if (sentMessages.get(message.getMessageId()) != message)
+                    return;
+
+                sentMessages.remove(message.getMessageId());
+                metrics.replyTimeouts.increment();
+                if (message.getMessageCallbacks() != null) {
+                    if (callbackDispatcher != null)
+                        callbackDispatcher.dispatch(message.getParserId(), new ReplyTimedOutCallback(message));
+                    else
+                        message.getMessageCallbacks().serverReplyTimedOut(message);
+                }
+            }
+        };
+
+        ///Starts reading again once the callbackDispatcher has room.
+        private final Runnable resumeReadingTask = new Runnable() {
+            @Override
+            public void run() {
+                if (!readPaused || closed)
+                    return;
 
-        ///The list that holds sent messages waiting for a reply
-        private final ArrayList<PiMessage> sentMessages = new ArrayList<PiMessage>();
+                readPaused = false;
+                readMessages();
+                updateInterestOps();
+            }
+        };
+
+        ///Writes queued messages on the event loop thread.
+        private final Runnable flushTask = new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled.set(false);
+                if (isConnected() && !closed) {
+                    writeMessages();
+                    updateInterestOps();
+                }
+            }
+        };
+
+        ///Drops the oldest queued messages for sendMessageDroppingOldest() on the event loop thread.
+        private final Runnable dropOldestTask = new Runnable() {
+            @Override
+            public void run() {
+                dropOldestScheduled.set(false);
+                if (!closed)
+                    dropOldestQueuedMessages();
+            }
+        };
 
         /*
         Constructors
@@ -432,33 +1487,55 @@ public class PiClient implements PiClientCallbacks {
          *
          * @param hostName      The IP address or host name to connect to.
          * @param port          The port number.
+         * @param eventLoop     The event loop that will run the connection.
          */
-        PiClientHelper(String hostName, int port) {
+        PiClientHelper(String hostName, int port, @NotNull PiClientEventLoop eventLoop) {
             PiClient.this.port = port;
             PiClient.this.hostName = hostName;
+            this.eventLoop = eventLoop;
 
-            inBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            receiveBuffer = new PiReceiveBuffer(minReceiveBufferSize, maxReceiveBufferSize);
 
-            //The client will connect to the server asynchronously when the run() method is called
+            serverManager.setMetrics(metrics);
+            piParser.setMetrics(metrics);
+
+            if (callbackExecutor != null) {
+                callbackDispatcher = new PiCallbackDispatcher(callbackExecutor, maxQueuedCallbacks);
+                callbackDispatcher.setDrainedListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        PiClientHelper.this.eventLoop.execute(resumeReadingTask);
+                    }
+                });
+                serverManager.setCallbackDispatcher(callbackDispatcher);
+            }else {
+                callbackDispatcher = null;
+            }
+
+            //The client will connect to the server asynchronously when the start() method is called
         }
 
 
         /*
-        Overridden Methods
+        ChannelHandler Methods
          */
-        @Override
-        public void run() {
-            //We have a valid hostName and port as far as we can tell
-            boolean connected = connectToPiServer(PiClient.this.hostName, PiClient.this.port);
 
-            if (connected) {
-                if (waitForConnectionToFinish()) {
-                    //The connection is established
-                    waitForData();
-                }
+
+        @Override
+        public void channelReady(@NotNull SelectionKey key) {
+            if (key.isConnectable()) {
+                finishConnecting();
+                return;
             }
-            //If we exit run(), the thread was interrupted or the socket threw an error.
 
+            if (key.isValid() && key.isWritable())
+                writeMessages();
+
+            if (key.isValid() && key.isReadable())
+                readMessages();
+
+            if (key.isValid())
+                updateInterestOps();
         }
 
 
@@ -467,6 +1544,29 @@ public class PiClient implements PiClientCallbacks {
          */
 
 
+        /**
+         * Look up the host on a resolver thread, then start connecting to the PiServer on the event loop.
+         * Addresses that don't need a DNS lookup are resolved on the event loop.
+         */
+        public void start() {
+            final String hostName = PiClient.this.hostName;
+            final int port = PiClient.this.port;
+
+            Runnable resolveTask = new Runnable() {
+                @Override
+                public void run() {
+                    if (!closed)
+                        resolveSocketAddress(hostName, port);
+                }
+            };
+
+            if (resolvesWithoutLookup(hostName))
+                eventLoop.execute(resolveTask);
+            else
+                PiClientEventLoopGroup.getResolver().execute(resolveTask);
+        }
+
+
         /*
         Getters and Setters
          */
@@ -508,12 +1608,27 @@ public class PiClient implements PiClientCallbacks {
          * @param message   The message to send to the server.
          */
         public void sendMessage(PiMessage message) {
-            if (clientHelperThread != null && clientHelperThread.isInterrupted()) {
+            if (closed) {
                 //We are closed
                 clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.DISCONNECTED_CLIENT);
+                messageDequeued(message);
+                notifyConnectionClosed(message);
                 return;
             }
-            messageQueue.add(message);
+            messageQueue.offer(message);
+
+            //Only one flush needs to be waiting on the event loop at a time
+            if (flushScheduled.compareAndSet(false, true))
+                eventLoop.execute(flushTask);
+        }
+
+        /**
+         * Drop the oldest queued messages on the event loop until the queued bytes are under the high watermark.
+         */
+        void scheduleDropOldest() {
+            //Only one task needs to be waiting on the event loop at a time
+            if (dropOldestScheduled.compareAndSet(false, true))
+                eventLoop.execute(dropOldestTask);
         }
 
 
@@ -523,21 +1638,12 @@ public class PiClient implements PiClientCallbacks {
 
 
         /**
-         * Connects to the PiServer on the given host and port. This method blocks the thread
+         * Starts connecting to the PiServer at the address. This method doesn't block,
+         * the event loop calls finishConnecting() when the socket is ready.
          *
-         * @param hostName  The The IP address or host name to connect to.
-         * @param port      The port number.
-         *
-         * @return  true if the connection was made, false if there was an error
+         * @param address   The resolved address to connect to.
          */
-        private boolean connectToPiServer(String hostName, int port) {
-            InetSocketAddress address = resolveSocketAddress(hostName, port);
-
-            if (address == null) {
-                //Error resolving the host, nothing else to do.
-                return false;
-            }
-
+        private void connectToPiServer(@NotNull InetSocketAddress address) {
             //Now connect it with the specified timeout
             try {
                 //
@@ -549,11 +1655,29 @@ public class PiClient implements PiClientCallbacks {
                 socket.configureBlocking(false);
 
                 //Connect
-                socket.connect(address);
+                clientCallbacks.clientTryingConnectionToHost(PiClient.this);
+                if (socket.connect(address)) {
+                    //Connected immediately
+                    selectionKey = eventLoop.register(socket, SelectionKey.OP_READ, this);
+                    connectionEstablished();
+                    return;
+                }
 
                 //The socket isn't actually connected until socket.finishConnect() returns true
-                //But we didn't have any errors so return true
-                return true;
+                selectionKey = eventLoop.register(socket, SelectionKey.OP_CONNECT, this);
+
+                if (connectionTimeout > 0) {
+                    connectionTimeoutTask = eventLoop.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!isConnected()) {
+                                closeOnEventLoop();
+                                clientCallbacks.clientConnectionTimedOut(PiClient.this);
+                            }
+                        }
+                    }, connectionTimeout);
+                }
+                return;
 
             } catch (SocketTimeoutException e) {
                 clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.CONNECTION_TIMEOUT);
@@ -569,141 +1693,728 @@ public class PiClient implements PiClientCallbacks {
                 clientCallbacks.clientRaisedError(PiClient.this, e);
             }
 
-            return false;
+            closeOnEventLoop();
         }
 
 
         /**
-         * Generates an InetSocketAddress from the hostName and port.
-         * If the method returns null, the clientCallbacks object will already
-         * have been notified of the specific error.
+         * Generates an InetSocketAddress from the hostName and port, then connects to it on the event loop.
+         * Runs on a resolver thread when the lookup could block. If there is a problem resolving the host,
+         * the clientCallbacks object is notified of the specific error from the event loop.
          *
          * @param hostName  The IP address or host name to connect to.
          * @param port      The port number.
-         *
-         * @return      A resolved InetSocketAddress, or null if there was a problem creating the socket address.
          */
-        @Nullable
-        private InetSocketAddress resolveSocketAddress(String hostName, int port) {
+        private void resolveSocketAddress(String hostName, int port) {
+            InetSocketAddress socketAddress = null;
+            ClientErrorCode error = null;
             try {
-                InetSocketAddress socketAddress = new InetSocketAddress(hostName, port);
+                socketAddress = new InetSocketAddress(hostName, port);
 
                 //Check if the hostname was resolved
                 if (socketAddress.isUnresolved()) {
                     //Couldn't find the host
-                    clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.INVALID_HOSTNAME);
-                }else {
-                    return socketAddress;
+                    error = ClientErrorCode.INVALID_HOSTNAME;
                 }
 
             } catch (SecurityException e) {
-                clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.SECURITY_EXCEPTION);
+                error = ClientErrorCode.SECURITY_EXCEPTION;
             } catch (Exception e) {
-                clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.UNKNOWN_CONNECTION_ERROR);
+                error = ClientErrorCode.UNKNOWN_CONNECTION_ERROR;
             }
 
-            //Something went wrong
-            return null;
+            final InetSocketAddress address = socketAddress;
+            final ClientErrorCode resolveError = error;
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (closed)
+                        return;
+
+                    if (resolveError != null) {
+                        //Close like any other failure so the reconnect policy can try again
+                        clientCallbacks.clientRaisedError(PiClient.this, resolveError);
+                        closeOnEventLoop();
+                    }else {
+                        connectToPiServer(address);
+                    }
+                }
+            });
         }
 
         /**
-         * This function blocks until either:
-         * - Thread.interrupted() returns true
-         * - The socket finishes establishing a connection
-         * - The socket throws an error while establishing a connection
-         *
-         * This should be called after socket.connect() has been called and socket is set to non-blocking.
-         *
-         * @return true if the socket is opened, false if there was an error waiting for the connection to establish.
+         * Called by the event loop when the socket is ready to finish connecting.
          */
-        private boolean waitForConnectionToFinish() {
-            if (socket == null || !socket.isConnectionPending()) {
-                //Socket isn't ready to connect
-                clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.SOCKET_CONFIGURATION_ERROR);
-                return false;
-            }
+        private void finishConnecting() {
+            ClientErrorCode error;
             try {
-                //Loop until connected or interrupted
-                while (!socket.finishConnect() && !Thread.interrupted());
+                if (socket.finishConnect())
+                    connectionEstablished();
+                return;
             } catch (ConnectException e) {
-                clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.CONNECTION_REFUSED);
+                error = ClientErrorCode.CONNECTION_REFUSED;
             } catch (Exception e) {
-                clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.UNKNOWN_CONNECTION_ERROR);
-                return false;
+                error = ClientErrorCode.UNKNOWN_CONNECTION_ERROR;
             }
 
-            return socket.isConnected();
+            //Close before the callback so the connection is cleaned up even if the callback throws
+            closeOnEventLoop();
+            clientCallbacks.clientRaisedError(PiClient.this, error);
         }
 
         /**
-         * Loop indefinitely while checking for data and sending messages to the PiServer.
-         * This method should only be called after the socket is connected.
-         */
-        private void waitForData() {
-            while (!Thread.interrupted() && isConnected()) {
-                if (messageQueue.size() > 0) {
-                    //Send the message
-                    PiMessage message = messageQueue.peek();
-
-                    ByteBuffer byteBuffer = message.getByteBuffer();
-
-                    if (byteBuffer == null) {
-                        //Error creating the ByteBuffer
-                        clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.UNABLE_TO_SEND_MESSAGE);
-                        //Remove the message
-                        messageQueue.remove();
-                    }else {
+         * Start reading from the socket and writing anything queued while we were connecting.
+         */
+        private void connectionEstablished() {
+            if (connectionTimeoutTask != null) {
+                connectionTimeoutTask.cancel();
+                connectionTimeoutTask = null;
+            }
+
+            reconnectAttempts.set(0);
+            scheduleHeartbeat();
+            clientCallbacks.clientConnectedToHost(PiClient.this);
+
+            writeMessages();
+            updateInterestOps();
+        }
+
+        /**
+         * Always wait for reads, only ask for OP_WRITE while there is something to write.
+         * Otherwise the selector would never sleep.
+         */
+        private void updateInterestOps() {
+            if (selectionKey == null || !selectionKey.isValid() || !isConnected())
+                return;
+
+            int interestOps = readPaused ? 0 : SelectionKey.OP_READ;
+            if (writeBatchSize > 0 || !messageQueue.isEmpty())
+                interestOps |= SelectionKey.OP_WRITE;
+
+            if (selectionKey.interestOps() != interestOps)
+                selectionKey.interestOps(interestOps);
+        }
+
+        /**
+         * Write queued messages until the queue is empty or the socket can't take any more data.
+         * Up to maxMessagesPerWrite messages are gathered into each write, and a partially written
+         * message stays at the front of the batch until the socket is writable again.
+         *
+         * Only the header of a message backed by a file is in its buffer. Each gathering write stops
+         * after that header, and the file region is then handed to the socket with transferTo().
+         */
+        private void writeMessages() {
+            while (true) {
+                fillWriteBatch();
+                if (writeBatchSize == 0)
+                    return;
+
+                //Don't write past a header whose file region hasn't been sent yet
+                int writeCount = writeBatchSize;
+                for (int i = 0; i < writeBatchSize; i++) {
+                    if (writeBatch[i].getFileChannel() != null) {
+                        writeCount = i + 1;
+                        break;
+                    }
+                }
+
+                long bytesWritten;
+                try {
+                    //Send every message in the batch with a single system call
+                    bytesWritten = socket.write(writeBuffers, 0, writeCount);
+                }catch (IOException e) {
+                    writeFailed();
+                    return;
+                }
+
+                //Move the fully written messages to sentMessages
+                long sentTime = System.nanoTime();
+                int written = 0;
+                boolean fileStalled = false;
+                while (written < writeBatchSize && !writeBuffers[written].hasRemaining()) {
+                    PiMessage message = writeBatch[written];
+
+                    if (message.getFileChannel() != null) {
                         try {
-                            //Send the message
-                            socket.write(byteBuffer);
-                            if (!byteBuffer.hasRemaining()) {
-                                //Remove it from the message queue, add to sentMessages.
-                                sentMessages.add(messageQueue.remove());
-                            }
+                            bytesWritten += transferFileRegion(message);
                         }catch (IOException e) {
-                            //Error sending the ByteBuffer
-                            clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.UNABLE_TO_SEND_MESSAGE);
-                            //Remove the message
-                            messageQueue.remove();
+                            metrics.bytesSent.add(bytesWritten);
+                            writeFailed();
+                            return;
                         }
+
+                        if (fileBytesSent < message.getFileLength()) {
+                            //The socket buffer is full
+                            fileStalled = true;
+                            break;
+                        }
+                        fileBytesSent = 0;
+                        sentTime = System.nanoTime();
+                    }
+
+                    eventLoop.getBufferPool().release(writeBuffers[written]);
+                    message.setSentTime(sentTime);
+                    if (message.getReplyFile() != null)
+                        message.resetReplyFile();
+                    messageDequeued(message);
+                    if (message.awaitsReply()) {
+                        sentMessages.put(message.getMessageId(), message);
+                        scheduleReplyTimeout(message);
                     }
+                    written++;
                 }
 
+                //Keep a partially written message at the front of the batch
+                int remaining = writeBatchSize - written;
+                System.arraycopy(writeBatch, written, writeBatch, 0, remaining);
+                System.arraycopy(writeBuffers, written, writeBuffers, 0, remaining);
+                for (int i = remaining; i < writeBatchSize; i++) {
+                    writeBatch[i] = null;
+                    writeBuffers[i] = null;
+                }
+                writeBatchSize = remaining;
+
+                metrics.bytesSent.add(bytesWritten);
+                metrics.framesSent.add(written);
+
+                if (fileStalled || (writeBatchSize > 0 && writeBuffers[0].hasRemaining())) {
+                    //The socket buffer is full, wait for the next OP_WRITE
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Hand as much of the message's file region to the socket as it takes.
+         *
+         * @return  The number of bytes sent.
+         */
+        private long transferFileRegion(@NotNull PiMessage message) throws IOException {
+            FileChannel fileChannel = message.getFileChannel();
+            long length = message.getFileLength();
+            long sent = 0;
+
+            while (fileBytesSent < length) {
+                long position = message.getFilePosition() + fileBytesSent;
+                long transferred = fileChannel.transferTo(position, length - fileBytesSent, socket);
+                if (transferred <= 0) {
+                    if (position >= fileChannel.size())
+                        throw new IOException("The file is shorter than the message.");
+                    break;
+                }
+
+                fileBytesSent += transferred;
+                sent += transferred;
+            }
+            return sent;
+        }
+
+        /**
+         * Report a failed write and keep the batch for the next connection, or drop it.
+         */
+        private void writeFailed() {
+            clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.UNABLE_TO_SEND_MESSAGE);
+            if (outbox != null || reconnectPolicy != null) {
+                //Keep the messages for the next connection
+                closeOnEventLoop();
+                return;
+            }
+            //Drop the batch
+            clearWriteBatch();
+        }
+
+        /**
+         * Remove the oldest message from the messageQueue. Messages already in the writeBatch are not removed.
+         * Must be called from the event loop, the messageQueue's only consumer.
+         *
+         * @return  The removed message, or null if the queue is empty.
+         */
+        @Nullable
+        private PiMessage pollQueuedMessage() {
+            return messageQueue.poll();
+        }
+
+        /**
+         * Drop the oldest messages that haven't started sending until the queued bytes are under the
+         * high watermark. The newest message is always kept, like sendMessageDroppingOldest() keeps
+         * the message it was given.
+         */
+        private void dropOldestQueuedMessages() {
+            while (pendingWriteBytes.get() > writeBufferHighWatermark && messageQueue.size() > 1) {
+                PiMessage oldest = pollQueuedMessage();
+                if (oldest == null)
+                    break; //A producer hasn't finished offering yet
+
+                dropMessage(oldest);
+            }
+        }
+
+        /**
+         * Move messages from the messageQueue into the write batch until it is full.
+         */
+        private void fillWriteBatch() {
+            int batchLimit = Math.min(writeBatch.length, Math.max(1, maxMessagesPerWrite));
+            if (writeBatchSize >= batchLimit)
+                return;
+
+            int drained = messageQueue.drainTo(writeBatch, writeBatchSize, batchLimit - writeBatchSize);
+
+            int end = writeBatchSize + drained;
+            for (int i = writeBatchSize; i < end; i++) {
+                PiMessage message = writeBatch[i];
+                writeBatch[i] = null;
+
+                //IDs wrap around, so don't reuse one that is still waiting for a reply.
+                //Chunks keep the ID of their stream.
+                PiMessage inFlight;
+                while (!message.isChunk() && (inFlight = sentMessages.get(message.getMessageId())) != null && inFlight != message) {
+                    message.reassignMessageId();
+                }
+
+                //Encode the message straight into a pooled buffer. A file region is sent after its header.
+                boolean fileMessage = message.getFileChannel() != null;
+                ByteBuffer byteBuffer = eventLoop.getBufferPool().acquire(fileMessage ? message.headerSize() : message.serializedSize());
                 try {
-                    if (socket.read(inBuffer) > 0) {
-                        inBuffer.flip();
+                    if (fileMessage)
+                        message.writeHeaderToByteBuffer(byteBuffer);
+                    else
+                        message.writeToByteBuffer(byteBuffer);
+                    byteBuffer.flip();
+                }catch (Exception e) {
+                    //Error encoding the message
+                    eventLoop.getBufferPool().release(byteBuffer);
+                    messageDequeued(message);
+                    clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.UNABLE_TO_SEND_MESSAGE);
+                    continue;
+                }
 
-                        while (inBuffer.remaining() > 0) {
-                            boolean status = serverManager.serverSentMessage(inBuffer, sentMessages);
+                writeBatch[writeBatchSize] = message;
+                writeBuffers[writeBatchSize] = byteBuffer;
+                writeBatchSize++;
+            }
+        }
 
-                            if (!status) {
-                                clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.UNABLE_TO_READ_MESSAGE);
-                            }
-                        }
-                        inBuffer.clear();
-                    }
-                } catch (IOException e) {
-                    System.err.println("Error reading data...");
+        /**
+         * Drop every message in the write batch.
+         */
+        private void clearWriteBatch() {
+            for (int i = 0; i < writeBatchSize; i++) {
+                eventLoop.getBufferPool().release(writeBuffers[i]);
+                messageDequeued(writeBatch[i]);
+                writeBatch[i] = null;
+                writeBuffers[i] = null;
+            }
+            writeBatchSize = 0;
+            fileBytesSent = 0;
+        }
+
+        /**
+         * Start the reply timeout for a message that was just sent.
+         *
+         * @param message   The sent message.
+         */
+        private void scheduleReplyTimeout(@NotNull PiMessage message) {
+            int replyTimeout = message.getReplyTimeout();
+            if (replyTimeout == PiMessage.DEFAULT_REPLY_TIMEOUT)
+                replyTimeout = defaultReplyTimeout;
+
+            if (replyTimeout > 0)
+                message.setReplyTimeoutHandle(eventLoop.schedule(replyTimeoutTask, message, replyTimeout));
+        }
+
+        /**
+         * Check the connection again after the heartbeat interval, if heartbeats are on.
+         */
+        private void scheduleHeartbeat() {
+            int interval = heartbeatInterval;
+            if (interval > 0 && !closed)
+                heartbeatTimeout = eventLoop.schedule(heartbeatTask, interval);
+        }
+
+        ///Pings the server if nothing was read during the last heartbeat interval, and closes the connection if it stopped answering.
+        private final Runnable heartbeatTask = new Runnable() {
+            @Override
+            public void run() {
+                heartbeatTimeout = null;
+                if (closed)
+                    return;
+
+                int interval = heartbeatInterval;
+                if (interval <= 0)
+                    return;
+
+                if (!receiveBuffer.isIdle(interval)) {
+                    //Anything read from the server shows the link is alive
+                    missedHeartbeats = 0;
+                }else if (pendingHeartbeat != null && ++missedHeartbeats >= maxMissedHeartbeats) {
+                    closeOnEventLoop();
+                    clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.HEARTBEAT_TIMEOUT);
+                    clientCallbacks.clientDisconnectedFromHost(PiClient.this);
+                    return;
+                }else {
+                    sendHeartbeat(interval);
+                }
+
+                scheduleHeartbeat();
+            }
+        };
+
+        /**
+         * Send a Ping that isn't counted against the send queue.
+         */
+        private void sendHeartbeat(int interval) {
+            PiMessage ping = new PiMessage(Constants.ServerDefaultParserId.PING_ID.getId(),
+                    new Ping((int) (System.currentTimeMillis() / 1000), null));
+            ping.setMessageCallbacks(new HeartbeatCallbacks(this));
+
+            //Forget it once it can't count as a missed heartbeat anymore
+            ping.setReplyTimeout(interval * (maxMissedHeartbeats + 1));
+
+            pendingHeartbeat = ping;
+            sendMessage(ping);
+        }
+
+        /**
+         * Record the round trip time of an answered heartbeat. Must be called from the event loop.
+         */
+        private void heartbeatAnswered(@NotNull PiMessage ping, long replyTime) {
+            long sentTime = ping.getSentTime();
+            if (sentTime != 0)
+                rttEstimator.addSample(replyTime - sentTime);
+
+            missedHeartbeats = 0;
+            if (pendingHeartbeat == ping)
+                pendingHeartbeat = null;
+        }
+
+        ///Shrinks the receiveBuffer if there hasn't been a read since the timeout was scheduled.
+        private final Runnable receiveIdleTask = new Runnable() {
+            @Override
+            public void run() {
+                receiveIdleTimeout = null;
+                if (closed)
+                    return;
+
+                if (receiveBuffer.isIdle(RECEIVE_BUFFER_IDLE_TIMEOUT))
+                    receiveBuffer.shrinkToMinimum();
+                else
+                    scheduleReceiveIdleTimeout();
+            }
+        };
+
+        /**
+         * Read everything available from the socket and pass it to the serverManager.
+         * A frame that is split between reads stays in the receiveBuffer until the rest of it arrives.
+         * Reading stops while the callbackDispatcher is full.
+         */
+        private void readMessages() {
+            try {
+                //Finish any frames left over from when reading was paused
+                if (!processReceivedData())
+                    return;
+
+                int bytesRead = 0;
+                while (!closed && (bytesRead = receiveBuffer.read(socket)) > 0) {
+                    metrics.bytesReceived.add(bytesRead);
+                    if (!processReceivedData())
+                        return;
                 }
+
+                if (bytesRead < 0) {
+                    //The server closed the connection
+                    closeOnEventLoop();
+                    clientCallbacks.clientDisconnectedFromHost(PiClient.this);
+                }else if (receiveBuffer.capacity() > receiveBuffer.getMinSize()) {
+                    scheduleReceiveIdleTimeout();
+                }
+            } catch (IOException e) {
+                //The connection is broken
+                closeOnEventLoop();
+                clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.UNABLE_TO_READ_MESSAGE);
+                clientCallbacks.clientDisconnectedFromHost(PiClient.this);
             }
         }
 
+        /**
+         * Pass the frames in the receiveBuffer to the serverManager.
+         *
+         * @return  false if reading was paused because the callbackDispatcher is full.
+         */
+        private boolean processReceivedData() {
+            ByteBuffer inBuffer = receiveBuffer.flip();
+
+            while (inBuffer.remaining() > 0 && !closed) {
+                if (callbackDispatcher != null && callbackDispatcher.isFull()) {
+                    //Leave the rest in the buffer until the callbacks catch up
+                    readPaused = true;
+                    break;
+                }
+
+                boolean status = serverManager.serverSentMessage(inBuffer, sentMessages, receiveBuffer.getMaxSize());
+
+                if (!status) {
+                    clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.UNABLE_TO_READ_MESSAGE);
+                }
+
+                if (serverManager.getRetainedFrameSize() > 0)
+                    break; //Wait for the rest of the frame
+            }
 
-        private void close() {
-            if (isConnected() && socket != null) {
+            receiveBuffer.compact(serverManager.getRetainedFrameSize());
+
+            if (callbackDispatcher != null && callbackDispatcher.isFull())
+                readPaused = true;
+
+            return !readPaused;
+        }
+
+        private void scheduleReceiveIdleTimeout() {
+            if (receiveIdleTimeout == null && !closed)
+                receiveIdleTimeout = eventLoop.schedule(receiveIdleTask, RECEIVE_BUFFER_IDLE_TIMEOUT);
+        }
+
+
+        /**
+         * Close the connection on the event loop and wait for it to finish.
+         *
+         * @param timeout   The number of milliseconds to wait for the event loop.
+         *
+         * @throws InterruptedException If the thread is interrupted while waiting.
+         */
+        private void close(long timeout) throws InterruptedException {
+            closed = true;
+
+            final CountDownLatch closedLatch = new CountDownLatch(1);
+            eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    closeOnEventLoop();
+                    closedLatch.countDown();
+                }
+            });
+
+            closedLatch.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Close the socket and drop the connection state. Must be called from the event loop.
+         */
+        private void closeOnEventLoop() {
+            closed = true;
+
+            if (connectionTimeoutTask != null) {
+                connectionTimeoutTask.cancel();
+                connectionTimeoutTask = null;
+            }
+
+            if (receiveIdleTimeout != null) {
+                receiveIdleTimeout.cancel();
+                receiveIdleTimeout = null;
+            }
+
+            if (heartbeatTimeout != null) {
+                heartbeatTimeout.cancel();
+                heartbeatTimeout = null;
+            }
+
+            if (selectionKey != null) {
+                selectionKey.cancel();
+                selectionKey = null;
+            }
+
+            if (socket != null && socket.isOpen()) {
                 try {
                     socket.close();
                 }catch (Exception e) {
                     System.err.print("Error closing socket: " + e.getMessage());
                 }
+            }
+
+            List<PiMessage> unanswered = sentMessages.values();
+            for (PiMessage message : unanswered) {
+                message.cancelReplyTimeout();
+            }
+            sentMessages.clear();
+
+            List<PiMessage> unwritten = new ArrayList<PiMessage>();
+            for (int i = 0; i < writeBatchSize; i++) {
+                eventLoop.getBufferPool().release(writeBuffers[i]);
+                unwritten.add(writeBatch[i]);
+                writeBatch[i] = null;
+                writeBuffers[i] = null;
+            }
+            writeBatchSize = 0;
+            fileBytesSent = 0;
 
+            PiMessage message;
+            while ((message = pollQueuedMessage()) != null) {
+                unwritten.add(message);
+            }
 
-                messageQueue.clear();
-                sentMessages.clear();
+            PiReconnectPolicy policy = reconnectPolicy;
+            if (policy != null && !closedByUser) {
+                //Send everything again on the next connection, starting with the oldest unanswered messages
+                Collections.sort(unanswered, MESSAGE_ID_ORDER);
+                List<PiMessage> requeued = new ArrayList<PiMessage>();
+                for (PiMessage unansweredMessage : unanswered) {
+                    if (!isConnectionMessage(unansweredMessage)) {
+                        countQueuedMessage(unansweredMessage);
+                        requeued.add(unansweredMessage);
+                    }else if (unansweredMessage.isChunk()) {
+                        notifyConnectionClosed(unansweredMessage);
+                    }
+                }
+                for (PiMessage unwrittenMessage : unwritten) {
+                    if (isConnectionMessage(unwrittenMessage)) {
+                        messageDequeued(unwrittenMessage);
+                        if (unwrittenMessage.isChunk())
+                            notifyConnectionClosed(unwrittenMessage);
+                    }else {
+                        requeued.add(unwrittenMessage);
+                    }
+                }
+                requeueMessages(requeued);
 
-                serverManager = new PiServerManager(piParser);
-                //The main thread should now be able to call join()
+                scheduleReconnect(policy);
+                return;
             }
+
+            //Messages in the outbox that weren't fully written are kept for the next connection
+            List<PiMessage> requeued = new ArrayList<PiMessage>();
+            for (PiMessage unwrittenMessage : unwritten) {
+                if (unwrittenMessage.getOutboxPosition() >= 0) {
+                    requeued.add(unwrittenMessage);
+                }else {
+                    messageDequeued(unwrittenMessage);
+                    unanswered.add(unwrittenMessage);
+                }
+            }
+            requeueMessages(requeued);
+
+            for (PiMessage unansweredMessage : unanswered) {
+                notifyConnectionClosed(unansweredMessage);
+            }
+        }
+
+        /**
+         * @return  true if the message belongs to this connection and shouldn't be carried over to the next one.
+         */
+        private boolean isConnectionMessage(@NotNull PiMessage message) {
+            if (message.isChunk() || message.getMessageCallbacks() instanceof HeartbeatCallbacks)
+                return true;
+
+            for (PiMessage rejoinMessage : rejoinMessages) {
+                if (rejoinMessage == message)
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Wait as long as the policy says and then replace this helper with a new connection.
+         */
+        private void scheduleReconnect(@NotNull PiReconnectPolicy policy) {
+            if (reconnectHandled)
+                return;
+            reconnectHandled = true;
+
+            long delay = policy.getDelay(reconnectAttempts.getAndIncrement());
+            if (delay < 0) {
+                //The messages stay queued for the next call to connectToPiServer()
+                clientCallbacks.clientRaisedError(PiClient.this, ClientErrorCode.RECONNECT_FAILED);
+                return;
+            }
+
+            eventLoop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reconnect(PiClientHelper.this);
+                }
+            }, delay);
+        }
+
+        /**
+         * Tell the message's callbacks that it won't get a reply.
+         */
+        private void notifyConnectionClosed(@NotNull final PiMessage message) {
+            if (message.getMessageCallbacks() == null)
+                return;
+
+            if (callbackDispatcher != null) {
+                callbackDispatcher.dispatch(message.getParserId(), new Runnable() {
+                    @Override
+                    public void run() {
+                        message.getMessageCallbacks().connectionClosedBeforeReply(message);
+                    }
+                });
+            }else {
+                message.getMessageCallbacks().connectionClosedBeforeReply(message);
+            }
+        }
+    }
+
+
+    /**
+     * Answers to heartbeat Pings. Any answer counts, even a parse error, since it shows the server is alive.
+     */
+    private static class HeartbeatCallbacks extends PiMessageCallbacks {
+        ///The connection that sent the Ping
+        private final PiClientHelper helper;
+
+        HeartbeatCallbacks(@NotNull PiClientHelper helper) {
+            this.helper = helper;
+        }
+
+        private void answered(final PiMessage ping) {
+            final long replyTime = System.nanoTime();
+            helper.eventLoop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    helper.heartbeatAnswered(ping, replyTime);
+                }
+            });
+        }
+
+        @Override
+        public void serverReturnedData(byte[] data, PiMessage message) {
+            answered(message);
+        }
+
+        @Override
+        public void serverReturnedData(@NotNull ByteBuffer data, PiMessage message) {
+            answered(message);
+        }
+
+        @Override
+        public void serverRepliedWithMessage(Message response, PiMessage sentMessage) {
+            answered(sentMessage);
+        }
+
+        @Override
+        public void serverSuccessfullyParsedMessage(PiMessage message) {
+            answered(message);
+        }
+
+        @Override
+        public void serverReturnedErrorForMessage(ParseError parseError, PiMessage message) {
+            answered(message);
+        }
+    }
+
+    /**
+     * Calls serverReplyTimedOut for a message on the callback executor.
+     */
+    private static class ReplyTimedOutCallback implements Runnable {
+        @NotNull
+        private final PiMessage message;
+
+        ReplyTimedOutCallback(@NotNull PiMessage message) {
+            this.message = message;
+        }
+
+        @Override
+        public void run() {
+            message.getMessageCallbacks().serverReplyTimedOut(message);
         }
     }
 }
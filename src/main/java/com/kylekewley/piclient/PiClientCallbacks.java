@@ -14,7 +14,9 @@ public interface PiClientCallbacks {
         CONNECTION_REFUSED ("Error: Unable to connect. Please check that the server is running on the specified port and IP address."),
         UNABLE_TO_SEND_MESSAGE ("Error: The PiClient was unable to send the message."),
         SOCKET_CONFIGURATION_ERROR ("Error: The socket is not configured properly and cannot connect to the server."),
-        UNABLE_TO_READ_MESSAGE ("Error: Unable to read the message from the server.");
+        UNABLE_TO_READ_MESSAGE ("Error: Unable to read the message from the server."),
+        RECONNECT_FAILED ("Error: The PiClient gave up trying to reconnect to the PiServer."),
+        HEARTBEAT_TIMEOUT ("Error: The PiServer stopped answering heartbeats and the connection was closed.");
 
         private final String errorMessage;
 
@@ -78,4 +80,15 @@ public interface PiClientCallbacks {
      * @param error         The Exception that was raised.
      */
     void clientRaisedError(PiClient piClient, Exception error);
+
+
+    /**
+     * Called when the bytes waiting in the send queue go over the high watermark, and again
+     * when they fall back to the low watermark. Becoming unwritable is reported on the thread that
+     * sent the message, becoming writable again is reported on the event loop thread.
+     *
+     * @param piClient  The client whose send queue changed.
+     * @param writable  true if the queue is back under the low watermark, false if it is over the high watermark.
+     */
+    void clientWritabilityChanged(PiClient piClient, boolean writable);
 }
@@ -0,0 +1,261 @@
+package com.kylekewley.piclient;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * A single I/O thread that owns one Selector and serves any number of PiClient connections.
+ * Connections register their SocketChannel with the loop and are called back on the loop
+ * thread when the channel is ready. Work from other threads is handed to the loop with execute(),
+ * which wakes the Selector up.
+ *
+ * All connection state is only touched from the loop thread, so the connections don't need any locking.
+ */
+public class PiClientEventLoop implements Runnable {
+
+    /**
+     * Implemented by anything registered with the event loop's Selector.
+     * The handler is stored as the SelectionKey attachment.
+     */
+    interface ChannelHandler {
+
+        /**
+         * Called on the loop thread when the channel is ready for one of its interest ops.
+         *
+         * @param key   The selected key for the channel.
+         */
+        void channelReady(@NotNull SelectionKey key);
+    }
+
+    /*
+    Instance Variables
+     */
+
+    ///The selector used by every connection on this loop
+    @NotNull
+    private final Selector selector;
+
+    ///The thread running the loop
+    @NotNull
+    private final Thread thread;
+
+    ///Tasks handed to the loop from other threads
+    private final ConcurrentLinkedQueue<Runnable> taskQueue = new ConcurrentLinkedQueue<Runnable>();
+
+    ///Connection and reply timeouts. Only touched from the loop thread.
+    private final PiTimerWheel timerWheel = new PiTimerWheel();
+
+    ///Buffers for outgoing messages. Only touched from the loop thread.
+    private final ByteBufferPool bufferPool = new ByteBufferPool();
+
+    ///Set by shutdown()
+    private volatile boolean shutdown;
+
+
+    /**
+     * Create and start a new event loop.
+     *
+     * @param threadName    The name of the loop thread.
+     *
+     * @throws IOException  If the Selector can't be opened.
+     */
+    public PiClientEventLoop(@NotNull String threadName) throws IOException {
+        selector = Selector.open();
+
+        thread = new Thread(this, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /*
+    Public Methods
+     */
+
+
+    /**
+     * Run the task on the loop thread as soon as possible.
+     * The task is run directly if this is called from the loop thread.
+     *
+     * @param task  The task to run.
+     */
+    public void execute(@NotNull Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+        }else {
+            taskQueue.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * @return  true if the calling thread is the loop thread.
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Stop the loop thread. Channels still registered with the loop are left open.
+     */
+    public void shutdown() {
+        shutdown = true;
+        selector.wakeup();
+    }
+
+
+    /*
+    Package Methods
+     */
+
+
+    /**
+     * Register a channel with the loop's selector. Must be called from the loop thread.
+     *
+     * @param channel   The non-blocking channel to register.
+     * @param ops       The initial interest ops.
+     * @param handler   The handler to call when the channel is ready.
+     *
+     * @return  The SelectionKey for the channel.
+     *
+     * @throws ClosedChannelException   If the channel is closed.
+     */
+    @NotNull
+    SelectionKey register(@NotNull SelectableChannel channel, int ops, @NotNull ChannelHandler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * @return  The pool of buffers for outgoing messages. Must only be used from the loop thread.
+     */
+    @NotNull
+    ByteBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Run the task on the loop thread after the delay. Must be called from the loop thread.
+     *
+     * @param task          The task to run.
+     * @param delayMillis   The number of milliseconds to wait before running the task.
+     *
+     * @return  The Timeout that can be used to cancel the task.
+     */
+    @NotNull
+    PiTimerWheel.Timeout schedule(@NotNull final Runnable task, long delayMillis) {
+        return timerWheel.schedule(new PiTimerWheel.TimerTask() {
+            @Override
+            public void run(@NotNull PiTimerWheel.Timeout timeout) {
+                task.run();
+            }
+        }, null, delayMillis);
+    }
+
+    /**
+     * Run the task on the loop thread after the delay. Must be called from the loop thread.
+     * One task can be shared by many timeouts, the attachment tells them apart.
+     *
+     * @param task          The task to run.
+     * @param attachment    The object handed to the task through Timeout.getAttachment().
+     * @param delayMillis   The number of milliseconds to wait before running the task.
+     *
+     * @return  The Timeout that can be used to cancel the task.
+     */
+    @NotNull
+    PiTimerWheel.Timeout schedule(@NotNull PiTimerWheel.TimerTask task, @Nullable Object attachment, long delayMillis) {
+        return timerWheel.schedule(task, attachment, delayMillis);
+    }
+
+
+    /*
+    Runnable
+     */
+
+
+    @Override
+    public void run() {
+        while (!shutdown) {
+            try {
+                long timeout = timerWheel.expireTimeouts();
+
+                if (taskQueue.isEmpty()) {
+                    if (timeout < 0)
+                        selector.select();
+                    else
+                        selector.select(timeout);
+                }else {
+                    selector.selectNow();
+                }
+            } catch (IOException e) {
+                System.err.println("Error selecting: " + e.getMessage());
+            }
+
+            processSelectedKeys();
+            runTasks();
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing selector: " + e.getMessage());
+        }
+    }
+
+
+    /*
+    Private Methods
+     */
+
+
+    /**
+     * Call the handler for every selected key.
+     */
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+            SelectionKey key = iterator.next();
+            iterator.remove();
+
+            if (!key.isValid())
+                continue;
+
+            try {
+                ((ChannelHandler)key.attachment()).channelReady(key);
+            }catch (Exception e) {
+                //One broken connection shouldn't stop the others
+                System.err.println("Error handling channel: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Run every task handed to the loop from other threads.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = taskQueue.poll()) != null) {
+            runTask(task);
+        }
+    }
+
+    private void runTask(@Nullable Runnable task) {
+        if (task == null)
+            return;
+
+        try {
+            task.run();
+        }catch (Exception e) {
+            System.err.println("Error running event loop task: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.kylekewley.piclient;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * A fixed group of PiClientEventLoops. Each new connection is handed to the next loop in the group,
+ * so the number of I/O threads stays the same no matter how many PiServers the app talks to.
+ *
+ * Every PiClient uses the default group unless it is given a different one.
+ *
+ * Host names are looked up on a small pool of resolver threads shared by every group, because a
+ * DNS lookup blocks and a slow one would hold up every connection on the loop.
+ */
+public class PiClientEventLoopGroup {
+
+    ///Lazily creates the default group the first time it is used
+    private static final class DefaultGroupHolder {
+        private static final PiClientEventLoopGroup DEFAULT_GROUP =
+                new PiClientEventLoopGroup(Runtime.getRuntime().availableProcessors());
+    }
+
+    ///The most host name lookups that can run at the same time
+    static final int RESOLVER_THREADS = 4;
+
+    ///How long an idle resolver thread is kept, in seconds
+    private static final long RESOLVER_KEEP_ALIVE = 60;
+
+    ///Lazily creates the resolver pool the first time a host name is looked up
+    private static final class ResolverHolder {
+        private static final Executor RESOLVER = createResolver();
+    }
+
+    ///Used to give each loop thread a unique name
+    private static final AtomicInteger groupCount = new AtomicInteger();
+
+    ///The loops in the group
+    @NotNull
+    private final PiClientEventLoop[] eventLoops;
+
+    ///The index used to pick the next loop
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+
+    /**
+     * @return  The group shared by every PiClient that wasn't given its own group.
+     * It has one loop per available processor.
+     */
+    @NotNull
+    public static PiClientEventLoopGroup getDefault() {
+        return DefaultGroupHolder.DEFAULT_GROUP;
+    }
+
+
+    /**
+     * @return  The executor that host name lookups run on, so they never block an event loop.
+     */
+    @NotNull
+    static Executor getResolver() {
+        return ResolverHolder.RESOLVER;
+    }
+
+    @NotNull
+    private static Executor createResolver() {
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor resolver = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS,
+                RESOLVER_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NotNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "PiClientResolver-" + threadCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        resolver.allowCoreThreadTimeOut(true);
+        return resolver;
+    }
+
+
+    /**
+     * Create and start a group with the given number of loops.
+     *
+     * @param loopCount The number of I/O threads in the group.
+     *
+     * @throws IllegalArgumentException If loopCount is less than one.
+     * @throws IllegalStateException    If a Selector can't be opened.
+     */
+    public PiClientEventLoopGroup(int loopCount) {
+        if (loopCount < 1)
+            throw new IllegalArgumentException("An event loop group needs at least one loop.");
+
+        int groupNumber = groupCount.getAndIncrement();
+
+        eventLoops = new PiClientEventLoop[loopCount];
+        try {
+            for (int i = 0; i < loopCount; i++) {
+                eventLoops[i] = new PiClientEventLoop("PiClientEventLoop-" + groupNumber + "-" + i);
+            }
+        }catch (IOException e) {
+            shutdown();
+            throw new IllegalStateException("Unable to open a selector for the event loop.", e);
+        }
+    }
+
+
+    /**
+     * @return  The loop that should handle the next connection.
+     */
+    @NotNull
+    public PiClientEventLoop next() {
+        int index = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % eventLoops.length;
+        return eventLoops[index];
+    }
+
+    /**
+     * @return  The number of loops in the group.
+     */
+    public int size() {
+        return eventLoops.length;
+    }
+
+    /**
+     * Stop every loop in the group. The default group should never be shut down.
+     */
+    public void shutdown() {
+        for (PiClientEventLoop eventLoop : eventLoops) {
+            if (eventLoop != null)
+                eventLoop.shutdown();
+        }
+    }
+}
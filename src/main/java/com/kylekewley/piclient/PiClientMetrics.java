@@ -0,0 +1,214 @@
+package com.kylekewley.piclient;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * The counters, gauges and latency histogram for one PiClient, read with PiClient.getMetrics().
+ *
+ * Counters only go up for the life of the client, across reconnects. Gauges are read when a
+ * snapshot is taken. Everything is updated on the connection's event loop or by lock free adds,
+ * so keeping the metrics costs a few nanoseconds per frame.
+ */
+public class PiClientMetrics {
+
+    /**
+     * The sizes of the client's queues, read when a snapshot is taken.
+     */
+    interface Gauges {
+        ///The messages handed to sendMessage() that the event loop hasn't taken yet
+        int getMessageQueueSize();
+
+        ///The messages written to the server that are waiting for a reply
+        int getAwaitingReplyCount();
+
+        ///The messages kept while the client isn't connected
+        int getBackupQueueSize();
+
+        ///The bytes in messages that are queued but not written yet
+        long getPendingWriteBytes();
+    }
+
+    /**
+     * The metrics at one moment.
+     */
+    public static class Snapshot {
+        public final long bytesSent;
+        public final long framesSent;
+        public final long bytesReceived;
+        public final long framesReceived;
+        public final long headerDecodeErrors;
+        public final long replyDecodeErrors;
+        public final long unhandledMessages;
+        public final long parserExceptions;
+        public final long replyTimeouts;
+        public final long messagesDropped;
+        public final long compressedMessages;
+        public final long compressionSavedBytes;
+        public final long decompressionErrors;
+
+        public final int messageQueueSize;
+        public final int awaitingReplyCount;
+        public final int backupQueueSize;
+        public final long pendingWriteBytes;
+
+        ///The time from writing a request to reading its reply, in nanoseconds
+        @NotNull
+        public final PiLatencyHistogram.Snapshot requestLatency;
+
+        Snapshot(@NotNull PiClientMetrics metrics, @NotNull Gauges gauges) {
+            bytesSent = metrics.bytesSent.sum();
+            framesSent = metrics.framesSent.sum();
+            bytesReceived = metrics.bytesReceived.sum();
+            framesReceived = metrics.framesReceived.sum();
+            headerDecodeErrors = metrics.headerDecodeErrors.sum();
+            replyDecodeErrors = metrics.replyDecodeErrors.sum();
+            unhandledMessages = metrics.unhandledMessages.sum();
+            parserExceptions = metrics.parserExceptions.sum();
+            replyTimeouts = metrics.replyTimeouts.sum();
+            messagesDropped = metrics.messagesDropped.sum();
+            compressedMessages = metrics.compressedMessages.sum();
+            compressionSavedBytes = metrics.compressionSavedBytes.sum();
+            decompressionErrors = metrics.decompressionErrors.sum();
+
+            messageQueueSize = gauges.getMessageQueueSize();
+            awaitingReplyCount = gauges.getAwaitingReplyCount();
+            backupQueueSize = gauges.getBackupQueueSize();
+            pendingWriteBytes = gauges.getPendingWriteBytes();
+
+            requestLatency = metrics.requestLatency.snapshot();
+        }
+
+        /**
+         * @return  Every number by name, in a fixed order, for exporting to a monitoring system.
+         *          Latencies are in nanoseconds.
+         */
+        @NotNull
+        public Map<String, Long> toMap() {
+            Map<String, Long> map = new LinkedHashMap<String, Long>();
+            map.put("bytesSent", bytesSent);
+            map.put("framesSent", framesSent);
+            map.put("bytesReceived", bytesReceived);
+            map.put("framesReceived", framesReceived);
+            map.put("headerDecodeErrors", headerDecodeErrors);
+            map.put("replyDecodeErrors", replyDecodeErrors);
+            map.put("unhandledMessages", unhandledMessages);
+            map.put("parserExceptions", parserExceptions);
+            map.put("replyTimeouts", replyTimeouts);
+            map.put("messagesDropped", messagesDropped);
+            map.put("compressedMessages", compressedMessages);
+            map.put("compressionSavedBytes", compressionSavedBytes);
+            map.put("decompressionErrors", decompressionErrors);
+            map.put("messageQueueSize", (long) messageQueueSize);
+            map.put("awaitingReplyCount", (long) awaitingReplyCount);
+            map.put("backupQueueSize", (long) backupQueueSize);
+            map.put("pendingWriteBytes", pendingWriteBytes);
+            map.put("requestLatencyCount", requestLatency.getCount());
+            map.put("requestLatencyMean", (long) requestLatency.getMean());
+            map.put("requestLatencyP50", requestLatency.getValueAtPercentile(50));
+            map.put("requestLatencyP99", requestLatency.getValueAtPercentile(99));
+            map.put("requestLatencyP999", requestLatency.getValueAtPercentile(99.9));
+            map.put("requestLatencyMax", requestLatency.getMax());
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            return toMap().toString();
+        }
+    }
+
+
+    /*
+    Metrics
+     */
+
+    ///Bytes and frames written to the socket
+    final PiStripedCounter bytesSent = new PiStripedCounter();
+    final PiStripedCounter framesSent = new PiStripedCounter();
+
+    ///Bytes read from the socket and frames read out of them
+    final PiStripedCounter bytesReceived = new PiStripedCounter();
+    final PiStripedCounter framesReceived = new PiStripedCounter();
+
+    ///Frames whose PiHeader couldn't be read
+    final PiStripedCounter headerDecodeErrors = new PiStripedCounter();
+
+    ///Replies that couldn't be parsed as the message class or ParseError they should be
+    final PiStripedCounter replyDecodeErrors = new PiStripedCounter();
+
+    ///Messages from the server without a registered parser for their ID
+    final PiStripedCounter unhandledMessages = new PiStripedCounter();
+
+    ///Exceptions thrown by registered parsers
+    final PiStripedCounter parserExceptions = new PiStripedCounter();
+
+    ///Requests that weren't answered before their reply timeout
+    final PiStripedCounter replyTimeouts = new PiStripedCounter();
+
+    ///Messages dropped from a full send queue
+    final PiStripedCounter messagesDropped = new PiStripedCounter();
+
+    ///Sent messages that were compressed, and the bytes compressing them saved
+    final PiStripedCounter compressedMessages = new PiStripedCounter();
+    final PiStripedCounter compressionSavedBytes = new PiStripedCounter();
+
+    ///Compressed frames from the server that couldn't be decompressed
+    final PiStripedCounter decompressionErrors = new PiStripedCounter();
+
+    ///The time from writing a request to reading its reply
+    final PiLatencyHistogram requestLatency = new PiLatencyHistogram();
+
+    @NotNull
+    private final Gauges gauges;
+
+
+    PiClientMetrics(@NotNull Gauges gauges) {
+        this.gauges = gauges;
+    }
+
+    /**
+     * Metrics without gauges, for a PiServerManager or PiParser used on its own.
+     */
+    public PiClientMetrics() {
+        this(new Gauges() {
+            @Override
+            public int getMessageQueueSize() {
+                return 0;
+            }
+
+            @Override
+            public int getAwaitingReplyCount() {
+                return 0;
+            }
+
+            @Override
+            public int getBackupQueueSize() {
+                return 0;
+            }
+
+            @Override
+            public long getPendingWriteBytes() {
+                return 0;
+            }
+        });
+    }
+
+
+    /*
+    Public Methods
+     */
+
+
+    /**
+     * @return  The current value of every metric.
+     */
+    @NotNull
+    public Snapshot snapshot() {
+        return new Snapshot(this, gauges);
+    }
+}
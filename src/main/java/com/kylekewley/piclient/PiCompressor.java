@@ -0,0 +1,197 @@
+package com.kylekewley.piclient;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * Compresses PiMessage payloads for messages sent with the HEADER_FLAG_COMPRESSED flag.
+ *
+ * A compressed payload is the uncompressed length as a 4 byte big endian int, followed by a raw
+ * deflate stream (no zlib header or checksum, the TCP checksum already covers it). Deflaters and
+ * Inflaters hold native memory and are slow to create, so they are kept in a pool shared by every
+ * client and reused. Safe to use from any thread.
+ */
+public final class PiCompressor {
+
+    ///The default smallest payload that is compressed. Smaller payloads rarely get smaller.
+    public static final int DEFAULT_THRESHOLD = 512;
+
+    ///The default compression level, the fastest, since the Pis and phones are short on CPU
+    public static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+    ///The largest uncompressed payload that will be inflated, so a bad length can't use up the heap
+    public static final int MAX_UNCOMPRESSED_SIZE = 64 * 1024 * 1024; //64mb
+
+    ///The size of the uncompressed length before the deflate stream
+    private static final int LENGTH_SIZE = 4;
+
+    ///The most Deflaters or Inflaters kept in each pool
+    private static final int MAX_POOLED = 2 * Runtime.getRuntime().availableProcessors();
+
+    private static final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+    private static final AtomicInteger pooledDeflaters = new AtomicInteger();
+    private static final AtomicInteger pooledInflaters = new AtomicInteger();
+
+
+    private PiCompressor() {}
+
+
+    /*
+    Public Methods
+     */
+
+
+    /**
+     * @param data  The payload to compress.
+     * @param level The deflate level, from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION.
+     *
+     * @return  The compressed payload, or null if compressing doesn't make it smaller.
+     */
+    @Nullable
+    public static byte[] compress(@NotNull byte[] data, int level) {
+        //Give up once the output would be as big as the input
+        byte[] output = new byte[data.length];
+        if (output.length <= LENGTH_SIZE)
+            return null;
+
+        output[0] = (byte) (data.length >>> 24);
+        output[1] = (byte) (data.length >>> 16);
+        output[2] = (byte) (data.length >>> 8);
+        output[3] = (byte) data.length;
+
+        Deflater deflater = acquireDeflater(level);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            int length = LENGTH_SIZE;
+            while (!deflater.finished() && length < output.length) {
+                length += deflater.deflate(output, length, output.length - length);
+            }
+
+            if (!deflater.finished())
+                return null;
+
+            byte[] compressed = new byte[length];
+            System.arraycopy(output, 0, compressed, 0, length);
+            return compressed;
+        } finally {
+            releaseDeflater(deflater);
+        }
+    }
+
+    /**
+     * @param input     The compressed payload.
+     * @param offset    The start of the payload in the input.
+     * @param length    The size of the compressed payload.
+     *
+     * @return  The size the payload will be after decompress().
+     *
+     * @throws DataFormatException  If the payload is too short or the size is out of range.
+     */
+    public static int getUncompressedLength(@NotNull byte[] input, int offset, int length) throws DataFormatException {
+        if (length < LENGTH_SIZE)
+            throw new DataFormatException("The compressed payload is missing its length.");
+
+        int uncompressedLength = (input[offset] & 0xFF) << 24 | (input[offset + 1] & 0xFF) << 16 |
+                (input[offset + 2] & 0xFF) << 8 | (input[offset + 3] & 0xFF);
+        if (uncompressedLength < 0 || uncompressedLength > MAX_UNCOMPRESSED_SIZE)
+            throw new DataFormatException("The uncompressed length " + uncompressedLength + " is out of range.");
+
+        return uncompressedLength;
+    }
+
+    /**
+     * Inflate a compressed payload.
+     *
+     * @param input     The compressed payload.
+     * @param offset    The start of the payload in the input.
+     * @param length    The size of the compressed payload.
+     * @param output    The array to inflate into, at least getUncompressedLength() long.
+     *
+     * @return  The size of the uncompressed payload.
+     *
+     * @throws DataFormatException  If the payload is corrupt or doesn't inflate to the length it says.
+     */
+    public static int decompress(@NotNull byte[] input, int offset, int length, @NotNull byte[] output) throws DataFormatException {
+        int uncompressedLength = getUncompressedLength(input, offset, length);
+        if (output.length < uncompressedLength)
+            throw new IllegalArgumentException("The output array is too small.");
+
+        Inflater inflater = acquireInflater();
+        try {
+            inflater.setInput(input, offset + LENGTH_SIZE, length - LENGTH_SIZE);
+
+            int inflated = 0;
+            while (!inflater.finished()) {
+                int count = inflater.inflate(output, inflated, uncompressedLength - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary() || inflated == uncompressedLength))
+                    break;
+                inflated += count;
+            }
+
+            if (!inflater.finished() || inflated != uncompressedLength)
+                throw new DataFormatException("The compressed payload doesn't match its length.");
+
+            return uncompressedLength;
+        } finally {
+            releaseInflater(inflater);
+        }
+    }
+
+
+    /*
+    Pools
+     */
+
+
+    @NotNull
+    private static Deflater acquireDeflater(int level) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null)
+            return new Deflater(level, true);
+
+        pooledDeflaters.decrementAndGet();
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    private static void releaseDeflater(@NotNull Deflater deflater) {
+        deflater.reset();
+        if (pooledDeflaters.incrementAndGet() <= MAX_POOLED) {
+            deflaters.offer(deflater);
+        }else {
+            pooledDeflaters.decrementAndGet();
+            deflater.end();
+        }
+    }
+
+    @NotNull
+    private static Inflater acquireInflater() {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null)
+            return new Inflater(true);
+
+        pooledInflaters.decrementAndGet();
+        return inflater;
+    }
+
+    private static void releaseInflater(@NotNull Inflater inflater) {
+        inflater.reset();
+        if (pooledInflaters.incrementAndGet() <= MAX_POOLED) {
+            inflaters.offer(inflater);
+        }else {
+            pooledInflaters.decrementAndGet();
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package com.kylekewley.piclient;
+
+import com.kylekewley.piclient.protocolbuffers.ParseError;
+import com.squareup.wire.Message;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * The result of a request sent with PiClient.request(). The future is also the PiMessageCallbacks
+ * for the request, so each request only needs the one object.
+ *
+ * It completes with the parsed reply, the reply data for untyped requests, or null if the server
+ * sent an empty acknowledgement. A request with a reply file completes with the number of bytes
+ * written to the file. It fails with a PiParseErrorException if the server replied with
+ * a ParseError, a TimeoutException if the reply timed out, or an IOException if the reply
+ * couldn't be parsed, the connection closed first or the request was dropped from the send queue.
+ */
+public class PiFuture<T> extends PiMessageCallbacks implements Future<T> {
+
+    ///The state of the future. Guarded by this.
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_SUCCEEDED = 1;
+    private static final int STATE_FAILED = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    private int state = STATE_PENDING;
+
+    ///The result once the future succeeds
+    @Nullable
+    private T result;
+
+    ///The cause once the future fails
+    @Nullable
+    private Throwable cause;
+
+    ///The listeners waiting for the future to complete. Created when the first one is added.
+    @Nullable
+    private List<PiFutureListener<T>> listeners;
+
+
+    /**
+     * Create a future that completes with the raw reply data.
+     */
+    public PiFuture() {
+
+    }
+
+    /**
+     * Create a future that completes with the reply parsed as the messageClass.
+     *
+     * @param messageClass  The class used to parse the reply.
+     */
+    public PiFuture(@Nullable Class<? extends T> messageClass) {
+        super(messageClass != null && Message.class.isAssignableFrom(messageClass) ?
+                messageClass.asSubclass(Message.class) : null);
+    }
+
+
+    /*
+    Completing the Future
+     */
+
+
+    /**
+     * Complete the future with the result. Does nothing if it has already completed.
+     *
+     * @param result    The result.
+     *
+     * @return  true if this call completed the future.
+     */
+    public boolean complete(@Nullable T result) {
+        synchronized (this) {
+            if (state != STATE_PENDING)
+                return false;
+
+            this.result = result;
+            state = STATE_SUCCEEDED;
+            notifyAll();
+        }
+
+        notifyListeners();
+        return true;
+    }
+
+    /**
+     * Fail the future with the cause. Does nothing if it has already completed.
+     *
+     * @param cause The reason the future failed.
+     *
+     * @return  true if this call completed the future.
+     */
+    public boolean fail(@NotNull Throwable cause) {
+        synchronized (this) {
+            if (state != STATE_PENDING)
+                return false;
+
+            this.cause = cause;
+            state = STATE_FAILED;
+            notifyAll();
+        }
+
+        notifyListeners();
+        return true;
+    }
+
+    /**
+     * Add a listener that is called when the future completes.
+     * If it has already completed the listener is called right away on this thread.
+     *
+     * @param listener  The listener to add.
+     *
+     * @return  This future.
+     */
+    @NotNull
+    public PiFuture<T> addListener(@NotNull PiFutureListener<T> listener) {
+        synchronized (this) {
+            if (state == STATE_PENDING) {
+                if (listeners == null)
+                    listeners = new ArrayList<PiFutureListener<T>>(2);
+                listeners.add(listener);
+                return this;
+            }
+        }
+
+        notifyListener(listener);
+        return this;
+    }
+
+
+    /*
+    Getting the Result
+     */
+
+
+    /**
+     * @return  true if the future completed with a result.
+     */
+    public synchronized boolean isSuccess() {
+        return state == STATE_SUCCEEDED;
+    }
+
+    /**
+     * @return  The reason the future failed or was cancelled, or null if it hasn't.
+     */
+    @Nullable
+    public synchronized Throwable getCause() {
+        if (state == STATE_CANCELLED)
+            return new CancellationException();
+        return cause;
+    }
+
+    /**
+     * @return  The result, or null if the future hasn't succeeded.
+     */
+    @Nullable
+    public synchronized T getNow() {
+        return result;
+    }
+
+
+    /*
+    Future
+     */
+
+
+    /**
+     * Cancel the future. A reply that arrives afterwards is ignored.
+     *
+     * @param mayInterruptIfRunning Ignored, there is nothing to interrupt.
+     *
+     * @return  true if the future was cancelled.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (state != STATE_PENDING)
+                return false;
+
+            state = STATE_CANCELLED;
+            notifyAll();
+        }
+
+        notifyListeners();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == STATE_CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != STATE_PENDING;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (state == STATE_PENDING)
+            wait();
+
+        return getResult();
+    }
+
+    @Override
+    public synchronized T get(long timeout, @NotNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        while (state == STATE_PENDING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                throw new TimeoutException();
+
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+
+        return getResult();
+    }
+
+
+    /*
+    PiMessageCallbacks
+     */
+
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void serverReturnedData(byte[] data, PiMessage message) {
+        if (getMessageClass() != null)
+            fail(new IOException("Unable to parse the reply as " + getMessageClass().getSimpleName()));
+        else
+            complete((T) data);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void serverRepliedWithMessage(Message response, PiMessage sentMessage) {
+        complete((T) response);
+    }
+
+    @Override
+    public void serverSuccessfullyParsedMessage(PiMessage message) {
+        complete(null);
+    }
+
+    @Override
+    public void serverReturnedErrorForMessage(ParseError parseError, PiMessage message) {
+        fail(new PiParseErrorException(parseError));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void serverReturnedFile(@NotNull FileChannel file, long position, long length, PiMessage message) {
+        complete((T) Long.valueOf(length));
+    }
+
+    @Override
+    public void replyFileFailed(@NotNull IOException exception, PiMessage message) {
+        fail(exception);
+    }
+
+    @Override
+    public void serverReplyTimedOut(PiMessage message) {
+        fail(new TimeoutException("The server didn't reply in time."));
+    }
+
+    @Override
+    public void connectionClosedBeforeReply(PiMessage message) {
+        fail(new IOException("The connection closed before the server replied."));
+    }
+
+    @Override
+    public void messageDropped(PiMessage message) {
+        fail(new IOException("The request was dropped from the send queue."));
+    }
+
+
+    /*
+    Combining Futures
+     */
+
+
+    /**
+     * Create a future that completes when every one of the futures succeeds,
+     * or fails as soon as one of them fails.
+     *
+     * @param futures   The futures to wait for.
+     *
+     * @return  A future for the results, in the same order as the futures.
+     */
+    @NotNull
+    public static <T> PiFuture<List<T>> all(@NotNull Collection<? extends PiFuture<? extends T>> futures) {
+        final PiFuture<List<T>> allFuture = new PiFuture<List<T>>();
+        final List<PiFuture<? extends T>> futureList = new ArrayList<PiFuture<? extends T>>(futures);
+        final int[] remaining = {futureList.size()};
+
+        if (futureList.isEmpty()) {
+            allFuture.complete(new ArrayList<T>());
+            return allFuture;
+        }
+
+        for (PiFuture<? extends T> future : futureList) {
+            addAllListener(future, allFuture, futureList, remaining);
+        }
+
+        return allFuture;
+    }
+
+
+    /*
+    Private Methods
+     */
+
+
+    private static <T, F extends T> void addAllListener(@NotNull PiFuture<F> future, @NotNull final PiFuture<List<T>> allFuture,
+                                                        @NotNull final List<PiFuture<? extends T>> futureList,
+                                                        @NotNull final int[] remaining) {
+        future.addListener(new PiFutureListener<F>() {
+            @Override
+            public void operationComplete(@NotNull PiFuture<F> completed) {
+                if (!completed.isSuccess()) {
+                    Throwable failure = completed.getCause();
+                    allFuture.fail(failure != null ? failure : new CancellationException());
+                    return;
+                }
+
+                boolean done;
+                synchronized (remaining) {
+                    done = --remaining[0] == 0;
+                }
+
+                if (done) {
+                    List<T> results = new ArrayList<T>(futureList.size());
+                    for (PiFuture<? extends T> f : futureList)
+                        results.add(f.getNow());
+                    allFuture.complete(results);
+                }
+            }
+        });
+    }
+
+    private T getResult() throws ExecutionException {
+        if (state == STATE_CANCELLED)
+            throw new CancellationException();
+        if (state == STATE_FAILED)
+            throw new ExecutionException(cause);
+        return result;
+    }
+
+    private void notifyListeners() {
+        List<PiFutureListener<T>> toNotify;
+        synchronized (this) {
+            toNotify = listeners;
+            listeners = null;
+        }
+
+        if (toNotify == null)
+            return;
+
+        for (PiFutureListener<T> listener : toNotify)
+            notifyListener(listener);
+    }
+
+    private void notifyListener(@NotNull PiFutureListener<T> listener) {
+        try {
+            listener.operationComplete(this);
+        }catch (Exception e) {
+            System.err.println("Error in future listener: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.kylekewley.piclient;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * Called when a PiFuture completes.
+ */
+public interface PiFutureListener<T> {
+
+    /**
+     * Called once the future has completed, failed or been cancelled.
+     * It runs on the thread that completed the future, which is usually the event loop,
+     * so it should return quickly.
+     *
+     * @param future    The future that completed.
+     */
+    public void operationComplete(@NotNull PiFuture<T> future);
+}
@@ -0,0 +1,180 @@
+package com.kylekewley.piclient;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * Records latencies in nanoseconds into a fixed set of buckets, laid out the same way as
+ * HdrHistogram: values under 64 get a bucket each, and every power of two above that is split
+ * into 32 equal buckets. Any recorded value can be read back to within about 3%, recording is
+ * a couple of shifts and one atomic add, and the histogram never allocates after it is created.
+ *
+ * Values from 0 to about half an hour are recorded, longer values count as the longest bucket.
+ * Safe to record from any number of threads.
+ */
+public class PiLatencyHistogram {
+
+    ///log2 of the number of values that each get their own bucket
+    private static final int LINEAR_BITS = 6;
+
+    ///The number of values that each get their own bucket
+    private static final int LINEAR_COUNT = 1 << LINEAR_BITS;
+
+    ///The number of buckets each power of two above LINEAR_COUNT is split into
+    private static final int SUB_BUCKET_COUNT = LINEAR_COUNT / 2;
+
+    ///The number of powers of two above LINEAR_COUNT that are recorded
+    private static final int MAGNITUDES = 35;
+
+    ///The number of buckets
+    private static final int BUCKET_COUNT = LINEAR_COUNT + MAGNITUDES * SUB_BUCKET_COUNT;
+
+    /**
+     * A copy of the histogram at one moment, for reading percentiles without the numbers changing underneath.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(@NotNull long[] counts, long sum, long max) {
+            long count = 0;
+            for (long c : counts)
+                count += c;
+
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * @return  The number of values recorded.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return  The largest value recorded, or zero if nothing was recorded.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return  The average value recorded, or zero if nothing was recorded.
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param percentile    The percentile to find, from 0 to 100.
+         *
+         * @return  The highest value in the bucket holding the percentile, or zero if nothing was recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100)
+                throw new IllegalArgumentException("The percentile must be between 0 and 100.");
+            if (count == 0)
+                return 0;
+
+            //Nearest rank
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return Math.min(max, highestValueInBucket(i));
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", mean=" + (long) getMean() + ", p50=" + getValueAtPercentile(50) +
+                    ", p99=" + getValueAtPercentile(99) + ", p999=" + getValueAtPercentile(99.9) + ", max=" + max;
+        }
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+
+    /*
+    Public Methods
+     */
+
+
+    /**
+     * @param nanos The latency to record. Negative values are ignored.
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            return;
+
+        counts.incrementAndGet(bucketIndex(nanos));
+        sum.addAndGet(nanos);
+
+        long currentMax;
+        while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) {
+            //Lost a race with a bigger or equal value, check again
+        }
+    }
+
+    /**
+     * @return  A copy of the recorded values.
+     */
+    @NotNull
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            copy[i] = counts.get(i);
+        return new Snapshot(copy, sum.get(), max.get());
+    }
+
+    /**
+     * Forget every recorded value. Values recorded at the same time may be partly lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            counts.set(i, 0);
+        sum.set(0);
+        max.set(0);
+    }
+
+
+    /*
+    Private Methods
+     */
+
+
+    private static int bucketIndex(long value) {
+        if (value < LINEAR_COUNT)
+            return (int) value;
+
+        //The bucket width is 2^shift, so the top LINEAR_BITS bits pick the bucket
+        int shift = 63 - Long.numberOfLeadingZeros(value) - LINEAR_BITS + 1;
+        if (shift > MAGNITUDES)
+            return BUCKET_COUNT - 1;
+
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return LINEAR_COUNT + (shift - 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long highestValueInBucket(int index) {
+        if (index < LINEAR_COUNT)
+            return index;
+
+        int shift = (index - LINEAR_COUNT) / SUB_BUCKET_COUNT + 1;
+        long subBucket = (index - LINEAR_COUNT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -1,18 +1,18 @@
 package com.kylekewley.piclient;
 
 
-import com.kylekewley.piclient.protocolbuffers.PiHeader;
 import com.squareup.wire.Message;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Kyle Kewley on 6/14/14.
@@ -31,19 +31,69 @@ public class PiMessage {
     static final int HEADER_PREFIX_SIZE = 2;
 
     static final long HEADER_FLAG_ERROR = 1L << 0;
+
+    ///The message data is compressed by PiCompressor.
+    static final long HEADER_FLAG_COMPRESSED = 1L << 1;
+
+    ///The message is one chunk of a stream. Every chunk of a stream has the same message ID.
+    static final long HEADER_FLAG_CHUNK = 1L << 2;
+
+    ///The message is the last chunk of a stream, the only one the other side replies to.
+    static final long HEADER_FLAG_LAST_CHUNK = 1L << 3;
+
+    ///The size of the sequence number at the start of each chunk's data.
+    static final int CHUNK_SEQUENCE_SIZE = 4;
+
+    ///Use the PiClient default reply timeout for the message.
+    public static final int DEFAULT_REPLY_TIMEOUT = -1;
+
+    ///Wait for a reply forever.
+    public static final int NO_REPLY_TIMEOUT = 0;
     /*
     Member Variables
      */
 
-    ///Keeps track of which message IDs we have used.
-    private static int currentMessageId = 0;
+    ///The number of message IDs each thread takes at a time. Must be a power of two.
+    private static final int MESSAGE_ID_BLOCK_SIZE = 1024;
+
+    ///The next block of message IDs to hand to a thread
+    private static final AtomicInteger nextMessageIdBlock = new AtomicInteger();
+
+    ///The next ID and the number of IDs left in the calling thread's block
+    private static final ThreadLocal<int[]> messageIdBlock = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[2];
+        }
+    };
 
     ///The header for the PiMessage
-    private PiHeader piHeader;
+    private final MutablePiHeader piHeader = new MutablePiHeader();
 
     ///The data that the message will send
     private byte[] messageData;
 
+    ///The file the message data is read from instead of messageData, or null
+    @Nullable
+    private FileChannel fileChannel;
+
+    ///The position of the message data in the fileChannel
+    private long filePosition;
+
+    ///The file the reply data is written to instead of being handed to the callbacks, or null
+    @Nullable
+    private FileChannel replyFile;
+
+    ///The position in the replyFile the reply data starts at
+    private long replyFilePosition;
+
+    ///The number of reply bytes written to the replyFile so far
+    private long replyBytesWritten;
+
+    ///The error writing to the replyFile, or null
+    @Nullable
+    private IOException replyFileError;
+
     ///The class that will handle message errors and server replies
     private PiMessageCallbacks messageCallbacks;
 
@@ -51,15 +101,50 @@ public class PiMessage {
     @Nullable
     private ByteBuffer byteBuffer;
 
+    ///The number of milliseconds to wait for a reply after the message is sent
+    private int replyTimeout = DEFAULT_REPLY_TIMEOUT;
+
+    ///The pending reply timeout while the message is waiting for a reply
+    @Nullable
+    private PiTimerWheel.Timeout replyTimeoutHandle;
+
+    ///The number of bytes counted against the PiClient send queue while the message is queued
+    private int queuedSize;
+
+    ///The position of the message's record in a PiOutbox, or -1 if it isn't in one
+    private long outboxPosition = -1;
+
+    ///The System.nanoTime() when the message was fully written to the socket, or zero if it wasn't written yet
+    private long sentTime;
+
     /*
     Static Methods
      */
 
     /**
+     * Each thread takes a block of IDs at a time, so concurrent senders only share one
+     * atomic increment per MESSAGE_ID_BLOCK_SIZE messages. IDs are positive and wrap around
+     * after Integer.MAX_VALUE, the PiClient skips any that are still waiting for a reply.
+     *
      * @return  A unique message ID
      */
     public static int getUniqueMessageId() {
-        return ++currentMessageId;
+        int[] block = messageIdBlock.get();
+        if (block[1] == 0) {
+            //The block size is a power of two, so blocks line up with the wrap around
+            int start = (nextMessageIdBlock.getAndIncrement() * MESSAGE_ID_BLOCK_SIZE) & Integer.MAX_VALUE;
+            block[0] = start;
+            block[1] = MESSAGE_ID_BLOCK_SIZE;
+
+            if (start == 0) {
+                //Zero means there is no message ID
+                block[0] = 1;
+                block[1]--;
+            }
+        }
+
+        block[1]--;
+        return block[0]++;
     }
 
 
@@ -81,13 +166,8 @@ public class PiMessage {
      * @param message   The message that will be sent to the server.
      */
     public PiMessage(int parserId, @NotNull Message message) {
-        piHeader = new PiHeader.Builder()
-                .parserID(parserId)
-                .messageLength(message.getSerializedSize())
-                .successResponse(true)
-                .messageID(getUniqueMessageId()).build();
-
         messageData = message.toByteArray();
+        initHeader(parserId, messageData.length);
     }
 
     /**
@@ -97,15 +177,62 @@ public class PiMessage {
      * @param data      The data to send to the server.
      */
     public PiMessage(int parserId, @NotNull byte[] data) {
-        piHeader = new PiHeader.Builder()
-                .parserID(parserId)
-                .messageLength(data.length)
-                .successResponse(true)
-                .messageID(getUniqueMessageId()).build();
+        messageData = data;
+        initHeader(parserId, data.length);
+    }
 
+    /**
+     * Create a new PiMessage with the given parser ID whose data is a region of a file.
+     * The PiClient hands the region to the socket with FileChannel.transferTo(), so the data
+     * never passes through the Java heap. The file must not shrink or be closed until the
+     * message is sent. It is read again if the message is resent after a reconnect.
+     *
+     * @param parserId      The ID set for the server side parser able to handle the data.
+     * @param fileChannel   The file to send the data from.
+     * @param position      The position of the data in the file.
+     * @param length        The number of bytes to send.
+     */
+    public PiMessage(int parserId, @NotNull FileChannel fileChannel, long position, int length) {
+        if (position < 0 || length < 0)
+            throw new IllegalArgumentException("The position and length must not be negative.");
+
+        this.fileChannel = fileChannel;
+        this.filePosition = position;
+        messageData = new byte[0];
+        initHeader(parserId, length);
+    }
+
+    /**
+     * Create a PiMessage from a header and data that were already encoded once, like a message read back from a PiOutbox.
+     *
+     * @param piHeader  The header to copy.
+     * @param data      The data to send to the server.
+     */
+    PiMessage(@NotNull MutablePiHeader piHeader, @NotNull byte[] data) {
+        this.piHeader.set(piHeader);
         messageData = data;
     }
 
+    /**
+     * Create one chunk of a stream.
+     *
+     * @param parserId  The ID set for the server side parser able to handle the stream.
+     * @param streamId  The message ID shared by every chunk of the stream.
+     * @param data      The data to send, starting with the CHUNK_SEQUENCE_SIZE byte sequence number.
+     * @param last      true for the last chunk of the stream.
+     *
+     * @return  The chunk.
+     */
+    @NotNull
+    static PiMessage newChunk(int parserId, int streamId, @NotNull byte[] data, boolean last) {
+        PiMessage message = new PiMessage();
+        message.messageData = data;
+        message.initHeader(parserId, data.length);
+        message.piHeader.setMessageId(streamId);
+        message.piHeader.setFlags((int) (HEADER_FLAG_CHUNK | (last ? HEADER_FLAG_LAST_CHUNK : 0)));
+        return message;
+    }
+
     /**
      * Create a new PiMessage with the given parser ID and no data.
      * This will just send the header to the server. This can be used
@@ -114,12 +241,8 @@ public class PiMessage {
      * @param parserId  The ID set for the server side parser able to handle the data.
      */
     public PiMessage(int parserId) {
-        piHeader = new PiHeader.Builder()
-                .parserID(parserId)
-                .messageLength(0)
-                .successResponse(true)
-                .messageID(getUniqueMessageId()).build();
         messageData = new byte[0];
+        initHeader(parserId, 0);
     }
 
 
@@ -136,15 +259,49 @@ public class PiMessage {
      */
     public void writeToOutputStream(@NotNull OutputStream outputStream) throws IOException {
 
+        ByteBuffer header = ByteBuffer.allocate(piHeader.getSerializedSize());
+        piHeader.encodeTo(header);
+
         //Write the header prefix
         DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
-        dataOutputStream.writeShort(piHeader.getSerializedSize());
+        dataOutputStream.writeShort(header.capacity());
 
         //Write the header
-        outputStream.write(piHeader.toByteArray());
+        outputStream.write(header.array());
 
         //Write the data
-        outputStream.write(messageData);
+        if (fileChannel != null)
+            outputStream.write(readFileData());
+        else
+            outputStream.write(messageData);
+    }
+
+    /**
+     * Write the full message (header length prefix, header and data) into the buffer
+     * with a single copy of the data. Nothing is allocated.
+     * The data of a message backed by a file is read from the file into the buffer.
+     *
+     * @param buffer    The buffer to write to. It must have at least serializedSize() bytes remaining.
+     *
+     * @throws IllegalStateException    If the message is backed by a file that can't be read.
+     */
+    public void writeToByteBuffer(@NotNull ByteBuffer buffer) {
+        writeHeaderToByteBuffer(buffer);
+
+        if (fileChannel == null) {
+            buffer.put(messageData);
+            return;
+        }
+
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + piHeader.getMessageLength());
+        try {
+            readFileData(buffer);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read the message data from its file.", e);
+        } finally {
+            buffer.limit(limit);
+        }
     }
 
     /**
@@ -167,7 +324,14 @@ public class PiMessage {
      * @return  The message ID.
      */
     public int getMessageId() {
-        return piHeader.messageID;
+        return piHeader.getMessageId();
+    }
+
+    /**
+     * @return  The ID of the parser the message is for.
+     */
+    public int getParserId() {
+        return piHeader.getParserId();
     }
 
 
@@ -176,7 +340,7 @@ public class PiMessage {
      */
     public int serializedSize() {
 
-        return HEADER_PREFIX_SIZE + piHeader.getSerializedSize() + messageData.length;
+        return headerSize() + (fileChannel != null ? piHeader.getMessageLength() : messageData.length);
     }
 
 
@@ -194,43 +358,306 @@ public class PiMessage {
         return messageCallbacks;
     }
 
+    /**
+     * @return  The number of milliseconds to wait for a reply, NO_REPLY_TIMEOUT to wait forever,
+     * or DEFAULT_REPLY_TIMEOUT to use the PiClient default.
+     */
+    public int getReplyTimeout() {
+        return replyTimeout;
+    }
+
+    /**
+     * If the server doesn't reply within the timeout, the message stops waiting and
+     * PiMessageCallbacks.serverReplyTimedOut() is called. The time starts once the message is written to the socket.
+     *
+     * @param replyTimeout  The number of milliseconds to wait for a reply, NO_REPLY_TIMEOUT to wait forever,
+     *                      or DEFAULT_REPLY_TIMEOUT to use the PiClient default.
+     */
+    public void setReplyTimeout(int replyTimeout) {
+        this.replyTimeout = replyTimeout;
+    }
+
+    /**
+     * @return  The file the reply data is written to, or null if it is handed to the callbacks.
+     */
+    @Nullable
+    public FileChannel getReplyFile() {
+        return replyFile;
+    }
+
+    /**
+     * @return  The position in the reply file the reply data starts at.
+     */
+    public long getReplyFilePosition() {
+        return replyFilePosition;
+    }
+
+    /**
+     * Write the reply data straight to a file as it arrives, instead of building it in memory.
+     * PiMessageCallbacks.serverReturnedFile() is called once the whole reply is written, or
+     * replyFileFailed() if it can't be. Chunked replies are written one after the other, so replies
+     * bigger than a single message can carry are written with constant memory use.
+     * ParseError replies still go to serverReturnedErrorForMessage().
+     *
+     * @param replyFile The file to write the reply data to, or null to hand it to the callbacks.
+     * @param position  The position in the file to start writing at.
+     */
+    public void setReplyFile(@Nullable FileChannel replyFile, long position) {
+        if (position < 0)
+            throw new IllegalArgumentException("The position must not be negative.");
+
+        this.replyFile = replyFile;
+        this.replyFilePosition = position;
+    }
+
 
     /*
-    Private Methods
+    Package Methods
      */
 
+
     /**
-     * @return A new ByteBuffer with the message data or null if there was an error creating the byte buffer.
+     * @param replyTimeoutHandle    The pending reply timeout, or null.
+     */
+    void setReplyTimeoutHandle(@Nullable PiTimerWheel.Timeout replyTimeoutHandle) {
+        this.replyTimeoutHandle = replyTimeoutHandle;
+    }
+
+    /**
+     * @return  The number of bytes counted against the send queue for the message.
+     */
+    int getQueuedSize() {
+        return queuedSize;
+    }
+
+    /**
+     * @param queuedSize    The number of bytes counted against the send queue for the message.
+     */
+    void setQueuedSize(int queuedSize) {
+        this.queuedSize = queuedSize;
+    }
+
+    /**
+     * @return  The position of the message's record in a PiOutbox, or -1 if it isn't in one.
+     */
+    long getOutboxPosition() {
+        return outboxPosition;
+    }
+
+    /**
+     * @param outboxPosition    The position of the message's record in a PiOutbox, or -1 if it isn't in one.
+     */
+    void setOutboxPosition(long outboxPosition) {
+        this.outboxPosition = outboxPosition;
+    }
+
+    /**
+     * @return  The System.nanoTime() when the message was fully written to the socket, or zero if it wasn't written yet.
+     */
+    long getSentTime() {
+        return sentTime;
+    }
+
+    /**
+     * @param sentTime  The System.nanoTime() when the message was fully written to the socket.
+     */
+    void setSentTime(long sentTime) {
+        this.sentTime = sentTime;
+    }
+
+    /**
+     * @return  The file the message data is sent from, or null if the data is in memory.
      */
     @Nullable
-    private ByteBuffer getByteBufferHelper() {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(serializedSize());
-        DataOutputStream dataOutputStream = new DataOutputStream(outputStream);
+    FileChannel getFileChannel() {
+        return fileChannel;
+    }
+
+    /**
+     * @return  The position of the message data in its file.
+     */
+    long getFilePosition() {
+        return filePosition;
+    }
+
+    /**
+     * @return  The number of bytes of the file region sent as the message data.
+     */
+    int getFileLength() {
+        return piHeader.getMessageLength();
+    }
+
+    /**
+     * @return  The number of bytes in the header length prefix and header.
+     */
+    int headerSize() {
+        return HEADER_PREFIX_SIZE + piHeader.getSerializedSize();
+    }
+
+    /**
+     * Write the header length prefix and header, without the data.
+     *
+     * @param buffer    The buffer to write to. It must have at least headerSize() bytes remaining.
+     */
+    void writeHeaderToByteBuffer(@NotNull ByteBuffer buffer) {
+        buffer.putShort((short) piHeader.getSerializedSize());
+        piHeader.encodeTo(buffer);
+    }
+
+    /**
+     * @return  true if the message is one chunk of a stream.
+     */
+    boolean isChunk() {
+        return piHeader.hasFlag(HEADER_FLAG_CHUNK);
+    }
+
+    /**
+     * @return  true if the server will reply to the message. Only the last chunk of a stream gets a reply.
+     */
+    boolean awaitsReply() {
+        return !isChunk() || piHeader.hasFlag(HEADER_FLAG_LAST_CHUNK);
+    }
+
+    /**
+     * @return  The number of reply bytes written to the reply file so far.
+     */
+    long getReplyBytesWritten() {
+        return replyBytesWritten;
+    }
+
+    /**
+     * @return  The error writing to the reply file, or null if there wasn't one.
+     */
+    @Nullable
+    IOException getReplyFileError() {
+        return replyFileError;
+    }
+
+    /**
+     * Forget any reply written so far, so a resent message writes its reply from the start again.
+     */
+    void resetReplyFile() {
+        replyBytesWritten = 0;
+        replyFileError = null;
+    }
+
+    /**
+     * Write the next part of the reply to the reply file. Once a write fails the rest of the reply is skipped.
+     *
+     * @param data  The reply data. Its position is moved past the data.
+     */
+    void writeReplyData(@NotNull ByteBuffer data) {
+        if (replyFileError != null) {
+            data.position(data.limit());
+            return;
+        }
 
         try {
-            //Write the header length prefix
-            dataOutputStream.writeShort((short) piHeader.getSerializedSize());
+            while (data.hasRemaining()) {
+                replyBytesWritten += replyFile.write(data, replyFilePosition + replyBytesWritten);
+            }
+        } catch (IOException e) {
+            replyFileError = e;
+            data.position(data.limit());
+        }
+    }
 
-            //Write the header
-            dataOutputStream.write(piHeader.toByteArray());
+    /**
+     * Give the message a new ID. Used when its ID is still taken by a message waiting for a reply.
+     */
+    void reassignMessageId() {
+        piHeader.setMessageId(getUniqueMessageId());
+        byteBuffer = null;
+    }
 
-            //Write the message
-            dataOutputStream.write(messageData);
+    /**
+     * Compress the message data and set HEADER_FLAG_COMPRESSED, unless it is already compressed,
+     * smaller than threshold or doesn't get any smaller.
+     *
+     * @param threshold The smallest message data to compress.
+     * @param level     The deflate level.
+     *
+     * @return  true if the message data was compressed.
+     */
+    boolean compress(int threshold, int level) {
+        if (fileChannel != null || messageData.length < threshold || piHeader.hasFlag(HEADER_FLAG_COMPRESSED))
+            return false;
+
+        byte[] compressed = PiCompressor.compress(messageData, level);
+        if (compressed == null)
+            return false;
+
+        messageData = compressed;
+        piHeader.setFlags(piHeader.getFlags() | (int) HEADER_FLAG_COMPRESSED);
+        piHeader.setMessageLength(compressed.length);
+        byteBuffer = null;
+        return true;
+    }
 
+    /**
+     * Cancel the pending reply timeout, if there is one.
+     * Must be called from the event loop that scheduled the timeout.
+     */
+    void cancelReplyTimeout() {
+        if (replyTimeoutHandle != null) {
+            replyTimeoutHandle.cancel();
+            replyTimeoutHandle = null;
+        }
+    }
 
 
-            //Get the ByteBuffer from the outputStream
-            ByteBuffer byteBuffer = ByteBuffer.wrap(outputStream.toByteArray());
+    /*
+    Private Methods
+     */
 
-            dataOutputStream.close();
-            outputStream.close();
+    /**
+     * Set up the header for a new message.
+     *
+     * @param parserId      The ID set for the server side parser able to handle the data.
+     * @param messageLength The number of bytes of data.
+     */
+    private void initHeader(int parserId, int messageLength) {
+        piHeader.setMessageLength(messageLength);
+        piHeader.setParserId(parserId);
+        piHeader.setMessageId(getUniqueMessageId());
+        piHeader.setSuccessResponse(true);
+    }
 
-            return byteBuffer;
-        }catch (IOException e) {
-            return null;
+    /**
+     * Read the message data from its file until the buffer is full.
+     */
+    private void readFileData(@NotNull ByteBuffer buffer) throws IOException {
+        long position = filePosition;
+        while (buffer.hasRemaining()) {
+            int read = fileChannel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("The file is shorter than the message.");
+            position += read;
         }
     }
 
+    /**
+     * @return  The message data read from its file.
+     */
+    @NotNull
+    private byte[] readFileData() throws IOException {
+        byte[] data = new byte[piHeader.getMessageLength()];
+        readFileData(ByteBuffer.wrap(data));
+        return data;
+    }
+
+    /**
+     * @return A new ByteBuffer with the message data or null if there was an error creating the byte buffer.
+     */
+    @Nullable
+    private ByteBuffer getByteBufferHelper() {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(serializedSize());
+        writeToByteBuffer(byteBuffer);
+        byteBuffer.flip();
+
+        return byteBuffer;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof PiMessage) {
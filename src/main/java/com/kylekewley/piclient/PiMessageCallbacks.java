@@ -3,6 +3,12 @@ package com.kylekewley.piclient;
 import com.kylekewley.piclient.protocolbuffers.ParseError;
 import com.squareup.wire.Message;
 
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
 /**
  * Created by Kyle Kewley on 6/17/14.
  *
@@ -59,6 +65,61 @@ public abstract class PiMessageCallbacks {
     public abstract void serverReturnedData(byte[] data, PiMessage message);
 
 
+    /**
+     * Called if this.builder is null and the server sends a reply message.
+     * The buffer may be a view of the receive buffer, it must not be written to and is only valid until
+     * this method returns. By default the data is copied into a byte array and passed to serverReturnedData(byte[], PiMessage).
+     *
+     * @param data      The binary data from the server.
+     * @param message   The PiMessage object that is being replied to.
+     */
+    public void serverReturnedData(@NotNull ByteBuffer data, PiMessage message) {
+        serverReturnedData(PiParser.toByteArray(data), message);
+    }
+
+
+    /**
+     * Called for each chunk when the server replies with a stream, as the chunks arrive.
+     * The buffer may be a view of the receive buffer, it must not be written to and is only valid until
+     * this method returns. By default each chunk is passed to serverReturnedData(ByteBuffer, PiMessage), override this to
+     * handle replies too big to hold in memory.
+     *
+     * @param chunk     The chunk's data.
+     * @param sequence  The number of the chunk in the stream, starting at zero.
+     * @param last      true for the last chunk, after which the message gets no more replies.
+     * @param message   The PiMessage object that is being replied to.
+     */
+    public void serverReturnedChunk(@NotNull ByteBuffer chunk, int sequence, boolean last, PiMessage message) {
+        serverReturnedData(chunk, message);
+    }
+
+
+    /**
+     * Called instead of serverReturnedData() once the whole reply is written to the message's
+     * reply file, see PiMessage.setReplyFile(). Does nothing by default.
+     *
+     * @param file      The file the reply was written to. It isn't closed.
+     * @param position  The position in the file the reply starts at.
+     * @param length    The number of bytes written.
+     * @param message   The PiMessage object that is being replied to.
+     */
+    public void serverReturnedFile(@NotNull FileChannel file, long position, long length, PiMessage message) {
+
+    }
+
+
+    /**
+     * Called if the reply can't be written to the message's reply file. The rest of the reply
+     * is read and skipped. Does nothing by default.
+     *
+     * @param exception The error from writing the file.
+     * @param message   The PiMessage object that is being replied to.
+     */
+    public void replyFileFailed(@NotNull IOException exception, PiMessage message) {
+
+    }
+
+
     /**
      * Called if this.buffer is not null and we are able to parse a reply from the server.
      *
@@ -83,4 +144,40 @@ public abstract class PiMessageCallbacks {
      * @param message       The PiMessage object that is being replied to.
      */
     public abstract void serverReturnedErrorForMessage(ParseError parseError, PiMessage message);
+
+
+    /**
+     * Called if the server doesn't reply to the message within its reply timeout.
+     * The message is no longer waiting for a reply, so a late reply is treated as unsolicited.
+     * Does nothing by default.
+     *
+     * @param message   The PiMessage object that timed out.
+     */
+    public void serverReplyTimedOut(PiMessage message) {
+
+    }
+
+
+    /**
+     * Called if the connection closes before the server replies to the message,
+     * including messages that were still waiting to be sent.
+     * Does nothing by default.
+     *
+     * @param message   The PiMessage object that won't get a reply.
+     */
+    public void connectionClosedBeforeReply(PiMessage message) {
+
+    }
+
+
+    /**
+     * Called if the message is dropped from the send queue to make room for a newer message
+     * sent with PiClient.sendMessageDroppingOldest(). The message was never sent.
+     * Does nothing by default.
+     *
+     * @param message   The PiMessage object that was dropped.
+     */
+    public void messageDropped(PiMessage message) {
+
+    }
 }
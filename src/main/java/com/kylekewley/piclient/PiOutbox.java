@@ -0,0 +1,489 @@
+package com.kylekewley.piclient;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * An append-only, memory mapped file that keeps the messages a PiClient sends until they are
+ * written to the socket, so they survive the process being killed. Give it to PiClient.setOutbox().
+ *
+ * Each record is the encoded frame of one message with its length and a CRC32 in front.
+ * Appending only copies the frame into the mapped file. A background thread forces the file
+ * to disk every syncInterval milliseconds if anything changed, so many appends share one fsync
+ * and a crash loses at most the last syncInterval of messages. Records are acknowledged once
+ * they are written to the server's socket, and the space they used is reclaimed by moving the
+ * unacknowledged records to the front of the file.
+ *
+ * When the outbox is opened, the records that weren't acknowledged are read back and handed to
+ * the PiClient to send first. A torn record at the end of the file is dropped. A message whose
+ * acknowledgement didn't reach the disk before a crash is sent again, so the server may see a
+ * message more than once.
+ */
+public class PiOutbox implements Closeable {
+
+    ///The default number of milliseconds between forcing the file to disk
+    public static final int DEFAULT_SYNC_INTERVAL = 50;
+
+    ///The default largest size of the file
+    public static final int DEFAULT_MAX_FILE_SIZE = 64 * 1024 * 1024; //64mb
+
+    ///The size of a new file
+    private static final int INITIAL_FILE_SIZE = 1024 * 1024; //1mb
+
+    ///Identifies an outbox file ("PIOB")
+    private static final int MAGIC = 0x50494F42;
+    private static final int VERSION = 1;
+
+    ///The file header is the magic number, the version and the offset of the first unacknowledged record
+    private static final int FILE_HEADER_SIZE = 16;
+    private static final int HEAD_OFFSET = 8;
+
+    ///Each record starts with the frame length and the CRC32 of the frame
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    ///Written over space that no longer holds a record
+    private static final byte[] ZEROS = new byte[4096];
+
+
+    /*
+    Instance Variables
+     */
+
+    @NotNull
+    private final File path;
+
+    @NotNull
+    private final RandomAccessFile file;
+
+    @NotNull
+    private final FileChannel channel;
+
+    ///The whole file. Replaced with a bigger mapping when the file grows.
+    @NotNull
+    private MappedByteBuffer map;
+
+    ///The largest size the file may grow to
+    private final int maxFileSize;
+
+    ///The number of milliseconds between forcing the file to disk
+    private final int syncInterval;
+
+    ///The file offset of the first unacknowledged record
+    private int head;
+
+    ///The file offset after the last record
+    private int tail;
+
+    ///Message positions are file offsets plus this, so they stay the same when records are moved by compact()
+    private long positionBase;
+
+    ///The position and acknowledgement of every record in the file, in order. {position, acknowledged}
+    private final ArrayDeque<long[]> records = new ArrayDeque<long[]>();
+
+    ///The messages read back when the outbox was opened, until they are taken by the PiClient
+    @NotNull
+    private List<PiMessage> recoveredMessages;
+
+    ///Frames are encoded here first so the CRC can be computed
+    private byte[] frameBuffer = new byte[1024];
+    private final CRC32 crc = new CRC32();
+
+    ///Set when the file changed since it was last forced to disk
+    private boolean dirty;
+
+    private boolean closed;
+
+    ///Forces the file to disk every syncInterval milliseconds
+    @NotNull
+    private final Thread syncThread;
+
+
+    /**
+     * Open or create an outbox with the default sync interval and maximum size.
+     *
+     * @param path  The outbox file.
+     *
+     * @throws IOException  If the file can't be opened or isn't an outbox file.
+     */
+    public PiOutbox(@NotNull File path) throws IOException {
+        this(path, DEFAULT_SYNC_INTERVAL, DEFAULT_MAX_FILE_SIZE);
+    }
+
+    /**
+     * Open or create an outbox. The records that weren't acknowledged are available from takeRecoveredMessages().
+     *
+     * @param path          The outbox file.
+     * @param syncInterval  The most milliseconds an appended message waits before it is forced to disk.
+     * @param maxFileSize   The largest size the file may grow to.
+     *
+     * @throws IOException  If the file can't be opened or isn't an outbox file.
+     */
+    public PiOutbox(@NotNull File path, int syncInterval, int maxFileSize) throws IOException {
+        if (syncInterval <= 0)
+            throw new IllegalArgumentException("The sync interval must be positive.");
+
+        this.path = path;
+        this.syncInterval = syncInterval;
+        this.maxFileSize = Math.max(maxFileSize, FILE_HEADER_SIZE + RECORD_HEADER_SIZE);
+
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+
+        try {
+            if (channel.size() < FILE_HEADER_SIZE) {
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(INITIAL_FILE_SIZE, this.maxFileSize));
+                map.putInt(0, MAGIC);
+                map.putInt(4, VERSION);
+                map.putLong(HEAD_OFFSET, FILE_HEADER_SIZE);
+                map.force();
+            }else {
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(channel.size(), Integer.MAX_VALUE));
+                if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+                    throw new IOException(path + " is not an outbox file.");
+            }
+
+            recoveredMessages = recover();
+        }catch (IOException e) {
+            file.close();
+            throw e;
+        }
+
+        syncThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                syncLoop();
+            }
+        }, "PiOutbox sync " + path.getName());
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+
+    /*
+    Public Methods
+     */
+
+
+    /**
+     * Add the message to the end of the outbox. It will be on disk within the sync interval.
+     * Messages that are already in the outbox aren't added again.
+     *
+     * @param message   The message to add.
+     *
+     * @throws IOException  If the outbox is closed or the file is at its maximum size.
+     */
+    public synchronized void append(@NotNull PiMessage message) throws IOException {
+        if (closed)
+            throw new IOException("The outbox is closed.");
+        if (message.getOutboxPosition() >= 0)
+            return;
+
+        int frameSize = message.serializedSize();
+        int recordSize = RECORD_HEADER_SIZE + frameSize;
+        ensureSpace(recordSize);
+
+        if (frameBuffer.length < frameSize)
+            frameBuffer = new byte[Math.max(frameSize, frameBuffer.length * 2)];
+        message.writeToByteBuffer(ByteBuffer.wrap(frameBuffer, 0, frameSize));
+
+        crc.reset();
+        crc.update(frameBuffer, 0, frameSize);
+
+        ByteBuffer record = map.duplicate();
+        record.position(tail);
+        record.putInt(frameSize);
+        record.putInt((int) crc.getValue());
+        record.put(frameBuffer, 0, frameSize);
+
+        long position = tail + positionBase;
+        records.addLast(new long[]{position, 0});
+        message.setOutboxPosition(position);
+
+        tail += recordSize;
+        dirty = true;
+    }
+
+    /**
+     * Mark the message as delivered so it won't be sent again after a restart.
+     * Does nothing if the message isn't in the outbox.
+     *
+     * @param message   The delivered message.
+     */
+    public synchronized void acknowledge(@NotNull PiMessage message) {
+        long position = message.getOutboxPosition();
+        if (position < 0 || closed)
+            return;
+        message.setOutboxPosition(-1);
+
+        //Messages are almost always delivered in order, so this is usually the first record
+        for (long[] record : records) {
+            if (record[0] == position) {
+                record[1] = 1;
+                break;
+            }
+        }
+
+        boolean headMoved = false;
+        while (!records.isEmpty() && records.peekFirst()[1] != 0) {
+            records.removeFirst();
+            headMoved = true;
+        }
+        if (!headMoved)
+            return;
+
+        if (records.isEmpty()) {
+            //Everything was delivered, start over at the front of the file
+            zero(FILE_HEADER_SIZE, tail);
+            setHead(FILE_HEADER_SIZE);
+            positionBase += tail - FILE_HEADER_SIZE;
+            tail = FILE_HEADER_SIZE;
+        }else {
+            setHead((int) (records.peekFirst()[0] - positionBase));
+        }
+    }
+
+    /**
+     * The messages that were in the outbox when it was opened, in the order they were added.
+     * They have no callbacks. The list is only returned once.
+     *
+     * @return  The recovered messages.
+     */
+    @NotNull
+    public synchronized List<PiMessage> takeRecoveredMessages() {
+        List<PiMessage> messages = recoveredMessages;
+        recoveredMessages = new ArrayList<PiMessage>();
+        return messages;
+    }
+
+    /**
+     * @return  The number of messages in the outbox that haven't been acknowledged.
+     */
+    public synchronized int size() {
+        return records.size();
+    }
+
+    /**
+     * @return  The number of bytes the file uses on disk.
+     */
+    public synchronized int getFileSize() {
+        return map.capacity();
+    }
+
+    /**
+     * Force every appended message to disk now instead of waiting for the sync interval.
+     */
+    public void sync() {
+        MappedByteBuffer mapToForce;
+        synchronized (this) {
+            if (closed)
+                return;
+            dirty = false;
+            mapToForce = map;
+        }
+        mapToForce.force();
+    }
+
+    /**
+     * Force the file to disk and close it. Unacknowledged messages stay in the file.
+     *
+     * @throws IOException  If the file can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        sync();
+
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            notifyAll();
+        }
+
+        channel.close();
+        file.close();
+    }
+
+
+    /*
+    Private Methods
+     */
+
+
+    /**
+     * Read the unacknowledged records from the file. Reading stops at the first record that
+     * isn't whole or doesn't match its CRC, which is where the last append before a crash was cut off.
+     */
+    @NotNull
+    private List<PiMessage> recover() throws IOException {
+        long storedHead = map.getLong(HEAD_OFFSET);
+        if (storedHead < FILE_HEADER_SIZE || storedHead > map.capacity())
+            throw new IOException(path + " has an invalid head offset.");
+
+        List<PiMessage> messages = new ArrayList<PiMessage>();
+        head = (int) storedHead;
+        int position = head;
+
+        while (position + RECORD_HEADER_SIZE <= map.capacity()) {
+            int frameSize = map.getInt(position);
+            if (frameSize <= 0 || frameSize > map.capacity() - position - RECORD_HEADER_SIZE)
+                break;
+
+            PiMessage message = readRecord(position, frameSize);
+            if (message == null)
+                break;
+
+            records.addLast(new long[]{position, 0});
+            message.setOutboxPosition(position);
+            messages.add(message);
+
+            position += RECORD_HEADER_SIZE + frameSize;
+        }
+
+        tail = position;
+
+        //Clear out a torn record so a later append can't end up next to part of it
+        if (tail + 4 <= map.capacity() && map.getInt(tail) != 0)
+            zero(tail, map.capacity());
+
+        return messages;
+    }
+
+    /**
+     * @return  The message in the record, or null if the record is corrupt.
+     */
+    private PiMessage readRecord(int position, int frameSize) {
+        if (frameBuffer.length < frameSize)
+            frameBuffer = new byte[frameSize];
+
+        ByteBuffer record = map.duplicate();
+        record.position(position + RECORD_HEADER_SIZE);
+        record.get(frameBuffer, 0, frameSize);
+
+        crc.reset();
+        crc.update(frameBuffer, 0, frameSize);
+        if ((int) crc.getValue() != map.getInt(position + 4))
+            return null;
+
+        ByteBuffer frame = ByteBuffer.wrap(frameBuffer, 0, frameSize);
+        int headerLength = frame.getShort() & 0xFFFF;
+
+        MutablePiHeader piHeader = new MutablePiHeader();
+        if (!piHeader.decodeFrom(frame, headerLength) || piHeader.getMessageLength() != frame.remaining())
+            return null;
+
+        byte[] data = new byte[frame.remaining()];
+        frame.get(data);
+
+        PiMessage message = new PiMessage(piHeader, data);
+
+        //IDs from before the restart may be handed out again
+        message.reassignMessageId();
+        return message;
+    }
+
+    /**
+     * Make room for a record at the tail, reclaiming acknowledged space or growing the file.
+     */
+    private void ensureSpace(int recordSize) throws IOException {
+        if (tail + recordSize <= map.capacity())
+            return;
+
+        compact();
+        if (tail + recordSize <= map.capacity())
+            return;
+
+        long needed = (long) tail + recordSize;
+        if (needed > maxFileSize)
+            throw new IOException("The outbox is full.");
+
+        long newSize = Math.min(Math.max(needed, (long) map.capacity() * 2), maxFileSize);
+        map.force();
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+    }
+
+    /**
+     * Move the unacknowledged records to the front of the file. Only done when the records fit
+     * in the acknowledged space in front of them, so the old copies are untouched until the
+     * head is moved and a crash part way through loses nothing.
+     */
+    private void compact() {
+        int live = tail - head;
+        int reclaimable = head - FILE_HEADER_SIZE;
+        if (reclaimable < live + RECORD_HEADER_SIZE)
+            return;
+
+        ByteBuffer source = map.duplicate();
+        source.position(head);
+        source.limit(tail);
+
+        ByteBuffer destination = map.duplicate();
+        destination.position(FILE_HEADER_SIZE);
+        destination.put(source);
+
+        //A zero length ends the records, so recovery stops before the old copies
+        zero(FILE_HEADER_SIZE + live, head);
+        map.force();
+
+        int oldHead = head;
+        setHead(FILE_HEADER_SIZE);
+        map.force();
+
+        zero(oldHead, tail);
+        positionBase += oldHead - FILE_HEADER_SIZE;
+        tail = FILE_HEADER_SIZE + live;
+    }
+
+    private void setHead(int head) {
+        this.head = head;
+        map.putLong(HEAD_OFFSET, head);
+        dirty = true;
+    }
+
+    private void zero(int from, int to) {
+        ByteBuffer buffer = map.duplicate();
+        buffer.position(from);
+        while (buffer.position() < to) {
+            buffer.put(ZEROS, 0, Math.min(ZEROS.length, to - buffer.position()));
+        }
+    }
+
+    /**
+     * Force the file to disk every syncInterval milliseconds while there are changes.
+     */
+    private void syncLoop() {
+        while (true) {
+            MappedByteBuffer mapToForce = null;
+            synchronized (this) {
+                try {
+                    wait(syncInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if (closed)
+                    return;
+
+                if (dirty) {
+                    dirty = false;
+                    mapToForce = map;
+                }
+            }
+
+            if (mapToForce != null)
+                mapToForce.force();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.kylekewley.piclient;
+
+import com.kylekewley.piclient.protocolbuffers.ParseError;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * The cause of a failed PiFuture when the server replied with a ParseError.
+ */
+public class PiParseErrorException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    ///The error the server sent
+    @NotNull
+    private final ParseError parseError;
+
+    public PiParseErrorException(@NotNull ParseError parseError) {
+        super("Error " + parseError.errorNumber + ": " + parseError.errorMessage);
+        this.parseError = parseError;
+    }
+
+    /**
+     * @return  The error the server sent.
+     */
+    @NotNull
+    public ParseError getParseError() {
+        return parseError;
+    }
+}
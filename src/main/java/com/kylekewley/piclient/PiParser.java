@@ -9,15 +9,40 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.TreeSet;
 /**
  * Created by Kyle Kewley on 6/23/14.
+ *
+ * Parsers are found through an index that is rebuilt whenever one is registered.
+ * IDs below DENSE_ID_LIMIT are looked up in an array, and larger IDs are found with a
+ * binary search over the sorted ranges, so dispatching a message doesn't lock or allocate.
  */
 public class PiParser {
 
-    ///Set of all registered parsers
+    ///Parser IDs below this are looked up directly in an array
+    private static final int DENSE_ID_LIMIT = 1024;
+
+    ///Set of all registered parsers. Guarded by this.
     private final TreeSet<CustomParserWrapper> parsers = new TreeSet<CustomParserWrapper>();
 
+    ///The lookup index for the registered parsers. Replaced, never modified, when a parser is registered.
+    @NotNull
+    private volatile ParserIndex parserIndex = new ParserIndex(parsers);
+
+    ///Counts the messages without a parser and the parse failures, or null to keep no metrics
+    @Nullable
+    private volatile PiClientMetrics metrics;
+
+
+    /**
+     * @param metrics   Counts the messages without a registered parser, the exceptions thrown by parsers
+     *                  and the replies that couldn't be decoded, or null to keep no metrics.
+     */
+    public void setMetrics(@Nullable PiClientMetrics metrics) {
+        this.metrics = metrics;
+    }
+
 
     /**
      * Parse a full message with the given piHeader that is not replying to any sent message.
@@ -26,16 +51,43 @@ public class PiParser {
      * @param piHeader      The piHeader from the data.
      */
     public void parseData(byte[] messageData, @NotNull PiHeader piHeader) {
-        CustomParserWrapper tmpWrapper = new CustomParserWrapper(piHeader.parserID);
+        parseData(ByteBuffer.wrap(messageData), new MutablePiHeader(piHeader));
+    }
 
-        CustomParserWrapper parserWrapper = findParserWrapper(tmpWrapper);
+    /**
+     * Parse a full message with the given piHeader that is not replying to any sent message.
+     *
+     * @param messageData   The messageData to parse.
+     * @param piHeader      The piHeader from the data.
+     */
+    public void parseData(byte[] messageData, @NotNull MutablePiHeader piHeader) {
+        parseData(ByteBuffer.wrap(messageData), piHeader);
+    }
+
+    /**
+     * Parse a full message with the given piHeader that is not replying to any sent message.
+     * CustomByteBufferParsers get the buffer itself, other parsers get a copy of the data.
+     *
+     * @param messageData   The messageData to parse. It is only valid until this method returns.
+     * @param piHeader      The piHeader from the data.
+     */
+    public void parseData(@NotNull ByteBuffer messageData, @NotNull MutablePiHeader piHeader) {
+        CustomParser parser = parserIndex.find(piHeader.getParserId());
 
-        if (parserWrapper != null) {
+        if (parser != null) {
             try {
-                parserWrapper.getParser().parse(messageData);
+                if (parser instanceof CustomByteBufferParser)
+                    ((CustomByteBufferParser) parser).parse(messageData);
+                else
+                    parser.parse(toByteArray(messageData));
             }catch (Exception e) {
                 System.err.println(e.getMessage());
+                countError(false);
             }
+        }else {
+            PiClientMetrics metrics = this.metrics;
+            if (metrics != null)
+                metrics.unhandledMessages.increment();
         }
     }
 
@@ -47,28 +99,55 @@ public class PiParser {
      * @param previousMessage   The message the data is replying to.
      */
     public void parseData(byte[] messageData, @NotNull PiHeader piHeader, @NotNull PiMessage previousMessage) {
+        parseData(ByteBuffer.wrap(messageData), new MutablePiHeader(piHeader), previousMessage);
+    }
+
+    /**
+     * Parse a full message with the given PiHeader that is a reply to the previousMessage.
+     *
+     * @param messageData       The messageData to parse.
+     * @param piHeader          The piHeader from the data.
+     * @param previousMessage   The message the data is replying to.
+     */
+    public void parseData(byte[] messageData, @NotNull MutablePiHeader piHeader, @NotNull PiMessage previousMessage) {
+        parseData(ByteBuffer.wrap(messageData), piHeader, previousMessage);
+    }
+
+    /**
+     * Parse a full message with the given PiHeader that is a reply to the previousMessage.
+     *
+     * @param messageData       The messageData to parse. It is only valid until this method returns.
+     * @param piHeader          The piHeader from the data.
+     * @param previousMessage   The message the data is replying to.
+     */
+    public void parseData(@NotNull ByteBuffer messageData, @NotNull MutablePiHeader piHeader, @NotNull PiMessage previousMessage) {
+        if (previousMessage.getMessageCallbacks() == null)
+            return; //Nothing is waiting for the reply
+
         Class<? extends Message> messageClass = previousMessage.getMessageCallbacks().getMessageClass();
 
-        if (piHeader.messageLength == 0) {
+        if (piHeader.getMessageLength() == 0) {
             //Just a header reply
             previousMessage.getMessageCallbacks().serverSuccessfullyParsedMessage(previousMessage);
         }else {
             //There is data with it
-            if (piHeader.flags != null && (piHeader.flags & PiMessage.HEADER_FLAG_ERROR) != 0) {
+            if (piHeader.hasFlag(PiMessage.HEADER_FLAG_ERROR)) {
                 try {
-                    ParseError error = MessageWire.getInstance().parseFrom(messageData, ParseError.class);
+                    ParseError error = MessageWire.parseFrom(messageData, ParseError.class);
                     previousMessage.getMessageCallbacks().serverReturnedErrorForMessage(error, previousMessage);
                 } catch (IOException e) {
                     //Parser didn't work, just reply with the data
+                    countError(true);
                     previousMessage.getMessageCallbacks().serverReturnedData(messageData, previousMessage);
                 }
             } else if (messageClass != null) {
                 try {
-                    Message m = MessageWire.getInstance().parseFrom(messageData, messageClass);
+                    Message m = MessageWire.parseFrom(messageData, messageClass);
 
                     previousMessage.getMessageCallbacks().serverRepliedWithMessage(m, previousMessage);
                 } catch (IOException e) {
                     //Parser didn't work, just reply with the data
+                    countError(true);
                     previousMessage.getMessageCallbacks().serverReturnedData(messageData, previousMessage);
                 }
             }else {
@@ -80,6 +159,48 @@ public class PiParser {
     }
 
 
+    /**
+     * Parse one chunk of a stream that is not replying to any sent message.
+     * CustomChunkParsers get each chunk with its place in the stream, other parsers get each chunk as a message.
+     *
+     * @param chunk     The chunk's data after the sequence number. It is only valid until this method returns.
+     * @param piHeader  The piHeader from the chunk.
+     * @param sequence  The number of the chunk in the stream.
+     */
+    public void parseChunk(@NotNull ByteBuffer chunk, @NotNull MutablePiHeader piHeader, int sequence) {
+        CustomParser parser = parserIndex.find(piHeader.getParserId());
+        if (!(parser instanceof CustomChunkParser)) {
+            parseData(chunk, piHeader);
+            return;
+        }
+
+        try {
+            ((CustomChunkParser) parser).parseChunk(chunk, piHeader.getMessageId(), sequence,
+                    piHeader.hasFlag(PiMessage.HEADER_FLAG_LAST_CHUNK));
+        }catch (Exception e) {
+            System.err.println(e.getMessage());
+            countError(false);
+        }
+    }
+
+    /**
+     * Parse one chunk of a stream that is a reply to the previousMessage.
+     *
+     * @param chunk             The chunk's data after the sequence number. It is only valid until this method returns.
+     * @param piHeader          The piHeader from the chunk.
+     * @param sequence          The number of the chunk in the stream.
+     * @param previousMessage   The message the stream is replying to.
+     */
+    public void parseChunk(@NotNull ByteBuffer chunk, @NotNull MutablePiHeader piHeader, int sequence,
+                           @NotNull PiMessage previousMessage) {
+        if (previousMessage.getMessageCallbacks() == null)
+            return; //Nothing is waiting for the reply
+
+        previousMessage.getMessageCallbacks().serverReturnedChunk(chunk, sequence,
+                piHeader.hasFlag(PiMessage.HEADER_FLAG_LAST_CHUNK), previousMessage);
+    }
+
+
     /**
      *Register a custom parser for the parserID encapsulated by the CustomParserWrapper object.
      *All incoming messages with a PiHeader.parserID in the given range
@@ -90,11 +211,15 @@ public class PiParser {
      *
      *@return   true if the range is unique, false otherwise.
      */
-    public boolean registerParserForId(@NotNull CustomParserWrapper customParser) {
+    public synchronized boolean registerParserForId(@NotNull CustomParserWrapper customParser) {
         if (customParser.getParser() == null)
             return false;
 
-        return parsers.add(customParser);
+        if (!parsers.add(customParser))
+            return false;
+
+        parserIndex = new ParserIndex(parsers);
+        return true;
     }
 
     /**
@@ -110,22 +235,117 @@ public class PiParser {
     }
 
     /**
-     * Iterates through the parsers set looking for a parser that is equal to parserWrapper.
+     * Register a custom parser for every parserID from startId to endId.
+     *
+     * @param customParser  The parser that will be registered.
+     * @param startId       The first ID to register the parser for.
+     * @param endId         The last ID to register the parser for.
+     *
+     * @return  True if the range doesn't intersect a registered range, false otherwise.
+     */
+    public boolean registerParserForIds(CustomParser customParser, int startId, int endId) {
+        if (endId < startId)
+            return false;
+
+        return registerParserForId(new CustomParserWrapper(customParser, startId, endId));
+    }
+
+    /**
+     * Get the remaining bytes in the buffer as an array without moving its position.
+     * The backing array is returned as is if it holds exactly the remaining bytes.
+     *
+     * @param data  The buffer to copy.
      *
-     * @param parserWrapper     The CustomParserWrapper to search for.
-     * @return  The equal CustomParserWrapper from the parsers set, or null if not found.
+     * @return  The remaining bytes in the buffer.
      */
-    @Nullable
-    private CustomParserWrapper findParserWrapper(CustomParserWrapper parserWrapper) {
-        if (parsers == null)
-            return null;
+    @NotNull
+    static byte[] toByteArray(@NotNull ByteBuffer data) {
+        if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0 && data.remaining() == data.array().length)
+            return data.array();
 
-        for (CustomParserWrapper compareWrapper : parsers) {
-            if (compareWrapper.equals(parserWrapper))
-                return compareWrapper;
-        }
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
 
-        return null;
+    /**
+     * @param replyDecodeError  true if a reply couldn't be decoded, false if a registered parser threw.
+     */
+    private void countError(boolean replyDecodeError) {
+        PiClientMetrics metrics = this.metrics;
+        if (metrics == null)
+            return;
+
+        if (replyDecodeError)
+            metrics.replyDecodeErrors.increment();
+        else
+            metrics.parserExceptions.increment();
     }
 
+
+    /**
+     * An immutable snapshot of the registered parsers that can be searched without locking.
+     */
+    private static final class ParserIndex {
+
+        ///The parser for each ID below DENSE_ID_LIMIT. Only as long as the highest registered ID needs.
+        private final CustomParser[] denseParsers;
+
+        ///The start and end IDs of every range, sorted. Ranges never overlap.
+        private final int[] startValues;
+        private final int[] endValues;
+
+        ///The parser for each range
+        private final CustomParser[] rangeParsers;
+
+        ParserIndex(@NotNull TreeSet<CustomParserWrapper> parsers) {
+            int count = parsers.size();
+            startValues = new int[count];
+            endValues = new int[count];
+            rangeParsers = new CustomParser[count];
+
+            int denseLength = 0;
+            int i = 0;
+            for (CustomParserWrapper wrapper : parsers) {
+                startValues[i] = wrapper.getStartValue();
+                endValues[i] = wrapper.getEndValue();
+                rangeParsers[i] = wrapper.getParser();
+                i++;
+
+                if (wrapper.getStartValue() < DENSE_ID_LIMIT && wrapper.getEndValue() >= 0)
+                    denseLength = Math.max(denseLength, Math.min(wrapper.getEndValue(), DENSE_ID_LIMIT - 1) + 1);
+            }
+
+            denseParsers = new CustomParser[denseLength];
+            for (i = 0; i < count; i++) {
+                int end = Math.min(endValues[i], denseLength - 1);
+                for (int id = Math.max(startValues[i], 0); id <= end; id++)
+                    denseParsers[id] = rangeParsers[i];
+            }
+        }
+
+        @Nullable
+        CustomParser find(int parserId) {
+            if (parserId >= 0 && parserId < denseParsers.length)
+                return denseParsers[parserId];
+            if (parserId >= 0 && parserId < DENSE_ID_LIMIT)
+                return null;
+
+            //Find the last range that starts at or before the ID
+            int low = 0;
+            int high = startValues.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (startValues[middle] <= parserId)
+                    low = middle + 1;
+                else
+                    high = middle - 1;
+            }
+
+            if (high >= 0 && endValues[high] >= parserId)
+                return rangeParsers[high];
+
+            return null;
+        }
+    }
 }
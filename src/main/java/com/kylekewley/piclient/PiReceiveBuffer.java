@@ -0,0 +1,207 @@
+package com.kylekewley.piclient;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * The direct buffer a connection reads into. It adapts its size to the traffic:
+ * it doubles when a read fills it or when a frame needs more room, and halves after a run of
+ * small reads, never going outside the minimum and maximum sizes.
+ *
+ * Bytes that haven't been consumed are kept at the front of the buffer by compact(), so a frame
+ * split between reads is finished in place and can still be handed to the parser without a copy.
+ * This class is not thread safe. It is only used from the event loop thread.
+ */
+public class PiReceiveBuffer {
+
+    ///The default starting and smallest size of the buffer
+    public static final int DEFAULT_MIN_SIZE = 16 * 1024; //16kb
+
+    ///The default largest size of the buffer
+    public static final int DEFAULT_MAX_SIZE = 1024 * 1024; //1mb
+
+    ///The smallest size the buffer can be configured with
+    public static final int MIN_SIZE = 256;
+
+    ///The number of small reads in a row before the buffer shrinks
+    private static final int SMALL_READS_BEFORE_SHRINK = 8;
+
+    ///The smallest size of the buffer
+    private final int minSize;
+
+    ///The largest size of the buffer
+    private final int maxSize;
+
+    ///The buffer, ready to be read into between calls
+    @NotNull
+    private ByteBuffer buffer;
+
+    ///Set if the last read filled the buffer
+    private boolean lastReadFilled;
+
+    ///The number of reads in a row that used less than a quarter of the buffer
+    private int smallReads;
+
+    ///The time in milliseconds of the last read that returned data
+    private long lastReadTime;
+
+
+    /**
+     * Create a buffer with the default sizes.
+     */
+    public PiReceiveBuffer() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Create a buffer that starts at the minimum size.
+     *
+     * @param minSize   The smallest size of the buffer. It is raised to MIN_SIZE if it is smaller.
+     * @param maxSize   The largest size of the buffer. It is raised to minSize if it is smaller.
+     */
+    public PiReceiveBuffer(int minSize, int maxSize) {
+        this.minSize = Math.max(minSize, MIN_SIZE);
+        this.maxSize = Math.max(maxSize, this.minSize);
+
+        buffer = ByteBuffer.allocateDirect(this.minSize);
+        lastReadTime = currentTimeMillis();
+    }
+
+
+    /*
+    Getters
+     */
+
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return  The current size of the buffer.
+     */
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return  The number of bytes read but not consumed yet.
+     */
+    public int size() {
+        return buffer.position();
+    }
+
+
+    /*
+    Public Methods
+     */
+
+
+    /**
+     * Read as much as fits from the channel after any bytes already in the buffer.
+     *
+     * @param channel   The channel to read from.
+     *
+     * @return  The number of bytes read, or -1 if the channel reached the end of the stream.
+     *
+     * @throws IOException  If the read fails.
+     */
+    public int read(@NotNull ReadableByteChannel channel) throws IOException {
+        int bytesRead = channel.read(buffer);
+
+        if (bytesRead > 0) {
+            lastReadTime = currentTimeMillis();
+            lastReadFilled = !buffer.hasRemaining();
+
+            if (bytesRead < buffer.capacity() / 4)
+                smallReads++;
+            else
+                smallReads = 0;
+        }
+
+        return bytesRead;
+    }
+
+    /**
+     * Get the buffer ready for the bytes to be consumed. compact() must be called when done.
+     *
+     * @return  The buffer, positioned at the first unconsumed byte.
+     */
+    @NotNull
+    public ByteBuffer flip() {
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Move the unconsumed bytes to the front of the buffer and resize it for the next read.
+     * Any views of the buffer handed out since flip() are no longer valid.
+     *
+     * @param requiredSize  The size the buffer needs to hold the frame that was left in it, or zero.
+     */
+    public void compact(int requiredSize) {
+        buffer.compact();
+
+        int size = buffer.capacity();
+        if (requiredSize > size || lastReadFilled) {
+            size = Math.max(requiredSize, size * 2);
+            lastReadFilled = false;
+            smallReads = 0;
+        }else if (smallReads >= SMALL_READS_BEFORE_SHRINK) {
+            size /= 2;
+            smallReads = 0;
+        }
+
+        resize(Math.max(Math.min(size, maxSize), minSize));
+    }
+
+    /**
+     * @param idleMillis    The number of milliseconds without a read that counts as idle.
+     *
+     * @return  true if the buffer is empty and hasn't been read into for idleMillis.
+     */
+    public boolean isIdle(long idleMillis) {
+        return buffer.position() == 0 && currentTimeMillis() - lastReadTime >= idleMillis;
+    }
+
+    /**
+     * Shrink the buffer back to the minimum size if it is empty.
+     */
+    public void shrinkToMinimum() {
+        if (buffer.position() == 0)
+            resize(minSize);
+    }
+
+
+    /*
+    Private Methods
+     */
+
+
+    private static long currentTimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Move the buffer contents into a new buffer of the given size. The size must fit the contents.
+     */
+    private void resize(int size) {
+        size = Math.max(size, buffer.position());
+        if (size == buffer.capacity())
+            return;
+
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect(size);
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+    }
+}
@@ -0,0 +1,117 @@
+package com.kylekewley.piclient;
+
+import java.util.Random;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * Decides how long a PiClient waits before each attempt to reconnect after it loses its connection.
+ * The delay starts at initialDelay and is multiplied by multiplier after every failed attempt, up to
+ * maxDelay. Each delay is moved randomly by up to jitter of itself, so many clients that lost the
+ * same server don't all reconnect at the same moment.
+ *
+ * Give it to PiClient.setReconnectPolicy(). The policy is immutable and can be shared by many clients.
+ */
+public class PiReconnectPolicy {
+
+    ///The default delay before the first attempt in milliseconds
+    public static final long DEFAULT_INITIAL_DELAY = 100;
+
+    ///The default longest delay between attempts in milliseconds
+    public static final long DEFAULT_MAX_DELAY = 30 * 1000;
+
+    ///The default growth of the delay after each failed attempt
+    public static final double DEFAULT_MULTIPLIER = 2.0;
+
+    ///The default fraction of each delay that is random
+    public static final double DEFAULT_JITTER = 0.2;
+
+    ///Keep trying forever
+    public static final int UNLIMITED_ATTEMPTS = -1;
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final double multiplier;
+    private final double jitter;
+    private final int maxAttempts;
+
+    private final Random random = new Random();
+
+
+    /**
+     * Create a policy with the default delays that keeps trying forever.
+     */
+    public PiReconnectPolicy() {
+        this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MULTIPLIER, DEFAULT_JITTER, UNLIMITED_ATTEMPTS);
+    }
+
+    /**
+     * @param initialDelay  The delay before the first attempt in milliseconds.
+     * @param maxDelay      The longest delay between attempts in milliseconds.
+     * @param multiplier    The growth of the delay after each failed attempt, at least 1.
+     * @param jitter        The fraction of each delay that is random, from 0 to 1.
+     * @param maxAttempts   The number of attempts before giving up, or UNLIMITED_ATTEMPTS.
+     */
+    public PiReconnectPolicy(long initialDelay, long maxDelay, double multiplier, double jitter, int maxAttempts) {
+        if (initialDelay < 0 || maxDelay < initialDelay)
+            throw new IllegalArgumentException("The delays must be positive and maxDelay must be at least initialDelay.");
+        if (multiplier < 1)
+            throw new IllegalArgumentException("The multiplier must be at least 1.");
+        if (jitter < 0 || jitter > 1)
+            throw new IllegalArgumentException("The jitter must be between 0 and 1.");
+
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.maxAttempts = maxAttempts;
+    }
+
+
+    /*
+    Getters
+     */
+
+
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+
+    /*
+    Public Methods
+     */
+
+
+    /**
+     * @param attempt   The number of attempts that already failed since the connection was lost.
+     *
+     * @return  The number of milliseconds to wait before the next attempt, or -1 to give up.
+     */
+    public long getDelay(int attempt) {
+        if (maxAttempts != UNLIMITED_ATTEMPTS && attempt >= maxAttempts)
+            return -1;
+
+        double delay = Math.min(maxDelay, initialDelay * Math.pow(multiplier, attempt));
+        if (jitter > 0)
+            delay *= 1 + jitter * (2 * random.nextDouble() - 1);
+
+        return Math.max(0, Math.min(maxDelay, Math.round(delay)));
+    }
+}
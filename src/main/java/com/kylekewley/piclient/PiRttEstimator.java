@@ -0,0 +1,161 @@
+package com.kylekewley.piclient;
+
+import java.util.Arrays;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * Keeps a rolling estimate of the round trip time to a PiServer from heartbeat Pings.
+ *
+ * The smoothed RTT and its variation are exponentially weighted moving averages, the same way TCP
+ * estimates them (RFC 6298), so they follow changes in the link without jumping on every sample.
+ * Percentiles are taken over the most recent samples. All times are in nanoseconds.
+ *
+ * Samples are added from the connection's thread and can be read from any thread.
+ */
+public class PiRttEstimator {
+
+    ///The default number of recent samples the percentiles are taken from
+    public static final int DEFAULT_WINDOW_SIZE = 128;
+
+    ///The weight of each new sample in the smoothed RTT
+    private static final double RTT_WEIGHT = 0.125;
+
+    ///The weight of each new sample in the RTT variation
+    private static final double VARIATION_WEIGHT = 0.25;
+
+    ///The most recent samples, used as a ring
+    private final long[] window;
+
+    ///The index the next sample goes in
+    private int nextIndex;
+
+    ///The number of samples in the window
+    private int windowCount;
+
+    ///The number of samples ever added
+    private long sampleCount;
+
+    private double smoothedRtt;
+    private double rttVariation;
+    private long lastRtt;
+
+
+    /**
+     * Create an estimator that takes percentiles from the last DEFAULT_WINDOW_SIZE samples.
+     */
+    public PiRttEstimator() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSize    The number of recent samples the percentiles are taken from.
+     */
+    public PiRttEstimator(int windowSize) {
+        if (windowSize <= 0)
+            throw new IllegalArgumentException("The window size must be positive.");
+
+        window = new long[windowSize];
+    }
+
+
+    /*
+    Public Methods
+     */
+
+
+    /**
+     * @param rttNanos  A measured round trip time.
+     */
+    public synchronized void addSample(long rttNanos) {
+        if (rttNanos < 0)
+            return;
+
+        if (sampleCount == 0) {
+            smoothedRtt = rttNanos;
+            rttVariation = rttNanos / 2.0;
+        }else {
+            rttVariation += VARIATION_WEIGHT * (Math.abs(smoothedRtt - rttNanos) - rttVariation);
+            smoothedRtt += RTT_WEIGHT * (rttNanos - smoothedRtt);
+        }
+
+        lastRtt = rttNanos;
+        sampleCount++;
+
+        window[nextIndex] = rttNanos;
+        nextIndex = (nextIndex + 1) % window.length;
+        if (windowCount < window.length)
+            windowCount++;
+    }
+
+    /**
+     * @return  The number of samples added since the estimator was created or reset.
+     */
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return  The smoothed round trip time, or -1 if there are no samples.
+     */
+    public synchronized long getSmoothedRtt() {
+        return sampleCount == 0 ? -1 : Math.round(smoothedRtt);
+    }
+
+    /**
+     * @return  The smoothed mean deviation of the round trip time, or -1 if there are no samples.
+     */
+    public synchronized long getRttVariation() {
+        return sampleCount == 0 ? -1 : Math.round(rttVariation);
+    }
+
+    /**
+     * @return  The most recent round trip time, or -1 if there are no samples.
+     */
+    public synchronized long getLastRtt() {
+        return sampleCount == 0 ? -1 : lastRtt;
+    }
+
+    /**
+     * A reply timeout that a healthy connection will almost never hit: the smoothed RTT plus four times its variation.
+     *
+     * @return  The suggested timeout, or -1 if there are no samples.
+     */
+    public synchronized long getSuggestedTimeout() {
+        return sampleCount == 0 ? -1 : Math.round(smoothedRtt + 4 * rttVariation);
+    }
+
+    /**
+     * @param percentile    The percentile to find, from 0 to 100.
+     *
+     * @return  The round trip time at the percentile of the recent samples, or -1 if there are no samples.
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("The percentile must be between 0 and 100.");
+
+        long[] samples;
+        synchronized (this) {
+            if (windowCount == 0)
+                return -1;
+            samples = Arrays.copyOf(window, windowCount);
+        }
+
+        //Nearest rank
+        Arrays.sort(samples);
+        int rank = (int) Math.ceil(percentile / 100 * samples.length);
+        return samples[Math.max(0, rank - 1)];
+    }
+
+    /**
+     * Forget every sample.
+     */
+    public synchronized void reset() {
+        nextIndex = 0;
+        windowCount = 0;
+        sampleCount = 0;
+        smoothedRtt = 0;
+        rttVariation = 0;
+        lastRtt = 0;
+    }
+}
@@ -1,14 +1,13 @@
 package com.kylekewley.piclient;
 
 
-import com.kylekewley.piclient.protocolbuffers.PiHeader;
-
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
 
 /**
  * Created by Kyle Kewley on 6/19/14.
@@ -16,6 +15,19 @@ import java.util.ArrayList;
  * This class keeps track of divided messages sent from the server.
  * If a message gets split up into multiple socket read calls, this class
  * will put them all together and call a parse method when we get a full message.
+ *
+ * When a full message is already in the read buffer, the parser gets a read-only view of it
+ * instead of a copy. Data is only copied for messages that are split between reads, and the
+ * parser gets a heap buffer over that copy so MessageWire can parse its array directly.
+ *
+ * Messages with the compressed flag are decompressed before they reach the parser, which sees
+ * the uncompressed length and no compressed flag in the header.
+ *
+ * Streams sent in chunks are handed to the parser one chunk at a time, without the sequence
+ * number. A sent message stays waiting for a reply until the last chunk of its reply arrives.
+ *
+ * The reply to a message with a reply file is written to the file instead. When the reply is
+ * split between reads, each part is written as it arrives, so it is never built in memory.
  */
 public class PiServerManager {
 
@@ -28,6 +40,9 @@ public class PiServerManager {
         MESSAGE_STATUS_PARTIAL_MESSAGE
     }
 
+    ///The largest partialMessageBuffer or decompression buffer kept between messages. MessageWire uses the same limit.
+    static final int MAX_KEPT_MESSAGE_BUFFER_SIZE = 64 * 1024; //64kb
+
     /*
     Instance Variables
      */
@@ -39,25 +54,49 @@ public class PiServerManager {
     ///Used to store the headerLength after enough data is parsed.
     private int headerLength;
 
-    ///Used for parsing the headerLength prefix
-    private ByteBuffer headerLengthBuffer = ByteBuffer.allocate(PiMessage.HEADER_PREFIX_SIZE);
+    ///Used for parsing the headerLength prefix when it is split between reads
+    private final ByteBuffer headerLengthBuffer = ByteBuffer.allocate(PiMessage.HEADER_PREFIX_SIZE);
+
+    ///Used to store the PiHeader from the message. It is reused for every message.
+    private final MutablePiHeader piHeader = new MutablePiHeader();
+
+    ///Used to put the header back together when it is split between reads. Grows to fit the largest header.
+    @Nullable
+    private ByteBuffer headerBuffer;
+
+    ///Used to put the message data back together when it is split between reads. Grows to fit the largest split message.
+    @Nullable
+    private ByteBuffer partialMessageBuffer;
 
-    ///Used to store the PiHeader from the message.
-    private PiHeader piHeader;
+    ///Holds the compressed data of a message while it is decompressed. Grows to fit the largest compressed message.
+    @Nullable
+    private byte[] compressedBuffer;
 
-    ///Used to store the message data after we find out it's length.
+    ///Holds the decompressed data of a message. Grows to fit the largest decompressed message.
     @Nullable
-    private byte[] messageData;
+    private byte[] decompressedBuffer;
 
-    ///The number of bytes actually stored for the header
-    private int currentHeaderLength;
+    ///The sent message whose reply file the current message is being written to, or null
+    @Nullable
+    private PiMessage fileReplyMessage;
 
-    ///The number of bytes stored for the actual message
+    ///The number of bytes stored in partialMessageBuffer for the current message
     private int currentMessageLength;
 
+    ///The size of the incomplete frame left in the buffer by the last call, or zero
+    private int retainedFrameSize;
+
     ///The PiParser that will handle complete messages
     private PiParser piParser;
 
+    ///Runs the parser on another thread, or null to run it on the calling thread
+    @Nullable
+    private PiCallbackDispatcher callbackDispatcher;
+
+    ///Counts the frames and records the reply latencies, or null to keep no metrics
+    @Nullable
+    private PiClientMetrics metrics;
+
 
     /**
      * Initialize the PiServerManager with a PiParser.
@@ -69,106 +108,472 @@ public class PiServerManager {
     private PiServerManager() {}
 
 
+    /**
+     * @param callbackDispatcher    Runs the parser for each message on another thread, or null to run it
+     *                              on the thread that calls serverSentMessage. Message data is copied
+     *                              when a dispatcher is used, since the buffer can't be held on to.
+     */
+    public void setCallbackDispatcher(@Nullable PiCallbackDispatcher callbackDispatcher) {
+        this.callbackDispatcher = callbackDispatcher;
+    }
+
+    /**
+     * @param metrics   Counts the frames and header errors and records the time from writing each request
+     *                  to reading its reply, or null to keep no metrics.
+     */
+    public void setMetrics(@Nullable PiClientMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return  The size of the frame the last serverSentMessage call left in the buffer, or zero if it didn't leave one.
+     */
+    public int getRetainedFrameSize() {
+        return retainedFrameSize;
+    }
+
+
     /**
      * Called when the the socket has data to read.
      *
      * @param message       The message from the socket.
-     * @param sentMessages  The list of messages that have been sent to the server.
+     * @param sentMessages  The messages that have been sent to the server and are waiting for a reply,
+     *                      keyed by message ID. A message is removed once its reply is delivered.
      *
      * @return  true if the message was parsed successfully, false if there was an error parsing out a header.
      */
-    public boolean serverSentMessage(@NotNull ByteBuffer message, @NotNull ArrayList<PiMessage> sentMessages) {
-        if (messageStatus == MessageStatus.MESSAGE_STATUS_NONE) {
-            //Parse the headerLength
-            while (headerLengthBuffer.hasRemaining() &&
-                    message.hasRemaining()) {
-                headerLengthBuffer.put(message.get());
+    public boolean serverSentMessage(@NotNull ByteBuffer message, @NotNull IntObjectHashMap<PiMessage> sentMessages) {
+        return serverSentMessage(message, sentMessages, 0);
+    }
+
+    /**
+     * Called when the the socket has data to read.
+     *
+     * A frame that hasn't fully arrived is left in the buffer instead of being copied, as long as the
+     * whole frame is no bigger than maxRetainedFrameSize. getRetainedFrameSize() then returns the size
+     * of the frame, and the caller should keep the bytes, read more after them and call this again.
+     *
+     * @param message               The message from the socket.
+     * @param sentMessages          The messages that have been sent to the server and are waiting for a reply,
+     *                              keyed by message ID. A message is removed once its reply is delivered.
+     * @param maxRetainedFrameSize  The size of the largest frame the caller can hold, or zero to copy every split frame.
+     *
+     * @return  true if the message was parsed successfully, false if there was an error parsing out a header.
+     */
+    public boolean serverSentMessage(@NotNull ByteBuffer message, @NotNull IntObjectHashMap<PiMessage> sentMessages,
+                                     int maxRetainedFrameSize) {
+        retainedFrameSize = 0;
+
+        if (messageStatus == MessageStatus.MESSAGE_STATUS_NONE && headerLengthBuffer.position() == 0 &&
+                maxRetainedFrameSize > 0) {
+            int frameStart = message.position();
+
+            if (message.remaining() < PiMessage.HEADER_PREFIX_SIZE) {
+                //Wait for the rest of the prefix
+                retainedFrameSize = PiMessage.HEADER_PREFIX_SIZE;
+                return true;
             }
 
-            if (!headerLengthBuffer.hasRemaining()) {
-                //Parse out the header
-                headerLengthBuffer.flip();
-                if (PiMessage.HEADER_PREFIX_SIZE == 1) {
-                    //Byte
-                    headerLength = headerLengthBuffer.get();
-                }else if (PiMessage.HEADER_PREFIX_SIZE == 2) {
-                    //Short
-                    headerLength = headerLengthBuffer.getShort();
-                }else if (PiMessage.HEADER_PREFIX_SIZE == 4) {
-                    //Int
-                    headerLength = headerLengthBuffer.getInt();
+            int peekedHeaderLength = readHeaderLength(message);
+            int headerEnd = PiMessage.HEADER_PREFIX_SIZE + peekedHeaderLength;
+
+            if (message.remaining() < peekedHeaderLength && headerEnd <= maxRetainedFrameSize) {
+                //Wait for the rest of the header
+                message.position(frameStart);
+                retainedFrameSize = headerEnd;
+                return true;
+            }else if (message.remaining() >= peekedHeaderLength) {
+                //The whole header is in the buffer, decode it in place
+                headerLength = peekedHeaderLength;
+                if (!piHeader.decodeFrom(message, headerLength) || piHeader.getMessageLength() < 0) {
+                    if (metrics != null)
+                        metrics.headerDecodeErrors.increment();
+                    return false;
+                }
+
+                long frameSize = (long) headerEnd + piHeader.getMessageLength();
+                if (message.remaining() < piHeader.getMessageLength() && frameSize <= maxRetainedFrameSize &&
+                        findFileReply(sentMessages) == null) {
+                    //Wait for the rest of the message
+                    message.position(frameStart);
+                    retainedFrameSize = (int) frameSize;
+                    return true;
                 }
 
+                messageStatus = MessageStatus.MESSAGE_STATUS_PARTIAL_MESSAGE;
+            }else {
+                //The header is too big to hold, copy it as it comes in
+                message.position(frameStart);
+            }
+        }
+
+        if (messageStatus == MessageStatus.MESSAGE_STATUS_NONE) {
+            if (headerLengthBuffer.position() == 0 && message.remaining() >= PiMessage.HEADER_PREFIX_SIZE) {
+                //The whole prefix is in the buffer, read it in place
+                headerLength = readHeaderLength(message);
                 messageStatus = MessageStatus.MESSAGE_STATUS_PARTIAL_HEADER;
+            }else {
+                //Parse the headerLength
+                while (headerLengthBuffer.hasRemaining() &&
+                        message.hasRemaining()) {
+                    headerLengthBuffer.put(message.get());
+                }
+
+                if (!headerLengthBuffer.hasRemaining()) {
+                    //Parse out the header
+                    headerLengthBuffer.flip();
+                    headerLength = readHeaderLength(headerLengthBuffer);
+                    headerLengthBuffer.clear();
+
+                    messageStatus = MessageStatus.MESSAGE_STATUS_PARTIAL_HEADER;
+                }
             }
         }
 
         if (messageStatus == MessageStatus.MESSAGE_STATUS_PARTIAL_HEADER) {
-            if (messageData == null) {
-                messageData = new byte[headerLength];
-                currentHeaderLength = 0;
+            boolean headerParsed;
+
+            if ((headerBuffer == null || headerBuffer.position() == 0) && message.remaining() >= headerLength) {
+                //The whole header is in the buffer, decode it in place
+                headerParsed = piHeader.decodeFrom(message, headerLength);
+            }else {
+                //Now merge stuff
+                if (headerBuffer == null || headerBuffer.capacity() < headerLength) {
+                    ByteBuffer newBuffer = ByteBuffer.allocate(headerLength);
+                    if (headerBuffer != null) {
+                        headerBuffer.flip();
+                        newBuffer.put(headerBuffer);
+                    }
+                    headerBuffer = newBuffer;
+                }
 
-            }
+                int copyLength = headerLength - headerBuffer.position();
 
-            //Now merge stuff
-            int copyLength = headerLength - currentHeaderLength;
+                if (copyLength > message.remaining())
+                    copyLength = message.remaining();
 
-            if (copyLength > message.remaining())
-                copyLength = message.remaining();
+                int limit = message.limit();
+                message.limit(message.position() + copyLength);
+                headerBuffer.put(message);
+                message.limit(limit);
 
-            message.get(messageData, currentHeaderLength, copyLength);
+                if (headerBuffer.position() < headerLength)
+                    return true; //Wait for the rest of the header
 
-            currentHeaderLength += copyLength;
+                headerBuffer.flip();
+                headerParsed = piHeader.decodeFrom(headerBuffer, headerLength);
+                headerBuffer.clear();
+            }
 
-            if (currentHeaderLength == headerLength) {
-                //Got the full header
-                try {
-                    piHeader = MessageWire.getInstance().parseFrom(messageData, PiHeader.class);
-                } catch (IOException e) {
-                    return false;
-                }
-                messageData = null;
-                messageStatus = MessageStatus.MESSAGE_STATUS_PARTIAL_MESSAGE;
+            if (!headerParsed || piHeader.getMessageLength() < 0) {
+                //Can't find the message length, start over with the next data
+                messageStatus = MessageStatus.MESSAGE_STATUS_NONE;
+                headerLengthBuffer.clear();
+                if (metrics != null)
+                    metrics.headerDecodeErrors.increment();
+                return false;
             }
+
+            messageStatus = MessageStatus.MESSAGE_STATUS_PARTIAL_MESSAGE;
         }
 
         if (messageStatus == MessageStatus.MESSAGE_STATUS_PARTIAL_MESSAGE) {
-            if (messageData == null) {
-                messageData = new byte[piHeader.messageLength];
-                currentMessageLength = 0;
-            }
+            int messageLength = piHeader.getMessageLength();
+            ByteBuffer messageData;
+
+            //A split reply for a reply file is written as it arrives instead of being put back together
+            if (currentMessageLength == 0 && message.remaining() < messageLength)
+                fileReplyMessage = findFileReply(sentMessages);
+            if (fileReplyMessage != null)
+                return writeToReplyFile(message, sentMessages);
+
+            if (currentMessageLength == 0 && message.remaining() >= messageLength) {
+                //The whole message is in the buffer, hand the parser a view of it
+                int limit = message.limit();
+                message.limit(message.position() + messageLength);
+                messageData = message.slice().asReadOnlyBuffer();
+                message.position(message.limit());
+                message.limit(limit);
+            }else {
+                //The message is split between reads, put it back together
+                if (partialMessageBuffer == null || partialMessageBuffer.capacity() < messageLength) {
+                    partialMessageBuffer = ByteBuffer.allocate(messageLength);
+                }
 
-            int copyLength = piHeader.messageLength - currentMessageLength;
+                if (currentMessageLength == 0) {
+                    partialMessageBuffer.clear();
+                    partialMessageBuffer.limit(messageLength);
+                }
 
-            if (copyLength > message.remaining())
-                copyLength = message.remaining();
+                int copyLength = messageLength - currentMessageLength;
 
-            message.get(messageData, currentMessageLength, copyLength);
+                if (copyLength > message.remaining())
+                    copyLength = message.remaining();
 
-            currentMessageLength += copyLength;
+                int limit = message.limit();
+                message.limit(message.position() + copyLength);
+                partialMessageBuffer.put(message);
+                message.limit(limit);
 
-            if (currentMessageLength == piHeader.messageLength) {
-                //Got the full message
-                messageStatus = MessageStatus.MESSAGE_STATUS_NONE;
+                currentMessageLength += copyLength;
 
-                PiMessage previousMessage = null;
-                for (PiMessage piMessage : sentMessages) {
-                    if (piMessage.getMessageId() == piHeader.messageID) {
-                        previousMessage = piMessage;
-                    }
+                if (currentMessageLength < messageLength)
+                    return true; //Wait for the rest of the message
+
+                partialMessageBuffer.flip();
+                messageData = partialMessageBuffer.duplicate();
+                currentMessageLength = 0;
+
+                //Don't hold on to the memory from a large transfer
+                if (partialMessageBuffer.capacity() > MAX_KEPT_MESSAGE_BUFFER_SIZE)
+                    partialMessageBuffer = null;
+            }
+
+            //Got the full message
+            messageStatus = MessageStatus.MESSAGE_STATUS_NONE;
+
+            if (piHeader.hasFlag(PiMessage.HEADER_FLAG_COMPRESSED)) {
+                messageData = decompress(messageData);
+                if (messageData == null) {
+                    //The request stays waiting, its reply timeout will report it
+                    if (metrics != null)
+                        metrics.decompressionErrors.increment();
+                    return false;
                 }
+            }
 
-                if (previousMessage == null) {
-                    piParser.parseData(messageData, piHeader);
-                }else {
-                    piParser.parseData(messageData, piHeader, previousMessage);
+            int sequence = -1;
+            if (piHeader.hasFlag(PiMessage.HEADER_FLAG_CHUNK)) {
+                if (messageData.remaining() < PiMessage.CHUNK_SEQUENCE_SIZE) {
+                    if (metrics != null)
+                        metrics.headerDecodeErrors.increment();
+                    return false;
                 }
 
-                headerLengthBuffer = ByteBuffer.allocate(PiMessage.HEADER_PREFIX_SIZE);
-                messageData = null;
+                sequence = messageData.getInt();
+                messageData = messageData.slice();
             }
+            boolean moreChunks = sequence >= 0 && !piHeader.hasFlag(PiMessage.HEADER_FLAG_LAST_CHUNK);
+
+            //A stream reply keeps the message waiting until its last chunk
+            PiMessage previousMessage = null;
+            if (piHeader.hasMessageId()) {
+                if (moreChunks)
+                    previousMessage = sentMessages.get(piHeader.getMessageId());
+                else
+                    previousMessage = sentMessages.remove(piHeader.getMessageId());
+            }
+            if (previousMessage != null)
+                previousMessage.cancelReplyTimeout();
+
+            if (metrics != null) {
+                metrics.framesReceived.increment();
+                if (!moreChunks && previousMessage != null && previousMessage.getSentTime() != 0)
+                    metrics.requestLatency.record(System.nanoTime() - previousMessage.getSentTime());
+            }
+
+            if (previousMessage != null && previousMessage.getReplyFile() != null &&
+                    !piHeader.hasFlag(PiMessage.HEADER_FLAG_ERROR)) {
+                previousMessage.writeReplyData(messageData);
+                if (!moreChunks)
+                    deliverReplyFile(previousMessage);
+            }else if (callbackDispatcher != null) {
+                dispatchMessage(callbackDispatcher, messageData, sequence, previousMessage);
+            }else if (sequence >= 0 && previousMessage == null) {
+                piParser.parseChunk(messageData, piHeader, sequence);
+            }else if (sequence >= 0) {
+                piParser.parseChunk(messageData, piHeader, sequence, previousMessage);
+            }else if (previousMessage == null) {
+                piParser.parseData(messageData, piHeader);
+            }else {
+                piParser.parseData(messageData, piHeader, previousMessage);
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * @return  The sent message the current message replies to if its data should be written to
+     *          a reply file, or null. Compressed and ParseError replies are handled in memory.
+     */
+    @Nullable
+    private PiMessage findFileReply(@NotNull IntObjectHashMap<PiMessage> sentMessages) {
+        if (!piHeader.hasMessageId() || piHeader.hasFlag(PiMessage.HEADER_FLAG_ERROR) ||
+                piHeader.hasFlag(PiMessage.HEADER_FLAG_COMPRESSED))
+            return null;
+
+        PiMessage previousMessage = sentMessages.get(piHeader.getMessageId());
+        if (previousMessage == null || previousMessage.getReplyFile() == null)
+            return null;
+
+        //The reply has started, a long transfer shouldn't time out part way through
+        previousMessage.cancelReplyTimeout();
+        return previousMessage;
+    }
+
+    /**
+     * Write the part of the current message in the buffer to the fileReplyMessage's reply file.
+     *
+     * @return  true if the message was written successfully, false if a chunk was too short for its sequence number.
+     */
+    private boolean writeToReplyFile(@NotNull ByteBuffer message, @NotNull IntObjectHashMap<PiMessage> sentMessages) {
+        PiMessage previousMessage = fileReplyMessage;
+        int messageLength = piHeader.getMessageLength();
+        boolean chunk = piHeader.hasFlag(PiMessage.HEADER_FLAG_CHUNK);
+
+        int copyLength = messageLength - currentMessageLength;
+        if (copyLength > message.remaining())
+            copyLength = message.remaining();
+
+        //A chunk's sequence number isn't part of the data, TCP already keeps the chunks in order
+        int skip = 0;
+        if (chunk && currentMessageLength < PiMessage.CHUNK_SEQUENCE_SIZE)
+            skip = Math.min(copyLength, PiMessage.CHUNK_SEQUENCE_SIZE - currentMessageLength);
+        message.position(message.position() + skip);
+
+        int limit = message.limit();
+        message.limit(message.position() + copyLength - skip);
+        previousMessage.writeReplyData(message);
+        message.limit(limit);
+
+        currentMessageLength += copyLength;
+        if (currentMessageLength < messageLength)
+            return true; //Wait for the rest of the message
+
+        //Got the full message
+        messageStatus = MessageStatus.MESSAGE_STATUS_NONE;
+        currentMessageLength = 0;
+        fileReplyMessage = null;
+
+        if (chunk && messageLength < PiMessage.CHUNK_SEQUENCE_SIZE) {
+            if (metrics != null)
+                metrics.headerDecodeErrors.increment();
+            return false;
+        }
+
+        boolean moreChunks = chunk && !piHeader.hasFlag(PiMessage.HEADER_FLAG_LAST_CHUNK);
+        if (!moreChunks)
+            sentMessages.remove(piHeader.getMessageId());
+
+        if (metrics != null) {
+            metrics.framesReceived.increment();
+            if (!moreChunks && previousMessage.getSentTime() != 0)
+                metrics.requestLatency.record(System.nanoTime() - previousMessage.getSentTime());
         }
 
+        if (!moreChunks)
+            deliverReplyFile(previousMessage);
         return true;
     }
+
+    /**
+     * Tell the message's callbacks that its reply is in its reply file, or that it couldn't be written.
+     */
+    private void deliverReplyFile(@NotNull final PiMessage message) {
+        final PiMessageCallbacks callbacks = message.getMessageCallbacks();
+        if (callbacks == null)
+            return;
+
+        final FileChannel replyFile = message.getReplyFile();
+        final long position = message.getReplyFilePosition();
+        final long length = message.getReplyBytesWritten();
+        final IOException error = message.getReplyFileError();
+
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                if (error != null)
+                    callbacks.replyFileFailed(error, message);
+                else
+                    callbacks.serverReturnedFile(replyFile, position, length, message);
+            }
+        };
+
+        if (callbackDispatcher != null)
+            callbackDispatcher.dispatch(piHeader.getParserId(), task);
+        else
+            task.run();
+    }
+
+    /**
+     * Decompress the message data and update piHeader to match it.
+     *
+     * @return  A view of the decompressed data, valid until the next compressed message, or null if it is corrupt.
+     */
+    @Nullable
+    private ByteBuffer decompress(@NotNull ByteBuffer messageData) {
+        int length = messageData.remaining();
+        if (compressedBuffer == null || compressedBuffer.length < length)
+            compressedBuffer = new byte[length];
+        messageData.get(compressedBuffer, 0, length);
+
+        byte[] output;
+        int uncompressedLength;
+        try {
+            uncompressedLength = PiCompressor.getUncompressedLength(compressedBuffer, 0, length);
+            if (decompressedBuffer == null || decompressedBuffer.length < uncompressedLength)
+                decompressedBuffer = new byte[uncompressedLength];
+
+            output = decompressedBuffer;
+            PiCompressor.decompress(compressedBuffer, 0, length, output);
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            //Don't hold on to the memory from a large transfer
+            if (compressedBuffer.length > MAX_KEPT_MESSAGE_BUFFER_SIZE)
+                compressedBuffer = null;
+        }
+
+        if (decompressedBuffer.length > MAX_KEPT_MESSAGE_BUFFER_SIZE)
+            decompressedBuffer = null;
+
+        piHeader.setFlags(piHeader.getFlags() & ~(int) PiMessage.HEADER_FLAG_COMPRESSED);
+        piHeader.setMessageLength(uncompressedLength);
+        return ByteBuffer.wrap(output, 0, uncompressedLength).slice();
+    }
+
+    /**
+     * Copy the message and hand it to the dispatcher, ordered by its parser ID.
+     *
+     * @param sequence  The number of the chunk in its stream, or -1 if the message isn't a chunk.
+     */
+    private void dispatchMessage(@NotNull PiCallbackDispatcher dispatcher, @NotNull ByteBuffer messageData,
+                                 final int sequence, @Nullable final PiMessage previousMessage) {
+        final byte[] data = PiParser.toByteArray(messageData);
+        final MutablePiHeader header = new MutablePiHeader();
+        header.set(piHeader);
+
+        dispatcher.dispatch(header.getParserId(), new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                if (sequence >= 0 && previousMessage == null)
+                    piParser.parseChunk(buffer, header, sequence);
+                else if (sequence >= 0)
+                    piParser.parseChunk(buffer, header, sequence, previousMessage);
+                else if (previousMessage == null)
+                    piParser.parseData(buffer, header);
+                else
+                    piParser.parseData(buffer, header, previousMessage);
+            }
+        });
+    }
+
+    /**
+     * Read the header length prefix from the buffer.
+     */
+    private static int readHeaderLength(@NotNull ByteBuffer buffer) {
+        if (PiMessage.HEADER_PREFIX_SIZE == 1) {
+            //Byte
+            return buffer.get();
+        }else if (PiMessage.HEADER_PREFIX_SIZE == 2) {
+            //Short
+            return buffer.getShort();
+        }else {
+            //Int
+            return buffer.getInt();
+        }
+    }
 }
@@ -0,0 +1,89 @@
+package com.kylekewley.piclient;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * A counter that many threads can add to without fighting over one cache line, in the spirit of
+ * Java 8's LongAdder. Each thread adds to one of several cells picked from its thread ID, and
+ * sum() adds the cells up. With two cells for every processor, threads running at the same time
+ * rarely share one.
+ *
+ * Adding is cheap from any thread. sum() is only exact while nobody is adding.
+ */
+public class PiStripedCounter {
+
+    ///The longs between used cells, so each cell has its own 128 byte cache line
+    private static final int CELL_PADDING = 16;
+
+    ///The number of cells, a power of two
+    private static final int CELL_COUNT = cellCount();
+
+    private final AtomicLongArray cells = new AtomicLongArray(CELL_COUNT * CELL_PADDING);
+
+
+    /*
+    Public Methods
+     */
+
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * @param delta The amount to add, which may be negative.
+     */
+    public void add(long delta) {
+        cells.getAndAdd(cellIndex(Thread.currentThread().getId()), delta);
+    }
+
+    /**
+     * @return  The total of everything added.
+     */
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < CELL_COUNT; i++)
+            sum += cells.get(i * CELL_PADDING);
+        return sum;
+    }
+
+    /**
+     * Set the counter back to zero. Adds that happen at the same time may be lost.
+     */
+    public void reset() {
+        for (int i = 0; i < CELL_COUNT; i++)
+            cells.set(i * CELL_PADDING, 0);
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+
+
+    /*
+    Private Methods
+     */
+
+
+    /**
+     * Spread the thread IDs, which are usually consecutive, over the cells.
+     */
+    private static int cellIndex(long threadId) {
+        int h = (int) threadId * 0x9E3779B9;
+        return ((h ^ h >>> 16) & (CELL_COUNT - 1)) * CELL_PADDING;
+    }
+
+    /**
+     * @return  Twice the number of processors rounded up to a power of two, at most 64.
+     */
+    private static int cellCount() {
+        int processors = Math.min(64, 2 * Runtime.getRuntime().availableProcessors());
+        int count = 1;
+        while (count < processors)
+            count <<= 1;
+        return count;
+    }
+}
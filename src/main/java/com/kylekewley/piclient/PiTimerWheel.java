@@ -0,0 +1,318 @@
+package com.kylekewley.piclient;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Created by Kyle Kewley on 10/17/26.
+ *
+ * A hashed timer wheel used by the PiClientEventLoop for connection and reply timeouts.
+ *
+ * Time is split into ticks, and each timeout is linked into the bucket for the tick it expires on.
+ * Scheduling and cancelling are O(1), and each tick only looks at one bucket, so hundreds of thousands
+ * of pending timeouts cost one small node each instead of an executor entry each.
+ * Timeouts fire up to one tick late.
+ *
+ * This class is not thread safe. It is only used from the event loop thread.
+ */
+public class PiTimerWheel {
+
+    ///The default length of a tick in milliseconds
+    public static final long DEFAULT_TICK_MILLIS = 10;
+
+    ///The default number of buckets in the wheel. Must be a power of two.
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    /**
+     * The work done when a timeout expires.
+     */
+    public interface TimerTask {
+
+        /**
+         * Called on the event loop thread when the timeout expires.
+         *
+         * @param timeout   The timeout that expired.
+         */
+        void run(@NotNull Timeout timeout);
+    }
+
+    /**
+     * A scheduled timeout. It is linked directly into its wheel bucket.
+     */
+    public static final class Timeout {
+        ///The wheel the timeout belongs to
+        private final PiTimerWheel wheel;
+
+        ///The task to run when the timeout expires
+        private final TimerTask task;
+
+        ///An object handed to the task, so one task can serve many timeouts
+        @Nullable
+        private final Object attachment;
+
+        ///The number of full turns of the wheel left before the timeout expires
+        private long remainingRounds;
+
+        ///The bucket the timeout is in, or -1 if it is not in a bucket
+        private int bucket = -1;
+
+        ///Set when the timeout is cancelled
+        private boolean cancelled;
+
+        ///Set when the timeout has expired
+        private boolean expired;
+
+        ///The neighbours in the bucket list
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(PiTimerWheel wheel, TimerTask task, @Nullable Object attachment) {
+            this.wheel = wheel;
+            this.task = task;
+            this.attachment = attachment;
+        }
+
+        /**
+         * @return  The object that was given to schedule().
+         */
+        @Nullable
+        public Object getAttachment() {
+            return attachment;
+        }
+
+        /**
+         * @return  true if cancel() was called before the timeout expired.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return  true if the timeout expired and its task was run.
+         */
+        public boolean isExpired() {
+            return expired;
+        }
+
+        /**
+         * Stop the timeout from expiring. Does nothing if it already expired.
+         */
+        public void cancel() {
+            if (cancelled || expired)
+                return;
+
+            cancelled = true;
+            wheel.remove(this);
+        }
+    }
+
+
+    /*
+    Instance Variables
+     */
+
+    ///The length of a tick in milliseconds
+    private final long tickMillis;
+
+    ///The first timeout in each bucket
+    private final Timeout[] buckets;
+
+    ///buckets.length - 1
+    private final int mask;
+
+    ///The time in milliseconds that tick zero started
+    private final long startTime;
+
+    ///The next tick to process
+    private long currentTick;
+
+    ///The number of timeouts in the wheel
+    private int pendingTimeouts;
+
+    ///Timeouts from the current tick that are waiting to have their task run
+    @Nullable
+    private Timeout expiring;
+
+
+    /**
+     * Create a wheel with the default tick length and size.
+     */
+    public PiTimerWheel() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Create a wheel with the given tick length and size.
+     *
+     * @param tickMillis    The length of a tick in milliseconds.
+     * @param wheelSize     The number of buckets. It will be rounded up to a power of two.
+     */
+    public PiTimerWheel(long tickMillis, int wheelSize) {
+        if (tickMillis <= 0)
+            throw new IllegalArgumentException("The tick length must be positive.");
+
+        int size = 1;
+        while (size < wheelSize)
+            size <<= 1;
+
+        this.tickMillis = tickMillis;
+        buckets = new Timeout[size];
+        mask = size - 1;
+        startTime = currentTimeMillis();
+    }
+
+
+    /*
+    Public Methods
+     */
+
+
+    /**
+     * Schedule the task to run after the delay.
+     *
+     * @param task          The task to run.
+     * @param attachment    An object handed to the task through Timeout.getAttachment().
+     * @param delayMillis   The number of milliseconds to wait.
+     *
+     * @return  The timeout, which can be cancelled.
+     */
+    @NotNull
+    public Timeout schedule(@NotNull TimerTask task, @Nullable Object attachment, long delayMillis) {
+        long now = currentTimeMillis();
+        if (pendingTimeouts == 0)
+            catchUp(now);
+
+        //Round up so the timeout never fires early
+        long expireTick = (now - startTime + Math.max(delayMillis, 0) + tickMillis - 1) / tickMillis;
+        if (expireTick < currentTick)
+            expireTick = currentTick;
+
+        Timeout timeout = new Timeout(this, task, attachment);
+        timeout.remainingRounds = (expireTick - currentTick) / buckets.length;
+        add(timeout, (int) (expireTick & mask));
+
+        return timeout;
+    }
+
+    /**
+     * Run the tasks for every timeout that has expired.
+     *
+     * @return  The number of milliseconds until the next tick with a timeout in its bucket,
+     * or -1 if there are no pending timeouts.
+     */
+    public long expireTimeouts() {
+        long now = currentTimeMillis();
+
+        while (pendingTimeouts > 0 && startTime + currentTick * tickMillis <= now) {
+            processTick();
+        }
+
+        if (pendingTimeouts == 0)
+            return -1;
+
+        //Sleep through the empty buckets instead of waking up every tick
+        long nextTick = currentTick;
+        while (buckets[(int) (nextTick & mask)] == null)
+            nextTick++;
+
+        return Math.max(1, startTime + nextTick * tickMillis - now);
+    }
+
+    /**
+     * @return  The number of timeouts waiting to expire.
+     */
+    public int size() {
+        return pendingTimeouts;
+    }
+
+
+    /*
+    Private Methods
+     */
+
+
+    private static long currentTimeMillis() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Skip the ticks that passed while the wheel was empty.
+     */
+    private void catchUp(long now) {
+        long nowTick = (now - startTime) / tickMillis;
+        if (nowTick > currentTick)
+            currentTick = nowTick;
+    }
+
+    /**
+     * Expire the timeouts in the current bucket that are on their last round, and move to the next tick.
+     */
+    private void processTick() {
+        int index = (int) (currentTick & mask);
+        currentTick++;
+
+        Timeout timeout = buckets[index];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+
+            if (timeout.remainingRounds <= 0) {
+                //Move it to the expiring list so tasks can safely cancel other timeouts
+                remove(timeout);
+                timeout.next = expiring;
+                expiring = timeout;
+            }else {
+                timeout.remainingRounds--;
+            }
+
+            timeout = next;
+        }
+
+        while (expiring != null) {
+            timeout = expiring;
+            expiring = timeout.next;
+            timeout.next = null;
+
+            if (timeout.cancelled)
+                continue;
+
+            timeout.expired = true;
+            try {
+                timeout.task.run(timeout);
+            }catch (Exception e) {
+                System.err.println("Error running timeout task: " + e.getMessage());
+            }
+        }
+    }
+
+    private void add(@NotNull Timeout timeout, int index) {
+        timeout.bucket = index;
+        timeout.previous = null;
+        timeout.next = buckets[index];
+        if (buckets[index] != null)
+            buckets[index].previous = timeout;
+        buckets[index] = timeout;
+
+        pendingTimeouts++;
+    }
+
+    private void remove(@NotNull Timeout timeout) {
+        if (timeout.bucket < 0) {
+            //Already waiting in the expiring list, the cancelled flag is enough
+            return;
+        }
+
+        if (timeout.previous != null)
+            timeout.previous.next = timeout.next;
+        else
+            buckets[timeout.bucket] = timeout.next;
+
+        if (timeout.next != null)
+            timeout.next.previous = timeout.previous;
+
+        timeout.bucket = -1;
+        timeout.previous = null;
+        timeout.next = null;
+
+        pendingTimeouts--;
+    }
+}
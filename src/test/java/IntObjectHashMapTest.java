@@ -0,0 +1,84 @@
+import com.kylekewley.piclient.IntObjectHashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class IntObjectHashMapTest {
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        IntObjectHashMap<String> map = new IntObjectHashMap<String>();
+
+        Assert.assertNull(map.put(1, "one"));
+        Assert.assertNull(map.put(0, "zero"));
+        Assert.assertNull(map.put(-5, "minus five"));
+        Assert.assertEquals("one", map.put(1, "uno"));
+
+        Assert.assertEquals(3, map.size());
+        Assert.assertEquals("uno", map.get(1));
+        Assert.assertEquals("zero", map.get(0));
+        Assert.assertEquals("minus five", map.get(-5));
+        Assert.assertNull(map.get(2));
+
+        Assert.assertEquals("uno", map.remove(1));
+        Assert.assertNull(map.remove(1));
+        Assert.assertNull(map.get(1));
+        Assert.assertEquals(2, map.size());
+    }
+
+    @Test
+    public void testRollingKeysAfterWrapping() throws Exception {
+        //Keys come and go like message IDs waiting for replies, so clusters wrap past the end of the
+        //table and every removal shifts the rest of its probe sequence back
+        IntObjectHashMap<Integer> map = new IntObjectHashMap<Integer>();
+        int[] live = new int[8];
+        Random random = new Random(7);
+        int nextKey = 0;
+
+        for (int i = 0; i < live.length; i++) {
+            live[i] = nextKey++;
+            map.put(live[i], live[i]);
+        }
+
+        for (int i = 0; i < 100000; i++) {
+            int slot = random.nextInt(live.length);
+            Assert.assertEquals(Integer.valueOf(live[slot]), map.remove(live[slot]));
+            Assert.assertNull(map.get(live[slot]));
+
+            for (int key : live) {
+                if (key != live[slot])
+                    Assert.assertEquals(Integer.valueOf(key), map.get(key));
+            }
+
+            live[slot] = nextKey++;
+            map.put(live[slot], live[slot]);
+            Assert.assertEquals(live.length, map.size());
+        }
+    }
+
+    @Test
+    public void testMatchesHashMap() throws Exception {
+        IntObjectHashMap<Integer> map = new IntObjectHashMap<Integer>();
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        Random random = new Random(42);
+
+        //A small key range forces lots of collisions and removals in the middle of probe sequences
+        for (int i = 0; i < 200000; i++) {
+            int key = random.nextInt(512) * 1024;
+            if (random.nextBoolean()) {
+                Assert.assertEquals(expected.put(key, i), map.put(key, i));
+            }else {
+                Assert.assertEquals(expected.remove(key), map.remove(key));
+            }
+            Assert.assertEquals(expected.size(), map.size());
+        }
+
+        for (int key = 0; key < 512 * 1024; key += 1024) {
+            Assert.assertEquals(expected.get(key), map.get(key));
+        }
+    }
+}
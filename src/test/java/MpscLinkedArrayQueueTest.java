@@ -0,0 +1,100 @@
+import com.kylekewley.piclient.MpscLinkedArrayQueue;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+public class MpscLinkedArrayQueueTest {
+
+    @Test
+    public void testOrderAcrossChunks() throws Exception {
+        MpscLinkedArrayQueue<Integer> queue = new MpscLinkedArrayQueue<Integer>(4);
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertNull(queue.poll());
+
+        for (int i = 0; i < 100; i++) {
+            queue.offer(i);
+        }
+        Assert.assertEquals(100, queue.size());
+
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals(i, (int) queue.poll());
+        }
+
+        Integer[] batch = new Integer[64];
+        Assert.assertEquals(10, queue.drainTo(batch, 5, 10));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(50 + i, (int) batch[5 + i]);
+        }
+
+        Assert.assertEquals(40, queue.drainTo(batch, 0, batch.length));
+        Assert.assertEquals(99, (int) batch[39]);
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(0, queue.drainTo(batch, 0, batch.length));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullElement() throws Exception {
+        new MpscLinkedArrayQueue<Object>().offer(null);
+    }
+
+    @Test
+    public void testManyProducers() throws Exception {
+        final int producerCount = 8;
+        final int messagesPerProducer = 200000;
+        final MpscLinkedArrayQueue<long[]> queue = new MpscLinkedArrayQueue<long[]>(64);
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] producers = new Thread[producerCount];
+        for (int p = 0; p < producerCount; p++) {
+            final int producer = p;
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < messagesPerProducer; i++) {
+                        queue.offer(new long[]{producer, i});
+                    }
+                }
+            });
+            producers[p].start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+
+        //Each producer's elements must come out in the order they went in
+        int[] nextExpected = new int[producerCount];
+        long[][] batch = new long[32][];
+        int received = 0;
+        while (received < producerCount * messagesPerProducer) {
+            int count = queue.drainTo(batch, 0, batch.length);
+            for (int i = 0; i < count; i++) {
+                int producer = (int) batch[i][0];
+                Assert.assertEquals(nextExpected[producer], batch[i][1]);
+                nextExpected[producer]++;
+            }
+            received += count;
+
+            long[] single = queue.poll();
+            if (single != null) {
+                Assert.assertEquals(nextExpected[(int) single[0]], single[1]);
+                nextExpected[(int) single[0]]++;
+                received++;
+            }
+        }
+
+        System.out.println("Passed " + received + " elements from " + producerCount + " producers in " +
+                (System.nanoTime() - startTime) / 1000000 + "ms.");
+
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        Assert.assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,88 @@
+import com.kylekewley.piclient.MessageWire;
+import com.kylekewley.piclient.MutablePiHeader;
+import com.kylekewley.piclient.protocolbuffers.PiHeader;
+import com.kylekewley.piclient.protocolbuffers.Ping;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class MutablePiHeaderTest {
+
+    ///Values that cover every varint length, including negative uint32 values
+    private static final int[] VALUES = {0, 1, 127, 128, 16383, 16384, 2097151, 2097152, 268435455, 268435456, Integer.MAX_VALUE, -1};
+
+    @Test
+    public void testEncodingMatchesWire() throws Exception {
+        for (int value : VALUES) {
+            assertSameEncoding(new PiHeader(value, value, value, value, true));
+            assertSameEncoding(new PiHeader(value, 3, null, null, null));
+            assertSameEncoding(new PiHeader(12, value, 7, null, false));
+        }
+    }
+
+    @Test
+    public void testDecodingMatchesWire() throws Exception {
+        for (int value : VALUES) {
+            assertSameDecoding(new PiHeader(value, value, value, value, true));
+            assertSameDecoding(new PiHeader(value, 3, null, null, null));
+            assertSameDecoding(new PiHeader(12, value, 7, 1, false));
+        }
+    }
+
+    @Test
+    public void testSkipsUnknownFields() throws Exception {
+        byte[] header = new PiHeader(5, 2, 9, null, true).toByteArray();
+        byte[] unknown = new Ping(123, "unknown").toByteArray();
+
+        //Field 6, length delimited, followed by field 7, varint
+        ByteBuffer buffer = ByteBuffer.allocate(header.length + unknown.length + 4);
+        buffer.put(header);
+        buffer.put((byte) (6 << 3 | 2));
+        buffer.put((byte) unknown.length);
+        buffer.put(unknown);
+        buffer.put((byte) (7 << 3));
+        buffer.put((byte) 1);
+        buffer.flip();
+
+        MutablePiHeader piHeader = new MutablePiHeader();
+        Assert.assertTrue(piHeader.decodeFrom(buffer, buffer.remaining()));
+        Assert.assertEquals(5, piHeader.getMessageLength());
+        Assert.assertEquals(2, piHeader.getParserId());
+        Assert.assertEquals(9, piHeader.getMessageId());
+        Assert.assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    public void testRejectsMalformedHeaders() throws Exception {
+        MutablePiHeader piHeader = new MutablePiHeader();
+
+        //Missing the required parserID
+        byte[] missingField = new PiHeader.Builder().messageLength(1).parserID(1).build().toByteArray();
+        ByteBuffer truncated = ByteBuffer.wrap(missingField, 0, 2);
+        Assert.assertFalse(piHeader.decodeFrom(truncated, 2));
+
+        //A varint that runs past the end of the header
+        ByteBuffer runOn = ByteBuffer.wrap(new byte[]{0x08, (byte) 0x80});
+        Assert.assertFalse(piHeader.decodeFrom(runOn, 2));
+        Assert.assertEquals("The buffer should move past a malformed header", 2, runOn.position());
+    }
+
+    private static void assertSameEncoding(PiHeader wireHeader) {
+        MutablePiHeader piHeader = new MutablePiHeader(wireHeader);
+        ByteBuffer buffer = ByteBuffer.allocate(piHeader.getSerializedSize());
+        piHeader.encodeTo(buffer);
+
+        Assert.assertFalse(buffer.hasRemaining());
+        Assert.assertArrayEquals(wireHeader.toByteArray(), buffer.array());
+    }
+
+    private static void assertSameDecoding(PiHeader wireHeader) throws Exception {
+        byte[] encoded = wireHeader.toByteArray();
+
+        MutablePiHeader piHeader = new MutablePiHeader();
+        Assert.assertTrue(piHeader.decodeFrom(ByteBuffer.wrap(encoded), encoded.length));
+        Assert.assertEquals(MessageWire.getInstance().parseFrom(encoded, PiHeader.class), piHeader.toPiHeader());
+    }
+}
@@ -0,0 +1,123 @@
+import com.kylekewley.piclient.PiCallbackDispatcher;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PiCallbackDispatcherTest {
+
+    ///The number of keys callbacks are spread over
+    private static final int KEY_COUNT = 8;
+
+    ///The number of callbacks for each key
+    private static final int CALLBACKS_PER_KEY = 10000;
+
+    @Test
+    public void testCallbacksForAKeyRunInOrder() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        PiCallbackDispatcher dispatcher = new PiCallbackDispatcher(executor, Integer.MAX_VALUE);
+
+        final List<List<Integer>> results = new ArrayList<List<Integer>>();
+        for (int key = 0; key < KEY_COUNT; key++)
+            results.add(new ArrayList<Integer>());
+
+        final CountDownLatch finished = new CountDownLatch(KEY_COUNT * CALLBACKS_PER_KEY);
+        for (int i = 0; i < CALLBACKS_PER_KEY; i++) {
+            for (int key = 0; key < KEY_COUNT; key++) {
+                final List<Integer> result = results.get(key);
+                final int value = i;
+                dispatcher.dispatch(key, new Runnable() {
+                    @Override
+                    public void run() {
+                        //Only one callback per key runs at a time, so the list doesn't need a lock
+                        result.add(value);
+                        finished.countDown();
+                    }
+                });
+            }
+        }
+
+        Assert.assertTrue(finished.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        for (List<Integer> result : results) {
+            Assert.assertEquals(CALLBACKS_PER_KEY, result.size());
+            for (int i = 0; i < CALLBACKS_PER_KEY; i++)
+                Assert.assertEquals(i, (int) result.get(i));
+        }
+    }
+
+    @Test
+    public void testDifferentKeysRunAtTheSameTime() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        PiCallbackDispatcher dispatcher = new PiCallbackDispatcher(executor, 16);
+
+        //Both callbacks have to be running at once to get past the latch
+        final CountDownLatch bothRunning = new CountDownLatch(2);
+        final AtomicInteger finished = new AtomicInteger();
+        for (int key = 0; key < 2; key++) {
+            dispatcher.dispatch(key, new Runnable() {
+                @Override
+                public void run() {
+                    bothRunning.countDown();
+                    try {
+                        if (bothRunning.await(5, TimeUnit.SECONDS))
+                            finished.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        //Test failed
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(2, finished.get());
+    }
+
+    @Test
+    public void testFullUntilHalfDrained() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        PiCallbackDispatcher dispatcher = new PiCallbackDispatcher(executor, 10);
+
+        final CountDownLatch drained = new CountDownLatch(1);
+        dispatcher.setDrainedListener(new Runnable() {
+            @Override
+            public void run() {
+                drained.countDown();
+            }
+        });
+
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch(0, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        //Test failed
+                    }
+                }
+            });
+        }
+
+        Assert.assertTrue(dispatcher.isFull());
+        Assert.assertEquals(1, drained.getCount());
+
+        release.countDown();
+        Assert.assertTrue(drained.await(5, TimeUnit.SECONDS));
+
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        Assert.assertFalse(dispatcher.isFull());
+        Assert.assertEquals(0, dispatcher.getQueuedCallbacks());
+    }
+}
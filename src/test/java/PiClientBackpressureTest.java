@@ -0,0 +1,267 @@
+import com.kylekewley.piclient.*;
+import com.kylekewley.piclient.protocolbuffers.ParseError;
+import com.squareup.wire.Message;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PiClientBackpressureTest implements PiClientCallbacks {
+
+    ///The send queue watermarks used by the tests
+    private static final int LOW_WATERMARK = 64 * 1024;
+    private static final int HIGH_WATERMARK = 256 * 1024;
+
+    ///The payload size of each message
+    private static final int PAYLOAD_SIZE = 1024;
+
+    private final List<Boolean> writabilityChanges = new ArrayList<Boolean>();
+    private PiClient piClient;
+
+
+    @Before
+    public void setUp() throws Exception {
+        piClient = new PiClient(this);
+        piClient.setWriteBufferWatermarks(LOW_WATERMARK, HIGH_WATERMARK);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        piClient.close();
+    }
+
+    @Test
+    public void testTrySendStopsAtHighWatermark() throws Exception {
+        //Not connected, so nothing drains the queue
+        int sent = 0;
+        while (piClient.trySendMessage(new PiMessage(1, new byte[PAYLOAD_SIZE])))
+            sent++;
+
+        Assert.assertFalse(piClient.isWritable());
+        Assert.assertTrue(piClient.getPendingWriteBytes() > HIGH_WATERMARK);
+        Assert.assertTrue(piClient.getPendingWriteBytes() <= HIGH_WATERMARK + PAYLOAD_SIZE + 16);
+        //Each frame also has a small header
+        Assert.assertTrue(sent > HIGH_WATERMARK / (PAYLOAD_SIZE + 16));
+
+        synchronized (writabilityChanges) {
+            Assert.assertEquals(1, writabilityChanges.size());
+            Assert.assertFalse(writabilityChanges.get(0));
+        }
+
+        Assert.assertFalse(piClient.sendMessage(new PiMessage(1, new byte[PAYLOAD_SIZE]), 10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        final List<Integer> dropped = new ArrayList<Integer>();
+        PiMessageCallbacks callbacks = new TestCallbacks() {
+            @Override
+            public void messageDropped(PiMessage message) {
+                dropped.add(message.getMessageId());
+            }
+        };
+
+        List<Integer> sentIds = new ArrayList<Integer>();
+        for (int i = 0; i < 1000; i++) {
+            PiMessage message = new PiMessage(1, new byte[PAYLOAD_SIZE]);
+            message.setMessageCallbacks(callbacks);
+            sentIds.add(message.getMessageId());
+            piClient.sendMessageDroppingOldest(message);
+
+            Assert.assertTrue(piClient.getPendingWriteBytes() <= HIGH_WATERMARK);
+        }
+
+        //The oldest messages were the ones dropped
+        Assert.assertFalse(dropped.isEmpty());
+        Assert.assertEquals(sentIds.subList(0, dropped.size()), dropped);
+    }
+
+    @Test
+    public void testDropOldestWhileConnected() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().setReceiveBufferSize(4096);
+        server.socket().bind(new InetSocketAddress("localhost", 0));
+
+        piClient.connectToPiServer("localhost", server.socket().getLocalPort());
+        SocketChannel serverSideSocket = server.accept();
+
+        //Dropped on the event loop, which is the only thread that takes messages out of the queue
+        final List<Integer> dropped = Collections.synchronizedList(new ArrayList<Integer>());
+        PiMessageCallbacks callbacks = new TestCallbacks() {
+            @Override
+            public void messageDropped(PiMessage message) {
+                dropped.add(message.getMessageId());
+            }
+        };
+
+        List<Integer> sentIds = new ArrayList<Integer>();
+        for (int i = 0; i < 4000; i++) {
+            PiMessage message = new PiMessage(1, new byte[PAYLOAD_SIZE]);
+            message.setMessageCallbacks(callbacks);
+            sentIds.add(message.getMessageId());
+            piClient.sendMessageDroppingOldest(message);
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (piClient.getPendingWriteBytes() > HIGH_WATERMARK && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        Assert.assertTrue(piClient.getPendingWriteBytes() <= HIGH_WATERMARK);
+
+        //Messages were dropped oldest first, and the newest one is still queued
+        synchronized (dropped) {
+            Assert.assertFalse(dropped.isEmpty());
+            int lastIndex = -1;
+            for (Integer id : dropped) {
+                int index = sentIds.indexOf(id);
+                Assert.assertTrue(index > lastIndex);
+                lastIndex = index;
+            }
+            Assert.assertTrue(lastIndex < sentIds.size() - 1);
+        }
+
+        serverSideSocket.close();
+        server.close();
+    }
+
+    @Test
+    public void testBlockingSendWaitsForTheServer() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().setReceiveBufferSize(4096);
+        server.socket().bind(new InetSocketAddress("localhost", 0));
+
+        piClient.connectToPiServer("localhost", server.socket().getLocalPort());
+        final SocketChannel serverSideSocket = server.accept();
+
+        //Send much more than the socket buffers and high watermark can hold while the server isn't reading
+        final int messageCount = 16 * 1024;
+        final AtomicInteger sent = new AtomicInteger();
+        final AtomicBoolean overHighWatermark = new AtomicBoolean();
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < messageCount; i++) {
+                        piClient.sendMessageBlocking(new PiMessage(1, new byte[PAYLOAD_SIZE]));
+                        if (piClient.getPendingWriteBytes() > HIGH_WATERMARK + PAYLOAD_SIZE + 16)
+                            overHighWatermark.set(true);
+                        sent.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    //Test failed
+                }
+            }
+        });
+        producer.start();
+
+        //Wait for the producer to block
+        long deadline = System.currentTimeMillis() + 10000;
+        int lastSent = -1;
+        while (sent.get() != lastSent && System.currentTimeMillis() < deadline) {
+            lastSent = sent.get();
+            Thread.sleep(200);
+        }
+        Assert.assertTrue("The producer should be blocked", sent.get() < messageCount);
+        Assert.assertFalse(piClient.isWritable());
+
+        //Start reading on the server, which lets the producer finish
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long totalBytes = (long) messageCount * PAYLOAD_SIZE;
+        long bytesRead = 0;
+        serverSideSocket.configureBlocking(true);
+        while (bytesRead < totalBytes) {
+            int read = serverSideSocket.read(buffer);
+            if (read < 0)
+                break;
+            bytesRead += read;
+            buffer.clear();
+        }
+
+        producer.join(10000);
+        Assert.assertEquals(messageCount, sent.get());
+        Assert.assertFalse("The queue went over the high watermark", overHighWatermark.get());
+
+        synchronized (writabilityChanges) {
+            Assert.assertTrue(writabilityChanges.contains(Boolean.TRUE));
+        }
+
+        serverSideSocket.close();
+        server.close();
+    }
+
+
+    /*
+    PiClientCallbacks
+     */
+
+
+    @Override
+    public void clientConnectedToHost(PiClient piClient) {
+
+    }
+
+    @Override
+    public void clientTryingConnectionToHost(PiClient piClient) {
+
+    }
+
+    @Override
+    public void clientDisconnectedFromHost(PiClient piClient) {
+
+    }
+
+    @Override
+    public void clientConnectionTimedOut(PiClient piClient) {
+
+    }
+
+    @Override
+    public void clientRaisedError(PiClient piClient, @NotNull ClientErrorCode error) {
+        System.out.println(error.getErrorMessage());
+    }
+
+    @Override
+    public void clientRaisedError(PiClient piClient, @NotNull Exception error) {
+        System.out.println(error.getMessage());
+    }
+
+    @Override
+    public void clientWritabilityChanged(PiClient piClient, boolean writable) {
+        synchronized (writabilityChanges) {
+            writabilityChanges.add(writable);
+        }
+    }
+
+    /**
+     * Callbacks for messages that never get a reply.
+     */
+    private static class TestCallbacks extends PiMessageCallbacks {
+        @Override
+        public void serverReturnedData(byte[] data, PiMessage message) {
+        }
+
+        @Override
+        public void serverRepliedWithMessage(Message response, PiMessage sentMessage) {
+        }
+
+        @Override
+        public void serverSuccessfullyParsedMessage(PiMessage message) {
+        }
+
+        @Override
+        public void serverReturnedErrorForMessage(ParseError parseError, PiMessage message) {
+        }
+    }
+}
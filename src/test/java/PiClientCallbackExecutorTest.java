@@ -0,0 +1,114 @@
+import com.kylekewley.piclient.*;
+import com.kylekewley.piclient.protocolbuffers.ParseError;
+import com.squareup.wire.Message;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class PiClientCallbackExecutorTest {
+
+    ///The number of requests sent for each run
+    private static final int MESSAGE_COUNT = 2000;
+
+    ///The number of parser IDs the requests are spread over
+    private static final int PARSER_COUNT = 16;
+
+    ///How long each callback takes, like a database write
+    private static final int CALLBACK_MILLIS = 1;
+
+    private PiServerStub server;
+
+
+    @Before
+    public void setUp() throws Exception {
+        server = new PiServerStub(true);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testSlowCallbacksDontHoldUpReads() throws Exception {
+        long inlineTime = receiveReplies(null);
+
+        ExecutorService executor = Executors.newFixedThreadPool(PARSER_COUNT);
+        long executorTime = receiveReplies(executor);
+        executor.shutdown();
+
+        System.out.println("Slow callbacks on the event loop: " + MESSAGE_COUNT * 1000L / Math.max(1, inlineTime) + " replies/second");
+        System.out.println("Slow callbacks on an executor: " + MESSAGE_COUNT * 1000L / Math.max(1, executorTime) + " replies/second");
+        Assert.assertTrue("The executor should run callbacks in parallel", executorTime < inlineTime);
+    }
+
+    /**
+     * Send the requests and wait for every reply callback to finish.
+     *
+     * @return  The number of milliseconds it took.
+     */
+    private long receiveReplies(ExecutorService executor) throws Exception {
+        final CountDownLatch replies = new CountDownLatch(MESSAGE_COUNT);
+        final int[] lastMessageIds = new int[PARSER_COUNT];
+        final boolean[] outOfOrder = {false};
+
+        PiMessageCallbacks callbacks = new PiMessageCallbacks() {
+            @Override
+            public void serverReturnedData(byte[] data, PiMessage message) {
+                Assert.fail("The server replies with an empty message");
+            }
+
+            @Override
+            public void serverRepliedWithMessage(Message response, PiMessage sentMessage) {
+                Assert.fail("The server replies with an empty message");
+            }
+
+            @Override
+            public void serverSuccessfullyParsedMessage(PiMessage message) {
+                //Replies for one parser arrive in the order they were sent and must stay that way
+                int parserId = message.getParserId();
+                if (message.getMessageId() <= lastMessageIds[parserId])
+                    outOfOrder[0] = true;
+                lastMessageIds[parserId] = message.getMessageId();
+
+                try {
+                    Thread.sleep(CALLBACK_MILLIS);
+                } catch (InterruptedException e) {
+                    //Ignore
+                }
+                replies.countDown();
+            }
+
+            @Override
+            public void serverReturnedErrorForMessage(ParseError parseError, PiMessage message) {
+                Assert.fail("The server replies with an empty message");
+            }
+        };
+
+        PiClient piClient = new PiClient();
+        piClient.setCallbackExecutor(executor);
+        piClient.setMaxQueuedCallbacks(256);
+        piClient.connectToPiServer("localhost", server.getPort());
+
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            PiMessage message = new PiMessage(i % PARSER_COUNT);
+            message.setMessageCallbacks(callbacks);
+            piClient.sendMessage(message);
+        }
+
+        Assert.assertTrue("Not every reply arrived, " + replies.getCount() + " left", replies.await(30, TimeUnit.SECONDS));
+        long time = System.currentTimeMillis() - startTime;
+        piClient.close();
+
+        Assert.assertFalse("Replies for a parser ran out of order", outOfOrder[0]);
+        return time;
+    }
+}
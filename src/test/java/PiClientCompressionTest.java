@@ -0,0 +1,93 @@
+import com.kylekewley.piclient.*;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class PiClientCompressionTest {
+
+    ///A custom parser on the server, echoed by the stub
+    private static final int PARSER_ID = 16;
+
+    private static final int PAYLOAD_SIZE = 64 * 1024; //64kb
+    private static final int REQUEST_COUNT = 32;
+
+    private PiServerStub server;
+    private PiClient piClient;
+
+
+    @After
+    public void tearDown() throws Exception {
+        if (piClient != null)
+            piClient.close();
+        if (server != null)
+            server.close();
+    }
+
+    @Test
+    public void testCompressedEcho() throws Exception {
+        server = new PiServerStub(true, 0);
+        server.setEcho(true);
+
+        piClient = new PiClient();
+        piClient.setCompression(PiCompressor.DEFAULT_THRESHOLD);
+        piClient.connectToPiServer("localhost", server.getPort());
+
+        byte[] payload = PiCompressorTest.jsonPayload(PAYLOAD_SIZE);
+        List<PiFuture<byte[]>> futures = new ArrayList<PiFuture<byte[]>>();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < REQUEST_COUNT; i++)
+            futures.add(piClient.request(new PiMessage(PARSER_ID, payload.clone())));
+        List<byte[]> replies = PiFuture.all(futures).get(10, TimeUnit.SECONDS);
+        long time = System.nanoTime() - start;
+
+        for (byte[] reply : replies)
+            Assert.assertArrayEquals(payload, reply);
+
+        long rawBytes = (long) REQUEST_COUNT * PAYLOAD_SIZE;
+        PiClientMetrics.Snapshot snapshot = piClient.getMetrics().snapshot();
+        System.out.println("Echoed " + rawBytes + " bytes as " + server.getBytesReceived() + " compressed bytes in " +
+                time / 1000000 + " ms");
+
+        Assert.assertEquals(REQUEST_COUNT, snapshot.compressedMessages);
+        Assert.assertTrue("Compression should save most of the bandwidth", server.getBytesReceived() < rawBytes / 4);
+        Assert.assertTrue(snapshot.compressionSavedBytes > rawBytes / 2);
+        Assert.assertTrue(snapshot.bytesReceived < rawBytes / 4);
+        Assert.assertEquals(0, snapshot.decompressionErrors);
+    }
+
+    @Test
+    public void testSmallMessagesAreNotCompressed() throws Exception {
+        server = new PiServerStub(true, 0);
+        server.setEcho(true);
+
+        piClient = new PiClient();
+        piClient.setCompression(PiCompressor.DEFAULT_THRESHOLD);
+        piClient.connectToPiServer("localhost", server.getPort());
+
+        byte[] payload = PiCompressorTest.jsonPayload(PiCompressor.DEFAULT_THRESHOLD - 1);
+        byte[] reply = piClient.request(new PiMessage(PARSER_ID, payload)).get(10, TimeUnit.SECONDS);
+
+        Assert.assertArrayEquals(payload, reply);
+        Assert.assertEquals(0, piClient.getMetrics().snapshot().compressedMessages);
+        Assert.assertTrue(server.getBytesReceived() > payload.length);
+    }
+
+    @Test
+    public void testCompressionIsOffByDefault() throws Exception {
+        piClient = new PiClient();
+        Assert.assertEquals(0, piClient.getCompressionThreshold());
+
+        try {
+            piClient.setCompression(512, 0);
+            Assert.fail("Level 0 doesn't compress");
+        } catch (IllegalArgumentException e) {
+            //Expected
+        }
+    }
+}
@@ -0,0 +1,118 @@
+import com.kylekewley.piclient.PiClient;
+import com.kylekewley.piclient.PiClientCallbacks;
+import com.kylekewley.piclient.PiClientEventLoopGroup;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PiClientEventLoopTest implements PiClientCallbacks {
+
+    ///The number of connections to open
+    private static final int CLIENT_COUNT = 100;
+
+    ///The number of I/O threads serving every connection
+    private static final int LOOP_COUNT = 2;
+
+    private ServerSocketChannel server;
+    private final List<SocketChannel> serverSideSockets = new ArrayList<SocketChannel>();
+    private final List<PiClient> piClients = new ArrayList<PiClient>();
+    private PiClientEventLoopGroup eventLoopGroup;
+
+
+    @Before
+    public void setUp() throws Exception {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("localhost", 0), CLIENT_COUNT);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (PiClient piClient : piClients) {
+            piClient.close();
+        }
+        for (SocketChannel socket : serverSideSockets) {
+            socket.close();
+        }
+        server.close();
+        eventLoopGroup.shutdown();
+    }
+
+    @Test
+    public void testThreadCountDoesNotGrowWithConnections() throws Exception {
+        int startThreadCount = Thread.activeCount();
+
+        eventLoopGroup = new PiClientEventLoopGroup(LOOP_COUNT);
+        int port = server.socket().getLocalPort();
+
+        for (int i = 0; i < CLIENT_COUNT; i++) {
+            piClients.add(new PiClient("localhost", port, this, eventLoopGroup));
+        }
+        for (int i = 0; i < CLIENT_COUNT; i++) {
+            serverSideSockets.add(server.accept());
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (countConnected() < CLIENT_COUNT && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        Assert.assertEquals("Not every client connected", CLIENT_COUNT, countConnected());
+        Assert.assertTrue("Connections started their own threads",
+                Thread.activeCount() - startThreadCount <= LOOP_COUNT);
+    }
+
+    private int countConnected() {
+        int connected = 0;
+        for (PiClient piClient : piClients) {
+            if (piClient.isConnected())
+                connected++;
+        }
+        return connected;
+    }
+
+
+    /*
+    PiClientCallbacks
+     */
+
+
+    @Override
+    public void clientConnectedToHost(PiClient piClient) {
+    }
+
+    @Override
+    public void clientTryingConnectionToHost(PiClient piClient) {
+    }
+
+    @Override
+    public void clientDisconnectedFromHost(PiClient piClient) {
+    }
+
+    @Override
+    public void clientConnectionTimedOut(PiClient piClient) {
+        System.out.println("Connection to host timed out.");
+    }
+
+    @Override
+    public void clientRaisedError(PiClient piClient, @NotNull ClientErrorCode error) {
+        System.out.println(error.getErrorMessage());
+    }
+
+    @Override
+    public void clientRaisedError(PiClient piClient, @NotNull Exception error) {
+        System.out.println(error.getMessage());
+    }
+
+    @Override
+    public void clientWritabilityChanged(PiClient piClient, boolean writable) {
+        System.out.println(writable ? "Send queue drained." : "Send queue is full.");
+    }
+}
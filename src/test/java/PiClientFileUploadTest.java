@@ -0,0 +1,106 @@
+import com.kylekewley.piclient.*;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class PiClientFileUploadTest {
+
+    ///A custom parser on the server, echoed by the stub
+    private static final int PARSER_ID = 16;
+
+    private static final int FILE_SIZE = 16 * 1024 * 1024; //16mb
+
+    private PiServerStub server;
+    private PiClient piClient;
+    private File file;
+    private RandomAccessFile randomAccessFile;
+    private byte[] fileData;
+
+
+    @Before
+    public void setUp() throws Exception {
+        fileData = new byte[FILE_SIZE];
+        for (int i = 0; i < FILE_SIZE; i++)
+            fileData[i] = (byte) (i * 31 + (i >>> 16));
+
+        file = File.createTempFile("PiClientFileUploadTest", ".bin");
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.write(fileData);
+
+        server = new PiServerStub(true, 0);
+        server.setEcho(true);
+        piClient = new PiClient();
+        piClient.connectToPiServer("localhost", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        piClient.close();
+        server.close();
+        randomAccessFile.close();
+        file.delete();
+    }
+
+    @Test
+    public void testFileUpload() throws Exception {
+        FileChannel channel = randomAccessFile.getChannel();
+
+        long start = System.nanoTime();
+        byte[] reply = piClient.request(new PiMessage(PARSER_ID, channel, 0, FILE_SIZE)).get(30, TimeUnit.SECONDS);
+        long time = System.nanoTime() - start;
+
+        System.out.println("Uploaded and echoed " + FILE_SIZE / (1024 * 1024) + " mb from a file in " + time / 1000000 + " ms");
+
+        Assert.assertArrayEquals(fileData, reply);
+        Assert.assertEquals(server.getBytesReceived(), piClient.getMetrics().snapshot().bytesSent);
+        Assert.assertEquals(0, piClient.getMetrics().snapshot().pendingWriteBytes);
+    }
+
+    @Test
+    public void testFileRegionsBetweenOtherMessages() throws Exception {
+        FileChannel channel = randomAccessFile.getChannel();
+        List<PiFuture<byte[]>> futures = new ArrayList<PiFuture<byte[]>>();
+        List<byte[]> expected = new ArrayList<byte[]>();
+
+        //Queue them together so file regions land in the middle of write batches
+        for (int i = 0; i < 50; i++) {
+            byte[] small = new byte[] {(byte) i, 1, 2, 3};
+            futures.add(piClient.request(new PiMessage(PARSER_ID, small)));
+            expected.add(small);
+
+            int position = i * 100000;
+            int length = 1 + i * 1000;
+            futures.add(piClient.request(new PiMessage(PARSER_ID, channel, position, length)));
+            expected.add(Arrays.copyOfRange(fileData, position, position + length));
+        }
+
+        List<byte[]> replies = PiFuture.all(futures).get(30, TimeUnit.SECONDS);
+        for (int i = 0; i < expected.size(); i++)
+            Assert.assertArrayEquals("Reply " + i, expected.get(i), replies.get(i));
+    }
+
+    @Test
+    public void testFileMessageEncodesLikeByteMessage() throws Exception {
+        PiMessage fileMessage = new PiMessage(PARSER_ID, randomAccessFile.getChannel(), 1000, 5000);
+        Assert.assertEquals(new PiMessage(PARSER_ID, new byte[5000]).serializedSize(), fileMessage.serializedSize());
+
+        ByteBuffer encoded = fileMessage.getByteBuffer();
+        Assert.assertEquals(fileMessage.serializedSize(), encoded.remaining());
+
+        byte[] data = new byte[5000];
+        encoded.position(encoded.limit() - data.length);
+        encoded.get(data);
+        Assert.assertArrayEquals(Arrays.copyOfRange(fileData, 1000, 6000), data);
+    }
+}
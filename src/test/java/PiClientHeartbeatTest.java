@@ -0,0 +1,140 @@
+import com.kylekewley.piclient.*;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PiClientHeartbeatTest implements PiClientCallbacks {
+
+    ///The parser ID the server uses for Pings
+    private static final int PING_ID = Constants.ServerDefaultParserId.PING_ID.getId();
+
+    private static final int HEARTBEAT_INTERVAL = 50;
+    private static final int MAX_MISSED_HEARTBEATS = 3;
+
+    private PiServerStub server;
+    private PiClient piClient;
+
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private final CountDownLatch disconnected = new CountDownLatch(1);
+    private final List<ClientErrorCode> errors = new ArrayList<ClientErrorCode>();
+
+
+    @Before
+    public void setUp() throws Exception {
+        piClient = new PiClient(this);
+        piClient.setHeartbeat(HEARTBEAT_INTERVAL, MAX_MISSED_HEARTBEATS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        piClient.close();
+        if (server != null)
+            server.close();
+    }
+
+    @Test
+    public void testRoundTripTime() throws Exception {
+        server = new PiServerStub(true);
+        piClient.connectToPiServer("localhost", server.getPort());
+        Assert.assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        PiRttEstimator rtt = piClient.getRttEstimator();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (rtt.getSampleCount() < 10 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        Assert.assertTrue(rtt.getSampleCount() >= 10);
+        Assert.assertTrue(rtt.getSmoothedRtt() > 0);
+        Assert.assertTrue(rtt.getPercentile(99) >= rtt.getPercentile(50));
+        Assert.assertTrue(server.getFramesReceived(PING_ID) >= 10);
+
+        System.out.println("Heartbeat round trip: smoothed " + rtt.getSmoothedRtt() / 1000 + "us, p50 " +
+                rtt.getPercentile(50) / 1000 + "us, p99 " + rtt.getPercentile(99) / 1000 + "us");
+        Assert.assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void testDeadLinkIsClosed() throws Exception {
+        //A server that reads everything and never answers
+        server = new PiServerStub(false);
+        piClient.connectToPiServer("localhost", server.getPort());
+        Assert.assertTrue(connected.await(5, TimeUnit.SECONDS));
+        long connectTime = System.nanoTime();
+
+        Assert.assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+        long detectTime = (System.nanoTime() - connectTime) / 1000000;
+        System.out.println("Dead link found after " + detectTime + "ms");
+
+        //One interval to send the first Ping, then maxMissedHeartbeats without an answer
+        Assert.assertTrue(detectTime >= HEARTBEAT_INTERVAL * MAX_MISSED_HEARTBEATS);
+        synchronized (errors) {
+            Assert.assertTrue(errors.contains(ClientErrorCode.HEARTBEAT_TIMEOUT));
+        }
+        Assert.assertEquals(0, piClient.getRttEstimator().getSampleCount());
+    }
+
+    @Test
+    public void testHeartbeatOffByDefault() throws Exception {
+        piClient.setHeartbeat(0, MAX_MISSED_HEARTBEATS);
+
+        server = new PiServerStub(false);
+        piClient.connectToPiServer("localhost", server.getPort());
+        Assert.assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        Thread.sleep(HEARTBEAT_INTERVAL * (MAX_MISSED_HEARTBEATS + 2));
+        Assert.assertEquals(1, disconnected.getCount());
+        Assert.assertEquals(0, server.getFramesReceived(PING_ID));
+        Assert.assertEquals(0, new PiClient(this).getHeartbeatInterval());
+    }
+
+
+    /*
+    PiClientCallbacks
+     */
+
+
+    @Override
+    public void clientConnectedToHost(PiClient piClient) {
+        connected.countDown();
+    }
+
+    @Override
+    public void clientTryingConnectionToHost(PiClient piClient) {
+
+    }
+
+    @Override
+    public void clientDisconnectedFromHost(PiClient piClient) {
+        disconnected.countDown();
+    }
+
+    @Override
+    public void clientConnectionTimedOut(PiClient piClient) {
+
+    }
+
+    @Override
+    public void clientRaisedError(PiClient piClient, @NotNull ClientErrorCode error) {
+        synchronized (errors) {
+            errors.add(error);
+        }
+    }
+
+    @Override
+    public void clientRaisedError(PiClient piClient, @NotNull Exception error) {
+        System.out.println(error.getMessage());
+    }
+
+    @Override
+    public void clientWritabilityChanged(PiClient piClient, boolean writable) {
+
+    }
+}
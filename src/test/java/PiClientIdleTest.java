@@ -0,0 +1,125 @@
+import com.kylekewley.piclient.PiClient;
+import com.kylekewley.piclient.PiClientCallbacks;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PiClientIdleTest implements PiClientCallbacks {
+
+    ///How long to watch the idle client
+    private static final long IDLE_TIME = 1000;
+
+    ///The most CPU time the client thread may use while idle
+    private static final long MAX_IDLE_CPU_TIME = 100;
+
+    private ServerSocketChannel server;
+    private SocketChannel serverSideSocket;
+    private PiClient piClient;
+
+
+    @Before
+    public void setUp() throws Exception {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("localhost", 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (piClient != null)
+            piClient.close();
+        if (serverSideSocket != null)
+            serverSideSocket.close();
+        server.close();
+    }
+
+    @Test
+    public void testIdleClientUsesNoCpu() throws Exception {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assert.assertTrue("Thread CPU time isn't supported on this JVM", threadMXBean.isThreadCpuTimeSupported());
+        threadMXBean.setThreadCpuTimeEnabled(true);
+
+        piClient = new PiClient("localhost", server.socket().getLocalPort(), this);
+        serverSideSocket = server.accept();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!piClient.isConnected() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Assert.assertTrue("Client didn't connect", piClient.isConnected());
+
+        List<Thread> eventLoopThreads = findEventLoopThreads();
+        Assert.assertFalse("Couldn't find the event loop threads", eventLoopThreads.isEmpty());
+
+        long startCpuTime = getCpuTime(threadMXBean, eventLoopThreads);
+        Thread.sleep(IDLE_TIME);
+        long idleCpuTime = (getCpuTime(threadMXBean, eventLoopThreads) - startCpuTime) / 1000000;
+
+        System.out.println("Idle client used " + idleCpuTime + " ms of CPU time in " + IDLE_TIME + " ms.");
+        Assert.assertTrue("Idle client used " + idleCpuTime + " ms of CPU time", idleCpuTime < MAX_IDLE_CPU_TIME);
+    }
+
+    private List<Thread> findEventLoopThreads() {
+        List<Thread> threads = new ArrayList<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("PiClientEventLoop"))
+                threads.add(thread);
+        }
+        return threads;
+    }
+
+    private long getCpuTime(ThreadMXBean threadMXBean, List<Thread> threads) {
+        long cpuTime = 0;
+        for (Thread thread : threads) {
+            cpuTime += threadMXBean.getThreadCpuTime(thread.getId());
+        }
+        return cpuTime;
+    }
+
+
+    /*
+    PiClientCallbacks
+     */
+
+
+    @Override
+    public void clientConnectedToHost(PiClient piClient) {
+    }
+
+    @Override
+    public void clientTryingConnectionToHost(PiClient piClient) {
+    }
+
+    @Override
+    public void clientDisconnectedFromHost(PiClient piClient) {
+    }
+
+    @Override
+    public void clientConnectionTimedOut(PiClient piClient) {
+        Assert.fail("Connection timed out");
+    }
+
+    @Override
+    public void clientRaisedError(PiClient piClient, @NotNull ClientErrorCode error) {
+        System.out.println(error.getErrorMessage());
+    }
+
+    @Override
+    public void clientRaisedError(PiClient piClient, @NotNull Exception error) {
+        System.out.println(error.getMessage());
+    }
+
+    @Override
+    public void clientWritabilityChanged(PiClient piClient, boolean writable) {
+        System.out.println(writable ? "Send queue drained." : "Send queue is full.");
+    }
+}
@@ -0,0 +1,153 @@
+import com.kylekewley.piclient.*;
+import com.kylekewley.piclient.protocolbuffers.ParseError;
+import com.squareup.wire.Message;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PiClientLargeReplyTest {
+
+    ///A custom parser on the server, since the default Ping parser echoes instead of sending the reply size
+    private static final int PARSER_ID = 16;
+
+    ///The payload size of each reply, like a camera snapshot
+    private static final int REPLY_SIZE = 4 * 1024 * 1024; //4mb
+
+    ///The number of replies for each run
+    private static final int REPLY_COUNT = 16;
+
+    private PiServerStub server;
+
+
+    @Before
+    public void setUp() throws Exception {
+        server = new PiServerStub(true, REPLY_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testLargeRepliesThroughput() throws Exception {
+        //Warm up both paths
+        receiveReplies(PiReceiveBuffer.DEFAULT_MIN_SIZE, PiReceiveBuffer.DEFAULT_MIN_SIZE);
+        receiveReplies(PiReceiveBuffer.DEFAULT_MIN_SIZE, 2 * REPLY_SIZE);
+
+        receiveReplies(PiReceiveBuffer.DEFAULT_MIN_SIZE, PiReceiveBuffer.DEFAULT_MIN_SIZE);
+        receiveReplies(PiReceiveBuffer.DEFAULT_MIN_SIZE, 2 * REPLY_SIZE);
+    }
+
+    /**
+     * Send the requests, wait for every reply and print the throughput and peak memory use.
+     */
+    private void receiveReplies(int minSize, int maxSize) throws Exception {
+        final CountDownLatch replies = new CountDownLatch(REPLY_COUNT);
+        final AtomicLong bytesReceived = new AtomicLong();
+
+        PiMessageCallbacks callbacks = new PiMessageCallbacks() {
+            @Override
+            public void serverReturnedData(byte[] data, PiMessage message) {
+                Assert.fail("The ByteBuffer callback should be used");
+            }
+
+            @Override
+            public void serverReturnedData(ByteBuffer data, PiMessage message) {
+                Assert.assertEquals(REPLY_SIZE, data.remaining());
+                Assert.assertEquals((byte) (REPLY_SIZE - 1), data.get(data.limit() - 1));
+
+                bytesReceived.addAndGet(data.remaining());
+                replies.countDown();
+            }
+
+            @Override
+            public void serverRepliedWithMessage(Message response, PiMessage sentMessage) {
+                Assert.fail("The server replies with data");
+            }
+
+            @Override
+            public void serverSuccessfullyParsedMessage(PiMessage message) {
+                Assert.fail("The server replies with data");
+            }
+
+            @Override
+            public void serverReturnedErrorForMessage(ParseError parseError, PiMessage message) {
+                Assert.fail("The server replies with data");
+            }
+        };
+
+        MemorySampler sampler = new MemorySampler();
+        Thread samplerThread = new Thread(sampler);
+        samplerThread.setDaemon(true);
+
+        PiClient piClient = new PiClient();
+        piClient.setReceiveBufferSize(minSize, maxSize);
+        piClient.connectToPiServer("localhost", server.getPort());
+
+        samplerThread.start();
+        long startTime = System.currentTimeMillis();
+
+        for (int i = 0; i < REPLY_COUNT; i++) {
+            PiMessage message = new PiMessage(PARSER_ID);
+            message.setMessageCallbacks(callbacks);
+            piClient.sendMessage(message);
+        }
+
+        Assert.assertTrue("Not every reply arrived, " + replies.getCount() + " left", replies.await(30, TimeUnit.SECONDS));
+        long time = Math.max(1, System.currentTimeMillis() - startTime);
+
+        sampler.stop();
+        samplerThread.join();
+        piClient.close();
+
+        Assert.assertEquals((long) REPLY_SIZE * REPLY_COUNT, bytesReceived.get());
+        System.out.println("Receive buffer " + minSize / 1024 + "kb-" + maxSize / 1024 + "kb: " +
+                bytesReceived.get() * 1000 / time / (1024 * 1024) + " mb/second, peak heap " +
+                sampler.peakHeap / (1024 * 1024) + " mb, peak direct " + sampler.peakDirect / (1024 * 1024) + " mb");
+    }
+
+    /**
+     * Keeps track of the most heap and direct memory in use while it runs.
+     */
+    private static class MemorySampler implements Runnable {
+        private volatile boolean stopped;
+        private long peakHeap;
+        private long peakDirect;
+
+        void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void run() {
+            BufferPoolMXBean directPool = null;
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if (pool.getName().equals("direct"))
+                    directPool = pool;
+            }
+
+            Runtime runtime = Runtime.getRuntime();
+            while (!stopped) {
+                peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+                if (directPool != null)
+                    peakDirect = Math.max(peakDirect, directPool.getMemoryUsed());
+
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
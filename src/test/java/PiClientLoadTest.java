@@ -0,0 +1,191 @@
+import com.kylekewley.piclient.*;
+
+import com.kylekewley.piclient.protocolbuffers.GroupRegistration;
+import com.kylekewley.piclient.protocolbuffers.Ping;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class PiClientLoadTest implements PiClientCallbacks {
+
+    private static final int PARSER_ID = 16;
+    private static final long TIMEOUT = 30000;
+
+    private PiServerStub server;
+    private PiClient piClient;
+
+    private final CountDownLatch connected = new CountDownLatch(1);
+    private volatile CountDownLatch disconnected = new CountDownLatch(1);
+
+
+    @Before
+    public void setUp() throws Exception {
+        server = new PiServerStub(true);
+        piClient = new PiClient(this);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        piClient.close();
+        server.close();
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        connect();
+        PiLoadDriver driver = new PiLoadDriver(piClient);
+
+        //Warm up
+        driver.run(PARSER_ID, 64, 20000, 64, TIMEOUT);
+
+        int[] windows = {1, 16, 256};
+        for (int inFlight : windows) {
+            PiLoadDriver.Result result = driver.run(PARSER_ID, 64, 50000, inFlight, TIMEOUT);
+            System.out.println("Load with " + inFlight + " in flight: " + result);
+            Assert.assertEquals(0, result.failures);
+        }
+    }
+
+    @Test
+    public void testPingIsEchoed() throws Exception {
+        connect();
+        Ping ping = piClient.request(Constants.ServerDefaultParserId.PING_ID.getId(),
+                new Ping(1413504000, "Hello World!"), Ping.class).get(5, TimeUnit.SECONDS);
+        Assert.assertEquals("Hello World!", ping.message);
+        Assert.assertEquals(1413504000, (int) ping.sentTime);
+    }
+
+    @Test
+    public void testGroupRegistrationIsAcknowledged() throws Exception {
+        connect();
+        GroupRegistration registration = new GroupRegistration.Builder().groupID("sensors").addToGroup(true).build();
+        PiFuture<GroupRegistration> ack = piClient.request(Constants.ServerDefaultParserId.GROUP_REGISTRATION_ID.getId(),
+                registration, GroupRegistration.class);
+        Assert.assertNull(ack.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testInjectedParseErrors() throws Exception {
+        server.setParseErrorInterval(10);
+        connect();
+
+        List<PiFuture<byte[]>> futures = new ArrayList<PiFuture<byte[]>>();
+        for (int i = 0; i < 100; i++)
+            futures.add(piClient.request(new PiMessage(PARSER_ID)));
+
+        int errors = 0;
+        for (PiFuture<byte[]> future : futures) {
+            try {
+                future.get(5, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                PiParseErrorException parseError = (PiParseErrorException) e.getCause();
+                Assert.assertEquals(PiServerStub.INJECTED_ERROR_NUMBER, (int) parseError.getParseError().errorNumber);
+                errors++;
+            }
+        }
+        Assert.assertEquals(10, errors);
+    }
+
+    @Test
+    public void testFragmentedReplies() throws Exception {
+        server.setEcho(true);
+        server.setFragmentSize(3);
+        connect();
+
+        PiLoadDriver.Result result = new PiLoadDriver(piClient).run(PARSER_ID, 300, 2000, 32, TIMEOUT);
+        System.out.println("Replies written 3 bytes at a time: " + result);
+        Assert.assertEquals(0, result.failures);
+    }
+
+    @Test
+    public void testDelayedReplies() throws Exception {
+        server.setReplyDelay(20);
+        connect();
+
+        PiLoadDriver.Result result = new PiLoadDriver(piClient).run(PARSER_ID, 64, 500, 100, TIMEOUT);
+        System.out.println("Replies delayed by 20ms: " + result);
+        Assert.assertEquals(0, result.failures);
+        Assert.assertTrue(result.p50 >= 20000);
+    }
+
+    @Test
+    public void testDisconnectFault() throws Exception {
+        server.setDisconnectAfter(50);
+        piClient.setReconnectPolicy(new PiReconnectPolicy(10, 100, 2.0, 0.2, PiReconnectPolicy.UNLIMITED_ATTEMPTS));
+        connect();
+
+        //Every request is answered in the end, across several dropped connections
+        PiLoadDriver.Result result = new PiLoadDriver(piClient).run(PARSER_ID, 64, 500, 16, TIMEOUT);
+        System.out.println("Dropped every 50 frames: " + result + " over " + server.getConnectionsAccepted() + " connections");
+        Assert.assertEquals(0, result.failures);
+        Assert.assertTrue(server.getConnectionsAccepted() > 1);
+
+        //Without a reconnect policy the client reports the drop
+        piClient.setReconnectPolicy(null);
+        disconnected = new CountDownLatch(1);
+        server.setDisconnectAfter(0);
+        server.disconnectAll();
+        Assert.assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+    }
+
+
+    /*
+    Helpers
+     */
+
+
+    private void connect() throws InterruptedException {
+        piClient.connectToPiServer("localhost", server.getPort());
+        Assert.assertTrue(connected.await(5, TimeUnit.SECONDS));
+    }
+
+
+    /*
+    PiClientCallbacks
+     */
+
+
+    @Override
+    public void clientConnectedToHost(PiClient piClient) {
+        connected.countDown();
+    }
+
+    @Override
+    public void clientTryingConnectionToHost(PiClient piClient) {
+
+    }
+
+    @Override
+    public void clientDisconnectedFromHost(PiClient piClient) {
+        disconnected.countDown();
+    }
+
+    @Override
+    public void clientConnectionTimedOut(PiClient piClient) {
+
+    }
+
+    @Override
+    public void clientRaisedError(PiClient piClient, @NotNull ClientErrorCode error) {
+
+    }
+
+    @Override
+    public void clientRaisedError(PiClient piClient, @NotNull Exception error) {
+        System.out.println(error.getMessage());
+    }
+
+    @Override
+    public void clientWritabilityChanged(PiClient piClient, boolean writable) {
+
+    }
+}
@@ -0,0 +1,106 @@
+import com.kylekewley.piclient.*;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class PiClientMetricsTest {
+
+    private static final int PARSER_ID = 16;
+    private static final int REQUEST_COUNT = 1000;
+
+    private PiServerStub server;
+    private PiClient piClient;
+
+
+    @After
+    public void tearDown() throws Exception {
+        if (piClient != null)
+            piClient.close();
+        if (server != null)
+            server.close();
+    }
+
+    @Test
+    public void testRequestsAreCounted() throws Exception {
+        server = new PiServerStub(true, 100);
+        piClient = new PiClient();
+        piClient.connectToPiServer("localhost", server.getPort());
+
+        List<PiFuture<byte[]>> futures = new ArrayList<PiFuture<byte[]>>();
+        for (int i = 0; i < REQUEST_COUNT; i++)
+            futures.add(piClient.request(new PiMessage(PARSER_ID, new byte[50])));
+        PiFuture.all(futures).get(10, TimeUnit.SECONDS);
+
+        PiClientMetrics.Snapshot snapshot = piClient.getMetrics().snapshot();
+        System.out.println("Metrics after " + REQUEST_COUNT + " requests: " + snapshot);
+
+        Assert.assertEquals(REQUEST_COUNT, snapshot.framesSent);
+        Assert.assertEquals(server.getBytesReceived(), snapshot.bytesSent);
+        Assert.assertEquals(REQUEST_COUNT, snapshot.framesReceived);
+        Assert.assertTrue(snapshot.bytesReceived > REQUEST_COUNT * 100);
+        Assert.assertEquals(REQUEST_COUNT, snapshot.requestLatency.getCount());
+        Assert.assertTrue(snapshot.requestLatency.getValueAtPercentile(50) > 0);
+        Assert.assertEquals(0, snapshot.awaitingReplyCount);
+        Assert.assertEquals(0, snapshot.pendingWriteBytes);
+        Assert.assertEquals(0, snapshot.headerDecodeErrors);
+
+        Map<String, Long> exported = snapshot.toMap();
+        Assert.assertEquals(Long.valueOf(REQUEST_COUNT), exported.get("framesSent"));
+        Assert.assertEquals(Long.valueOf(REQUEST_COUNT), exported.get("requestLatencyCount"));
+    }
+
+    @Test
+    public void testBackupQueueGauge() throws Exception {
+        piClient = new PiClient();
+        for (int i = 0; i < 10; i++)
+            piClient.sendMessage(new PiMessage(PARSER_ID));
+
+        PiClientMetrics.Snapshot snapshot = piClient.getMetrics().snapshot();
+        Assert.assertEquals(10, snapshot.backupQueueSize);
+        Assert.assertTrue(snapshot.pendingWriteBytes > 0);
+        Assert.assertEquals(0, snapshot.framesSent);
+    }
+
+    @Test
+    public void testErrorsAreCounted() {
+        PiClientMetrics metrics = new PiClientMetrics();
+        PiParser parser = new PiParser();
+        parser.setMetrics(metrics);
+        PiServerManager serverManager = new PiServerManager(parser);
+        serverManager.setMetrics(metrics);
+        IntObjectHashMap<PiMessage> sentMessages = new IntObjectHashMap<PiMessage>();
+
+        //A message for a parser that isn't registered
+        ByteBuffer frame = ByteBuffer.allocate(64);
+        new PiMessage(PARSER_ID, new byte[]{1, 2, 3}).writeToByteBuffer(frame);
+        frame.flip();
+        Assert.assertTrue(serverManager.serverSentMessage(frame, sentMessages));
+
+        //A parser that throws
+        parser.registerParserForId(new CustomParser() {
+            @Override
+            public void parse(byte[] data) {
+                throw new IllegalStateException("Parser failed on purpose");
+            }
+        }, PARSER_ID);
+        frame.rewind();
+        Assert.assertTrue(serverManager.serverSentMessage(frame, sentMessages));
+
+        //A header that can't be decoded
+        ByteBuffer garbage = ByteBuffer.wrap(new byte[]{0, 3, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+        Assert.assertFalse(serverManager.serverSentMessage(garbage, sentMessages));
+
+        PiClientMetrics.Snapshot snapshot = metrics.snapshot();
+        Assert.assertEquals(2, snapshot.framesReceived);
+        Assert.assertEquals(1, snapshot.unhandledMessages);
+        Assert.assertEquals(1, snapshot.parserExceptions);
+        Assert.assertEquals(1, snapshot.headerDecodeErrors);
+    }
+}
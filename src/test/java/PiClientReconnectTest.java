@@ -0,0 +1,232 @@
+import com.kylekewley.piclient.*;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PiClientReconnectTest implements PiClientCallbacks {
+
+    ///The parser ID the server uses for group registrations
+    private static final int GROUP_REGISTRATION_ID = Constants.ServerDefaultParserId.GROUP_REGISTRATION_ID.getId();
+
+    private PiServerStub server;
+    private PiClient piClient;
+
+    private volatile CountDownLatch connected = new CountDownLatch(1);
+    private final List<ClientErrorCode> errors = new ArrayList<ClientErrorCode>();
+
+
+    @Before
+    public void setUp() throws Exception {
+        piClient = new PiClient(this);
+        piClient.setReconnectPolicy(new PiReconnectPolicy(10, 200, 2.0, 0.2, PiReconnectPolicy.UNLIMITED_ATTEMPTS));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        piClient.close();
+        if (server != null)
+            server.close();
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        server = new PiServerStub(true);
+        int port = server.getPort();
+
+        piClient.addToGroup("sensors");
+        piClient.connectToPiServer("localhost", port);
+        Assert.assertTrue(connected.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(100, requestAll(100).get(10, TimeUnit.SECONDS).size());
+
+        //Kill the server and keep sending while it is down
+        connected = new CountDownLatch(1);
+        server.close();
+        Thread.sleep(100);
+        PiFuture<List<byte[]>> sentWhileDown = requestAll(1000);
+        Thread.sleep(200);
+        Assert.assertFalse(sentWhileDown.isDone());
+
+        long restartTime = System.nanoTime();
+        server = restartServer(port);
+
+        Assert.assertTrue(connected.await(5, TimeUnit.SECONDS));
+        long reconnectTime = System.nanoTime() - restartTime;
+
+        Assert.assertEquals(1000, sentWhileDown.get(10, TimeUnit.SECONDS).size());
+        long recoveryTime = System.nanoTime() - restartTime;
+
+        System.out.println("Reconnected " + reconnectTime / 1000000 + "ms after the server restarted, and the " +
+                "messages sent while it was down were answered after " + recoveryTime / 1000000 + "ms.");
+
+        //The group was joined again on the new connection
+        Assert.assertEquals(1, server.getFramesReceived(GROUP_REGISTRATION_ID));
+    }
+
+    @Test
+    public void testUnansweredMessagesAreSentAgain() throws Exception {
+        //A server that reads everything and never answers
+        server = new PiServerStub(false);
+        int port = server.getPort();
+
+        piClient.connectToPiServer("localhost", port);
+        Assert.assertTrue(connected.await(5, TimeUnit.SECONDS));
+
+        PiFuture<List<byte[]>> inFlight = requestAll(500);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getFramesReceived() < 500 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        Assert.assertEquals(500, server.getFramesReceived());
+
+        server.close();
+        server = restartServer(port);
+
+        Assert.assertEquals(500, inFlight.get(10, TimeUnit.SECONDS).size());
+        Assert.assertEquals(0, piClient.getPendingWriteBytes());
+    }
+
+    @Test
+    public void testGivesUp() throws Exception {
+        server = new PiServerStub(false);
+        int port = server.getPort();
+        server.close();
+        server = null;
+
+        piClient.setReconnectPolicy(new PiReconnectPolicy(5, 20, 2.0, 0, 3));
+        piClient.connectToPiServer("localhost", port);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!hasError(ClientErrorCode.RECONNECT_FAILED) && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+
+        Assert.assertTrue(hasError(ClientErrorCode.RECONNECT_FAILED));
+        synchronized (errors) {
+            //The first attempt and three reconnects were refused
+            Assert.assertEquals(4, count(ClientErrorCode.CONNECTION_REFUSED));
+        }
+    }
+
+    @Test
+    public void testUnresolvedHostIsRetried() throws Exception {
+        piClient.setReconnectPolicy(new PiReconnectPolicy(5, 20, 2.0, 0, 3));
+        piClient.connectToPiServer("piserver.invalid", 9999);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!hasError(ClientErrorCode.RECONNECT_FAILED) && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+
+        Assert.assertTrue(hasError(ClientErrorCode.RECONNECT_FAILED));
+        synchronized (errors) {
+            //The first lookup and three retries failed
+            Assert.assertEquals(4, count(ClientErrorCode.INVALID_HOSTNAME));
+        }
+    }
+
+    @Test
+    public void testBackoffDelays() throws Exception {
+        PiReconnectPolicy policy = new PiReconnectPolicy(100, 1000, 2.0, 0.25, 5);
+        long[] expected = {100, 200, 400, 800, 1000};
+        for (int attempt = 0; attempt < expected.length; attempt++) {
+            for (int i = 0; i < 100; i++) {
+                long delay = policy.getDelay(attempt);
+                Assert.assertTrue(delay >= expected[attempt] * 0.75 - 1);
+                Assert.assertTrue(delay <= Math.min(1000, expected[attempt] * 1.25 + 1));
+            }
+        }
+        Assert.assertEquals(-1, policy.getDelay(5));
+    }
+
+
+    /*
+    Helpers
+     */
+
+
+    private PiFuture<List<byte[]>> requestAll(int count) {
+        List<PiFuture<byte[]>> futures = new ArrayList<PiFuture<byte[]>>(count);
+        for (int i = 0; i < count; i++)
+            futures.add(piClient.request(new PiMessage(1)));
+        return PiFuture.all(futures);
+    }
+
+    /**
+     * Start a replying server on the port, waiting for the old server's port to be released.
+     */
+    private static PiServerStub restartServer(int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                return new PiServerStub(port, true, 0);
+            } catch (java.net.BindException e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private boolean hasError(ClientErrorCode error) {
+        synchronized (errors) {
+            return errors.contains(error);
+        }
+    }
+
+    private int count(ClientErrorCode error) {
+        int count = 0;
+        for (ClientErrorCode e : errors) {
+            if (e == error)
+                count++;
+        }
+        return count;
+    }
+
+
+    /*
+    PiClientCallbacks
+     */
+
+
+    @Override
+    public void clientConnectedToHost(PiClient piClient) {
+        connected.countDown();
+    }
+
+    @Override
+    public void clientTryingConnectionToHost(PiClient piClient) {
+
+    }
+
+    @Override
+    public void clientDisconnectedFromHost(PiClient piClient) {
+
+    }
+
+    @Override
+    public void clientConnectionTimedOut(PiClient piClient) {
+
+    }
+
+    @Override
+    public void clientRaisedError(PiClient piClient, @NotNull ClientErrorCode error) {
+        synchronized (errors) {
+            errors.add(error);
+        }
+    }
+
+    @Override
+    public void clientRaisedError(PiClient piClient, @NotNull Exception error) {
+        System.out.println(error.getMessage());
+    }
+
+    @Override
+    public void clientWritabilityChanged(PiClient piClient, boolean writable) {
+
+    }
+}
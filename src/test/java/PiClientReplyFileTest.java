@@ -0,0 +1,123 @@
+import com.kylekewley.piclient.*;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class PiClientReplyFileTest {
+
+    ///A custom parser on the server, answered with the stub's reply payload
+    private static final int PARSER_ID = 16;
+
+    private static final int REPLY_SIZE = 32 * 1024 * 1024; //32mb
+
+    private PiServerStub server;
+    private PiClient piClient;
+    private File file;
+    private RandomAccessFile randomAccessFile;
+
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("PiClientReplyFileTest", ".bin");
+        randomAccessFile = new RandomAccessFile(file, "rw");
+
+        server = new PiServerStub(true, REPLY_SIZE);
+        piClient = new PiClient();
+        piClient.connectToPiServer("localhost", server.getPort());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        piClient.close();
+        server.close();
+        randomAccessFile.close();
+        file.delete();
+    }
+
+    @Test
+    public void testLargeReplyToFile() throws Exception {
+        FileChannel channel = randomAccessFile.getChannel();
+
+        long start = System.nanoTime();
+        long length = piClient.requestToFile(new PiMessage(PARSER_ID, new byte[] {1}), channel, 0).get(30, TimeUnit.SECONDS);
+        long time = System.nanoTime() - start;
+
+        System.out.println("Received " + REPLY_SIZE / (1024 * 1024) + " mb into a file in " + time / 1000000 + " ms");
+
+        Assert.assertEquals(REPLY_SIZE, length);
+        assertReplyPayload(channel, 0, REPLY_SIZE);
+        Assert.assertEquals(0, piClient.getMetrics().snapshot().awaitingReplyCount);
+    }
+
+    @Test
+    public void testChunkedReplyToFile() throws Exception {
+        server.setReplyChunkSize(100 * 1000);
+        FileChannel channel = randomAccessFile.getChannel();
+
+        long length = piClient.requestToFile(new PiMessage(PARSER_ID, new byte[] {1}), channel, 1000).get(30, TimeUnit.SECONDS);
+
+        Assert.assertEquals(REPLY_SIZE, length);
+        Assert.assertEquals(1000 + REPLY_SIZE, channel.size());
+        assertReplyPayload(channel, 1000, REPLY_SIZE);
+    }
+
+    @Test
+    public void testSmallRepliesBetweenOtherRequests() throws Exception {
+        server.close();
+        server = new PiServerStub(true, 3000);
+        server.setFragmentSize(1000);
+        piClient.close();
+        piClient = new PiClient();
+        piClient.connectToPiServer("localhost", server.getPort());
+
+        FileChannel channel = randomAccessFile.getChannel();
+        for (int i = 0; i < 20; i++) {
+            PiFuture<byte[]> inMemory = piClient.request(new PiMessage(PARSER_ID, new byte[] {1}));
+            PiFuture<Long> toFile = piClient.requestToFile(new PiMessage(PARSER_ID, new byte[] {1}), channel, i * 3000);
+
+            Assert.assertEquals(3000, inMemory.get(10, TimeUnit.SECONDS).length);
+            Assert.assertEquals(3000, (long) toFile.get(10, TimeUnit.SECONDS));
+        }
+
+        for (int i = 0; i < 20; i++)
+            assertReplyPayload(channel, i * 3000, 3000);
+    }
+
+    @Test
+    public void testParseErrorIsNotWrittenToFile() throws Exception {
+        server.setParseErrorInterval(1);
+        FileChannel channel = randomAccessFile.getChannel();
+
+        try {
+            piClient.requestToFile(new PiMessage(PARSER_ID, new byte[] {1}), channel, 0).get(10, TimeUnit.SECONDS);
+            Assert.fail("The request should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof PiParseErrorException);
+        }
+        Assert.assertEquals(0, channel.size());
+    }
+
+    private static void assertReplyPayload(FileChannel channel, long position, int length) throws Exception {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        while (data.hasRemaining()) {
+            if (channel.read(data, position + data.position()) < 0)
+                break;
+        }
+        Assert.assertEquals(length, data.position());
+
+        data.flip();
+        for (int i = 0; i < length; i++) {
+            if (data.get(i) != (byte) i)
+                Assert.fail("Byte " + i + " was " + data.get(i));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import com.kylekewley.piclient.*;
+import com.kylekewley.piclient.protocolbuffers.Ping;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class PiClientRequestTest {
+
+    ///The number of requests kept in flight at once
+    private static final int REQUEST_COUNT = 10000;
+
+    private PiServerStub server;
+    private PiClient piClient;
+
+
+    @After
+    public void tearDown() throws Exception {
+        piClient.close();
+        server.close();
+    }
+
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        server = new PiServerStub(true);
+        piClient = new PiClient();
+        piClient.connectToPiServer("localhost", server.getPort());
+
+        long startTime = System.currentTimeMillis();
+
+        List<PiFuture<byte[]>> futures = new ArrayList<PiFuture<byte[]>>(REQUEST_COUNT);
+        for (int i = 0; i < REQUEST_COUNT; i++)
+            futures.add(piClient.request(new PiMessage(1)));
+
+        List<byte[]> replies = PiFuture.all(futures).get(30, TimeUnit.SECONDS);
+        System.out.println(REQUEST_COUNT + " pipelined requests took " + (System.currentTimeMillis() - startTime) + " milliseconds.");
+
+        Assert.assertEquals(REQUEST_COUNT, replies.size());
+        for (byte[] reply : replies)
+            Assert.assertNull("Empty replies complete with null", reply);
+    }
+
+    @Test
+    public void testTypedRequest() throws Exception {
+        server = new PiServerStub(true);
+        server.setEcho(true);
+        piClient = new PiClient();
+        piClient.connectToPiServer("localhost", server.getPort());
+
+        Ping ping = new Ping(42, "Hello World!");
+        Ping reply = piClient.request(1, ping, Ping.class).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(ping, reply);
+
+        byte[] data = piClient.request(new PiMessage(1, new byte[]{1, 2, 3})).get(10, TimeUnit.SECONDS);
+        Assert.assertArrayEquals(new byte[]{1, 2, 3}, data);
+    }
+
+    @Test
+    public void testCloseFailsUnansweredRequests() throws Exception {
+        server = new PiServerStub(false);
+        piClient = new PiClient();
+        piClient.connectToPiServer("localhost", server.getPort());
+
+        PiFuture<byte[]> future = piClient.request(new PiMessage(1));
+
+        //Wait for the request to go out so it is waiting for a reply
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.getFramesReceived() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+
+        piClient.close();
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            Assert.fail("The request should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+import com.kylekewley.piclient.*;
+import com.kylekewley.piclient.protocolbuffers.ParseError;
+import com.squareup.wire.Message;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+public class PiClientStreamTest {
+
+    ///A custom parser on the server
+    private static final int PARSER_ID = 16;
+
+    ///The size of the large upload, bigger than the client ever holds at once
+    private static final long STREAM_SIZE = 64L * 1024 * 1024; //64mb
+
+    private static final int REPLY_SIZE = 8 * 1024 * 1024; //8mb
+    private static final int REPLY_CHUNK_SIZE = 64 * 1024;
+
+    private PiServerStub server;
+    private PiClient piClient;
+
+
+    /**
+     * Generates size bytes without holding them, like a file being read.
+     */
+    private static class GeneratedInputStream extends InputStream {
+        private final long size;
+        private long position;
+        final CRC32 checksum = new CRC32();
+
+        GeneratedInputStream(long size) {
+            this.size = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@NotNull byte[] b, int off, int len) throws IOException {
+            if (position == size)
+                return -1;
+
+            int count = (int) Math.min(len, size - position);
+            for (int i = 0; i < count; i++)
+                b[off + i] = (byte) ((position + i) * 31);
+            checksum.update(b, off, count);
+            position += count;
+            return count;
+        }
+    }
+
+    /**
+     * Collects a chunked reply.
+     */
+    private static class ChunkCallbacks extends PiMessageCallbacks {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile String failure;
+        int nextSequence;
+        long bytes;
+
+        @Override
+        public void serverReturnedChunk(@NotNull ByteBuffer chunk, int sequence, boolean last, PiMessage message) {
+            if (sequence != nextSequence++)
+                failure = "Chunk " + sequence + " arrived out of order";
+            if (chunk.remaining() != REPLY_CHUNK_SIZE)
+                failure = "Chunk " + sequence + " has " + chunk.remaining() + " bytes";
+            if (chunk.get(chunk.position()) != (byte) bytes)
+                failure = "Chunk " + sequence + " has the wrong data";
+
+            bytes += chunk.remaining();
+            if (last)
+                done.countDown();
+        }
+
+        @Override
+        public void serverReturnedData(byte[] data, PiMessage message) {
+            failure = "The reply should come in chunks";
+        }
+
+        @Override
+        public void serverRepliedWithMessage(Message response, PiMessage sentMessage) {
+            failure = "The server replies with data";
+        }
+
+        @Override
+        public void serverSuccessfullyParsedMessage(PiMessage message) {
+            failure = "The server replies with data";
+        }
+
+        @Override
+        public void serverReturnedErrorForMessage(ParseError parseError, PiMessage message) {
+            failure = "The server replies with data";
+        }
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        if (piClient != null)
+            piClient.close();
+        if (server != null)
+            server.close();
+    }
+
+    @Test
+    public void testLargeUpload() throws Exception {
+        connect();
+
+        GeneratedInputStream source = new GeneratedInputStream(STREAM_SIZE);
+        PiFuture<byte[]> reply = new PiFuture<byte[]>();
+
+        long start = System.nanoTime();
+        Assert.assertEquals(STREAM_SIZE, piClient.sendStream(PARSER_ID, source, reply));
+        ByteBuffer summary = ByteBuffer.wrap(reply.get(30, TimeUnit.SECONDS));
+        long time = System.nanoTime() - start;
+
+        System.out.println("Streamed " + STREAM_SIZE / (1024 * 1024) + " mb in " + time / 1000000 + " ms (" +
+                STREAM_SIZE * 1000 / Math.max(1, time) + " mb/s)");
+
+        Assert.assertEquals(STREAM_SIZE, summary.getLong());
+        Assert.assertEquals((int) source.checksum.getValue(), summary.getInt());
+
+        long chunks = STREAM_SIZE / PiClient.DEFAULT_STREAM_CHUNK_SIZE;
+        Assert.assertEquals(chunks, server.getFramesReceived());
+        Assert.assertEquals(chunks, piClient.getMetrics().snapshot().framesSent);
+        Assert.assertEquals(0, piClient.getMetrics().snapshot().awaitingReplyCount);
+    }
+
+    @Test
+    public void testShortAndEmptyStreams() throws Exception {
+        connect();
+        piClient.setStreamChunkSize(1000);
+
+        for (int size : new int[] {0, 1, 999, 1000, 1001, 5000}) {
+            byte[] data = new byte[size];
+            for (int i = 0; i < size; i++)
+                data[i] = (byte) i;
+            CRC32 checksum = new CRC32();
+            checksum.update(data);
+
+            PiFuture<byte[]> reply = new PiFuture<byte[]>();
+            Assert.assertEquals(size, piClient.sendStream(PARSER_ID, new ByteArrayInputStream(data), reply));
+
+            ByteBuffer summary = ByteBuffer.wrap(reply.get(10, TimeUnit.SECONDS));
+            Assert.assertEquals(size, summary.getLong());
+            Assert.assertEquals((int) checksum.getValue(), summary.getInt());
+        }
+
+        //One chunk for each started 1000 bytes, and one for the empty stream
+        Assert.assertEquals(1 + 1 + 1 + 1 + 2 + 5, server.getFramesReceived());
+    }
+
+    @Test
+    public void testChunkedReply() throws Exception {
+        connect();
+        server.setReplyChunkSize(REPLY_CHUNK_SIZE);
+
+        ChunkCallbacks callbacks = new ChunkCallbacks();
+        PiMessage request = new PiMessage(PARSER_ID);
+        request.setMessageCallbacks(callbacks);
+
+        long start = System.nanoTime();
+        piClient.sendMessage(request);
+        Assert.assertTrue(callbacks.done.await(10, TimeUnit.SECONDS));
+        long time = System.nanoTime() - start;
+
+        System.out.println("Received " + REPLY_SIZE / (1024 * 1024) + " mb in " + callbacks.nextSequence +
+                " chunks in " + time / 1000000 + " ms");
+
+        Assert.assertNull(callbacks.failure, callbacks.failure);
+        Assert.assertEquals(REPLY_SIZE, callbacks.bytes);
+        Assert.assertEquals(REPLY_SIZE / REPLY_CHUNK_SIZE, callbacks.nextSequence);
+
+        PiClientMetrics.Snapshot snapshot = piClient.getMetrics().snapshot();
+        Assert.assertEquals(0, snapshot.awaitingReplyCount);
+        Assert.assertEquals(1, snapshot.requestLatency.getCount());
+    }
+
+    @Test
+    public void testStreamStopsWhenConnectionIsLost() throws Exception {
+        connect();
+        server.setDisconnectAfter(10);
+
+        final AtomicBoolean closedBeforeReply = new AtomicBoolean();
+        PiFuture<byte[]> reply = new PiFuture<byte[]>() {
+            @Override
+            public void connectionClosedBeforeReply(PiMessage message) {
+                closedBeforeReply.set(true);
+                super.connectionClosedBeforeReply(message);
+            }
+        };
+
+        try {
+            piClient.sendStream(PARSER_ID, new GeneratedInputStream(STREAM_SIZE), reply);
+            Assert.fail("The stream should fail when the connection is lost");
+        } catch (IOException e) {
+            //Expected
+        }
+
+        Assert.assertTrue(closedBeforeReply.get());
+        Assert.assertTrue(server.getFramesReceived() < STREAM_SIZE / PiClient.DEFAULT_STREAM_CHUNK_SIZE);
+    }
+
+    @Test
+    public void testUnsolicitedStreamReachesChunkParser() throws Exception {
+        final StringBuilder received = new StringBuilder();
+        PiParser parser = new PiParser();
+        parser.registerParserForId(new CustomChunkParser() {
+            @Override
+            public void parseChunk(@NotNull ByteBuffer chunk, int streamId, int sequence, boolean last) {
+                received.append(streamId).append(':').append(sequence).append(':').append(chunk.remaining())
+                        .append(last ? ":last " : " ");
+            }
+
+            @Override
+            public void parse(byte[] data) {
+                received.append("whole:").append(data.length).append(' ');
+            }
+        }, PARSER_ID);
+
+        PiServerManager manager = new PiServerManager(parser);
+        IntObjectHashMap<PiMessage> sentMessages = new IntObjectHashMap<PiMessage>();
+
+        Assert.assertTrue(manager.serverSentMessage(chunkFrame(7, 0, 100, false), sentMessages));
+        Assert.assertTrue(manager.serverSentMessage(chunkFrame(7, 1, 50, true), sentMessages));
+        Assert.assertEquals("7:0:100 7:1:50:last ", received.toString());
+
+        //A chunk too short for its sequence number
+        MutablePiHeader header = new MutablePiHeader();
+        header.setParserId(PARSER_ID);
+        header.setFlags(4);
+        header.setMessageLength(2);
+        Assert.assertFalse(manager.serverSentMessage(encode(header, new byte[2]), sentMessages));
+    }
+
+
+    private void connect() throws Exception {
+        server = new PiServerStub(true, REPLY_SIZE);
+        piClient = new PiClient();
+        piClient.connectToPiServer("localhost", server.getPort());
+    }
+
+    private static ByteBuffer chunkFrame(int streamId, int sequence, int length, boolean last) {
+        MutablePiHeader header = new MutablePiHeader();
+        header.setParserId(PARSER_ID);
+        header.setMessageId(streamId);
+        header.setFlags(last ? 4 | 8 : 4);
+        header.setMessageLength(4 + length);
+        return encode(header, ByteBuffer.allocate(4 + length).putInt(sequence).array());
+    }
+
+    private static ByteBuffer encode(MutablePiHeader header, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(2 + header.getSerializedSize() + payload.length);
+        frame.putShort((short) header.getSerializedSize());
+        header.encodeTo(frame);
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+}
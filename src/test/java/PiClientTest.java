@@ -7,29 +7,38 @@ import com.squareup.wire.Message;
 
 import org.jetbrains.annotations.NotNull;
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 public class PiClientTest implements PiClientCallbacks {
     private static final String DEFAULT_HOST = "localhost";
-    private static final int DEFAULT_PORT = 10002;
 
     private long sendStartTime;
 
+    private PiServerStub server;
     private PiClient piClient;
-    private Thread mainThread;
+
+    private final CountDownLatch message1Parsed = new CountDownLatch(1);
+    private final CountDownLatch message2Parsed = new CountDownLatch(1);
+    private volatile String echoedMessage;
+    private volatile boolean failed;
 
 
     @Before
     public void setUp() throws Exception {
-        piClient = new PiClient("localhost", 10002, this);
-        mainThread = Thread.currentThread();
+        server = new PiServerStub(true);
+        piClient = new PiClient(DEFAULT_HOST, server.getPort(), this);
 
     }
 
     @After
     public void tearDown() throws Exception {
         piClient.close();
+        server.close();
     }
 
     @Test
@@ -40,7 +49,9 @@ public class PiClientTest implements PiClientCallbacks {
         message1.setMessageCallbacks(new PiMessageCallbacks() {
             @Override
             public void serverReturnedData(byte[] data, PiMessage message) {
-
+                //Without a message class the echoed Ping comes back as data
+                System.out.println("Parsed message 1");
+                message1Parsed.countDown();
             }
 
             @Override
@@ -69,11 +80,11 @@ public class PiClientTest implements PiClientCallbacks {
             public void serverRepliedWithMessage(Message response, PiMessage sentMessage) {
                 Ping ping = (Ping)response;
                 System.out.println(ping.message);
+                echoedMessage = ping.message;
 
-                mainThread.interrupt();
                 long sendEndTime = System.currentTimeMillis();
                 System.out.println("Server parsed message in " + (sendEndTime - sendStartTime) + " milliseconds.");
-                piClient.close();
+                message2Parsed.countDown();
 
             }
 
@@ -84,13 +95,19 @@ public class PiClientTest implements PiClientCallbacks {
             @Override
             public void serverReturnedErrorForMessage(ParseError parseError, PiMessage message) {
                 System.out.println("Server had trouble parsing message");
+                failed = true;
+                message2Parsed.countDown();
             }
         });
 
         sendStartTime = System.currentTimeMillis();
         piClient.sendMessage(message1);
         piClient.sendMessage(message2);
-        while (!Thread.interrupted());
+
+        Assert.assertTrue(message1Parsed.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(message2Parsed.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(failed);
+        Assert.assertEquals("Hello World!", echoedMessage);
     }
 
 
@@ -120,20 +137,24 @@ public class PiClientTest implements PiClientCallbacks {
     @Override
     public void clientConnectionTimedOut(PiClient piClient) {
         System.out.println("Connection to host timed out. Try to reconnect.");
-        mainThread.interrupt();
+        failed = true;
     }
 
     @Override
     public void clientRaisedError(PiClient piClient, @NotNull ClientErrorCode error) {
         System.out.println(error.getErrorMessage());
-        mainThread.interrupt();
+        failed = true;
     }
 
     @Override
     public void clientRaisedError(PiClient piClient, @NotNull Exception error) {
         System.out.print("Failed with exception: " + error.getClass().toString() + " : ");
         System.out.println(error.getMessage());
-        mainThread.interrupt();
+        failed = true;
     }
 
-}
\ No newline at end of file
+    @Override
+    public void clientWritabilityChanged(PiClient piClient, boolean writable) {
+        System.out.println(writable ? "Send queue drained." : "Send queue is full.");
+    }
+}
@@ -0,0 +1,71 @@
+import com.kylekewley.piclient.*;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PiClientThroughputTest {
+
+    ///The number of messages sent for each run
+    private static final int MESSAGE_COUNT = 200000;
+
+    ///The payload size of each message, like a small sensor reading
+    private static final int PAYLOAD_SIZE = 32;
+
+    private PiServerStub server;
+
+
+    @Before
+    public void setUp() throws Exception {
+        server = new PiServerStub(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void testGatheredWritesThroughput() throws Exception {
+        //Warm up both paths
+        sendMessages(1, MESSAGE_COUNT / 4);
+        sendMessages(PiClient.MAX_MESSAGES_PER_WRITE, MESSAGE_COUNT / 4);
+
+        long singleTime = sendMessages(1, MESSAGE_COUNT);
+        long gatheredTime = sendMessages(PiClient.MAX_MESSAGES_PER_WRITE, MESSAGE_COUNT);
+
+        System.out.println("Single message writes: " + MESSAGE_COUNT * 1000L / Math.max(1, singleTime) + " messages/second");
+        System.out.println("Gathered writes: " + MESSAGE_COUNT * 1000L / Math.max(1, gatheredTime) + " messages/second");
+    }
+
+    /**
+     * Send the messages and wait for the server to receive all of them.
+     *
+     * @return  The number of milliseconds it took.
+     */
+    private long sendMessages(int maxMessagesPerWrite, int messageCount) throws Exception {
+        long startFrames = server.getFramesReceived();
+
+        PiClient piClient = new PiClient();
+        piClient.setMaxMessagesPerWrite(maxMessagesPerWrite);
+        piClient.connectToPiServer("localhost", server.getPort());
+
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        long startTime = System.currentTimeMillis();
+
+        for (int i = 0; i < messageCount; i++) {
+            piClient.sendMessage(new PiMessage(1, payload));
+        }
+
+        long deadline = System.currentTimeMillis() + 30000;
+        while (server.getFramesReceived() - startFrames < messageCount && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+
+        long elapsed = System.currentTimeMillis() - startTime;
+        piClient.close();
+
+        Assert.assertEquals("The server didn't receive every message", messageCount, server.getFramesReceived() - startFrames);
+        return elapsed;
+    }
+}
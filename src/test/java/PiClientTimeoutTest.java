@@ -0,0 +1,105 @@
+import com.kylekewley.piclient.*;
+import com.kylekewley.piclient.protocolbuffers.ParseError;
+import com.squareup.wire.Message;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PiClientTimeoutTest {
+
+    ///The number of messages the server ignores
+    private static final int MESSAGE_COUNT = 100000;
+
+    ///The reply timeout for each message in milliseconds
+    private static final int REPLY_TIMEOUT = 200;
+
+    private ServerSocketChannel server;
+    private SocketChannel serverSideSocket;
+    private PiClient piClient;
+
+
+    @Before
+    public void setUp() throws Exception {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("localhost", 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        piClient.close();
+        serverSideSocket.close();
+        server.close();
+    }
+
+    @Test
+    public void testUnansweredMessagesTimeOut() throws Exception {
+        final CountDownLatch timedOut = new CountDownLatch(MESSAGE_COUNT);
+
+        PiMessageCallbacks callbacks = new PiMessageCallbacks() {
+            @Override
+            public void serverReturnedData(byte[] data, PiMessage message) {
+                Assert.fail("The server never replies");
+            }
+
+            @Override
+            public void serverRepliedWithMessage(Message response, PiMessage sentMessage) {
+                Assert.fail("The server never replies");
+            }
+
+            @Override
+            public void serverSuccessfullyParsedMessage(PiMessage message) {
+                Assert.fail("The server never replies");
+            }
+
+            @Override
+            public void serverReturnedErrorForMessage(ParseError parseError, PiMessage message) {
+                Assert.fail("The server never replies");
+            }
+
+            @Override
+            public void serverReplyTimedOut(PiMessage message) {
+                timedOut.countDown();
+            }
+        };
+
+        piClient = new PiClient();
+        piClient.setDefaultReplyTimeout(REPLY_TIMEOUT);
+        piClient.connectToPiServer("localhost", server.socket().getLocalPort());
+        serverSideSocket = server.accept();
+
+        //Read and ignore everything the client sends
+        Thread drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                try {
+                    while (serverSideSocket.read(buffer) >= 0)
+                        buffer.clear();
+                } catch (Exception e) {
+                    //Socket closed
+                }
+            }
+        });
+        drainThread.start();
+
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            PiMessage message = new PiMessage(1);
+            message.setMessageCallbacks(callbacks);
+            piClient.sendMessage(message);
+        }
+
+        Assert.assertTrue("Not every message timed out, " + timedOut.getCount() + " left",
+                timedOut.await(10, TimeUnit.SECONDS));
+        System.out.println(MESSAGE_COUNT + " messages timed out in " + (System.currentTimeMillis() - startTime) + " milliseconds.");
+    }
+}
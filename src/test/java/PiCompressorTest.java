@@ -0,0 +1,201 @@
+import com.kylekewley.piclient.*;
+import com.kylekewley.piclient.protocolbuffers.ParseError;
+import com.squareup.wire.Message;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+public class PiCompressorTest {
+
+    private static final int PARSER_ID = 16;
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (int size : new int[] {16, 512, 4096, 65536}) {
+            byte[] data = jsonPayload(size);
+
+            long start = System.nanoTime();
+            byte[] compressed = PiCompressor.compress(data, Deflater.BEST_SPEED);
+            long compressTime = System.nanoTime() - start;
+            Assert.assertNotNull(compressed);
+            Assert.assertTrue(compressed.length < data.length);
+
+            byte[] output = new byte[PiCompressor.getUncompressedLength(compressed, 0, compressed.length)];
+            Assert.assertEquals(data.length, output.length);
+
+            start = System.nanoTime();
+            Assert.assertEquals(data.length, PiCompressor.decompress(compressed, 0, compressed.length, output));
+            long decompressTime = System.nanoTime() - start;
+            Assert.assertArrayEquals(data, output);
+
+            System.out.println("Compressed " + data.length + " bytes to " + compressed.length + " in " +
+                    compressTime / 1000 + " us, decompressed in " + decompressTime / 1000 + " us");
+        }
+    }
+
+    @Test
+    public void testIncompressibleDataIsNotCompressed() {
+        byte[] data = new byte[4096];
+        new Random(1).nextBytes(data);
+        Assert.assertNull(PiCompressor.compress(data, Deflater.BEST_COMPRESSION));
+        Assert.assertNull(PiCompressor.compress(new byte[0], Deflater.BEST_SPEED));
+    }
+
+    @Test
+    public void testCorruptDataIsRejected() {
+        byte[] compressed = PiCompressor.compress(jsonPayload(4096), Deflater.BEST_SPEED);
+        Assert.assertNotNull(compressed);
+
+        //Cut off the end of the stream
+        byte[] truncated = Arrays.copyOf(compressed, compressed.length / 2);
+        assertRejected(truncated, new byte[4096]);
+
+        //Claim a different length than the stream holds
+        byte[] wrongLength = compressed.clone();
+        wrongLength[3]++;
+        assertRejected(wrongLength, new byte[4097]);
+
+        //A length that would use up the heap
+        byte[] hugeLength = compressed.clone();
+        hugeLength[0] = 0x7F;
+        assertRejected(hugeLength, new byte[0]);
+    }
+
+    @Test
+    public void testServerManagerDecompressesReplies() throws Exception {
+        final byte[] data = jsonPayload(8192);
+        final byte[][] received = new byte[1][];
+
+        PiParser parser = new PiParser();
+        parser.registerParserForId(new CustomParser() {
+            @Override
+            public void parse(byte[] data) {
+                received[0] = data;
+            }
+        }, PARSER_ID);
+
+        PiClientMetrics metrics = new PiClientMetrics();
+        PiServerManager manager = new PiServerManager(parser);
+        manager.setMetrics(metrics);
+        IntObjectHashMap<PiMessage> sentMessages = new IntObjectHashMap<PiMessage>();
+
+        ByteBuffer frame = compressedFrame(PiCompressor.compress(data, Deflater.BEST_SPEED));
+        Assert.assertTrue(manager.serverSentMessage(frame, sentMessages));
+        Assert.assertArrayEquals(data, received[0]);
+
+        //Split between reads, one byte at a time
+        received[0] = null;
+        frame = compressedFrame(PiCompressor.compress(data, Deflater.BEST_SPEED));
+        for (int i = 0; i < frame.limit(); i++) {
+            ByteBuffer piece = ByteBuffer.wrap(new byte[] {frame.get(i)});
+            Assert.assertTrue(manager.serverSentMessage(piece, sentMessages));
+        }
+        Assert.assertArrayEquals(data, received[0]);
+
+        //A corrupt frame is counted and the next frame still parses
+        received[0] = null;
+        Assert.assertFalse(manager.serverSentMessage(compressedFrame(new byte[] {0, 0, 0, 10, 1, 2, 3}), sentMessages));
+        Assert.assertNull(received[0]);
+        Assert.assertEquals(1, metrics.snapshot().decompressionErrors);
+
+        Assert.assertTrue(manager.serverSentMessage(compressedFrame(PiCompressor.compress(data, Deflater.BEST_SPEED)), sentMessages));
+        Assert.assertArrayEquals(data, received[0]);
+    }
+
+    @Test
+    public void testCompressedRepliesReachMessageCallbacks() throws Exception {
+        final byte[] data = jsonPayload(2048);
+        final byte[][] received = new byte[1][];
+
+        PiMessage request = new PiMessage(PARSER_ID);
+        request.setMessageCallbacks(new PiMessageCallbacks() {
+            @Override
+            public void serverReturnedData(byte[] data, PiMessage message) {
+                received[0] = data;
+            }
+
+            @Override
+            public void serverRepliedWithMessage(Message response, PiMessage sentMessage) {
+                Assert.fail("The server replies with data");
+            }
+
+            @Override
+            public void serverSuccessfullyParsedMessage(PiMessage message) {
+                Assert.fail("The server replies with data");
+            }
+
+            @Override
+            public void serverReturnedErrorForMessage(ParseError parseError, PiMessage message) {
+                Assert.fail("The server replies with data");
+            }
+        });
+
+        IntObjectHashMap<PiMessage> sentMessages = new IntObjectHashMap<PiMessage>();
+        sentMessages.put(request.getMessageId(), request);
+
+        MutablePiHeader header = new MutablePiHeader();
+        header.setParserId(PARSER_ID);
+        header.setMessageId(request.getMessageId());
+        header.setSuccessResponse(true);
+
+        PiServerManager manager = new PiServerManager(new PiParser());
+        Assert.assertTrue(manager.serverSentMessage(encodeFrame(header, PiCompressor.compress(data, Deflater.BEST_SPEED)), sentMessages));
+        Assert.assertArrayEquals(data, received[0]);
+        Assert.assertEquals(0, sentMessages.size());
+    }
+
+
+    private static void assertRejected(byte[] compressed, byte[] output) {
+        try {
+            PiCompressor.decompress(compressed, 0, compressed.length, output);
+            Assert.fail("The corrupt data should be rejected");
+        } catch (DataFormatException e) {
+            //Expected
+        }
+    }
+
+    /**
+     * @return  A frame for PARSER_ID with the compressed flag and the given payload.
+     */
+    private static ByteBuffer compressedFrame(byte[] payload) {
+        Assert.assertNotNull(payload);
+
+        MutablePiHeader header = new MutablePiHeader();
+        header.setParserId(PARSER_ID);
+        return encodeFrame(header, payload);
+    }
+
+    private static ByteBuffer encodeFrame(MutablePiHeader header, byte[] payload) {
+        header.setFlags(2);
+        header.setMessageLength(payload.length);
+
+        ByteBuffer frame = ByteBuffer.allocate(2 + header.getSerializedSize() + payload.length);
+        frame.putShort((short) header.getSerializedSize());
+        header.encodeTo(frame);
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * @return  Sensor readings as JSON, about size bytes long.
+     */
+    static byte[] jsonPayload(int size) {
+        Random random = new Random(size);
+        StringBuilder builder = new StringBuilder("[");
+        while (builder.length() < size - 80) {
+            builder.append("{\"sensor\":\"temperature\",\"value\":").append(random.nextInt(1000))
+                    .append(",\"time\":").append(1400000000 + random.nextInt(100000)).append("},");
+        }
+        while (builder.length() < size - 1)
+            builder.append(' ');
+        builder.append(']');
+        return builder.toString().getBytes();
+    }
+}
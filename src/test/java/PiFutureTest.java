@@ -0,0 +1,110 @@
+import com.kylekewley.piclient.*;
+import com.kylekewley.piclient.protocolbuffers.ParseError;
+import com.kylekewley.piclient.protocolbuffers.Ping;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class PiFutureTest {
+
+    @Test
+    public void testCompletesOnce() throws Exception {
+        PiFuture<Ping> future = new PiFuture<Ping>(Ping.class);
+        Assert.assertEquals(Ping.class, future.getMessageClass());
+        Assert.assertFalse(future.isDone());
+
+        Ping ping = new Ping(1, "Hello World!");
+        future.serverRepliedWithMessage(ping, null);
+        future.serverReplyTimedOut(null);
+
+        Assert.assertTrue(future.isSuccess());
+        Assert.assertSame(ping, future.get());
+        Assert.assertNull(future.getCause());
+    }
+
+    @Test
+    public void testEmptyReplyCompletesWithNull() throws Exception {
+        PiFuture<byte[]> future = new PiFuture<byte[]>();
+        future.serverSuccessfullyParsedMessage(null);
+
+        Assert.assertTrue(future.isSuccess());
+        Assert.assertNull(future.get());
+    }
+
+    @Test
+    public void testFailures() throws Exception {
+        PiFuture<Ping> errorFuture = new PiFuture<Ping>(Ping.class);
+        errorFuture.serverReturnedErrorForMessage(new ParseError(3, "Bad message"), null);
+        Assert.assertEquals(3, (int) ((PiParseErrorException) errorFuture.getCause()).getParseError().errorNumber);
+
+        PiFuture<Ping> unparsedFuture = new PiFuture<Ping>(Ping.class);
+        unparsedFuture.serverReturnedData(new byte[]{1, 2, 3}, null);
+        Assert.assertTrue(unparsedFuture.getCause() instanceof IOException);
+
+        PiFuture<Ping> timeoutFuture = new PiFuture<Ping>(Ping.class);
+        timeoutFuture.serverReplyTimedOut(null);
+        try {
+            timeoutFuture.get();
+            Assert.fail("The future should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void testGetTimesOut() throws Exception {
+        new PiFuture<byte[]>().get(10, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testListeners() throws Exception {
+        final int[] calls = {0};
+        PiFutureListener<byte[]> listener = new PiFutureListener<byte[]>() {
+            @Override
+            public void operationComplete(PiFuture<byte[]> future) {
+                Assert.assertTrue(future.isDone());
+                calls[0]++;
+            }
+        };
+
+        PiFuture<byte[]> future = new PiFuture<byte[]>();
+        future.addListener(listener);
+        Assert.assertEquals(0, calls[0]);
+
+        future.complete(new byte[0]);
+        Assert.assertEquals(1, calls[0]);
+
+        //Added after completion, runs right away
+        future.addListener(listener);
+        Assert.assertEquals(2, calls[0]);
+    }
+
+    @Test
+    public void testAll() throws Exception {
+        List<PiFuture<Integer>> futures = new ArrayList<PiFuture<Integer>>();
+        for (int i = 0; i < 10; i++)
+            futures.add(new PiFuture<Integer>());
+
+        PiFuture<List<Integer>> all = PiFuture.all(futures);
+        for (int i = 9; i >= 0; i--) {
+            Assert.assertFalse(all.isDone());
+            futures.get(i).complete(i);
+        }
+
+        List<Integer> results = all.get();
+        for (int i = 0; i < 10; i++)
+            Assert.assertEquals(i, (int) results.get(i));
+
+        futures.add(new PiFuture<Integer>());
+        PiFuture<List<Integer>> failed = PiFuture.all(futures);
+        futures.get(10).fail(new IOException());
+        Assert.assertTrue(failed.getCause() instanceof IOException);
+    }
+}
@@ -0,0 +1,69 @@
+import com.kylekewley.piclient.*;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class PiLatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        PiLatencyHistogram.Snapshot snapshot = new PiLatencyHistogram().snapshot();
+        Assert.assertEquals(0, snapshot.getCount());
+        Assert.assertEquals(0, snapshot.getValueAtPercentile(99));
+        Assert.assertEquals(0, snapshot.getMax());
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        PiLatencyHistogram histogram = new PiLatencyHistogram();
+        for (int i = 1; i <= 60; i++)
+            histogram.record(i);
+
+        PiLatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(60, snapshot.getCount());
+        Assert.assertEquals(30, snapshot.getValueAtPercentile(50));
+        Assert.assertEquals(60, snapshot.getValueAtPercentile(100));
+        Assert.assertEquals(30.5, snapshot.getMean(), 0.001);
+    }
+
+    @Test
+    public void testPercentilesWithinPrecision() {
+        PiLatencyHistogram histogram = new PiLatencyHistogram();
+        Random random = new Random(42);
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            //Log-uniform from 1us to 1s
+            values[i] = (long) Math.pow(10, 3 + random.nextDouble() * 6);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        PiLatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        double[] percentiles = {1, 50, 90, 99, 99.9};
+        for (double percentile : percentiles) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long estimate = snapshot.getValueAtPercentile(percentile);
+            Assert.assertTrue(estimate >= exact);
+            Assert.assertTrue(estimate <= exact * 1.04);
+        }
+        Assert.assertEquals(values[values.length - 1], snapshot.getMax());
+        Assert.assertEquals(values[values.length - 1], snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testHugeValuesAreClamped() {
+        PiLatencyHistogram histogram = new PiLatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-1);
+
+        PiLatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(1, snapshot.getCount());
+        Assert.assertEquals(Long.MAX_VALUE, snapshot.getMax());
+
+        histogram.reset();
+        Assert.assertEquals(0, histogram.snapshot().getCount());
+    }
+}
@@ -0,0 +1,98 @@
+import com.kylekewley.piclient.*;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends requests through a connected PiClient with a fixed number in flight and measures
+ * the throughput and the latency of each request from request() until its future completes.
+ */
+public class PiLoadDriver {
+
+    /**
+     * The outcome of one run. Latencies are in microseconds.
+     */
+    public static class Result {
+        public final int messages;
+        public final int failures;
+        public final double messagesPerSecond;
+        public final long p50;
+        public final long p99;
+        public final long p999;
+
+        Result(int messages, int failures, long elapsedNanos, @NotNull PiRttEstimator latencies) {
+            this.messages = messages;
+            this.failures = failures;
+            this.messagesPerSecond = messages * 1e9 / elapsedNanos;
+            this.p50 = latencies.getPercentile(50) / 1000;
+            this.p99 = latencies.getPercentile(99) / 1000;
+            this.p999 = latencies.getPercentile(99.9) / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return messages + " messages, " + failures + " failed, " + (int) messagesPerSecond + " messages/second, " +
+                    "p50 " + p50 + "us, p99 " + p99 + "us, p999 " + p999 + "us";
+        }
+    }
+
+    private final PiClient piClient;
+
+
+    /**
+     * @param piClient  The client to send through. It should already be connected.
+     */
+    public PiLoadDriver(@NotNull PiClient piClient) {
+        this.piClient = piClient;
+    }
+
+    /**
+     * Send the requests and wait for every one of them to finish.
+     *
+     * @param parserId      The parser ID to send to.
+     * @param payloadSize   The number of bytes in each request.
+     * @param messages      The number of requests to send.
+     * @param inFlight      The most requests waiting for a reply at once.
+     * @param timeoutMillis The longest to wait for the whole run.
+     */
+    @NotNull
+    public Result run(int parserId, int payloadSize, int messages, int inFlight, long timeoutMillis)
+            throws InterruptedException, TimeoutException {
+        byte[] payload = new byte[payloadSize];
+        final Semaphore window = new Semaphore(inFlight);
+        final CountDownLatch done = new CountDownLatch(messages);
+        final AtomicInteger failures = new AtomicInteger();
+
+        //Window sized to keep every sample, so the percentiles cover the whole run
+        final PiRttEstimator latencies = new PiRttEstimator(messages);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            if (!window.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                throw new TimeoutException("Only " + i + " of " + messages + " requests were sent in time.");
+
+            final long sendTime = System.nanoTime();
+            piClient.request(new PiMessage(parserId, payload)).addListener(new PiFutureListener<byte[]>() {
+                @Override
+                public void operationComplete(@NotNull PiFuture<byte[]> future) {
+                    latencies.addSample(System.nanoTime() - sendTime);
+                    if (!future.isSuccess())
+                        failures.incrementAndGet();
+                    window.release();
+                    done.countDown();
+                }
+            });
+        }
+
+        if (!done.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+            throw new TimeoutException(done.getCount() + " of " + messages + " requests didn't finish in time.");
+
+        return new Result(messages, failures.get(), System.nanoTime() - startTime, latencies);
+    }
+}
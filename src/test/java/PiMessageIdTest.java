@@ -0,0 +1,73 @@
+import com.kylekewley.piclient.PiMessage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+public class PiMessageIdTest {
+
+    @Test
+    public void testNoDuplicateIdsUnderContention() throws Exception {
+        final int threadCount = 16;
+        final int idsPerThread = 500000;
+        final int[][] ids = new int[threadCount][idsPerThread];
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int[] threadIds = ids[t];
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < threadIds.length; i++) {
+                        threadIds[i] = PiMessage.getUniqueMessageId();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - startTime;
+
+        int total = threadCount * idsPerThread;
+        System.out.println("Generated " + total + " message IDs on " + threadCount + " threads in " +
+                elapsed / 1000000 + "ms (" + (long) (total / (elapsed / 1e9)) + " per second).");
+
+        int[] allIds = new int[total];
+        for (int t = 0; t < threadCount; t++) {
+            //Each thread's IDs go up, so replies from one thread come back in a predictable order
+            for (int i = 1; i < idsPerThread; i++) {
+                Assert.assertTrue(ids[t][i] > ids[t][i - 1]);
+            }
+            System.arraycopy(ids[t], 0, allIds, t * idsPerThread, idsPerThread);
+        }
+
+        Arrays.sort(allIds);
+        Assert.assertTrue(allIds[0] > 0);
+        for (int i = 1; i < total; i++) {
+            if (allIds[i] == allIds[i - 1])
+                Assert.fail("Duplicate message ID " + allIds[i]);
+        }
+    }
+
+    @Test
+    public void testMessagesGetDifferentIds() throws Exception {
+        PiMessage first = new PiMessage(1, new byte[0]);
+        PiMessage second = new PiMessage(1, new byte[0]);
+
+        Assert.assertTrue(first.getMessageId() > 0);
+        Assert.assertTrue(second.getMessageId() > first.getMessageId());
+    }
+}
@@ -4,11 +4,13 @@ import com.kylekewley.piclient.protocolbuffers.Ping;
 import com.squareup.wire.Message;
 import org.junit.After;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -63,12 +65,63 @@ public class PiMessageTest {
 
         PiParser p = new PiParser();
         PiServerManager manager = new PiServerManager(p);
-        ArrayList<PiMessage> messages = new ArrayList<PiMessage>();
-        messages.add(message);
+        IntObjectHashMap<PiMessage> messages = new IntObjectHashMap<PiMessage>();
+        messages.put(message.getMessageId(), message);
 
         manager.serverSentMessage(ByteBuffer.wrap(outputStream.toByteArray()), messages);
 
 
         Assert.assertTrue("Message wasn't parsed successfully", messageParsed[0]);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testPooledEncodingDoesNotAllocate() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean)bean;
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        ByteBufferPool pool = new ByteBufferPool();
+        PiMessage message = new PiMessage(1, new Ping(0, "Hello World!"));
+
+        //Warm up the pool and the JIT
+        for (int i = 0; i < 100000; i++) {
+            encodeAndRelease(pool, message);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long startBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 100000; i++) {
+            encodeAndRelease(pool, message);
+        }
+        long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+        System.out.println("Encoding 100000 messages allocated " + allocatedBytes + " bytes");
+        Assert.assertTrue("Encoding allocated " + allocatedBytes + " bytes", allocatedBytes < 1024);
+    }
+
+    @Test
+    public void testByteBufferMatchesOutputStream() throws Exception {
+        PiMessage message = new PiMessage(7, new Ping(42, "Hello World!"));
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        message.writeToOutputStream(outputStream);
+
+        ByteBuffer byteBuffer = new ByteBufferPool().acquire(message.serializedSize());
+        message.writeToByteBuffer(byteBuffer);
+        byteBuffer.flip();
+
+        byte[] encoded = new byte[byteBuffer.remaining()];
+        byteBuffer.get(encoded);
+
+        Assert.assertArrayEquals(outputStream.toByteArray(), encoded);
+    }
+
+    private static void encodeAndRelease(ByteBufferPool pool, PiMessage message) {
+        ByteBuffer buffer = pool.acquire(message.serializedSize());
+        message.writeToByteBuffer(buffer);
+        buffer.flip();
+        pool.release(buffer);
+    }
+}
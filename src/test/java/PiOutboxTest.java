@@ -0,0 +1,322 @@
+import com.kylekewley.piclient.*;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+
+public class PiOutboxTest implements PiClientCallbacks {
+
+    private File file;
+    private PiOutbox outbox;
+    private PiServerStub server;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("pioutbox", ".outbox");
+        file.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (outbox != null)
+            outbox.close();
+        if (server != null)
+            server.close();
+        file.delete();
+    }
+
+    @Test
+    public void testCrashRecovery() throws Exception {
+        outbox = new PiOutbox(file);
+        PiMessage[] messages = new PiMessage[100];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = new PiMessage(i % 7, payload(i));
+            outbox.append(messages[i]);
+        }
+        for (int i = 0; i < 40; i++) {
+            outbox.acknowledge(messages[i]);
+        }
+        Assert.assertEquals(60, outbox.size());
+        outbox.sync();
+
+        //Open the file again without closing the first outbox, like the process was killed
+        PiOutbox recoveredOutbox = new PiOutbox(file);
+        try {
+            List<PiMessage> recovered = recoveredOutbox.takeRecoveredMessages();
+            Assert.assertEquals(60, recovered.size());
+            for (int i = 0; i < recovered.size(); i++) {
+                assertSameMessage(messages[40 + i], recovered.get(i));
+            }
+            Assert.assertTrue(recoveredOutbox.takeRecoveredMessages().isEmpty());
+        }finally {
+            recoveredOutbox.close();
+        }
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws Exception {
+        outbox = new PiOutbox(file);
+        for (int i = 0; i < 10; i++) {
+            outbox.append(new PiMessage(1, payload(i)));
+        }
+        outbox.close();
+
+        //Find the end of the records and write part of a record after them
+        PiOutbox reopened = new PiOutbox(file);
+        Assert.assertEquals(10, reopened.takeRecoveredMessages().size());
+        reopened.close();
+
+        long end = findEndOfRecords();
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(end);
+        raw.writeInt(50);
+        raw.writeInt(12345);
+        raw.write(new byte[]{0, 3, 8, 50});
+        raw.close();
+
+        outbox = new PiOutbox(file);
+        Assert.assertEquals(10, outbox.takeRecoveredMessages().size());
+
+        //Appends after recovery are readable again
+        PiMessage message = new PiMessage(2, payload(99));
+        outbox.append(message);
+        outbox.close();
+
+        outbox = new PiOutbox(file);
+        List<PiMessage> recovered = outbox.takeRecoveredMessages();
+        Assert.assertEquals(11, recovered.size());
+        assertSameMessage(message, recovered.get(10));
+    }
+
+    @Test
+    public void testAcknowledgedSpaceIsReused() throws Exception {
+        outbox = new PiOutbox(file, PiOutbox.DEFAULT_SYNC_INTERVAL, 256 * 1024);
+
+        //Keep a window of 100 unacknowledged messages while writing far more than the file can hold
+        PiMessage[] window = new PiMessage[100];
+        for (int i = 0; i < 20000; i++) {
+            int slot = i % window.length;
+            if (window[slot] != null)
+                outbox.acknowledge(window[slot]);
+
+            window[slot] = new PiMessage(1, payload(i));
+            outbox.append(window[slot]);
+        }
+
+        Assert.assertEquals(window.length, outbox.size());
+        Assert.assertTrue(outbox.getFileSize() <= 256 * 1024);
+        outbox.close();
+
+        outbox = new PiOutbox(file);
+        List<PiMessage> recovered = outbox.takeRecoveredMessages();
+        Assert.assertEquals(window.length, recovered.size());
+        for (int i = 0; i < window.length; i++) {
+            assertSameMessage(window[(20000 + i) % window.length], recovered.get(i));
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testFullOutbox() throws Exception {
+        outbox = new PiOutbox(file, PiOutbox.DEFAULT_SYNC_INTERVAL, 64 * 1024);
+        for (int i = 0; i < 1000; i++) {
+            outbox.append(new PiMessage(1, new byte[1024]));
+        }
+    }
+
+    @Test
+    public void testReplayOnConnect() throws Exception {
+        final int messageCount = 100000;
+
+        //Messages sent while disconnected by a process that then died
+        PiOutbox firstOutbox = new PiOutbox(file);
+        PiClient firstClient = new PiClient(this);
+        firstClient.setOutbox(firstOutbox);
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < messageCount; i++) {
+            firstClient.sendMessage(new PiMessage(1, new byte[64]));
+        }
+        firstOutbox.sync();
+        long appendTime = System.nanoTime() - startTime;
+        Assert.assertEquals(messageCount, firstOutbox.size());
+
+        //The next process replays them as soon as it connects
+        outbox = new PiOutbox(file);
+        PiClient piClient = new PiClient(this);
+        piClient.setOutbox(outbox);
+        Assert.assertEquals(messageCount, outbox.size());
+
+        server = new PiServerStub(false);
+        startTime = System.nanoTime();
+        piClient.connectToPiServer("localhost", server.getPort());
+
+        long deadline = System.currentTimeMillis() + 20000;
+        while (server.getFramesReceived() < messageCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        long replayTime = System.nanoTime() - startTime;
+
+        System.out.println("Outbox appended " + messageCount + " messages in " + appendTime / 1000000 +
+                "ms and replayed them in " + replayTime / 1000000 + "ms.");
+
+        Assert.assertEquals(messageCount, server.getFramesReceived());
+        Assert.assertEquals(0, outbox.size());
+        Assert.assertEquals(0, piClient.getPendingWriteBytes());
+
+        piClient.close();
+        firstOutbox.close();
+    }
+
+    @Test
+    public void testUnwrittenMessagesSurviveClose() throws Exception {
+        final int messageCount = 64;
+
+        //A server that accepts the connection and never reads, so most messages are never written
+        ServerSocketChannel stalledServer = ServerSocketChannel.open();
+        stalledServer.socket().bind(new InetSocketAddress("localhost", 0));
+
+        outbox = new PiOutbox(file);
+        PiClient piClient = new PiClient(this);
+        piClient.setOutbox(outbox);
+        piClient.connectToPiServer("localhost", stalledServer.socket().getLocalPort());
+        SocketChannel stalledSocket = stalledServer.accept();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!piClient.isConnected() && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        Assert.assertTrue(piClient.isConnected());
+
+        //Sent while connected, they are in the outbox until they are written
+        for (int i = 0; i < messageCount; i++) {
+            piClient.sendMessage(new PiMessage(1, new byte[256 * 1024]));
+        }
+        Assert.assertTrue(outbox.size() > 0);
+
+        piClient.close();
+        stalledSocket.close();
+        stalledServer.close();
+
+        //The messages that weren't written are sent on the next connection
+        int unwritten = outbox.size();
+        Assert.assertTrue(unwritten > 0);
+
+        server = new PiServerStub(false);
+        piClient.connectToPiServer("localhost", server.getPort());
+
+        deadline = System.currentTimeMillis() + 10000;
+        while (server.getFramesReceived() < unwritten && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(50);
+
+        Assert.assertEquals(unwritten, server.getFramesReceived());
+        Assert.assertEquals(0, outbox.size());
+        piClient.close();
+    }
+
+
+    /*
+    Helpers
+     */
+
+
+    private static byte[] payload(int seed) {
+        byte[] payload = new byte[16 + seed % 48];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) (seed * 31 + i);
+        return payload;
+    }
+
+    private static void assertSameMessage(PiMessage expected, PiMessage actual) {
+        Assert.assertEquals(expected.getParserId(), actual.getParserId());
+        Assert.assertEquals(expected.serializedSize() - headerSize(expected), actual.serializedSize() - headerSize(actual));
+
+        byte[] expectedData = data(expected);
+        byte[] actualData = data(actual);
+        Assert.assertTrue(Arrays.equals(expectedData, actualData));
+    }
+
+    private static int headerSize(PiMessage message) {
+        java.nio.ByteBuffer buffer = message.getByteBuffer();
+        return 2 + buffer.getShort(0);
+    }
+
+    private static byte[] data(PiMessage message) {
+        java.nio.ByteBuffer buffer = message.getByteBuffer().duplicate();
+        buffer.position(headerSize(message));
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return data;
+    }
+
+    /**
+     * @return  The file offset after the last record, by walking the record lengths.
+     */
+    private long findEndOfRecords() throws Exception {
+        RandomAccessFile raw = new RandomAccessFile(file, "r");
+        try {
+            raw.seek(8);
+            long position = raw.readLong();
+            while (true) {
+                raw.seek(position);
+                int length = raw.readInt();
+                if (length == 0)
+                    return position;
+                position += 8 + length;
+            }
+        }finally {
+            raw.close();
+        }
+    }
+
+
+    /*
+    PiClientCallbacks
+     */
+
+
+    @Override
+    public void clientConnectedToHost(PiClient piClient) {
+
+    }
+
+    @Override
+    public void clientTryingConnectionToHost(PiClient piClient) {
+
+    }
+
+    @Override
+    public void clientDisconnectedFromHost(PiClient piClient) {
+
+    }
+
+    @Override
+    public void clientConnectionTimedOut(PiClient piClient) {
+
+    }
+
+    @Override
+    public void clientRaisedError(PiClient piClient, @NotNull ClientErrorCode error) {
+        System.out.println(error.getErrorMessage());
+    }
+
+    @Override
+    public void clientRaisedError(PiClient piClient, @NotNull Exception error) {
+        System.out.println(error.getMessage());
+    }
+
+    @Override
+    public void clientWritabilityChanged(PiClient piClient, boolean writable) {
+
+    }
+}
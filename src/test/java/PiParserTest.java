@@ -0,0 +1,125 @@
+import com.kylekewley.piclient.*;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+public class PiParserTest {
+
+    ///The number of parser ID ranges to register
+    private static final int RANGE_COUNT = 500;
+
+    ///The width of each registered range. Ranges are RANGE_STRIDE apart, leaving gaps between them.
+    private static final int RANGE_WIDTH = 7;
+    private static final int RANGE_STRIDE = 10;
+
+    ///How far past the last range the correctness test looks
+    private static final int DENSE_MARGIN = 2048;
+
+    ///The number of messages dispatched for timing
+    private static final int DISPATCH_COUNT = 1000000;
+
+    /**
+     * Records the index of the parser that handled the last message.
+     */
+    private static class IndexedParser implements CustomByteBufferParser {
+        private final int index;
+        private final int[] lastParser;
+
+        IndexedParser(int index, int[] lastParser) {
+            this.index = index;
+            this.lastParser = lastParser;
+        }
+
+        @Override
+        public void parse(ByteBuffer data) {
+            lastParser[0] = index;
+        }
+
+        @Override
+        public void parse(byte[] data) {
+            lastParser[0] = index;
+        }
+    }
+
+    @Test
+    public void testDispatchesToTheRightRange() throws Exception {
+        int[] lastParser = {-1};
+        PiParser parser = newParser(lastParser);
+
+        MutablePiHeader piHeader = new MutablePiHeader();
+        piHeader.setMessageLength(0);
+        ByteBuffer data = ByteBuffer.allocate(0);
+
+        for (int parserId = -RANGE_STRIDE; parserId < RANGE_COUNT * RANGE_STRIDE + DENSE_MARGIN; parserId++) {
+            lastParser[0] = -1;
+            piHeader.setParserId(parserId);
+            parser.parseData(data, piHeader);
+
+            int offset = parserId % RANGE_STRIDE;
+            int expected = parserId >= 0 && parserId < RANGE_COUNT * RANGE_STRIDE && offset < RANGE_WIDTH ?
+                    parserId / RANGE_STRIDE : -1;
+            Assert.assertEquals("Wrong parser for ID " + parserId, expected, lastParser[0]);
+        }
+    }
+
+    @Test
+    public void testRejectsOverlappingRanges() throws Exception {
+        int[] lastParser = {-1};
+        PiParser parser = newParser(lastParser);
+
+        Assert.assertFalse(parser.registerParserForId(new IndexedParser(-2, lastParser), RANGE_STRIDE + 1));
+        Assert.assertFalse(parser.registerParserForIds(new IndexedParser(-2, lastParser), RANGE_WIDTH - 1, RANGE_STRIDE));
+        Assert.assertFalse(parser.registerParserForIds(new IndexedParser(-2, lastParser), 5, 4));
+        Assert.assertTrue(parser.registerParserForIds(new IndexedParser(-2, lastParser), RANGE_WIDTH, RANGE_STRIDE - 1));
+    }
+
+    @Test
+    public void testDispatchDoesNotAllocate() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean)bean;
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        int[] lastParser = {-1};
+        PiParser parser = newParser(lastParser);
+
+        MutablePiHeader piHeader = new MutablePiHeader();
+        piHeader.setMessageLength(0);
+        ByteBuffer data = ByteBuffer.allocate(0);
+
+        //Warm up the JIT
+        dispatch(parser, piHeader, data);
+
+        long threadId = Thread.currentThread().getId();
+        long startBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        long startTime = System.nanoTime();
+        dispatch(parser, piHeader, data);
+        long time = System.nanoTime() - startTime;
+        long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+        System.out.println("Dispatching " + DISPATCH_COUNT + " messages over " + RANGE_COUNT + " ranges took " +
+                time / DISPATCH_COUNT + " ns each and allocated " + allocatedBytes + " bytes");
+        Assert.assertTrue("Dispatching allocated " + allocatedBytes + " bytes", allocatedBytes < 1024);
+    }
+
+    private static PiParser newParser(int[] lastParser) {
+        PiParser parser = new PiParser();
+        for (int i = 0; i < RANGE_COUNT; i++) {
+            int start = i * RANGE_STRIDE;
+            Assert.assertTrue(parser.registerParserForIds(new IndexedParser(i, lastParser), start, start + RANGE_WIDTH - 1));
+        }
+        return parser;
+    }
+
+    private static void dispatch(PiParser parser, MutablePiHeader piHeader, ByteBuffer data) {
+        for (int i = 0; i < DISPATCH_COUNT; i++) {
+            piHeader.setParserId((i * 31) % (RANGE_COUNT * RANGE_STRIDE));
+            parser.parseData(data, piHeader);
+        }
+    }
+}
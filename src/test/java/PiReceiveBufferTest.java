@@ -0,0 +1,90 @@
+import com.kylekewley.piclient.PiReceiveBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+public class PiReceiveBufferTest {
+
+    @Test
+    public void testGrowsWhenReadsFillIt() throws Exception {
+        PiReceiveBuffer buffer = new PiReceiveBuffer(1024, 8192);
+        ReadableByteChannel channel = channelWithBytes(64 * 1024);
+
+        int[] expectedSizes = {2048, 4096, 8192, 8192};
+        for (int expectedSize : expectedSizes) {
+            Assert.assertEquals(buffer.capacity(), buffer.read(channel));
+            buffer.flip().position(buffer.capacity());
+            buffer.compact(0);
+            Assert.assertEquals(expectedSize, buffer.capacity());
+        }
+    }
+
+    @Test
+    public void testGrowsToFitRetainedFrame() throws Exception {
+        PiReceiveBuffer buffer = new PiReceiveBuffer(1024, 64 * 1024);
+
+        buffer.read(channelWithBytes(100));
+        buffer.flip().position(40);
+        buffer.compact(10000);
+
+        Assert.assertEquals(10000, buffer.capacity());
+        Assert.assertEquals("The unconsumed bytes should be kept", 60, buffer.size());
+
+        ByteBuffer data = buffer.flip();
+        Assert.assertEquals(40, data.get(0));
+        buffer.compact(0);
+    }
+
+    @Test
+    public void testShrinksAfterSmallReads() throws Exception {
+        PiReceiveBuffer buffer = new PiReceiveBuffer(1024, 8192);
+        ReadableByteChannel channel = channelWithBytes(64 * 1024);
+
+        for (int i = 0; i < 3; i++) {
+            buffer.read(channel);
+            buffer.flip().position(buffer.size());
+            buffer.compact(0);
+        }
+        Assert.assertEquals(8192, buffer.capacity());
+
+        for (int i = 0; i < 100; i++) {
+            buffer.read(channelWithBytes(10));
+            ByteBuffer data = buffer.flip();
+            data.position(data.limit());
+            buffer.compact(0);
+        }
+        Assert.assertEquals(1024, buffer.capacity());
+    }
+
+    @Test
+    public void testShrinksToMinimumWhenIdle() throws Exception {
+        PiReceiveBuffer buffer = new PiReceiveBuffer(1024, 8192);
+
+        buffer.read(channelWithBytes(100));
+        buffer.flip();
+        buffer.compact(4096);
+        Assert.assertFalse("Unconsumed bytes aren't idle", buffer.isIdle(0));
+
+        buffer.shrinkToMinimum();
+        Assert.assertEquals("Unconsumed bytes must not be dropped", 4096, buffer.capacity());
+
+        buffer.flip().position(100);
+        buffer.compact(0);
+        Assert.assertTrue(buffer.isIdle(0));
+
+        buffer.shrinkToMinimum();
+        Assert.assertEquals(1024, buffer.capacity());
+    }
+
+    private static ReadableByteChannel channelWithBytes(int count) {
+        byte[] bytes = new byte[count];
+        for (int i = 0; i < count; i++)
+            bytes[i] = (byte) i;
+        return Channels.newChannel(new ByteArrayInputStream(bytes));
+    }
+}
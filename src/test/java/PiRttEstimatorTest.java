@@ -0,0 +1,56 @@
+import com.kylekewley.piclient.*;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PiRttEstimatorTest {
+
+    @Test
+    public void testNoSamples() {
+        PiRttEstimator estimator = new PiRttEstimator();
+        Assert.assertEquals(0, estimator.getSampleCount());
+        Assert.assertEquals(-1, estimator.getSmoothedRtt());
+        Assert.assertEquals(-1, estimator.getRttVariation());
+        Assert.assertEquals(-1, estimator.getSuggestedTimeout());
+        Assert.assertEquals(-1, estimator.getPercentile(50));
+    }
+
+    @Test
+    public void testSmoothing() {
+        PiRttEstimator estimator = new PiRttEstimator();
+
+        //The first sample sets the average and half of it as the variation
+        estimator.addSample(800);
+        Assert.assertEquals(800, estimator.getSmoothedRtt());
+        Assert.assertEquals(400, estimator.getRttVariation());
+        Assert.assertEquals(2400, estimator.getSuggestedTimeout());
+
+        estimator.addSample(1600);
+        Assert.assertEquals(900, estimator.getSmoothedRtt());
+        Assert.assertEquals(500, estimator.getRttVariation());
+        Assert.assertEquals(1600, estimator.getLastRtt());
+
+        //A steady link converges on its round trip time
+        for (int i = 0; i < 200; i++)
+            estimator.addSample(1000);
+        Assert.assertEquals(1000, estimator.getSmoothedRtt());
+        Assert.assertEquals(0, estimator.getRttVariation());
+        Assert.assertEquals(202, estimator.getSampleCount());
+
+        estimator.reset();
+        Assert.assertEquals(-1, estimator.getSmoothedRtt());
+    }
+
+    @Test
+    public void testPercentiles() {
+        PiRttEstimator estimator = new PiRttEstimator(100);
+        for (int i = 200; i > 0; i--)
+            estimator.addSample(i);
+
+        //Only the last 100 samples, 1 to 100, are in the window
+        Assert.assertEquals(1, estimator.getPercentile(0));
+        Assert.assertEquals(50, estimator.getPercentile(50));
+        Assert.assertEquals(99, estimator.getPercentile(99));
+        Assert.assertEquals(100, estimator.getPercentile(100));
+    }
+}
@@ -0,0 +1,230 @@
+import com.kylekewley.piclient.*;
+import com.kylekewley.piclient.protocolbuffers.ParseError;
+import com.kylekewley.piclient.protocolbuffers.Ping;
+import com.squareup.wire.Message;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+public class PiServerManagerTest {
+
+    ///The number of request/reply round trips to run
+    private static final int REPLY_COUNT = 200000;
+
+    ///The number of requests waiting for a reply at any time
+    private static final int IN_FLIGHT = 64;
+
+    @Test
+    public void testRepliesMatchRollingRequests() throws Exception {
+        //The number of replies, and the message ID of the reply being fed in
+        final int[] replies = {0, 0};
+        PiMessageCallbacks callbacks = new PiMessageCallbacks() {
+            @Override
+            public void serverReturnedData(byte[] data, PiMessage message) {
+            }
+
+            @Override
+            public void serverRepliedWithMessage(Message response, PiMessage sentMessage) {
+            }
+
+            @Override
+            public void serverSuccessfullyParsedMessage(PiMessage message) {
+                Assert.assertTrue("The reply should go to the message with its ID", message.getMessageId() == replies[1]);
+                replies[0]++;
+            }
+
+            @Override
+            public void serverReturnedErrorForMessage(ParseError parseError, PiMessage message) {
+            }
+        };
+
+        PiServerManager manager = new PiServerManager(new PiParser());
+        IntObjectHashMap<PiMessage> sentMessages = new IntObjectHashMap<PiMessage>();
+
+        PiMessage[] inFlight = new PiMessage[IN_FLIGHT];
+        ByteBuffer[] replyFrames = new ByteBuffer[IN_FLIGHT];
+        for (int i = 0; i < IN_FLIGHT; i++) {
+            inFlight[i] = newRequest(callbacks);
+            replyFrames[i] = ByteBuffer.wrap(encodeReply(inFlight[i]));
+            sentMessages.put(inFlight[i].getMessageId(), inFlight[i]);
+        }
+
+        for (int i = 0; i < REPLY_COUNT; i++) {
+            //Answer out of order so removals land in the middle of probe sequences
+            int slot = (i * 37) % IN_FLIGHT;
+
+            replies[1] = inFlight[slot].getMessageId();
+            replyFrames[slot].rewind();
+            manager.serverSentMessage(replyFrames[slot], sentMessages);
+            Assert.assertNull("Answered messages should be removed", sentMessages.get(replies[1]));
+
+            //Send a new request in place of the one that was answered
+            inFlight[slot] = newRequest(callbacks);
+            replyFrames[slot] = ByteBuffer.wrap(encodeReply(inFlight[slot]));
+            sentMessages.put(inFlight[slot].getMessageId(), inFlight[slot]);
+        }
+
+        Assert.assertEquals("Every reply should be delivered", REPLY_COUNT, replies[0]);
+        Assert.assertEquals("Answered messages should be removed", IN_FLIGHT, sentMessages.size());
+        for (PiMessage message : inFlight)
+            Assert.assertSame(message, sentMessages.get(message.getMessageId()));
+    }
+
+    @Test
+    public void testFramesSplitAtEveryByte() throws Exception {
+        final int[] replies = {0};
+        final Ping ping = new Ping(7, "Hello World!");
+
+        PiMessage request = new PiMessage(1, ping);
+        request.setMessageCallbacks(new PiMessageCallbacks(Ping.class) {
+            @Override
+            public void serverReturnedData(byte[] data, PiMessage message) {
+                Assert.fail("Server should have returned a message");
+            }
+
+            @Override
+            public void serverRepliedWithMessage(Message response, PiMessage sentMessage) {
+                Assert.assertEquals(ping, response);
+                replies[0]++;
+            }
+
+            @Override
+            public void serverSuccessfullyParsedMessage(PiMessage message) {
+                Assert.fail("Server should have returned a message");
+            }
+
+            @Override
+            public void serverReturnedErrorForMessage(ParseError parseError, PiMessage message) {
+                Assert.fail("Server should have returned a message");
+            }
+        });
+
+        byte[] frame = encodeReply(request);
+        PiServerManager manager = new PiServerManager(new PiParser());
+        IntObjectHashMap<PiMessage> sentMessages = new IntObjectHashMap<PiMessage>();
+
+        //Split the frame in two at every possible byte
+        for (int split = 0; split <= frame.length; split++) {
+            sentMessages.put(request.getMessageId(), request);
+
+            Assert.assertTrue(manager.serverSentMessage(ByteBuffer.wrap(frame, 0, split), sentMessages));
+            Assert.assertTrue(manager.serverSentMessage(ByteBuffer.wrap(frame, split, frame.length - split), sentMessages));
+        }
+
+        //Feed it one byte at a time
+        sentMessages.put(request.getMessageId(), request);
+        for (byte b : frame) {
+            Assert.assertTrue(manager.serverSentMessage(ByteBuffer.wrap(new byte[]{b}), sentMessages));
+        }
+
+        Assert.assertEquals(frame.length + 2, replies[0]);
+    }
+
+    @Test
+    public void testWholeFramesAreNotCopied() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean)bean;
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        final byte[] payload = new byte[4096];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) i;
+
+        final long[] bytesParsed = {0};
+        PiParser parser = new PiParser();
+        parser.registerParserForId(new CustomByteBufferParser() {
+            @Override
+            public void parse(ByteBuffer data) {
+                Assert.assertTrue(data.isReadOnly());
+                Assert.assertEquals(payload.length, data.remaining());
+                Assert.assertEquals(payload[payload.length - 1], data.get(data.limit() - 1));
+                bytesParsed[0] += data.remaining();
+            }
+
+            @Override
+            public void parse(byte[] data) {
+                Assert.fail("The parser should get a ByteBuffer");
+            }
+        }, 2);
+
+        ByteBuffer frames = ByteBuffer.wrap(encodeReply(new PiMessage(2, payload)));
+        PiServerManager manager = new PiServerManager(parser);
+        IntObjectHashMap<PiMessage> sentMessages = new IntObjectHashMap<PiMessage>();
+
+        //Warm up the JIT
+        for (int i = 0; i < 10000; i++) {
+            frames.rewind();
+            manager.serverSentMessage(frames, sentMessages);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long startBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10000; i++) {
+            frames.rewind();
+            manager.serverSentMessage(frames, sentMessages);
+        }
+        long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+        System.out.println("Parsing 10000 frames of " + payload.length + " bytes allocated " + allocatedBytes + " bytes");
+        Assert.assertEquals(20000L * payload.length, bytesParsed[0]);
+        Assert.assertTrue("Parsing allocated " + allocatedBytes + " bytes", allocatedBytes < 10000L * payload.length / 4);
+    }
+
+    @Test
+    public void testSplitFramesKeepTheirArray() throws Exception {
+        final byte[] payload = new byte[4096];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) i;
+
+        final int[] framesParsed = {0};
+        PiParser parser = new PiParser();
+        parser.registerParserForId(new CustomByteBufferParser() {
+            @Override
+            public void parse(ByteBuffer data) {
+                //MessageWire parses the array directly instead of copying the message again
+                Assert.assertTrue(data.hasArray());
+                byte[] parsed = new byte[data.remaining()];
+                data.duplicate().get(parsed);
+                Assert.assertArrayEquals(payload, parsed);
+                framesParsed[0]++;
+            }
+
+            @Override
+            public void parse(byte[] data) {
+                Assert.fail("The parser should get a ByteBuffer");
+            }
+        }, 2);
+
+        byte[] frame = encodeReply(new PiMessage(2, payload));
+        PiServerManager manager = new PiServerManager(parser);
+        IntObjectHashMap<PiMessage> sentMessages = new IntObjectHashMap<PiMessage>();
+
+        int split = frame.length - 1000;
+        manager.serverSentMessage(ByteBuffer.wrap(frame, 0, split), sentMessages);
+        manager.serverSentMessage(ByteBuffer.wrap(frame, split, frame.length - split), sentMessages);
+
+        Assert.assertEquals(1, framesParsed[0]);
+    }
+
+    private static PiMessage newRequest(PiMessageCallbacks callbacks) {
+        PiMessage message = new PiMessage(1);
+        message.setMessageCallbacks(callbacks);
+        return message;
+    }
+
+    /**
+     * @return  An empty reply frame with the message ID of the request.
+     */
+    private static byte[] encodeReply(PiMessage request) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        request.writeToOutputStream(outputStream);
+        return outputStream.toByteArray();
+    }
+}
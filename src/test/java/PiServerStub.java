@@ -0,0 +1,555 @@
+import com.kylekewley.piclient.Constants;
+import com.kylekewley.piclient.MutablePiHeader;
+import com.kylekewley.piclient.protocolbuffers.ParseError;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A PiServer stand-in for tests. It listens on a free loopback port, reads PiMessage frames
+ * (2 byte header length, PiHeader, payload) on a single NIO thread and, if replies are enabled,
+ * answers each frame with a reply carrying the same message ID. Pings are echoed and group
+ * registrations get an empty acknowledgement, the same as the real server. Other replies are
+ * empty unless a reply size is given. Echoed compressed payloads are sent back still compressed.
+ *
+ * Chunks of a stream aren't answered until the last one, which gets the stream's length (8 bytes)
+ * and CRC32 (4 bytes) as its reply. Replies can also be sent as streams, see setReplyChunkSize().
+ *
+ * Faults can be turned on at any time: a delay before each reply, replies written a few bytes
+ * at a time, a ParseError instead of every Nth reply, and dropping connections after a number
+ * of frames or on demand.
+ */
+public class PiServerStub implements Runnable {
+
+    private static final int PING_ID = Constants.ServerDefaultParserId.PING_ID.getId();
+    private static final int GROUP_REGISTRATION_ID = Constants.ServerDefaultParserId.GROUP_REGISTRATION_ID.getId();
+
+    ///The PiHeader flag for a ParseError reply, the same as PiMessage.HEADER_FLAG_ERROR
+    private static final int HEADER_FLAG_ERROR = 1;
+
+    ///The PiHeader flag for a compressed payload, the same as PiMessage.HEADER_FLAG_COMPRESSED
+    private static final int HEADER_FLAG_COMPRESSED = 2;
+
+    ///The PiHeader flags for stream chunks, the same as PiMessage.HEADER_FLAG_CHUNK and HEADER_FLAG_LAST_CHUNK
+    private static final int HEADER_FLAG_CHUNK = 4;
+    private static final int HEADER_FLAG_LAST_CHUNK = 8;
+
+    ///The error number sent with injected ParseErrors
+    public static final int INJECTED_ERROR_NUMBER = 99;
+
+    ///Stop reading from a connection while this many reply bytes are waiting for the client, like a full socket buffer
+    private static final int MAX_PENDING_REPLY_BYTES = 1024 * 1024;
+
+    /**
+     * The state for one client connection. Only touched by the stub's thread.
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+        long framesReceived;
+
+        ///The length and checksum of the stream being received
+        long streamLength;
+        final CRC32 streamChecksum = new CRC32();
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    /**
+     * A reply waiting for the reply delay to pass.
+     */
+    private static class DelayedReply {
+        final Connection connection;
+        final long sendTime;
+        final ByteBuffer frame;
+
+        DelayedReply(Connection connection, long sendTime, ByteBuffer frame) {
+            this.connection = connection;
+            this.sendTime = sendTime;
+            this.frame = frame;
+        }
+    }
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Thread thread;
+    private final boolean reply;
+    private final byte[] replyPayload;
+    private final MutablePiHeader header = new MutablePiHeader();
+    private final List<Connection> connections = new ArrayList<Connection>();
+    private final ArrayDeque<DelayedReply> delayedReplies = new ArrayDeque<DelayedReply>();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong connectionsAccepted = new AtomicLong();
+    private final AtomicLongArray parserFramesReceived = new AtomicLongArray(256);
+    private volatile boolean echo;
+    private volatile int replyChunkSize;
+    private volatile long replyDelayNanos;
+    private volatile int fragmentSize;
+    private volatile int parseErrorInterval;
+    private volatile long disconnectAfterFrames;
+    private volatile boolean disconnectRequested;
+    private volatile boolean closed;
+
+
+    /**
+     * @param reply true to answer every frame with an empty reply.
+     */
+    public PiServerStub(boolean reply) throws IOException {
+        this(reply, 0);
+    }
+
+    /**
+     * @param reply     true to answer every frame.
+     * @param replySize The number of payload bytes in each reply.
+     */
+    public PiServerStub(boolean reply, int replySize) throws IOException {
+        this(0, reply, replySize);
+    }
+
+    /**
+     * @param port      The port to listen on, or zero for any free port. Used to restart a stub on the same port.
+     * @param reply     true to answer every frame.
+     * @param replySize The number of payload bytes in each reply.
+     */
+    public PiServerStub(int port, boolean reply, int replySize) throws IOException {
+        this.reply = reply;
+
+        replyPayload = new byte[replySize];
+        for (int i = 0; i < replySize; i++)
+            replyPayload[i] = (byte) i;
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress("localhost", port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+
+        thread = new Thread(this, "PiServerStub");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /*
+    Settings
+     */
+
+
+    /**
+     * @param echo  true to reply with the payload of each frame instead of the reply size.
+     */
+    public void setEcho(boolean echo) {
+        this.echo = echo;
+    }
+
+    /**
+     * @param bytes Send replies bigger than this as a stream of chunks this size, or zero to send every reply whole.
+     */
+    public void setReplyChunkSize(int bytes) {
+        replyChunkSize = bytes;
+    }
+
+    /**
+     * @param millis    The time to wait before sending each reply.
+     */
+    public void setReplyDelay(long millis) {
+        replyDelayNanos = millis * 1000000;
+    }
+
+    /**
+     * @param bytes The most bytes to write to the socket at a time, or zero to write everything at once.
+     */
+    public void setFragmentSize(int bytes) {
+        fragmentSize = bytes;
+    }
+
+    /**
+     * @param interval  Reply with a ParseError to every interval'th frame, or zero to never inject errors.
+     */
+    public void setParseErrorInterval(int interval) {
+        parseErrorInterval = interval;
+    }
+
+    /**
+     * @param frames    Drop each connection once it has sent this many frames, or zero to keep connections open.
+     */
+    public void setDisconnectAfter(long frames) {
+        disconnectAfterFrames = frames;
+    }
+
+    /**
+     * Drop every open connection. The stub keeps accepting new ones.
+     */
+    public void disconnectAll() {
+        disconnectRequested = true;
+        selector.wakeup();
+    }
+
+
+    /*
+    Statistics
+     */
+
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public long getFramesReceived() {
+        return framesReceived.get();
+    }
+
+    /**
+     * @return  The number of frames received for the parser ID, which must be under 256.
+     */
+    public long getFramesReceived(int parserId) {
+        return parserFramesReceived.get(parserId);
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.get();
+    }
+
+    /**
+     * Stop the stub and close every connection. The port is free when this returns.
+     */
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /*
+    Event Loop
+     */
+
+
+    @Override
+    public void run() {
+        try {
+            while (!closed) {
+                selector.select(selectTimeout());
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else
+                        handle((Connection) key.attachment());
+                }
+
+                sendDelayedReplies();
+
+                if (disconnectRequested) {
+                    disconnectRequested = false;
+                    for (Connection connection : new ArrayList<Connection>(connections))
+                        disconnect(connection);
+                }
+            }
+        } catch (IOException e) {
+            //The selector failed, shut down
+        } finally {
+            for (Connection connection : new ArrayList<Connection>(connections))
+                disconnect(connection);
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (IOException e) {
+                //Closing anyway
+            }
+        }
+    }
+
+    /**
+     * @return  The milliseconds until the next delayed reply is due, or zero to wait for the next event.
+     */
+    private long selectTimeout() {
+        DelayedReply next = delayedReplies.peek();
+        if (next == null)
+            return 0;
+        return Math.max(1, (next.sendTime - System.nanoTime() + 999999) / 1000000);
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            Connection connection = new Connection(channel, key);
+            key.attach(connection);
+            connections.add(connection);
+            connectionsAccepted.incrementAndGet();
+        }
+    }
+
+    private void handle(Connection connection) {
+        try {
+            if (connection.key.isWritable())
+                flush(connection);
+            if (connection.key.isValid() && connection.key.isReadable())
+                read(connection);
+        } catch (IOException e) {
+            //Client disconnected
+            disconnect(connection);
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        if (connection.channel.read(connection.in) < 0) {
+            disconnect(connection);
+            return;
+        }
+
+        ByteBuffer in = connection.in;
+        int requiredSize = 0;
+        in.flip();
+        while (in.remaining() >= 2) {
+            int frameStart = in.position();
+            int headerLength = in.getShort() & 0xFFFF;
+            if (in.remaining() < headerLength) {
+                in.position(frameStart);
+                break;
+            }
+
+            header.decodeFrom(in, headerLength);
+            int frameSize = 2 + headerLength + header.getMessageLength();
+            if (in.remaining() < header.getMessageLength()) {
+                in.position(frameStart);
+                requiredSize = frameSize;
+                break;
+            }
+
+            ByteBuffer payload = in.slice();
+            payload.limit(header.getMessageLength());
+            in.position(in.position() + header.getMessageLength());
+
+            if (!frameReceived(connection, payload, frameSize))
+                return;
+        }
+        in.compact();
+        if (requiredSize > in.capacity())
+            connection.in = grow(in, requiredSize);
+
+        flush(connection);
+    }
+
+    /**
+     * Count the frame and queue its reply.
+     *
+     * @return  false if the connection was dropped.
+     */
+    private boolean frameReceived(Connection connection, ByteBuffer payload, int frameSize) {
+        long frameNumber = framesReceived.incrementAndGet();
+        int parserId = header.getParserId();
+        if (parserId >= 0 && parserId < parserFramesReceived.length())
+            parserFramesReceived.incrementAndGet(parserId);
+        bytesReceived.addAndGet(frameSize);
+
+        long disconnectAfter = disconnectAfterFrames;
+        if (disconnectAfter > 0 && ++connection.framesReceived >= disconnectAfter) {
+            disconnect(connection);
+            return false;
+        }
+
+        boolean lastChunk = false;
+        if (header.hasFlag(HEADER_FLAG_CHUNK)) {
+            payload.getInt(); //The sequence number, TCP keeps the chunks in order
+            byte[] chunk = new byte[payload.remaining()];
+            payload.get(chunk);
+            connection.streamLength += chunk.length;
+            connection.streamChecksum.update(chunk);
+
+            //Only the last chunk of a stream is answered
+            if (!header.hasFlag(HEADER_FLAG_LAST_CHUNK))
+                return true;
+            lastChunk = true;
+        }
+
+        if (!reply)
+            return true;
+
+        MutablePiHeader replyHeader = new MutablePiHeader();
+        replyHeader.setParserId(parserId);
+        replyHeader.setMessageId(header.getMessageId());
+
+        byte[] data;
+        int errorInterval = parseErrorInterval;
+        if (errorInterval > 0 && frameNumber % errorInterval == 0) {
+            data = new ParseError(INJECTED_ERROR_NUMBER, "Injected by PiServerStub").toByteArray();
+            replyHeader.setFlags(HEADER_FLAG_ERROR);
+            replyHeader.setSuccessResponse(false);
+        }else {
+            if (lastChunk) {
+                data = ByteBuffer.allocate(12).putLong(connection.streamLength)
+                        .putInt((int) connection.streamChecksum.getValue()).array();
+            }else if (parserId == PING_ID || echo) {
+                data = new byte[payload.remaining()];
+                payload.get(data);
+                if (header.hasFlag(HEADER_FLAG_COMPRESSED))
+                    replyHeader.setFlags(HEADER_FLAG_COMPRESSED);
+            }else if (parserId == GROUP_REGISTRATION_ID) {
+                data = new byte[0];
+            }else {
+                data = replyPayload;
+            }
+            replyHeader.setSuccessResponse(true);
+        }
+        if (lastChunk) {
+            connection.streamLength = 0;
+            connection.streamChecksum.reset();
+        }
+
+        int chunkSize = replyChunkSize;
+        if (chunkSize <= 0 || data.length <= chunkSize || replyHeader.hasFlag(HEADER_FLAG_ERROR)) {
+            replyHeader.setMessageLength(data.length);
+            queueReply(connection, encodeFrame(replyHeader, null, data, 0, data.length));
+            return true;
+        }
+
+        //Send the reply as a stream
+        int sequence = 0;
+        for (int offset = 0; offset < data.length; offset += chunkSize) {
+            int length = Math.min(chunkSize, data.length - offset);
+            boolean last = offset + length == data.length;
+            replyHeader.setFlags(HEADER_FLAG_CHUNK | (last ? HEADER_FLAG_LAST_CHUNK : 0));
+            replyHeader.setMessageLength(4 + length);
+            queueReply(connection, encodeFrame(replyHeader, sequence++, data, offset, length));
+        }
+        return true;
+    }
+
+    /**
+     * @param sequence  The chunk's sequence number, or null if the frame isn't a chunk.
+     */
+    private static ByteBuffer encodeFrame(MutablePiHeader replyHeader, Integer sequence, byte[] data, int offset, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(2 + replyHeader.getSerializedSize() + replyHeader.getMessageLength());
+        frame.putShort((short) replyHeader.getSerializedSize());
+        replyHeader.encodeTo(frame);
+        if (sequence != null)
+            frame.putInt(sequence);
+        frame.put(data, offset, length);
+        frame.flip();
+        return frame;
+    }
+
+    private void queueReply(Connection connection, ByteBuffer frame) {
+        long delay = replyDelayNanos;
+        if (delay > 0)
+            delayedReplies.add(new DelayedReply(connection, System.nanoTime() + delay, frame));
+        else
+            append(connection, frame);
+    }
+
+    private void sendDelayedReplies() {
+        long now = System.nanoTime();
+        DelayedReply next;
+        while ((next = delayedReplies.peek()) != null && next.sendTime - now <= 0) {
+            delayedReplies.poll();
+            if (!next.connection.key.isValid())
+                continue;
+
+            append(next.connection, next.frame);
+            try {
+                flush(next.connection);
+            } catch (IOException e) {
+                disconnect(next.connection);
+            }
+        }
+    }
+
+    private void append(Connection connection, ByteBuffer frame) {
+        if (connection.out.remaining() < frame.remaining()) {
+            connection.out = grow(connection.out, connection.out.position() + frame.remaining());
+        }
+        connection.out.put(frame);
+    }
+
+    /**
+     * Write as many replies as the socket takes, and only read more while the client keeps up.
+     */
+    private void flush(Connection connection) throws IOException {
+        ByteBuffer out = connection.out;
+        out.flip();
+        while (out.hasRemaining()) {
+            int limit = out.limit();
+            if (fragmentSize > 0)
+                out.limit(Math.min(limit, out.position() + fragmentSize));
+
+            int written = connection.channel.write(out);
+            out.limit(limit);
+            if (written == 0)
+                break;
+        }
+        out.compact();
+
+        int pending = out.position();
+        int interestOps = pending < MAX_PENDING_REPLY_BYTES ? SelectionKey.OP_READ : 0;
+        if (pending > 0)
+            interestOps |= SelectionKey.OP_WRITE;
+        connection.key.interestOps(interestOps);
+    }
+
+    private void disconnect(Connection connection) {
+        connections.remove(connection);
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            //Closing anyway
+        }
+    }
+
+    /**
+     * Copy a buffer that is being written to into a bigger one.
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int minCapacity) {
+        int capacity = buffer.capacity();
+        while (capacity < minCapacity)
+            capacity *= 2;
+
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+}
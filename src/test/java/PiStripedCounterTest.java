@@ -0,0 +1,55 @@
+import com.kylekewley.piclient.*;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PiStripedCounterTest {
+
+    private static final int THREADS = 8;
+    private static final int ADDS = 2000000;
+
+    @Test
+    public void testCountsFromManyThreads() throws Exception {
+        final PiStripedCounter counter = new PiStripedCounter();
+        long stripedTime = run(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ADDS; i++)
+                    counter.increment();
+            }
+        });
+        Assert.assertEquals((long) THREADS * ADDS, counter.sum());
+
+        final AtomicLong atomic = new AtomicLong();
+        long atomicTime = run(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ADDS; i++)
+                    atomic.incrementAndGet();
+            }
+        });
+        Assert.assertEquals((long) THREADS * ADDS, atomic.get());
+
+        System.out.println(THREADS + " threads adding " + ADDS + " each: striped " + stripedTime + "ms, AtomicLong " + atomicTime + "ms");
+
+        counter.add(-5);
+        Assert.assertEquals((long) THREADS * ADDS - 5, counter.sum());
+        counter.reset();
+        Assert.assertEquals(0, counter.sum());
+    }
+
+    private static long run(Runnable task) throws InterruptedException {
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++)
+            threads[i] = new Thread(task);
+
+        long startTime = System.currentTimeMillis();
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        return System.currentTimeMillis() - startTime;
+    }
+}
@@ -0,0 +1,81 @@
+import com.kylekewley.piclient.PiTimerWheel;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PiTimerWheelTest {
+
+    ///The number of timeouts to schedule
+    private static final int TIMEOUT_COUNT = 200000;
+
+    @Test
+    public void testExpiresOnlyUncancelledTimeouts() throws Exception {
+        PiTimerWheel wheel = new PiTimerWheel(10, 64);
+        final int[] expired = {0};
+        final long start = System.nanoTime();
+        final long[] earliest = {Long.MAX_VALUE};
+
+        PiTimerWheel.TimerTask task = new PiTimerWheel.TimerTask() {
+            @Override
+            public void run(@NotNull PiTimerWheel.Timeout timeout) {
+                expired[0]++;
+                long delay = (Long)timeout.getAttachment();
+                long elapsed = (System.nanoTime() - start) / 1000000;
+                earliest[0] = Math.min(earliest[0], elapsed - delay);
+            }
+        };
+
+        PiTimerWheel.Timeout[] timeouts = new PiTimerWheel.Timeout[TIMEOUT_COUNT];
+        for (int i = 0; i < TIMEOUT_COUNT; i++) {
+            //Spread the delays over several turns of the wheel
+            long delay = 50 + (i % 1000);
+            timeouts[i] = wheel.schedule(task, delay, delay);
+        }
+        for (int i = 0; i < TIMEOUT_COUNT; i += 2) {
+            timeouts[i].cancel();
+        }
+
+        Assert.assertEquals(TIMEOUT_COUNT / 2, wheel.size());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (wheel.size() > 0 && System.currentTimeMillis() < deadline) {
+            long wait = wheel.expireTimeouts();
+            if (wait > 0)
+                Thread.sleep(wait);
+        }
+
+        Assert.assertEquals("Every uncancelled timeout should expire", TIMEOUT_COUNT / 2, expired[0]);
+        Assert.assertTrue("A timeout expired early", earliest[0] >= 0);
+        Assert.assertTrue(timeouts[1].isExpired());
+        Assert.assertFalse(timeouts[0].isExpired());
+    }
+
+    @Test
+    public void testTaskCanCancelAnotherExpiringTimeout() throws Exception {
+        PiTimerWheel wheel = new PiTimerWheel(10, 64);
+        final int[] expired = {0};
+        final PiTimerWheel.Timeout[] timeouts = new PiTimerWheel.Timeout[2];
+
+        PiTimerWheel.TimerTask task = new PiTimerWheel.TimerTask() {
+            @Override
+            public void run(@NotNull PiTimerWheel.Timeout timeout) {
+                expired[0]++;
+                for (PiTimerWheel.Timeout other : timeouts) {
+                    if (other != timeout)
+                        other.cancel();
+                }
+            }
+        };
+
+        //Both timeouts land in the same bucket and expire on the same tick
+        timeouts[0] = wheel.schedule(task, null, 20);
+        timeouts[1] = wheel.schedule(task, null, 20);
+
+        Thread.sleep(50);
+        wheel.expireTimeouts();
+
+        Assert.assertEquals("Only one of the two timeouts should run", 1, expired[0]);
+        Assert.assertEquals(0, wheel.size());
+    }
+}